@@ -0,0 +1,403 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.configuration.internal;
+
+import org.phenotips.configuration.RecordConfiguration;
+import org.phenotips.configuration.RecordElement;
+import org.phenotips.configuration.RecordSection;
+
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.uiextension.UIExtension;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+import java.util.Set;
+
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * An immutable snapshot of a {@link RecordConfiguration}, as returned by the configuration modules, which can be safely
+ * shared between requests. The sections and their elements are copied into read-only objects, so that changes made
+ * while processing one request cannot leak into the configuration seen by other users. All the derived lists, such as
+ * the enabled sections and the field names, are computed once, and the field name lists can be searched in constant
+ * time.
+ *
+ * @version $Id$
+ * @since 1.4
+ */
+final class CachedRecordConfiguration implements RecordConfiguration
+{
+    private static final String READ_ONLY_MESSAGE = "Cached record configurations cannot be modified";
+
+    private final List<RecordSection> allSections;
+
+    private final List<RecordSection> enabledSections;
+
+    private final List<String> enabledFieldNames;
+
+    private final List<String> enabledNonIdentifiableFieldNames;
+
+    private final List<String> allFieldNames;
+
+    private final DocumentReference phenotypeMapping;
+
+    private final String isoDateFormat;
+
+    private final String dateOfBirthFormat;
+
+    private final String description;
+
+    /**
+     * Constructor that reads everything from the configuration computed by the modules.
+     *
+     * @param source the configuration to copy
+     */
+    @SuppressWarnings("deprecation")
+    CachedRecordConfiguration(RecordConfiguration source)
+    {
+        // The same section may be listed in both lists, make sure it is copied only once
+        Map<RecordSection, RecordSection> copies = new IdentityHashMap<>();
+        this.allSections = copySections(source.getAllSections(), copies);
+        this.enabledSections = copySections(source.getEnabledSections(), copies);
+        this.enabledFieldNames = new FieldNameList(source.getEnabledFieldNames());
+        this.enabledNonIdentifiableFieldNames = new FieldNameList(source.getEnabledNonIdentifiableFieldNames());
+        this.allFieldNames = new FieldNameList(source.getAllFieldNames());
+        this.phenotypeMapping = source.getPhenotypeMapping();
+        this.isoDateFormat = source.getISODateFormat();
+        this.dateOfBirthFormat = source.getDateOfBirthFormat();
+        this.description = source.toString();
+    }
+
+    @Override
+    public List<RecordSection> getAllSections()
+    {
+        return this.allSections;
+    }
+
+    @Override
+    public List<RecordSection> getEnabledSections()
+    {
+        return this.enabledSections;
+    }
+
+    @Override
+    public void setSections(List<RecordSection> sections)
+    {
+        throw readOnly();
+    }
+
+    @Override
+    public List<String> getEnabledFieldNames()
+    {
+        return this.enabledFieldNames;
+    }
+
+    @Override
+    public List<String> getEnabledNonIdentifiableFieldNames()
+    {
+        return this.enabledNonIdentifiableFieldNames;
+    }
+
+    @Override
+    public List<String> getAllFieldNames()
+    {
+        return this.allFieldNames;
+    }
+
+    @Override
+    public DocumentReference getPhenotypeMapping()
+    {
+        return this.phenotypeMapping;
+    }
+
+    @Override
+    public void setPhenotypeMapping(DocumentReference mapping)
+    {
+        throw readOnly();
+    }
+
+    @Override
+    public String getISODateFormat()
+    {
+        return this.isoDateFormat;
+    }
+
+    @Override
+    public String getDateOfBirthFormat()
+    {
+        return this.dateOfBirthFormat;
+    }
+
+    @Override
+    public void setDateOfBirthFormat(String format)
+    {
+        throw readOnly();
+    }
+
+    @Override
+    public String toString()
+    {
+        return this.description;
+    }
+
+    private static List<RecordSection> copySections(Collection<RecordSection> sections,
+        Map<RecordSection, RecordSection> copies)
+    {
+        if (sections == null || sections.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<RecordSection> result = new ArrayList<>(sections.size());
+        for (RecordSection section : sections) {
+            RecordSection copy = copies.get(section);
+            if (copy == null) {
+                copy = new ReadOnlySection(section);
+                copies.put(section, copy);
+            }
+            result.add(copy);
+        }
+        return Collections.unmodifiableList(result);
+    }
+
+    private static UnsupportedOperationException readOnly()
+    {
+        return new UnsupportedOperationException(READ_ONLY_MESSAGE);
+    }
+
+    /** An unmodifiable list of field names, which also keeps a set of its items for fast {@link #contains} checks. */
+    private static final class FieldNameList extends AbstractList<String> implements RandomAccess
+    {
+        private final String[] names;
+
+        private final Set<String> index;
+
+        FieldNameList(Collection<String> names)
+        {
+            this.names = names == null ? new String[0] : names.toArray(new String[names.size()]);
+            this.index = new HashSet<>(this.names.length * 2);
+            Collections.addAll(this.index, this.names);
+        }
+
+        @Override
+        public String get(int position)
+        {
+            return this.names[position];
+        }
+
+        @Override
+        public int size()
+        {
+            return this.names.length;
+        }
+
+        @Override
+        public boolean contains(Object item)
+        {
+            return this.index.contains(item);
+        }
+    }
+
+    /** A read-only copy of a {@link RecordSection}, along with read-only copies of its elements. */
+    private static final class ReadOnlySection implements RecordSection
+    {
+        private final UIExtension extension;
+
+        private final String name;
+
+        private final boolean enabled;
+
+        private final boolean expandedByDefault;
+
+        private final List<RecordElement> allElements;
+
+        private final List<RecordElement> enabledElements;
+
+        ReadOnlySection(RecordSection source)
+        {
+            this.extension = source.getExtension();
+            this.name = source.getName();
+            this.enabled = source.isEnabled();
+            this.expandedByDefault = source.isExpandedByDefault();
+            Map<RecordElement, RecordElement> copies = new IdentityHashMap<>();
+            this.allElements = copyElements(source.getAllElements(), copies);
+            this.enabledElements = copyElements(source.getEnabledElements(), copies);
+        }
+
+        @Override
+        public UIExtension getExtension()
+        {
+            return this.extension;
+        }
+
+        @Override
+        public String getName()
+        {
+            return this.name;
+        }
+
+        @Override
+        public boolean isEnabled()
+        {
+            return this.enabled;
+        }
+
+        @Override
+        public void setEnabled(boolean enabled)
+        {
+            throw readOnly();
+        }
+
+        @Override
+        public boolean isExpandedByDefault()
+        {
+            return this.expandedByDefault;
+        }
+
+        @Override
+        public void setExpandedByDefault(boolean expanded)
+        {
+            throw readOnly();
+        }
+
+        @Override
+        public List<RecordElement> getAllElements()
+        {
+            return this.allElements;
+        }
+
+        @Override
+        public List<RecordElement> getEnabledElements()
+        {
+            return this.enabledElements;
+        }
+
+        @Override
+        public void setElements(List<RecordElement> elements)
+        {
+            throw readOnly();
+        }
+
+        @Override
+        public String toString()
+        {
+            return this.name + " [" + StringUtils.join(this.enabledElements, ", ") + ']';
+        }
+
+        private List<RecordElement> copyElements(Collection<RecordElement> elements,
+            Map<RecordElement, RecordElement> copies)
+        {
+            if (elements == null || elements.isEmpty()) {
+                return Collections.emptyList();
+            }
+            List<RecordElement> result = new ArrayList<>(elements.size());
+            for (RecordElement element : elements) {
+                RecordElement copy = copies.get(element);
+                if (copy == null) {
+                    copy = new ReadOnlyElement(element, this);
+                    copies.put(element, copy);
+                }
+                result.add(copy);
+            }
+            return Collections.unmodifiableList(result);
+        }
+    }
+
+    /** A read-only copy of a {@link RecordElement}, pointing to the read-only copy of its section. */
+    private static final class ReadOnlyElement implements RecordElement
+    {
+        private final UIExtension extension;
+
+        private final String name;
+
+        private final boolean enabled;
+
+        private final boolean containsPrivateIdentifiableInformation;
+
+        private final List<String> displayedFields;
+
+        private final RecordSection section;
+
+        @SuppressWarnings("deprecation")
+        ReadOnlyElement(RecordElement source, RecordSection section)
+        {
+            this.extension = source.getExtension();
+            this.name = source.getName();
+            this.enabled = source.isEnabled();
+            this.containsPrivateIdentifiableInformation = source.containsPrivateIdentifiableInformation();
+            List<String> fields = source.getDisplayedFields();
+            this.displayedFields = fields == null || fields.isEmpty() ? Collections.<String>emptyList()
+                : Collections.unmodifiableList(new ArrayList<>(fields));
+            this.section = section;
+        }
+
+        @Override
+        public UIExtension getExtension()
+        {
+            return this.extension;
+        }
+
+        @Override
+        public String getName()
+        {
+            return this.name;
+        }
+
+        @Override
+        public boolean isEnabled()
+        {
+            return this.enabled;
+        }
+
+        @Override
+        public void setEnabled(boolean enabled)
+        {
+            throw readOnly();
+        }
+
+        @Override
+        @Deprecated
+        public boolean containsPrivateIdentifiableInformation()
+        {
+            return this.containsPrivateIdentifiableInformation;
+        }
+
+        @Override
+        public List<String> getDisplayedFields()
+        {
+            return this.displayedFields;
+        }
+
+        @Override
+        public RecordSection getContainingSection()
+        {
+            return this.section;
+        }
+
+        @Override
+        public String toString()
+        {
+            return this.name;
+        }
+    }
+}
@@ -17,13 +17,41 @@
  */
 package org.phenotips.configuration.internal;
 
+import org.phenotips.Constants;
 import org.phenotips.configuration.RecordConfiguration;
 import org.phenotips.configuration.RecordConfigurationManager;
 import org.phenotips.configuration.spi.RecordConfigurationModule;
 
+import org.xwiki.bridge.DocumentAccessBridge;
+import org.xwiki.bridge.event.AbstractDocumentEvent;
+import org.xwiki.bridge.event.DocumentCreatedEvent;
+import org.xwiki.bridge.event.DocumentDeletedEvent;
+import org.xwiki.bridge.event.DocumentUpdatedEvent;
+import org.xwiki.cache.Cache;
+import org.xwiki.cache.CacheException;
+import org.xwiki.cache.CacheManager;
+import org.xwiki.cache.config.CacheConfiguration;
+import org.xwiki.cache.eviction.LRUEvictionConfiguration;
 import org.xwiki.component.annotation.Component;
+import org.xwiki.component.event.ComponentDescriptorAddedEvent;
+import org.xwiki.component.event.ComponentDescriptorRemovedEvent;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
+import org.xwiki.model.EntityType;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.EntityReference;
+import org.xwiki.observation.EventListener;
+import org.xwiki.observation.ObservationManager;
+import org.xwiki.observation.event.Event;
+import org.xwiki.uiextension.UIExtension;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.inject.Inject;
 import javax.inject.Provider;
@@ -31,19 +59,41 @@
 
 import org.slf4j.Logger;
 
+import com.xpn.xwiki.doc.XWikiDocument;
+
 /**
- * Default implementation for the {@link RecordConfigurationManager} component.
+ * Default implementation for the {@link RecordConfigurationManager} component. Since the configuration is needed many
+ * times while displaying or exporting a record, the result of the configuration modules is cached, as an immutable
+ * {@link CachedRecordConfiguration}, for each record type, user and current document, the current document being the
+ * one which determines the bound study and the granted consents. Cached configurations are discarded when the current
+ * document is saved, and all of them when a document holding configuration objects (the global configuration, a
+ * study, a consent definition, or a UI extension defining the record layout) is saved or deleted, or when a
+ * configuration module or a UI extension is registered or unregistered. The configurations of the least recently used
+ * documents are dropped once too many documents are cached.
  *
  * @version $Id$
  * @since 1.0M9
  */
 @Component
 @Singleton
-public class DefaultRecordConfigurationManager implements RecordConfigurationManager
+public class DefaultRecordConfigurationManager implements RecordConfigurationManager, EventListener, Initializable
 {
     /** The label for record of type "patient". */
     private static final String PATIENT_RECORD_LABEL = "patient";
 
+    /** The maximum number of documents for which configurations are remembered, the least recently used are dropped. */
+    private static final int MAX_CACHED_DOCUMENTS = 1000;
+
+    /** The key used in the cache when there is no current document or user. */
+    private static final String NONE = "";
+
+    /** The XClasses whose objects influence the record configuration. */
+    private static final List<EntityReference> CONFIGURATION_CLASSES = Arrays.asList(
+        RecordConfiguration.GLOBAL_PREFERENCES_CLASS,
+        new EntityReference("StudyClass", EntityType.DOCUMENT, Constants.CODE_SPACE_REFERENCE),
+        new EntityReference("PatientConsentConfiguration", EntityType.DOCUMENT, Constants.CODE_SPACE_REFERENCE),
+        new EntityReference("UIExtensionClass", EntityType.DOCUMENT, Constants.XWIKI_SPACE_REFERENCE));
+
     /** Logging helper. */
     @Inject
     private Logger logger;
@@ -51,11 +101,130 @@ public class DefaultRecordConfigurationManager implements RecordConfigurationMan
     @Inject
     private Provider<List<RecordConfigurationModule>> modules;
 
+    /** Provides the current user and document. */
+    @Inject
+    private DocumentAccessBridge bridge;
+
+    /** Allows registering this object as an event listener. */
+    @Inject
+    private ObservationManager observationManager;
+
+    /** Creates the configuration cache. */
+    @Inject
+    private CacheManager cacheManager;
+
+    /** The ordered list of modules, {@code null} until first needed or after the list of modules changes. */
+    private volatile List<RecordConfigurationModule> moduleList;
+
+    /** The cached configurations, for each current document, and for each record type and user. */
+    private Cache<ConcurrentMap<String, RecordConfiguration>> configurations;
+
+    /**
+     * Incremented each time cached configurations are discarded, so that configurations computed concurrently with
+     * an invalidation, which may be outdated, are not kept.
+     */
+    private final AtomicLong version = new AtomicLong();
+
+    @Override
+    public void initialize() throws InitializationException
+    {
+        try {
+            this.configurations = this.cacheManager.createNewLocalCache(
+                new CacheConfiguration(new LRUEvictionConfiguration(MAX_CACHED_DOCUMENTS)));
+        } catch (CacheException ex) {
+            throw new InitializationException("Cannot create cache: " + ex.getMessage(), ex);
+        }
+        this.observationManager.addListener(this);
+    }
+
     @Override
     public RecordConfiguration getConfiguration(String recordType)
+    {
+        DocumentReference currentDocument = this.bridge.getCurrentDocumentReference();
+        DocumentReference currentUser = this.bridge.getCurrentUserReference();
+        String documentKey = currentDocument == null ? NONE : currentDocument.toString();
+        String key = recordType + '|' + (currentUser == null ? NONE : currentUser.toString());
+
+        ConcurrentMap<String, RecordConfiguration> documentConfigurations = this.configurations.get(documentKey);
+        if (documentConfigurations != null) {
+            RecordConfiguration cached = documentConfigurations.get(key);
+            if (cached != null) {
+                return cached;
+            }
+        }
+
+        long expectedVersion = this.version.get();
+        RecordConfiguration config = computeConfiguration(recordType);
+        if (config == null) {
+            return null;
+        }
+        RecordConfiguration result = new CachedRecordConfiguration(config);
+        if (documentConfigurations == null) {
+            documentConfigurations = getDocumentConfigurations(documentKey);
+        }
+        documentConfigurations.put(key, result);
+        if (this.version.get() != expectedVersion) {
+            // Something changed while the configuration was computed, don't keep a possibly outdated result
+            documentConfigurations.remove(key, result);
+        }
+        return result;
+    }
+
+    @Override
+    public RecordConfiguration getActiveConfiguration()
+    {
+        return getConfiguration(PATIENT_RECORD_LABEL);
+    }
+
+    @Override
+    public String getName()
+    {
+        return "record-configuration-cache";
+    }
+
+    @Override
+    public List<Event> getEvents()
+    {
+        return Arrays.<Event>asList(new ComponentDescriptorAddedEvent(RecordConfigurationModule.class),
+            new ComponentDescriptorRemovedEvent(RecordConfigurationModule.class),
+            new ComponentDescriptorAddedEvent(UIExtension.class),
+            new ComponentDescriptorRemovedEvent(UIExtension.class), new DocumentCreatedEvent(),
+            new DocumentUpdatedEvent(), new DocumentDeletedEvent());
+    }
+
+    @Override
+    public void onEvent(Event event, Object source, Object data)
+    {
+        this.version.incrementAndGet();
+        if (event instanceof AbstractDocumentEvent) {
+            XWikiDocument doc = source instanceof XWikiDocument ? (XWikiDocument) source : null;
+            if (doc == null || hasConfiguration(doc) || hasConfiguration(doc.getOriginalDocument())) {
+                this.configurations.removeAll();
+            } else {
+                this.configurations.remove(doc.getDocumentReference().toString());
+            }
+        } else {
+            // a configuration module or a UI extension was added or removed
+            this.moduleList = null;
+            this.configurations.removeAll();
+        }
+    }
+
+    private synchronized ConcurrentMap<String, RecordConfiguration> getDocumentConfigurations(String documentKey)
+    {
+        // The cache has no atomic put-if-absent, so creating the map of a document is done while holding a lock
+        ConcurrentMap<String, RecordConfiguration> result = this.configurations.get(documentKey);
+        if (result == null) {
+            result = new ConcurrentHashMap<>();
+            this.configurations.set(documentKey, result);
+        }
+        return result;
+    }
+
+    private RecordConfiguration computeConfiguration(String recordType)
     {
         RecordConfiguration config = new DefaultRecordConfiguration();
-        for (RecordConfigurationModule service : this.modules.get()) {
+        for (RecordConfigurationModule service : getModules()) {
             try {
                 if (service.supportsRecordType(recordType)) {
                     config = service.process(config);
@@ -67,9 +236,26 @@ public RecordConfiguration getConfiguration(String recordType)
         return config;
     }
 
-    @Override
-    public RecordConfiguration getActiveConfiguration()
+    private List<RecordConfigurationModule> getModules()
     {
-        return getConfiguration(PATIENT_RECORD_LABEL);
+        List<RecordConfigurationModule> result = this.moduleList;
+        if (result == null) {
+            result = Collections.unmodifiableList(new ArrayList<>(this.modules.get()));
+            this.moduleList = result;
+        }
+        return result;
+    }
+
+    private boolean hasConfiguration(XWikiDocument doc)
+    {
+        if (doc == null) {
+            return false;
+        }
+        for (EntityReference classReference : CONFIGURATION_CLASSES) {
+            if (doc.getXObject(classReference) != null) {
+                return true;
+            }
+        }
+        return false;
     }
 }
@@ -19,10 +19,20 @@
 
 import org.phenotips.configuration.RecordConfiguration;
 import org.phenotips.configuration.RecordConfigurationManager;
+import org.phenotips.configuration.RecordElement;
+import org.phenotips.configuration.RecordSection;
 import org.phenotips.configuration.spi.RecordConfigurationModule;
 
+import org.xwiki.bridge.DocumentAccessBridge;
+import org.xwiki.bridge.event.DocumentUpdatedEvent;
+import org.xwiki.cache.Cache;
+import org.xwiki.cache.CacheManager;
+import org.xwiki.cache.config.CacheConfiguration;
+import org.xwiki.component.event.ComponentDescriptorAddedEvent;
 import org.xwiki.component.manager.ComponentLookupException;
 import org.xwiki.component.util.DefaultParameterizedType;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.observation.EventListener;
 import org.xwiki.test.mockito.MockitoComponentMockingRule;
 
 import java.lang.reflect.Type;
@@ -30,6 +40,8 @@
 import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.inject.Provider;
 
@@ -41,9 +53,19 @@
 import org.mockito.Mock;
 import org.mockito.Mockito;
 import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.xpn.xwiki.doc.XWikiDocument;
+import com.xpn.xwiki.objects.BaseObject;
 
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 /**
@@ -55,6 +77,10 @@
 {
     private static final String PATIENT_LABEL = "patient";
 
+    private static final DocumentReference PATIENT_DOC = new DocumentReference("xwiki", "data", "P0000001");
+
+    private static final DocumentReference USER = new DocumentReference("xwiki", "XWiki", "Alice");
+
     @Rule
     public final MockitoComponentMockingRule<RecordConfigurationManager> mocker =
         new MockitoComponentMockingRule<>(
@@ -75,8 +101,18 @@
     @Mock
     private Provider<List<RecordConfigurationModule>> modules;
 
+    @Mock
+    private RecordSection section;
+
+    @Mock
+    private RecordElement element;
+
+    private final Map<String, Object> cacheStorage = new ConcurrentHashMap<>();
+
     private List<RecordConfigurationModule> moduleList;
 
+    private DocumentAccessBridge bridge;
+
     @Before
     public void setup() throws Exception
     {
@@ -88,6 +124,27 @@ public void setup() throws Exception
         when(this.moduleOne.supportsRecordType(PATIENT_LABEL)).thenReturn(true);
         when(this.moduleTwo.supportsRecordType(PATIENT_LABEL)).thenReturn(true);
         when(this.moduleThree.supportsRecordType(PATIENT_LABEL)).thenReturn(true);
+
+        when(this.section.getName()).thenReturn("Patient information");
+        when(this.section.isEnabled()).thenReturn(true);
+        when(this.section.getAllElements()).thenReturn(Collections.singletonList(this.element));
+        when(this.section.getEnabledElements()).thenReturn(Collections.singletonList(this.element));
+        when(this.element.getName()).thenReturn("Name");
+        when(this.element.isEnabled()).thenReturn(true);
+        when(this.element.getDisplayedFields()).thenReturn(Arrays.asList("first_name", "last_name"));
+        when(this.config.getAllSections()).thenReturn(Collections.singletonList(this.section));
+        when(this.config.getEnabledSections()).thenReturn(Collections.singletonList(this.section));
+        when(this.config.getEnabledFieldNames()).thenReturn(Arrays.asList("first_name", "last_name"));
+        when(this.config.getPhenotypeMapping()).thenReturn(new DocumentReference("xwiki", "PhenoTips", "Mapping"));
+        when(this.config.getDateOfBirthFormat()).thenReturn("dd/MM/yyyy");
+
+        this.bridge = this.mocker.getInstance(DocumentAccessBridge.class);
+        when(this.bridge.getCurrentDocumentReference()).thenReturn(PATIENT_DOC);
+        when(this.bridge.getCurrentUserReference()).thenReturn(USER);
+
+        CacheManager cacheManager = this.mocker.getInstance(CacheManager.class);
+        Cache<Object> cache = mockCache();
+        doReturn(cache).when(cacheManager).createNewLocalCache(any(CacheConfiguration.class));
     }
 
     @Test
@@ -109,7 +166,7 @@ public void moduleOutputIsUsed() throws Exception
         Assert.assertNull(this.mocker.getComponentUnderTest().getConfiguration(PATIENT_LABEL));
 
         when(this.moduleOne.process(any(RecordConfiguration.class))).thenReturn(this.config);
-        Assert.assertSame(this.config, this.mocker.getComponentUnderTest().getConfiguration(PATIENT_LABEL));
+        assertCopyOf(this.config, this.mocker.getComponentUnderTest().getConfiguration(PATIENT_LABEL));
     }
 
     @Test
@@ -122,7 +179,7 @@ public void modulesAreCascaded() throws Exception
         when(this.moduleTwo.process(null)).thenReturn(tempConfig);
         when(this.moduleThree.process(tempConfig)).thenReturn(this.config);
 
-        Assert.assertSame(this.config, this.mocker.getComponentUnderTest().getConfiguration(PATIENT_LABEL));
+        assertCopyOf(this.config, this.mocker.getComponentUnderTest().getConfiguration(PATIENT_LABEL));
         InOrder order = Mockito.inOrder(this.moduleOne, this.moduleTwo, this.moduleThree);
         order.verify(this.moduleOne).process(any(RecordConfiguration.class));
         order.verify(this.moduleTwo).process(null);
@@ -143,7 +200,7 @@ public void allModulesAreInvoked() throws Exception
         when(this.moduleOne.process(any(RecordConfiguration.class))).thenReturn(null);
         when(this.moduleTwo.process(null)).thenReturn(this.config);
 
-        Assert.assertSame(this.config, this.mocker.getComponentUnderTest().getConfiguration(PATIENT_LABEL));
+        assertCopyOf(this.config, this.mocker.getComponentUnderTest().getConfiguration(PATIENT_LABEL));
     }
 
     @Test
@@ -154,7 +211,7 @@ public void exceptionsInModulesAreIgnored() throws Exception
 
         when(this.moduleOne.process(any(RecordConfiguration.class))).thenThrow(new NullPointerException());
         when(this.moduleTwo.process(any(RecordConfiguration.class))).thenReturn(this.config);
-        Assert.assertSame(this.config, this.mocker.getComponentUnderTest().getConfiguration(PATIENT_LABEL));
+        assertCopyOf(this.config, this.mocker.getComponentUnderTest().getConfiguration(PATIENT_LABEL));
     }
 
     @SuppressWarnings("deprecation")
@@ -165,6 +222,256 @@ public void getActiveConfigurationReturnsPatientRecordConfiguration() throws Exc
         doReturn(this.moduleList).when(this.modules).get();
 
         when(this.moduleOne.process(any(RecordConfiguration.class))).thenReturn(this.config);
-        Assert.assertSame(this.config, this.mocker.getComponentUnderTest().getActiveConfiguration());
+        assertCopyOf(this.config, this.mocker.getComponentUnderTest().getActiveConfiguration());
+    }
+
+    @Test
+    public void configurationIsCached() throws Exception
+    {
+        this.moduleList = Collections.singletonList(this.moduleOne);
+        doReturn(this.moduleList).when(this.modules).get();
+        when(this.moduleOne.process(any(RecordConfiguration.class))).thenReturn(this.config);
+
+        RecordConfigurationManager manager = this.mocker.getComponentUnderTest();
+        RecordConfiguration result = manager.getConfiguration(PATIENT_LABEL);
+        Assert.assertSame(result, manager.getConfiguration(PATIENT_LABEL));
+        Assert.assertSame(result, manager.getActiveConfiguration());
+
+        verify(this.modules, times(1)).get();
+        verify(this.moduleOne, times(1)).process(any(RecordConfiguration.class));
+    }
+
+    @Test
+    public void fieldNamesArePrecomputed() throws Exception
+    {
+        this.moduleList = Collections.singletonList(this.moduleOne);
+        doReturn(this.moduleList).when(this.modules).get();
+        when(this.moduleOne.process(any(RecordConfiguration.class))).thenReturn(this.config);
+
+        RecordConfigurationManager manager = this.mocker.getComponentUnderTest();
+        for (int i = 0; i < 3; ++i) {
+            List<String> names = manager.getConfiguration(PATIENT_LABEL).getEnabledFieldNames();
+            Assert.assertTrue(names.contains("last_name"));
+            Assert.assertFalse(names.contains("gender"));
+            Assert.assertEquals("first_name", names.get(0));
+        }
+        verify(this.config, times(1)).getEnabledFieldNames();
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void cachedConfigurationCannotBeModified() throws Exception
+    {
+        this.moduleList = Collections.singletonList(this.moduleOne);
+        doReturn(this.moduleList).when(this.modules).get();
+        when(this.moduleOne.process(any(RecordConfiguration.class))).thenReturn(this.config);
+
+        this.mocker.getComponentUnderTest().getConfiguration(PATIENT_LABEL).setDateOfBirthFormat("MM/dd/yyyy");
+    }
+
+    @Test
+    public void configurationIsCachedForEachUserAndDocument() throws Exception
+    {
+        this.moduleList = Collections.singletonList(this.moduleOne);
+        doReturn(this.moduleList).when(this.modules).get();
+        when(this.moduleOne.process(any(RecordConfiguration.class))).thenReturn(this.config);
+
+        RecordConfigurationManager manager = this.mocker.getComponentUnderTest();
+        manager.getConfiguration(PATIENT_LABEL);
+        when(this.bridge.getCurrentUserReference()).thenReturn(new DocumentReference("xwiki", "XWiki", "Bob"));
+        manager.getConfiguration(PATIENT_LABEL);
+        when(this.bridge.getCurrentDocumentReference()).thenReturn(new DocumentReference("xwiki", "data", "P2"));
+        manager.getConfiguration(PATIENT_LABEL);
+        manager.getConfiguration(PATIENT_LABEL);
+
+        verify(this.moduleOne, times(3)).process(any(RecordConfiguration.class));
+    }
+
+    @Test
+    public void cachedSectionsAreReadOnlyCopies() throws Exception
+    {
+        this.moduleList = Collections.singletonList(this.moduleOne);
+        doReturn(this.moduleList).when(this.modules).get();
+        when(this.moduleOne.process(any(RecordConfiguration.class))).thenReturn(this.config);
+
+        RecordConfiguration result = this.mocker.getComponentUnderTest().getConfiguration(PATIENT_LABEL);
+        RecordSection cachedSection = result.getAllSections().get(0);
+        Assert.assertNotSame(this.section, cachedSection);
+        Assert.assertSame(cachedSection, result.getEnabledSections().get(0));
+        RecordElement cachedElement = cachedSection.getEnabledElements().get(0);
+        Assert.assertNotSame(this.element, cachedElement);
+        Assert.assertSame(cachedSection, cachedElement.getContainingSection());
+        Assert.assertEquals(Arrays.asList("first_name", "last_name"), cachedElement.getDisplayedFields());
+
+        try {
+            cachedSection.setEnabled(false);
+            Assert.fail("Cached sections must not be modifiable");
+        } catch (UnsupportedOperationException ex) {
+            // Expected
+        }
+        try {
+            cachedSection.setElements(Collections.<RecordElement>emptyList());
+            Assert.fail("Cached sections must not be modifiable");
+        } catch (UnsupportedOperationException ex) {
+            // Expected
+        }
+        try {
+            cachedElement.setEnabled(false);
+            Assert.fail("Cached elements must not be modifiable");
+        } catch (UnsupportedOperationException ex) {
+            // Expected
+        }
+        Assert.assertTrue(cachedSection.isEnabled());
+        Assert.assertTrue(cachedElement.isEnabled());
+    }
+
+    @Test
+    public void changesToTheSourceSectionsDoNotAffectTheCachedConfiguration() throws Exception
+    {
+        this.moduleList = Collections.singletonList(this.moduleOne);
+        doReturn(this.moduleList).when(this.modules).get();
+        when(this.moduleOne.process(any(RecordConfiguration.class))).thenReturn(this.config);
+
+        RecordConfigurationManager manager = this.mocker.getComponentUnderTest();
+        manager.getConfiguration(PATIENT_LABEL);
+        when(this.section.isEnabled()).thenReturn(false);
+        when(this.section.getEnabledElements()).thenReturn(Collections.<RecordElement>emptyList());
+
+        RecordSection cachedSection = manager.getConfiguration(PATIENT_LABEL).getAllSections().get(0);
+        Assert.assertTrue(cachedSection.isEnabled());
+        Assert.assertEquals(1, cachedSection.getEnabledElements().size());
+    }
+
+    @Test
+    public void configurationsAreStoredInAnLRUCache() throws Exception
+    {
+        this.mocker.getComponentUnderTest();
+        verify(this.mocker.<CacheManager>getInstance(CacheManager.class))
+            .createNewLocalCache(any(CacheConfiguration.class));
+    }
+
+    @Test
+    public void savingTheCurrentDocumentInvalidatesItsConfiguration() throws Exception
+    {
+        this.moduleList = Collections.singletonList(this.moduleOne);
+        doReturn(this.moduleList).when(this.modules).get();
+        when(this.moduleOne.process(any(RecordConfiguration.class))).thenReturn(this.config);
+
+        RecordConfigurationManager manager = this.mocker.getComponentUnderTest();
+        manager.getConfiguration(PATIENT_LABEL);
+
+        XWikiDocument otherDoc = mock(XWikiDocument.class);
+        when(otherDoc.getDocumentReference()).thenReturn(new DocumentReference("xwiki", "data", "P2"));
+        ((EventListener) manager).onEvent(new DocumentUpdatedEvent(), otherDoc, null);
+        manager.getConfiguration(PATIENT_LABEL);
+        verify(this.moduleOne, times(1)).process(any(RecordConfiguration.class));
+
+        XWikiDocument patientDoc = mock(XWikiDocument.class);
+        when(patientDoc.getDocumentReference()).thenReturn(PATIENT_DOC);
+        ((EventListener) manager).onEvent(new DocumentUpdatedEvent(), patientDoc, null);
+        manager.getConfiguration(PATIENT_LABEL);
+        verify(this.moduleOne, times(2)).process(any(RecordConfiguration.class));
+    }
+
+    @Test
+    public void savingTheConfigurationInvalidatesAllConfigurations() throws Exception
+    {
+        this.moduleList = Collections.singletonList(this.moduleOne);
+        doReturn(this.moduleList).when(this.modules).get();
+        when(this.moduleOne.process(any(RecordConfiguration.class))).thenReturn(this.config);
+
+        RecordConfigurationManager manager = this.mocker.getComponentUnderTest();
+        manager.getConfiguration(PATIENT_LABEL);
+
+        XWikiDocument configDoc = mock(XWikiDocument.class);
+        when(configDoc.getDocumentReference()).thenReturn(new DocumentReference("xwiki", "data", "WebHome"));
+        when(configDoc.getXObject(RecordConfiguration.GLOBAL_PREFERENCES_CLASS)).thenReturn(mock(BaseObject.class));
+        ((EventListener) manager).onEvent(new DocumentUpdatedEvent(), configDoc, null);
+
+        manager.getConfiguration(PATIENT_LABEL);
+        verify(this.moduleOne, times(2)).process(any(RecordConfiguration.class));
+        verify(this.modules, times(1)).get();
+    }
+
+    @Test
+    public void changingTheModulesReloadsTheChain() throws Exception
+    {
+        this.moduleList = Collections.singletonList(this.moduleOne);
+        doReturn(this.moduleList).when(this.modules).get();
+        when(this.moduleOne.process(any(RecordConfiguration.class))).thenReturn(this.config);
+
+        RecordConfigurationManager manager = this.mocker.getComponentUnderTest();
+        manager.getConfiguration(PATIENT_LABEL);
+
+        doReturn(Arrays.asList(this.moduleOne, this.moduleTwo)).when(this.modules).get();
+        when(this.moduleTwo.process(this.config)).thenReturn(this.config);
+        ((EventListener) manager).onEvent(new ComponentDescriptorAddedEvent(RecordConfigurationModule.class), null,
+            null);
+
+        manager.getConfiguration(PATIENT_LABEL);
+        verify(this.modules, times(2)).get();
+        verify(this.moduleTwo, times(1)).process(this.config);
+    }
+
+    private void assertCopyOf(RecordConfiguration expected, RecordConfiguration actual)
+    {
+        Assert.assertNotNull(actual);
+        assertSameSections(expected.getAllSections(), actual.getAllSections());
+        assertSameSections(expected.getEnabledSections(), actual.getEnabledSections());
+        Assert.assertEquals(expected.getEnabledFieldNames(), actual.getEnabledFieldNames());
+        Assert.assertEquals(expected.getPhenotypeMapping(), actual.getPhenotypeMapping());
+        Assert.assertEquals(expected.getDateOfBirthFormat(), actual.getDateOfBirthFormat());
+    }
+
+    private void assertSameSections(List<RecordSection> expected, List<RecordSection> actual)
+    {
+        Assert.assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); ++i) {
+            Assert.assertEquals(expected.get(i).getName(), actual.get(i).getName());
+            Assert.assertEquals(expected.get(i).isEnabled(), actual.get(i).isEnabled());
+            Assert.assertEquals(expected.get(i).getEnabledElements().size(), actual.get(i).getEnabledElements().size());
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private Cache<Object> mockCache()
+    {
+        Cache<Object> cache = mock(Cache.class);
+        when(cache.get(anyString())).then(new Answer<Object>()
+        {
+            @Override
+            public Object answer(InvocationOnMock invocation)
+            {
+                return DefaultRecordConfigurationManagerTest.this.cacheStorage.get(invocation.getArguments()[0]);
+            }
+        });
+        doAnswer(new Answer<Void>()
+        {
+            @Override
+            public Void answer(InvocationOnMock invocation)
+            {
+                DefaultRecordConfigurationManagerTest.this.cacheStorage.put((String) invocation.getArguments()[0],
+                    invocation.getArguments()[1]);
+                return null;
+            }
+        }).when(cache).set(anyString(), any());
+        doAnswer(new Answer<Void>()
+        {
+            @Override
+            public Void answer(InvocationOnMock invocation)
+            {
+                DefaultRecordConfigurationManagerTest.this.cacheStorage.remove(invocation.getArguments()[0]);
+                return null;
+            }
+        }).when(cache).remove(anyString());
+        doAnswer(new Answer<Void>()
+        {
+            @Override
+            public Void answer(InvocationOnMock invocation)
+            {
+                DefaultRecordConfigurationManagerTest.this.cacheStorage.clear();
+                return null;
+            }
+        }).when(cache).removeAll();
+        return cache;
     }
 }
@@ -25,13 +25,19 @@
 import java.net.URI;
 import java.net.URLDecoder;
 import java.net.URLEncoder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
-import org.apache.commons.io.FileUtils;
-import org.apache.commons.io.IOUtils;
+import javax.servlet.http.HttpServletResponse;
+
 import org.apache.commons.lang3.StringUtils;
 import org.apache.tika.Tika;
 import org.apache.tika.mime.MimeTypes;
@@ -56,6 +62,9 @@
  * <p>
  * For example if the URL is {@code http://localhost:8080/xwiki/bin/temp/Main/WebHome/test/test.png} then the resource
  * will be fetched from {@code TMPDIR/temp/test/xwiki/Main/WebHome/test.png}.
+ * <p>
+ * Conditional requests ({@code If-None-Match}, {@code If-Modified-Since}) and single byte ranges are supported, so
+ * clients can revalidate or resume downloads of large exports.
  *
  * @version $Id$
  * @since 2.4M1
@@ -67,6 +76,11 @@ public class TempResourceAction extends XWikiAction
      */
     public static final Pattern URI_PATTERN = Pattern.compile(".*?/temp/([^/]*+)/([^/]*+)/([^/]*+)/(.*+)");
 
+    /**
+     * Marks a syntactically valid range which doesn't overlap the requested file.
+     */
+    static final long[] UNSATISFIABLE_RANGE = new long[0];
+
     /**
      * The path separator.
      */
@@ -82,6 +96,31 @@ public class TempResourceAction extends XWikiAction
      */
     private static final Logger LOGGER = LoggerFactory.getLogger(TempResourceAction.class);
 
+    /**
+     * A single byte range: {@code bytes=first-last}, {@code bytes=first-} or {@code bytes=-suffixLength}.
+     */
+    private static final Pattern RANGE_PATTERN = Pattern.compile("bytes=(\\d*+)-(\\d*+)");
+
+    /**
+     * The only range unit supported.
+     */
+    private static final String BYTES_UNIT = "bytes";
+
+    /**
+     * The header describing the part of the file sent.
+     */
+    private static final String CONTENT_RANGE = "Content-Range";
+
+    /**
+     * The maximum number of files whose mime-type is remembered.
+     */
+    private static final int MAX_CACHED_CONTENT_TYPES = 1000;
+
+    /**
+     * The detected mime-types, for each temporary file, shared by all the instances of this action.
+     */
+    private static final ConcurrentMap<String, DetectedType> CONTENT_TYPES = new ConcurrentHashMap<>();
+
     /**
      * Used for detecting mime-types of files.
      */
@@ -106,25 +145,53 @@ public String render(XWikiContext context) throws XWikiException
                 "Invalid temporary resource URL");
         }
 
-        // Write temporary file into response.
-        response.setDateHeader("Last-Modified", tempFile.lastModified());
-        String contentType = MimeTypes.OCTET_STREAM;
-        try {
-            contentType = this.tika.detect(tempFile);
-        } catch (IOException ex) {
-            LOGGER.warn(
-                String.format("Unable to determine mime type for temporary resource [%s]", tempFile.getAbsolutePath()),
-                ex);
+        long lastModified = tempFile.lastModified();
+        long length = tempFile.length();
+        String eTag = String.format("\"%x-%x\"", length, lastModified);
+        response.setDateHeader("Last-Modified", lastModified);
+        response.setHeader("ETag", eTag);
+        response.setHeader("Accept-Ranges", BYTES_UNIT);
+        if (isNotModified(request, eTag, lastModified)) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return null;
         }
-        response.setContentType(contentType);
+
+        response.setContentType(getContentType(tempFile, lastModified, length));
         if ("1".equals(request.getParameter("force-download"))) {
             String fileName = StringUtils.defaultIfBlank(request.getParameter("force-filename"), tempFile.getName());
             fileName = Util.encodeURI(fileName, context).replaceAll("\\+", "%20");
             response.addHeader("Content-disposition", "attachment; filename*=utf-8''" + fileName);
         }
-        try {
-            response.setContentLength((int) tempFile.length());
-            IOUtils.copy(FileUtils.openInputStream(tempFile), response.getOutputStream());
+
+        // Write temporary file, or the requested part of it, into response.
+        long start = 0;
+        long end = length - 1;
+        String range = request.getHeader("Range");
+        if (range != null && isRangeApplicable(request, eTag, lastModified)) {
+            long[] bounds = parseRange(range, length);
+            if (bounds == UNSATISFIABLE_RANGE) {
+                response.setHeader(CONTENT_RANGE, BYTES_UNIT + " */" + length);
+                response.setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+                return null;
+            } else if (bounds != null) {
+                start = bounds[0];
+                end = bounds[1];
+                response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+                response.setHeader(CONTENT_RANGE, BYTES_UNIT + ' ' + start + '-' + end + '/' + length);
+            }
+        }
+        response.setHeader("Content-Length", String.valueOf(end - start + 1));
+        try (FileChannel input = FileChannel.open(tempFile.toPath(), StandardOpenOption.READ)) {
+            WritableByteChannel output = Channels.newChannel(response.getOutputStream());
+            long position = start;
+            while (position <= end) {
+                long sent = input.transferTo(position, end - position + 1, output);
+                if (sent <= 0) {
+                    // The file was truncated in the meantime
+                    break;
+                }
+                position += sent;
+            }
         } catch (IOException e) {
             throw new XWikiException(XWikiException.MODULE_XWIKI_APP,
                 XWikiException.ERROR_XWIKI_APP_SEND_RESPONSE_EXCEPTION, "Exception while sending response", e);
@@ -132,6 +199,138 @@ public String render(XWikiContext context) throws XWikiException
         return null;
     }
 
+    /**
+     * Returns the mime-type of a temporary file. Detection reads the start of the file, so the result is remembered for
+     * as long as the file isn't modified.
+     *
+     * @param file the temporary file
+     * @param lastModified the modification time of the file
+     * @param length the size of the file
+     * @return the detected mime-type, or {@code application/octet-stream} if it cannot be detected
+     */
+    private String getContentType(File file, long lastModified, long length)
+    {
+        String path = file.getAbsolutePath();
+        DetectedType cached = CONTENT_TYPES.get(path);
+        if (cached != null && cached.lastModified == lastModified && cached.length == length) {
+            return cached.contentType;
+        }
+        String contentType = MimeTypes.OCTET_STREAM;
+        try {
+            contentType = this.tika.detect(file);
+        } catch (IOException ex) {
+            LOGGER.warn(String.format("Unable to determine mime type for temporary resource [%s]", path), ex);
+            return contentType;
+        }
+        if (CONTENT_TYPES.size() >= MAX_CACHED_CONTENT_TYPES) {
+            CONTENT_TYPES.clear();
+        }
+        CONTENT_TYPES.put(path, new DetectedType(lastModified, length, contentType));
+        return contentType;
+    }
+
+    /**
+     * Checks the conditional request headers, {@code If-None-Match} taking precedence over {@code If-Modified-Since}.
+     *
+     * @param request the current request
+     * @param eTag the entity tag of the temporary file
+     * @param lastModified the modification time of the temporary file
+     * @return {@code true} if the client already has the current version of the file
+     */
+    static boolean isNotModified(XWikiRequest request, String eTag, long lastModified)
+    {
+        String ifNoneMatch = request.getHeader("If-None-Match");
+        if (ifNoneMatch != null) {
+            return matchesETag(ifNoneMatch, eTag);
+        }
+        long ifModifiedSince = getDateHeader(request, "If-Modified-Since");
+        // HTTP dates have a precision of one second
+        return ifModifiedSince >= 0 && lastModified / 1000 <= ifModifiedSince / 1000;
+    }
+
+    /**
+     * Checks the {@code If-Range} header: a range is only served if the client's copy is still the current version.
+     *
+     * @param request the current request
+     * @param eTag the entity tag of the temporary file
+     * @param lastModified the modification time of the temporary file
+     * @return {@code true} if the requested range can be served, {@code false} if the whole file must be sent
+     */
+    static boolean isRangeApplicable(XWikiRequest request, String eTag, long lastModified)
+    {
+        String ifRange = request.getHeader("If-Range");
+        if (ifRange == null) {
+            return true;
+        } else if (ifRange.trim().endsWith("\"")) {
+            return eTag.equals(ifRange.trim());
+        }
+        long date = getDateHeader(request, "If-Range");
+        return date >= 0 && lastModified / 1000 == date / 1000;
+    }
+
+    private static boolean matchesETag(String header, String eTag)
+    {
+        for (String candidate : header.split(",")) {
+            String tag = StringUtils.removeStart(candidate.trim(), "W/");
+            if ("*".equals(tag) || eTag.equals(tag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static long getDateHeader(XWikiRequest request, String name)
+    {
+        try {
+            return request.getDateHeader(name);
+        } catch (IllegalArgumentException ex) {
+            // Malformed dates are ignored
+            return -1;
+        }
+    }
+
+    /**
+     * Parses a {@code Range} header. Only single byte ranges are supported, any other kind of range is ignored and the
+     * whole file is sent instead, which is allowed by the HTTP specification.
+     *
+     * @param header the value of the {@code Range} header
+     * @param length the size of the file
+     * @return the first and the last byte to send, both inclusive, {@code null} if the header is not supported, or
+     *         {@link #UNSATISFIABLE_RANGE} if the range doesn't overlap the file
+     */
+    static long[] parseRange(String header, long length)
+    {
+        Matcher matcher = RANGE_PATTERN.matcher(header.trim());
+        if (!matcher.matches() || matcher.group(1).isEmpty() && matcher.group(2).isEmpty()) {
+            return null;
+        }
+        try {
+            long start;
+            long end;
+            if (matcher.group(1).isEmpty()) {
+                // Suffix range: the last N bytes
+                long suffix = Long.parseLong(matcher.group(2));
+                if (suffix == 0) {
+                    return UNSATISFIABLE_RANGE;
+                }
+                start = Math.max(0, length - suffix);
+                end = length - 1;
+            } else {
+                start = Long.parseLong(matcher.group(1));
+                long last = matcher.group(2).isEmpty() ? length - 1 : Long.parseLong(matcher.group(2));
+                if (last < start) {
+                    // Invalid ranges must be ignored
+                    return null;
+                }
+                end = Math.min(last, length - 1);
+            }
+            return start >= length ? UNSATISFIABLE_RANGE : new long[] { start, end };
+        } catch (NumberFormatException ex) {
+            // Values too large
+            return null;
+        }
+    }
+
     /**
      * Returns the temporary file corresponding to the specified URI.
      *
@@ -206,4 +405,21 @@ private String decodeURLPathSegment(String encodedSegment)
             return encodedSegment;
         }
     }
+
+    /** The mime-type detected for a version of a temporary file. */
+    private static final class DetectedType
+    {
+        private final long lastModified;
+
+        private final long length;
+
+        private final String contentType;
+
+        DetectedType(long lastModified, long length, String contentType)
+        {
+            this.lastModified = lastModified;
+            this.length = length;
+            this.contentType = contentType;
+        }
+    }
 }
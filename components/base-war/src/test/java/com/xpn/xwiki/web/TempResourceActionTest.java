@@ -0,0 +1,160 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package com.xpn.xwiki.web;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Matchers;
+import org.mockito.Mockito;
+
+/**
+ * Tests for the conditional and range request handling in {@link TempResourceAction}.
+ *
+ * @version $Id$
+ */
+public class TempResourceActionTest
+{
+    private static final long LENGTH = 1000;
+
+    private static final String ETAG = "\"3e8-15d3ef7987b\"";
+
+    /** A modification time with a non-zero millisecond part, which HTTP dates can't express. */
+    private static final long LAST_MODIFIED = 1500000000123L;
+
+    private XWikiRequest request;
+
+    @Before
+    public void setUp()
+    {
+        this.request = Mockito.mock(XWikiRequest.class);
+        Mockito.when(this.request.getDateHeader(Matchers.anyString())).thenReturn(-1L);
+    }
+
+    @Test
+    public void closedRangeIsParsed()
+    {
+        Assert.assertArrayEquals(new long[] { 0, 99 }, TempResourceAction.parseRange("bytes=0-99", LENGTH));
+        Assert.assertArrayEquals(new long[] { 10, 10 }, TempResourceAction.parseRange(" bytes=10-10 ", LENGTH));
+    }
+
+    @Test
+    public void openRangeEndsAtTheEndOfTheFile()
+    {
+        Assert.assertArrayEquals(new long[] { 500, 999 }, TempResourceAction.parseRange("bytes=500-", LENGTH));
+        Assert.assertArrayEquals(new long[] { 900, 999 }, TempResourceAction.parseRange("bytes=900-5000", LENGTH));
+    }
+
+    @Test
+    public void suffixRangeSelectsTheLastBytes()
+    {
+        Assert.assertArrayEquals(new long[] { 900, 999 }, TempResourceAction.parseRange("bytes=-100", LENGTH));
+        Assert.assertArrayEquals(new long[] { 0, 999 }, TempResourceAction.parseRange("bytes=-5000", LENGTH));
+    }
+
+    @Test
+    public void rangesOutsideTheFileAreUnsatisfiable()
+    {
+        Assert.assertSame(TempResourceAction.UNSATISFIABLE_RANGE, TempResourceAction.parseRange("bytes=1000-", LENGTH));
+        Assert.assertSame(TempResourceAction.UNSATISFIABLE_RANGE,
+            TempResourceAction.parseRange("bytes=2000-3000", LENGTH));
+        Assert.assertSame(TempResourceAction.UNSATISFIABLE_RANGE, TempResourceAction.parseRange("bytes=-0", LENGTH));
+        Assert.assertSame(TempResourceAction.UNSATISFIABLE_RANGE, TempResourceAction.parseRange("bytes=-100", 0));
+    }
+
+    @Test
+    public void unsupportedOrInvalidRangesAreIgnored()
+    {
+        Assert.assertNull(TempResourceAction.parseRange("bytes=100-50", LENGTH));
+        Assert.assertNull(TempResourceAction.parseRange("bytes=0-1,5-6", LENGTH));
+        Assert.assertNull(TempResourceAction.parseRange("items=0-1", LENGTH));
+        Assert.assertNull(TempResourceAction.parseRange("bytes=-", LENGTH));
+        Assert.assertNull(TempResourceAction.parseRange("bytes=99999999999999999999-", LENGTH));
+    }
+
+    @Test
+    public void matchingETagIsNotModified()
+    {
+        Mockito.when(this.request.getHeader("If-None-Match")).thenReturn("\"other\", W/" + ETAG);
+        Assert.assertTrue(TempResourceAction.isNotModified(this.request, ETAG, LAST_MODIFIED));
+
+        Mockito.when(this.request.getHeader("If-None-Match")).thenReturn("*");
+        Assert.assertTrue(TempResourceAction.isNotModified(this.request, ETAG, LAST_MODIFIED));
+    }
+
+    @Test
+    public void differentETagIsModifiedRegardlessOfTheDate()
+    {
+        Mockito.when(this.request.getHeader("If-None-Match")).thenReturn("\"other\"");
+        Mockito.when(this.request.getDateHeader("If-Modified-Since")).thenReturn(LAST_MODIFIED + 60000);
+        Assert.assertFalse(TempResourceAction.isNotModified(this.request, ETAG, LAST_MODIFIED));
+    }
+
+    @Test
+    public void ifModifiedSinceIsComparedWithSecondPrecision()
+    {
+        Mockito.when(this.request.getDateHeader("If-Modified-Since")).thenReturn(1500000000000L);
+        Assert.assertTrue(TempResourceAction.isNotModified(this.request, ETAG, LAST_MODIFIED));
+
+        Mockito.when(this.request.getDateHeader("If-Modified-Since")).thenReturn(1499999999000L);
+        Assert.assertFalse(TempResourceAction.isNotModified(this.request, ETAG, LAST_MODIFIED));
+    }
+
+    @Test
+    public void missingOrMalformedConditionsAreModified()
+    {
+        Assert.assertFalse(TempResourceAction.isNotModified(this.request, ETAG, LAST_MODIFIED));
+
+        Mockito.when(this.request.getDateHeader("If-Modified-Since")).thenThrow(new IllegalArgumentException());
+        Assert.assertFalse(TempResourceAction.isNotModified(this.request, ETAG, LAST_MODIFIED));
+    }
+
+    @Test
+    public void rangeIsApplicableWithoutIfRange()
+    {
+        Assert.assertTrue(TempResourceAction.isRangeApplicable(this.request, ETAG, LAST_MODIFIED));
+    }
+
+    @Test
+    public void ifRangeRequiresTheSameStrongETag()
+    {
+        Mockito.when(this.request.getHeader("If-Range")).thenReturn(ETAG);
+        Assert.assertTrue(TempResourceAction.isRangeApplicable(this.request, ETAG, LAST_MODIFIED));
+
+        Mockito.when(this.request.getHeader("If-Range")).thenReturn("\"other\"");
+        Assert.assertFalse(TempResourceAction.isRangeApplicable(this.request, ETAG, LAST_MODIFIED));
+
+        // Weak entity tags can't be used for ranges
+        Mockito.when(this.request.getHeader("If-Range")).thenReturn("W/" + ETAG);
+        Assert.assertFalse(TempResourceAction.isRangeApplicable(this.request, ETAG, LAST_MODIFIED));
+    }
+
+    @Test
+    public void ifRangeDateMustMatchTheModificationTime()
+    {
+        Mockito.when(this.request.getHeader("If-Range")).thenReturn("Fri, 14 Jul 2017 02:40:00 GMT");
+        Mockito.when(this.request.getDateHeader("If-Range")).thenReturn(1500000000000L);
+        Assert.assertTrue(TempResourceAction.isRangeApplicable(this.request, ETAG, LAST_MODIFIED));
+
+        Mockito.when(this.request.getDateHeader("If-Range")).thenReturn(1499999999000L);
+        Assert.assertFalse(TempResourceAction.isRangeApplicable(this.request, ETAG, LAST_MODIFIED));
+
+        Mockito.when(this.request.getDateHeader("If-Range")).thenThrow(new IllegalArgumentException());
+        Assert.assertFalse(TempResourceAction.isRangeApplicable(this.request, ETAG, LAST_MODIFIED));
+    }
+}
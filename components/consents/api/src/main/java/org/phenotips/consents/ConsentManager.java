@@ -23,6 +23,7 @@
 import org.xwiki.stability.Unstable;
 
 import java.util.Collection;
+import java.util.List;
 import java.util.Set;
 
 import org.json.JSONArray;
@@ -96,6 +97,19 @@
      */
     boolean setPatientConsents(Patient patient, Iterable<String> consents);
 
+    /**
+     * Same as {@link #setPatientConsents(Patient, Iterable)}, but optionally leaves the patient record unsaved, so that
+     * the change can be stored together with other changes to the same record.
+     *
+     * @param patient record in which consents will be granted
+     * @param consents list of consent ids
+     * @param save if {@code false}, only the {@link Patient#getXDocument() patient document} is updated, and the
+     *            caller is responsible for saving it
+     * @return {@code true} if the operation was successful, otherwise {@code false}
+     * @since 1.4
+     */
+    boolean setPatientConsents(Patient patient, Iterable<String> consents, boolean save);
+
     /**
      * Checks if a specific consent is given for the patient record. If consentId is not configured
      * in the system returns {@code false} regardless of patient consent status.
@@ -116,6 +130,20 @@
      */
     boolean hasConsent(String patientId, String consentId);
 
+    /**
+     * Selects, from a list of patient records, the ones for which all the specified consents were granted. Useful for
+     * checking the consents of a whole cohort at once, since the system consents are only looked up once.
+     *
+     * @param patients the patient records to filter
+     * @param consentIds the identifiers of the consents that must be granted; if one of them is not configured in the
+     *            system, no patient record is selected, while if the collection is empty or {@code null}, all the
+     *            records are selected
+     * @return the patient records that have all the consents granted, in the same order as in the input, possibly an
+     *         empty list
+     * @since 1.4
+     */
+    List<Patient> filterPatientsWithConsents(Collection<Patient> patients, Collection<String> consentIds);
+
     /**
      * Grants a specific consent in a patient record.
      *
@@ -26,6 +26,9 @@
 import org.phenotips.translation.TranslationManager;
 
 import org.xwiki.bridge.DocumentAccessBridge;
+import org.xwiki.bridge.event.DocumentCreatedEvent;
+import org.xwiki.bridge.event.DocumentDeletedEvent;
+import org.xwiki.bridge.event.DocumentUpdatedEvent;
 import org.xwiki.component.annotation.Component;
 import org.xwiki.component.phase.Initializable;
 import org.xwiki.component.phase.InitializationException;
@@ -33,21 +36,26 @@
 import org.xwiki.model.reference.DocumentReference;
 import org.xwiki.model.reference.DocumentReferenceResolver;
 import org.xwiki.model.reference.EntityReference;
+import org.xwiki.observation.EventListener;
+import org.xwiki.observation.ObservationManager;
+import org.xwiki.observation.event.Event;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.Date;
 import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.inject.Inject;
 import javax.inject.Named;
 import javax.inject.Provider;
 import javax.inject.Singleton;
 
-import org.apache.commons.lang3.StringUtils;
 import org.json.JSONArray;
 import org.json.JSONObject;
 import org.slf4j.Logger;
@@ -58,14 +66,16 @@
 import com.xpn.xwiki.objects.BaseObject;
 
 /**
- * {@link ConsentManager} that integrates with XWiki and the {@link DefaultConsent}.
+ * {@link ConsentManager} that integrates with XWiki and the {@link DefaultConsent}. The consents configured in the
+ * system are loaded once into a {@link SystemConsentRegistry}, which is discarded when the configuration document is
+ * saved or deleted, and the consents granted for a patient are checked as a bitset indexed by the consent ordinals.
  *
  * @version $Id$
  * @since 1.3M1
  */
 @Component
 @Singleton
-public class PhenoTipsPatientConsentManager implements ConsentManager, Initializable
+public class PhenoTipsPatientConsentManager implements ConsentManager, EventListener, Initializable
 {
     private static final String GRANTED = "granted";
 
@@ -93,6 +103,10 @@ public class PhenoTipsPatientConsentManager implements ConsentManager, Initializ
     @Inject
     private TranslationManager translationManager;
 
+    /** Allows registering this object as an event listener. */
+    @Inject
+    private ObservationManager observationManager;
+
     private EntityReference consentReference =
         new EntityReference("PatientConsentConfiguration", EntityType.DOCUMENT, Constants.CODE_SPACE_REFERENCE);
 
@@ -102,34 +116,78 @@ public class PhenoTipsPatientConsentManager implements ConsentManager, Initializ
     private EntityReference configurationPageReference =
         new EntityReference("Consents", EntityType.DOCUMENT, Constants.CODE_SPACE_REFERENCE);
 
-    private Date lastSystemConsentLoadTime;
+    /** Incremented each time the configuration document changes. */
+    private final AtomicLong configurationVersion = new AtomicLong();
 
-    private Set<Consent> cachedSystemConsents = Collections.unmodifiableSet(new LinkedHashSet<Consent>());
+    /** The consents configured in the system, {@code null} until first needed. */
+    private volatile LoadedRegistry registry;
 
     @Override
     public void initialize() throws InitializationException
     {
+        this.observationManager.addListener(this);
     }
 
     @Override
     public Set<Consent> getSystemConsents()
     {
+        return getRegistry().getConsents();
+    }
+
+    @Override
+    public String getName()
+    {
+        return "patient-consents-configuration";
+    }
+
+    @Override
+    public List<Event> getEvents()
+    {
+        return Arrays.<Event>asList(new DocumentCreatedEvent(), new DocumentUpdatedEvent(), new DocumentDeletedEvent());
+    }
+
+    @Override
+    public void onEvent(Event event, Object source, Object data)
+    {
+        if (!(source instanceof XWikiDocument)) {
+            return;
+        }
+        DocumentReference configDocRef = this.referenceResolver.resolve(this.configurationPageReference);
+        if (configDocRef.equals(((XWikiDocument) source).getDocumentReference())) {
+            this.configurationVersion.incrementAndGet();
+        }
+    }
+
+    private SystemConsentRegistry getRegistry()
+    {
+        LoadedRegistry result = this.registry;
+        if (result != null && result.version == this.configurationVersion.get()) {
+            return result.consents;
+        }
+        return loadRegistry();
+    }
+
+    /**
+     * Reads the consents from the configuration document. The registry remembers which version of the configuration it
+     * was read from, so a registry loaded while the configuration is being changed is discarded on the next request,
+     * without having to block configuration events while the consents are loaded.
+     */
+    private synchronized SystemConsentRegistry loadRegistry()
+    {
+        long version = this.configurationVersion.get();
+        if (this.registry != null && this.registry.version == version) {
+            return this.registry.consents;
+        }
+        XWikiDocument configDoc;
         try {
             DocumentReference configDocRef = this.referenceResolver.resolve(this.configurationPageReference);
-            XWikiDocument configDoc = (XWikiDocument) this.bridge.getDocument(configDocRef);
-            if (this.lastSystemConsentLoadTime == null || configDoc.getDate().after(this.lastSystemConsentLoadTime)) {
-                updateSystemConsentCache(configDoc);
-            }
+            configDoc = (XWikiDocument) this.bridge.getDocument(configDocRef);
         } catch (Exception ex) {
             this.logger.error("Could not load preferences document: {}", ex.getMessage());
+            return SystemConsentRegistry.EMPTY;
         }
-        return this.cachedSystemConsents;
-    }
-
-    private synchronized void updateSystemConsentCache(XWikiDocument configDoc)
-    {
         try {
-            Set<Consent> consents = new LinkedHashSet<>();
+            List<Consent> consents = new ArrayList<>();
             List<BaseObject> consentObjects = configDoc.getXObjects(this.consentReference);
             if (consentObjects != null) {
                 for (BaseObject consentObject : consentObjects) {
@@ -139,11 +197,13 @@ private synchronized void updateSystemConsentCache(XWikiDocument configDoc)
                     }
                 }
             }
-            this.cachedSystemConsents = Collections.unmodifiableSet(consents);
-            this.lastSystemConsentLoadTime = configDoc.getDate();
+            SystemConsentRegistry result = new SystemConsentRegistry(consents);
+            this.registry = new LoadedRegistry(result, version);
+            return result;
         } catch (Exception ex) {
             this.logger.error("Could not load system consents from preferences document: {}", ex.getMessage());
         }
+        return SystemConsentRegistry.EMPTY;
     }
 
     // supressing conversion of List returned by getListValue() to List<String>
@@ -189,13 +249,7 @@ private static String cleanDescription(String toClean, boolean stripParagraphTag
     @Override
     public boolean isValidConsentId(String consentId)
     {
-        Set<Consent> systemConsents = getSystemConsents();
-        for (Consent consent : systemConsents) {
-            if (StringUtils.equals(consentId, consent.getId())) {
-                return true;
-            }
-        }
-        return false;
+        return getRegistry().contains(consentId);
     }
 
     @Override
@@ -228,56 +282,62 @@ private Set<Consent> getConsentsForPatient(Patient patient, boolean includeGrant
             return null;
         }
 
-        // List of consent ids a patient has agreed to, read from the database
-        Set<String> xwikiPatientConsents = readConsentIdsFromPatientDoc(patient);
+        // Consents set for the patient but no longer configured in the system are ignored
+        SystemConsentRegistry systemConsents = getRegistry();
+        BitSet granted = getGrantedConsents(patient, systemConsents);
 
         Set<Consent> returnedConsents = new LinkedHashSet<>();
-
-        // Using system consents to ignore consents set for the patient but no longer configured in the system
-        // (it is faster to check contains() in a set, so iterating through the list and checking the set)
-        Set<Consent> systemConsents = getSystemConsents();
-        for (Consent systemConsent : systemConsents) {
-            if (xwikiPatientConsents.contains(systemConsent.getId())) {
-                if (includeGranted) {
-                    Consent copy = systemConsent.copy(ConsentStatus.YES);
-                    returnedConsents.add(copy);
-                }
-            } else {
-                Consent copy = systemConsent.copy(ConsentStatus.NO);
-                returnedConsents.add(copy);
+        for (int i = 0; i < systemConsents.size(); ++i) {
+            if (!granted.get(i)) {
+                returnedConsents.add(systemConsents.get(i).copy(ConsentStatus.NO));
+            } else if (includeGranted) {
+                returnedConsents.add(systemConsents.get(i).copy(ConsentStatus.YES));
             }
         }
 
         return returnedConsents;
     }
 
+    /** The consents granted for a patient, as a bitset indexed by the ordinals of the system consents. */
+    private BitSet getGrantedConsents(Patient patient, SystemConsentRegistry systemConsents)
+    {
+        return systemConsents.toBits(readConsentIdsFromPatientDoc(patient));
+    }
+
     @SuppressWarnings("unchecked")
-    private Set<String> readConsentIdsFromPatientDoc(Patient patient)
+    private List<String> readConsentIdsFromPatientDoc(Patient patient)
     {
-        Set<String> ids = new LinkedHashSet<>();
         try {
             XWikiDocument patientDoc = patient.getXDocument();
             BaseObject idsHolder = patientDoc.getXObject(this.consentIdsHolderReference);
             if (idsHolder != null) {
                 List<String> patientConsentIds = idsHolder.getListValue(GRANTED);
                 if (patientConsentIds != null) {
-                    ids.addAll(patientConsentIds);
+                    return patientConsentIds;
                 }
             }
         } catch (Exception ex) {
             this.logger.error("Could not read consents for patient {}: {}", patient.getId(), ex.getMessage());
         }
-        return ids;
+        return Collections.emptyList();
     }
 
     @Override
     public boolean setPatientConsents(Patient patient, Iterable<String> consents)
+    {
+        return setPatientConsents(patient, consents, true);
+    }
+
+    @Override
+    public boolean setPatientConsents(Patient patient, Iterable<String> consents, boolean save)
     {
         try {
             List<Consent> existingConsents = this.selectFromSystem(consents);
             SaveablePatientConsentHolder holder = this.getPatientConsentHolder(patient);
             holder.setConsents(convertToIds(existingConsents));
-            holder.save();
+            if (save) {
+                holder.save();
+            }
             return true;
         } catch (Exception ex) {
             this.logger.error("Could not update consents in patient record {}. {}", patient, ex.getMessage());
@@ -294,31 +354,49 @@ public boolean hasConsent(String patientId, String consentId)
     @Override
     public boolean hasConsent(Patient patient, String consentId)
     {
-        if (patient == null || !isValidConsentId(consentId)) {
+        SystemConsentRegistry systemConsents = getRegistry();
+        int ordinal = systemConsents.getOrdinal(consentId);
+        if (patient == null || ordinal < 0) {
             return false;
         }
-        Set<Consent> missingPatientConsents = getMissingConsentsForPatient(patient);
-        if (missingPatientConsents == null) {
-            return false;
+        return getGrantedConsents(patient, systemConsents).get(ordinal);
+    }
+
+    @Override
+    public List<Patient> filterPatientsWithConsents(Collection<Patient> patients, Collection<String> consentIds)
+    {
+        List<Patient> result = new LinkedList<>();
+        if (patients == null || patients.isEmpty()) {
+            return result;
         }
-        for (Consent consent : missingPatientConsents) {
-            if (consent.getId().equals(consentId)) {
-                return false;
+        SystemConsentRegistry systemConsents = getRegistry();
+        BitSet required = systemConsents.toBits(consentIds);
+        if (consentIds != null && required.cardinality() < new LinkedHashSet<>(consentIds).size()) {
+            // Consents not configured in the system can't be granted
+            return result;
+        }
+        for (Patient patient : patients) {
+            if (patient == null) {
+                continue;
+            }
+            BitSet missing = (BitSet) required.clone();
+            missing.andNot(getGrantedConsents(patient, systemConsents));
+            if (missing.isEmpty()) {
+                result.add(patient);
             }
         }
-        return true;
+        return result;
     }
 
     /** @return consents that exist in the system and correspond to the given ids */
     private List<Consent> selectFromSystem(Iterable<String> ids)
     {
+        SystemConsentRegistry systemConsents = getRegistry();
         List<Consent> existingConsents = new LinkedList<>();
         for (String id : ids) {
-            for (Consent consent : this.getSystemConsents()) {
-                if (StringUtils.equals(consent.getId(), id)) {
-                    existingConsents.add(consent);
-                    break;
-                }
+            int ordinal = systemConsents.getOrdinal(id);
+            if (ordinal >= 0) {
+                existingConsents.add(systemConsents.get(ordinal));
             }
         }
         return existingConsents;
@@ -462,4 +540,18 @@ public Set<Consent> fromJSON(JSONArray consentsJSON)
         }
         return result;
     }
+
+    /** The system consents, along with the version of the configuration they were read from. */
+    private static final class LoadedRegistry
+    {
+        private final SystemConsentRegistry consents;
+
+        private final long version;
+
+        LoadedRegistry(SystemConsentRegistry consents, long version)
+        {
+            this.consents = consents;
+            this.version = version;
+        }
+    }
 }
@@ -0,0 +1,142 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.consents.internal;
+
+import org.phenotips.consents.Consent;
+
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An immutable snapshot of the consents configured in the system. Each consent is assigned an ordinal, its position in
+ * the configuration, so that the consents granted for a patient can be represented as a {@link BitSet}, and checking
+ * or filtering by consents only requires bit operations.
+ *
+ * @version $Id$
+ * @since 1.4
+ */
+final class SystemConsentRegistry
+{
+    /** A registry with no consents, used when the configuration cannot be read. */
+    static final SystemConsentRegistry EMPTY = new SystemConsentRegistry(Collections.<Consent>emptyList());
+
+    private final Consent[] consents;
+
+    private final Set<Consent> consentSet;
+
+    private final Map<String, Integer> ordinals;
+
+    /**
+     * Simple constructor.
+     *
+     * @param consents the configured consents, in the configuration order; if more consents have the same identifier,
+     *            only the first one is kept
+     */
+    SystemConsentRegistry(Collection<Consent> consents)
+    {
+        Set<Consent> unique = new LinkedHashSet<>();
+        this.ordinals = new HashMap<>();
+        for (Consent consent : consents) {
+            if (!this.ordinals.containsKey(consent.getId())) {
+                this.ordinals.put(consent.getId(), unique.size());
+                unique.add(consent);
+            }
+        }
+        this.consents = unique.toArray(new Consent[unique.size()]);
+        this.consentSet = Collections.unmodifiableSet(unique);
+    }
+
+    /**
+     * The configured consents.
+     *
+     * @return an unmodifiable set of consents, in the configuration order
+     */
+    Set<Consent> getConsents()
+    {
+        return this.consentSet;
+    }
+
+    /**
+     * How many consents are configured.
+     *
+     * @return the number of consents, which is also the upper limit of the consent ordinals
+     */
+    int size()
+    {
+        return this.consents.length;
+    }
+
+    /**
+     * Get the ordinal assigned to a consent.
+     *
+     * @param consentId the identifier of the consent
+     * @return the position of the consent in the configuration, or {@code -1} if no such consent is configured
+     */
+    int getOrdinal(String consentId)
+    {
+        Integer result = consentId == null ? null : this.ordinals.get(consentId);
+        return result == null ? -1 : result;
+    }
+
+    /**
+     * Get the consent with a given ordinal.
+     *
+     * @param ordinal a number between {@code 0} (inclusive) and {@link #size()} (exclusive)
+     * @return the consent with the requested ordinal
+     */
+    Consent get(int ordinal)
+    {
+        return this.consents[ordinal];
+    }
+
+    /**
+     * Check if a consent is configured.
+     *
+     * @param consentId the identifier of the consent to check
+     * @return {@code true} if a consent with that identifier is configured
+     */
+    boolean contains(String consentId)
+    {
+        return getOrdinal(consentId) >= 0;
+    }
+
+    /**
+     * Converts a list of consent identifiers into a bitset, ignoring the identifiers that aren't configured.
+     *
+     * @param consentIds the consent identifiers to convert, may be {@code null}
+     * @return a new bitset, with the bits corresponding to the ordinals of the known consents set
+     */
+    BitSet toBits(Iterable<String> consentIds)
+    {
+        BitSet result = new BitSet(this.consents.length);
+        if (consentIds != null) {
+            for (String id : consentIds) {
+                int ordinal = getOrdinal(id);
+                if (ordinal >= 0) {
+                    result.set(ordinal);
+                }
+            }
+        }
+        return result;
+    }
+}
@@ -24,14 +24,17 @@
 
 import org.xwiki.bridge.DocumentAccessBridge;
 import org.xwiki.bridge.DocumentModelBridge;
+import org.xwiki.bridge.event.DocumentUpdatedEvent;
 import org.xwiki.component.util.DefaultParameterizedType;
 import org.xwiki.model.reference.DocumentReference;
 import org.xwiki.model.reference.DocumentReferenceResolver;
 import org.xwiki.model.reference.EntityReference;
+import org.xwiki.observation.EventListener;
 import org.xwiki.test.mockito.MockitoComponentMockingRule;
 
 import java.lang.reflect.Type;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Set;
@@ -43,6 +46,8 @@
 import org.junit.Rule;
 import org.junit.Test;
 import org.mockito.Matchers;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 
 import com.xpn.xwiki.XWiki;
 import com.xpn.xwiki.XWikiContext;
@@ -50,10 +55,13 @@
 import com.xpn.xwiki.objects.BaseObject;
 
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 
@@ -75,6 +83,7 @@ private DocumentModelBridge setUpInitialization(List<BaseObject> baseObjects) th
 
         doReturn(configDocRefMock).when(resolver).resolve(any(EntityReference.class));
         doReturn(configDoc).when(dab).getDocument(configDocRefMock);
+        doReturn(configDocRefMock).when(configDoc).getDocumentReference();
         doReturn(baseObjects).when((XWikiDocument) configDoc).getXObjects(any(EntityReference.class));
 
         return configDoc;
@@ -379,6 +388,27 @@ public void testSettingConsentsOnARecord() throws Exception
         verify(wiki, times(1)).saveDocument(eq(patientDoc), anyString(), eq(true), eq(context));
     }
 
+    @Test
+    public void testSettingConsentsWithoutSavingTheRecord() throws Exception
+    {
+        BaseObject idsHolder = mock(BaseObject.class);
+        Patient patient = mock(Patient.class);
+        XWikiContext context = mock(XWikiContext.class);
+        XWiki wiki = mock(XWiki.class);
+        XWikiDocument patientDoc = mock(XWikiDocument.class);
+
+        this.setUpSettingConsents(idsHolder, patient, patientDoc, context, wiki);
+
+        List<String> granted = new LinkedList<>();
+        granted.add(ConsentConfigurationMocks.TEST_ID1);
+
+        Assert.assertTrue(this.mocker.getComponentUnderTest().setPatientConsents(patient, granted, false));
+
+        verify(idsHolder, times(1)).set(eq("granted"), eq(granted), eq(context));
+        verify(wiki, never()).saveDocument(any(XWikiDocument.class), anyString(), anyBoolean(),
+            any(XWikiContext.class));
+    }
+
     @Test
     public void testSettingConsentsOnARecordWithoutPriorXObject() throws Exception
     {
@@ -425,4 +455,91 @@ public void testSettingConsentsOnARecordWithNonExistentConsents() throws Excepti
         verify(idsHolder, times(1)).set(eq("granted"), eq(existingIds), eq(context));
         verify(wiki, times(1)).saveDocument(eq(patientDoc), anyString(), eq(true), eq(context));
     }
+
+    @Test
+    public void systemConsentsAreReloadedOnlyWhenTheConfigurationChanges() throws Exception
+    {
+        DocumentModelBridge configDoc = this.setUpInitialization(new LinkedList<BaseObject>());
+        DocumentAccessBridge dab = this.mocker.getInstance(DocumentAccessBridge.class);
+        ConsentManager manager = this.mocker.getComponentUnderTest();
+
+        manager.getSystemConsents();
+        manager.isValidConsentId(ConsentConfigurationMocks.TEST_ID1);
+        verify(dab, times(1)).getDocument(any(DocumentReference.class));
+
+        XWikiDocument otherDoc = mock(XWikiDocument.class);
+        doReturn(mock(DocumentReference.class)).when(otherDoc).getDocumentReference();
+        ((EventListener) manager).onEvent(new DocumentUpdatedEvent(), otherDoc, null);
+        manager.getSystemConsents();
+        verify(dab, times(1)).getDocument(any(DocumentReference.class));
+
+        ((EventListener) manager).onEvent(new DocumentUpdatedEvent(), configDoc, null);
+        manager.getSystemConsents();
+        verify(dab, times(2)).getDocument(any(DocumentReference.class));
+    }
+
+    @Test
+    public void systemConsentsLoadedWhileTheConfigurationChangesAreReloaded() throws Exception
+    {
+        final DocumentModelBridge configDoc = this.setUpInitialization(new LinkedList<BaseObject>());
+        DocumentAccessBridge dab = this.mocker.getInstance(DocumentAccessBridge.class);
+        final ConsentManager manager = this.mocker.getComponentUnderTest();
+        doAnswer(new Answer<DocumentModelBridge>()
+        {
+            private boolean first = true;
+
+            @Override
+            public DocumentModelBridge answer(InvocationOnMock invocation)
+            {
+                if (this.first) {
+                    // The configuration is saved again right after it was read
+                    this.first = false;
+                    ((EventListener) manager).onEvent(new DocumentUpdatedEvent(), configDoc, null);
+                }
+                return configDoc;
+            }
+        }).when(dab).getDocument(any(DocumentReference.class));
+
+        manager.getSystemConsents();
+        verify(dab, times(1)).getDocument(any(DocumentReference.class));
+
+        manager.getSystemConsents();
+        verify(dab, times(2)).getDocument(any(DocumentReference.class));
+
+        manager.getSystemConsents();
+        verify(dab, times(2)).getDocument(any(DocumentReference.class));
+    }
+
+    @Test
+    public void testFilteringPatientsByConsents() throws Exception
+    {
+        this.setUpInitializationWithConfigurationMocks();
+        Patient patient1 =
+            mockPatientWithConsents(ConsentConfigurationMocks.TEST_ID1, ConsentConfigurationMocks.TEST_ID2);
+        Patient patient2 = mockPatientWithConsents(ConsentConfigurationMocks.TEST_ID1, "id_nonexistent");
+        Patient patient3 = mockPatientWithConsents();
+        List<Patient> cohort = Arrays.asList(patient1, patient2, patient3);
+        ConsentManager manager = this.mocker.getComponentUnderTest();
+
+        Assert.assertEquals(Arrays.asList(patient1, patient2),
+            manager.filterPatientsWithConsents(cohort, Collections.singleton(ConsentConfigurationMocks.TEST_ID1)));
+        Assert.assertEquals(Collections.singletonList(patient1), manager.filterPatientsWithConsents(cohort,
+            Arrays.asList(ConsentConfigurationMocks.TEST_ID2, ConsentConfigurationMocks.TEST_ID1)));
+        Assert.assertTrue(manager.filterPatientsWithConsents(cohort,
+            Arrays.asList(ConsentConfigurationMocks.TEST_ID1, "id_nonexistent")).isEmpty());
+        Assert.assertEquals(cohort, manager.filterPatientsWithConsents(cohort, null));
+        Assert.assertTrue(manager.filterPatientsWithConsents(null, null).isEmpty());
+        Assert.assertFalse(manager.hasConsent(patient2, "id_nonexistent"));
+    }
+
+    private Patient mockPatientWithConsents(String... consentIds) throws Exception
+    {
+        Patient patient = mock(Patient.class);
+        XWikiDocument patientDoc = mock(XWikiDocument.class);
+        BaseObject idsHolder = mock(BaseObject.class);
+        doReturn(patientDoc).when(patient).getXDocument();
+        doReturn(idsHolder).when(patientDoc).getXObject(any(EntityReference.class));
+        doReturn(Arrays.asList(consentIds)).when(idsHolder).getListValue("granted");
+        return patient;
+    }
 }
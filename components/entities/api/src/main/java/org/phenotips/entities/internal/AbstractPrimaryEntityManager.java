@@ -128,23 +128,7 @@ public synchronized E create(DocumentReference creator)
     {
         try {
             XWikiContext context = this.xcontextProvider.get();
-            DocumentReference newDoc = getNextDocument();
-            XWikiDocument doc = (XWikiDocument) this.bridge.getDocument(newDoc);
-
-            DocumentReference template = getEntityXClassReference();
-            template = new DocumentReference(template.getName().concat("Template"), template.getLastSpaceReference());
-            if (!this.bridge.exists(template)) {
-                template = new DocumentReference(template.getName().replaceAll("Class(Template)$", "$1"),
-                    template.getLastSpaceReference());
-            }
-            if (this.bridge.exists(template)) {
-                doc.readFromTemplate(template, context);
-            }
-            if (creator != null) {
-                doc.setCreatorReference(creator);
-                doc.setAuthorReference(creator);
-                doc.setContentAuthorReference(creator);
-            }
+            XWikiDocument doc = createDocument(creator);
             context.getWiki().saveDocument(doc, context);
 
             return load(doc);
@@ -154,6 +138,40 @@ public synchronized E create(DocumentReference creator)
         }
     }
 
+    /**
+     * Prepares the document for a new entity: picks the {@link #getNextDocument() next available name}, copies the
+     * content of the entity template, if one exists, and sets the creator. The document is not saved, so that
+     * subclasses can fill in more data before saving it only once. Must only be called while holding the lock on this
+     * manager, otherwise concurrent calls may pick the same name.
+     *
+     * @param creator a reference to the document representing the creator of the new entity, may be {@code null}
+     * @return the new, not yet saved, document
+     * @throws Exception if accessing the storage fails
+     * @since 1.4
+     */
+    protected XWikiDocument createDocument(DocumentReference creator) throws Exception
+    {
+        XWikiContext context = this.xcontextProvider.get();
+        DocumentReference newDoc = getNextDocument();
+        XWikiDocument doc = (XWikiDocument) this.bridge.getDocument(newDoc);
+
+        DocumentReference template = getEntityXClassReference();
+        template = new DocumentReference(template.getName().concat("Template"), template.getLastSpaceReference());
+        if (!this.bridge.exists(template)) {
+            template = new DocumentReference(template.getName().replaceAll("Class(Template)$", "$1"),
+                template.getLastSpaceReference());
+        }
+        if (this.bridge.exists(template)) {
+            doc.readFromTemplate(template, context);
+        }
+        if (creator != null) {
+            doc.setCreatorReference(creator);
+            doc.setAuthorReference(creator);
+            doc.setContentAuthorReference(creator);
+        }
+        return doc;
+    }
+
     @Override
     public E get(String id)
     {
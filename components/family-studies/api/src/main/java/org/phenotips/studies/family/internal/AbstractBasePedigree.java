@@ -37,6 +37,12 @@ public abstract class AbstractBasePedigree implements Pedigree
 
     protected String image = "";
 
+    /** Where styled renditions of the image are cached, if the pedigree corresponds to a stored family version. */
+    private PedigreeImageCache imageCache;
+
+    /** Identifies the stored family version this pedigree was loaded from, used as the image cache key. */
+    private String version;
+
     /**
      * Create a new pedigree using given data and image.
      *
@@ -67,12 +73,18 @@ public String getImage(String highlightCurrentPatientId)
     @Override
     public String getImage(String highlightCurrentPatientId, int width, int height)
     {
-        String svg = SvgUpdater.setCurrentPatientStylesInSvg(this.image, highlightCurrentPatientId);
-        if (width > 0) {
-            svg = SvgUpdater.setSVGWidth(svg, width);
+        if (this.imageCache != null) {
+            String cached = this.imageCache.get(this.version, highlightCurrentPatientId, width, height);
+            if (cached != null) {
+                return cached;
+            }
         }
-        if (height > 0) {
-            svg = SvgUpdater.setSVGHeight(svg, height);
+        String svg = new SvgRewriter().setCurrentPatient(highlightCurrentPatientId)
+            .setWidth(width)
+            .setHeight(height)
+            .rewrite(this.image);
+        if (this.imageCache != null) {
+            this.imageCache.set(this.version, highlightCurrentPatientId, width, height, svg);
         }
         return svg;
     }
@@ -96,13 +108,26 @@ public String getProbandPatientLastName()
     @Override
     public void removeLink(String linkedPatientId)
     {
-        // update SVG
-        this.image = SvgUpdater.removeLink(this.image, linkedPatientId);
+        // update SVG; the image no longer matches the stored version
+        this.imageCache = null;
+        this.image = new SvgRewriter().removeLink(linkedPatientId).rewrite(this.image);
 
         // update JSON
         removeLinkFromPedigreeJSON(linkedPatientId);
     }
 
+    /**
+     * Enables caching of the styled image renditions, for a pedigree which corresponds to a stored family version.
+     *
+     * @param cache the cache to use
+     * @param storedVersion identifies the stored family version the pedigree was loaded from
+     */
+    void setImageCache(PedigreeImageCache cache, String storedVersion)
+    {
+        this.imageCache = cache;
+        this.version = storedVersion;
+    }
+
     /**
      * @return a pair {@code <ProbandId, ProbandLastname>}
      */
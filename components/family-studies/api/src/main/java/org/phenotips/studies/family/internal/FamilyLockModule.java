@@ -86,18 +86,18 @@ public DocumentLock getLock(DocumentReference doc)
             if (xdoc == null) {
                 return null;
             }
+            XWikiLock xlock = xdoc.getLock(context);
+            if (xlock == null) {
+                return null;
+            }
+            // checking the lock is much cheaper than loading the family
             String documentId = xdoc.getDocumentReference().getName();
             Family family = this.familyRepository.getFamilyById(documentId);
             if (family == null) {
                 return null;
             }
-
-            XWikiLock xlock = xdoc.getLock(context);
-            if (xlock == null) {
-                return null;
-            }
             User user = this.userManager.getUser(xlock.getUserName());
-            if (xlock != null && !user.getId().equals(this.userManager.getCurrentUser().getId())) {
+            if (!user.getId().equals(this.userManager.getCurrentUser().getId())) {
                 Set<String> actions = Collections.singleton("edit");
                 return new DocumentLock(user, xlock.getDate(), this.tm.translate("family.locks.familyInUse",
                     user.getName()), actions, false);
@@ -0,0 +1,113 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.studies.family.internal;
+
+import org.xwiki.component.annotation.Component;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.inject.Singleton;
+
+/**
+ * Caches the per-patient styled renditions of pedigree images. Entries are keyed by the stored version of the family
+ * document, so a new version of the pedigree automatically uses new entries, and old ones are evicted as they become
+ * the least recently used. Since pedigree images range from a few kilobytes to several megabytes, the cache is bounded
+ * by the total length of the stored images rather than by their number.
+ *
+ * @version $Id$
+ * @since 1.4
+ */
+@Component(roles = { PedigreeImageCache.class })
+@Singleton
+public class PedigreeImageCache
+{
+    /** The maximum total length of the styled images kept in memory, in characters; about 32MB. */
+    private static final long DEFAULT_MAX_SIZE = 16L * 1024 * 1024;
+
+    private static final char SEPARATOR = '|';
+
+    private final long maxSize;
+
+    /** Cached images, in access order. */
+    private final Map<String, String> images = new LinkedHashMap<>(16, 0.75f, true);
+
+    private long totalSize;
+
+    /** Default constructor, used by the component manager. */
+    public PedigreeImageCache()
+    {
+        this(DEFAULT_MAX_SIZE);
+    }
+
+    /**
+     * Constructor setting a custom size limit.
+     *
+     * @param maxSize the maximum total length of the cached images, in characters
+     */
+    PedigreeImageCache(long maxSize)
+    {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Retrieves a cached rendition.
+     *
+     * @param version identifies the stored version of the family the pedigree belongs to
+     * @param patientId the patient highlighted in the image, may be {@code null}
+     * @param width the requested width, {@code <= 0} for the native width
+     * @param height the requested height, {@code <= 0} for the native height
+     * @return the cached image, or {@code null} if not cached
+     */
+    public synchronized String get(String version, String patientId, int width, int height)
+    {
+        return this.images.get(getKey(version, patientId, width, height));
+    }
+
+    /**
+     * Stores a rendition, evicting the least recently used ones if the size limit is exceeded. Images larger than the
+     * whole cache are not stored.
+     *
+     * @param version identifies the stored version of the family the pedigree belongs to
+     * @param patientId the patient highlighted in the image, may be {@code null}
+     * @param width the requested width, {@code <= 0} for the native width
+     * @param height the requested height, {@code <= 0} for the native height
+     * @param image the styled image
+     */
+    public synchronized void set(String version, String patientId, int width, int height, String image)
+    {
+        if (image == null || image.length() > this.maxSize) {
+            return;
+        }
+        String previous = this.images.put(getKey(version, patientId, width, height), image);
+        this.totalSize += image.length() - (previous == null ? 0 : previous.length());
+        // the new image is the most recently used one, and fits, so it is never evicted here
+        Iterator<String> it = this.images.values().iterator();
+        while (this.totalSize > this.maxSize && it.hasNext()) {
+            this.totalSize -= it.next().length();
+            it.remove();
+        }
+    }
+
+    private String getKey(String version, String patientId, int width, int height)
+    {
+        return new StringBuilder(version).append(SEPARATOR).append(patientId == null ? "" : patientId)
+            .append(SEPARATOR).append(Math.max(width, 0)).append(SEPARATOR).append(Math.max(height, 0)).toString();
+    }
+}
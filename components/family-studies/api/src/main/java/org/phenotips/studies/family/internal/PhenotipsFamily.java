@@ -66,6 +66,8 @@ public class PhenotipsFamily implements Family
 
     private static PhenotipsFamilyExport familyExport;
 
+    private static PedigreeImageCache imageCache;
+
     /** Logging helper object. */
     private Logger logger = LoggerFactory.getLogger(PhenoTipsPatient.class);
 
@@ -77,6 +79,8 @@ public class PhenotipsFamily implements Family
                 ComponentManagerRegistry.getContextComponentManager().getInstance(PatientRepository.class);
             PhenotipsFamily.familyExport =
                 ComponentManagerRegistry.getContextComponentManager().getInstance(PhenotipsFamilyExport.class);
+            PhenotipsFamily.imageCache =
+                ComponentManagerRegistry.getContextComponentManager().getInstance(PedigreeImageCache.class);
         } catch (ComponentLookupException e) {
             e.printStackTrace();
         }
@@ -247,6 +251,15 @@ public int hashCode()
         return this.getId().hashCode();
     }
 
+    /**
+     * Identifies the stored version of the family document, used for caching data derived from it.
+     */
+    private String getStoredVersion()
+    {
+        return this.familyDocument.getDocumentReference().toString() + '@' + this.familyDocument.getVersion() + '@'
+            + this.familyDocument.getDate().getTime();
+    }
+
     @Override
     public Pedigree getPedigree()
     {
@@ -264,11 +277,17 @@ public Pedigree getPedigree()
                     // for now simpleJSON may only be stored after a migration, and some of the
                     // methods
                     JSONObject pedigreeJSON = new JSONObject(data.toText());
+                    AbstractBasePedigree result = null;
                     if (DefaultPedigree.isSupportedPedigreeFormat(pedigreeJSON)) {
-                        return new DefaultPedigree(pedigreeJSON, image.toText());
+                        result = new DefaultPedigree(pedigreeJSON, image.toText());
                     } else if (NewFormatPedigree.isSupportedPedigreeFormat(pedigreeJSON)) {
-                        return new NewFormatPedigree(pedigreeJSON, image.toText());
+                        result = new NewFormatPedigree(pedigreeJSON, image.toText());
+                    }
+                    if (result != null && PhenotipsFamily.imageCache != null && !this.familyDocument.isNew()
+                        && !this.familyDocument.isMetaDataDirty()) {
+                        result.setImageCache(PhenotipsFamily.imageCache, getStoredVersion());
                     }
+                    return result;
                 }
             } catch (XWikiException e) {
                 this.logger.error("Error reading data from pedigree: [{}]", e.getMessage(), e);
@@ -47,8 +47,13 @@
 import org.xwiki.security.authorization.Right;
 import org.xwiki.users.User;
 
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import javax.inject.Inject;
 import javax.inject.Named;
@@ -474,8 +479,8 @@ private void checkIfPatientCanBeRemovedFromFamily(Family family, Patient patient
     @Override
     public synchronized void setPedigree(Family family, Pedigree pedigree, User updatingUser) throws PTException
     {
-        // note: whenever available, internal versions of helper methods are used which modify the
-        // family document but do not save it to disk
+        // note: the family document and all affected patient documents are modified in memory first, and only
+        // written to disk once all changes have been computed; each affected patient is loaded exactly once
         List<String> oldMembers = family.getMembersIds();
 
         List<String> currentMembers = pedigree.extractIds();
@@ -485,32 +490,64 @@ public synchronized void setPedigree(Family family, Pedigree pedigree, User upda
         patientsToAdd.addAll(currentMembers);
         patientsToAdd.removeAll(oldMembers);
 
-        this.checkValidity(family, patientsToAdd, updatingUser);
+        // Removed members who are no longer in the family
+        List<String> patientsToRemove = new LinkedList<>();
+        patientsToRemove.addAll(oldMembers);
+        patientsToRemove.removeAll(currentMembers);
+
+        Map<String, Patient> affectedPatients = this.loadPatients(currentMembers, patientsToRemove);
+
+        this.checkValidity(family, patientsToAdd, affectedPatients, updatingUser);
 
-        // update patient data from pedigree's JSON
-        // (no links to families are set at this point, only patient dat ais updated)
-        this.updatePatientsFromJson(pedigree, updatingUser);
+        List<JSONObject> patientsJson;
+        try {
+            patientsJson = this.pedigreeConverter.convert(pedigree);
+        } catch (Exception ex) {
+            throw new PTInternalErrorException();
+        }
 
         boolean firstPedigree = (family.getPedigree() == null);
 
         XWikiContext context = this.provider.get();
 
-        this.setPedigreeObject(family, pedigree, context);
+        this.setPedigreeObject(family, pedigree, affectedPatients, context);
 
-        // Removed members who are no longer in the family
-        List<String> patientsToRemove = new LinkedList<>();
-        patientsToRemove.addAll(oldMembers);
-        patientsToRemove.removeAll(currentMembers);
+        List<String> members = new LinkedList<>(oldMembers);
         for (String patientId : patientsToRemove) {
-            Patient patient = this.patientRepository.get(patientId);
-            // remove the memebr and update patient document, but don't write family document to disk yet
-            // and don't update permisisons (that will be done once afdter all patients are added/removed)
-            this.removeMember(family, patient, updatingUser, true);
+            XWikiDocument patientDocument = this.getPatientDocument(affectedPatients.get(patientId), patientId);
+            if (!this.removeFamilyReference(patientDocument)) {
+                throw new PTInternalErrorException();
+            }
+            members.remove(patientId);
         }
-
         for (String patientId : patientsToAdd) {
-            Patient patient = this.patientRepository.get(patientId);
-            this.addMember(family, patient, updatingUser, true);
+            XWikiDocument patientDocument = this.getPatientDocument(affectedPatients.get(patientId), patientId);
+            if (!this.setFamilyReference(patientDocument, family.getXDocument(), context)) {
+                throw new PTInternalErrorException();
+            }
+            members.add(patientId);
+        }
+        family.getXDocument().getXObject(Family.CLASS_REFERENCE)
+            .set(PhenotipsFamily.FAMILY_MEMBERS_FIELD, members, context);
+
+        // Write each modified patient document once: the data from the pedigree JSON is applied in memory, next to
+        // the family reference changes made above, and each changed patient is then saved explicitly, so that a
+        // failed save is reported instead of silently losing the family reference
+        Set<String> pendingSaves = new LinkedHashSet<>();
+        pendingSaves.addAll(patientsToAdd);
+        pendingSaves.addAll(patientsToRemove);
+        this.updatePatientsFromJson(patientsJson, affectedPatients, pendingSaves, updatingUser);
+        for (String patientId : pendingSaves) {
+            XWikiDocument patientDocument = affectedPatients.get(patientId).getXDocument();
+            String comment = "Updated from JSON";
+            if (patientsToAdd.contains(patientId)) {
+                comment = "added to family " + family.getId();
+            } else if (patientsToRemove.contains(patientId)) {
+                comment = "removed from family";
+            }
+            if (!savePatientDocument(patientDocument, comment, context)) {
+                throw new PTInternalErrorException();
+            }
         }
 
         if (firstPedigree && StringUtils.isEmpty(family.getExternalId())) {
@@ -529,7 +566,40 @@ public synchronized void setPedigree(Family family, Pedigree pedigree, User upda
         }
     }
 
-    private void checkValidity(Family family, List<String> newMembers, User updatingUser) throws PTException
+    /**
+     * Loads all the patients affected by a pedigree update, each one only once.
+     *
+     * @param currentMembers the identifiers of the patients present in the new pedigree
+     * @param removedMembers the identifiers of the patients no longer present in the pedigree
+     * @return a map of loaded patients, keyed by their identifier; patients that can't be loaded are mapped to
+     *         {@code null}
+     */
+    private Map<String, Patient> loadPatients(List<String> currentMembers, List<String> removedMembers)
+    {
+        Map<String, Patient> result = new LinkedHashMap<>();
+        for (String patientId : currentMembers) {
+            if (!result.containsKey(patientId)) {
+                result.put(patientId, this.patientRepository.get(patientId));
+            }
+        }
+        for (String patientId : removedMembers) {
+            if (!result.containsKey(patientId)) {
+                result.put(patientId, this.patientRepository.get(patientId));
+            }
+        }
+        return result;
+    }
+
+    private XWikiDocument getPatientDocument(Patient patient, String patientId) throws PTException
+    {
+        if (patient == null || patient.getXDocument() == null) {
+            throw new PTInvalidPatientIdException(patientId);
+        }
+        return patient.getXDocument();
+    }
+
+    private void checkValidity(Family family, List<String> newMembers, Map<String, Patient> patients,
+        User updatingUser) throws PTException
     {
         // Checks that current user has edit permissions on family
         if (!this.authorizationService.hasAccess(updatingUser, Right.EDIT, family.getDocumentReference())) {
@@ -544,27 +614,36 @@ private void checkValidity(Family family, List<String> newMembers, User updating
         // Check if every new member can be added to the family
         if (newMembers != null) {
             for (String patientId : newMembers) {
-                Patient patient = this.patientRepository.get(patientId);
+                Patient patient = patients.get(patientId);
+                if (patient == null) {
+                    throw new PTInvalidPatientIdException(patientId);
+                }
                 checkIfPatientCanBeAddedToFamily(family, patient, updatingUser);
             }
         }
     }
 
-    private void updatePatientsFromJson(Pedigree pedigree, User updatingUser)
+    /**
+     * Updates patient data from the pedigree's JSON. The changes are only applied in memory, and patients whose data is
+     * updated are added to the set of documents still pending a save.
+     */
+    private void updatePatientsFromJson(List<JSONObject> patientsJson, Map<String, Patient> patients,
+        Set<String> pendingSaves, User updatingUser)
     {
         String idKey = "id";
         try {
-            List<JSONObject> patientsJson = this.pedigreeConverter.convert(pedigree);
-
             for (JSONObject singlePatient : patientsJson) {
                 if (singlePatient.has(idKey)) {
-                    Patient patient = this.patientRepository.get(singlePatient.getString(idKey));
-                    if (!this.authorizationService.hasAccess(
+                    String patientId = singlePatient.getString(idKey);
+                    Patient patient = patients.get(patientId);
+                    if (patient == null || !this.authorizationService.hasAccess(
                             updatingUser, Right.EDIT, patient.getDocumentReference())) {
                         // skip patients the current user does not have edit rights for
                         continue;
                     }
-                    patient.updateFromJSON(singlePatient);
+                    if (patient.applyJSON(singlePatient)) {
+                        pendingSaves.add(patientId);
+                    }
                 }
             }
         } catch (Exception ex) {
@@ -587,6 +666,12 @@ private String findDuplicate(List<String> updatedMembers)
     }
 
     private boolean setPedigreeObject(Family family, Pedigree pedigree, XWikiContext context)
+    {
+        return this.setPedigreeObject(family, pedigree, Collections.<String, Patient>emptyMap(), context);
+    }
+
+    private boolean setPedigreeObject(Family family, Pedigree pedigree, Map<String, Patient> loadedPatients,
+        XWikiContext context)
     {
         if (pedigree == null) {
             this.logger.error("Can not set NULL pedigree for family [{}]", family.getId());
@@ -602,7 +687,8 @@ private boolean setPedigreeObject(Family family, Pedigree pedigree, XWikiContext
         if (familyClassObject != null) {
             String probandId = pedigree.getProbandId();
             if (!StringUtils.isEmpty(probandId)) {
-                Patient patient = this.patientRepository.get(probandId);
+                Patient patient = loadedPatients.containsKey(probandId) ? loadedPatients.get(probandId)
+                    : this.patientRepository.get(probandId);
                 familyClassObject.setStringValue("proband_id",
                         (patient == null) ? "" : patient.getDocumentReference().toString());
             } else {
@@ -0,0 +1,465 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.studies.family.internal;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Applies all the edits needed on a pedigree SVG (resizing, removing patient links, styling the proband and the
+ * current patient) at once. The SVG is tokenized in a single scan which only records the positions of the elements of
+ * interest, and the result is then written in one pass into a buffer sized after the original image, copying
+ * unchanged regions as they are and rewriting only the opening tags that need to change.
+ *
+ * @version $Id$
+ * @since 1.4
+ */
+public final class SvgRewriter
+{
+    // matches SVG links to patients, such as href="/bin/data/P0000001"
+    private static final Pattern PATIENT_PAGE_LINK_PATTERN = Pattern.compile("href=\"[\\w\\/]*?/(P\\d+)");
+
+    private static final String PEDIGREE_NODE_ID = "pedigreeNodeID=\"";
+
+    private static final String NODE_SHAPE_ID = "node-shape-";
+
+    private static final String PROBAND_MARKER = "isProband=\"true\"";
+
+    private static final String STROKE_ATTR_TOKEN = "stroke-width=\"";
+
+    private static final String Y_ATTR_TOKEN = " y=\"";
+
+    private static final String WIDTH_ATTR_TOKEN = "width=\"";
+
+    private static final String HEIGHT_ATTR_TOKEN = "height=\"";
+
+    private static final String PROBAND_STROKE_WIDTH = String.valueOf(2.0);
+
+    private static final String CURRENT_PATIENT_STROKE_WIDTH = String.valueOf(5.0);
+
+    /** The number of pixels to shift text when a link is removed. */
+    private static final int SVG_LINK_HEIGHT_IN_PIXELS = 22;
+
+    /** Extra room reserved in the output buffer for attributes that may be added. */
+    private static final int BUFFER_SLACK = 64;
+
+    private int width;
+
+    private int height;
+
+    private boolean styleCurrentPatient;
+
+    private String currentPatientId;
+
+    private boolean removeLinks;
+
+    private String removedPatientId;
+
+    /**
+     * Sets the width of the resulting SVG. Values {@code <= 0} leave the original width unchanged.
+     *
+     * @param width target width in pixels
+     * @return this object, for chaining
+     */
+    public SvgRewriter setWidth(int width)
+    {
+        this.width = width;
+        return this;
+    }
+
+    /**
+     * Sets the height of the resulting SVG. Values {@code <= 0} leave the original height unchanged.
+     *
+     * @param height target height in pixels
+     * @return this object, for chaining
+     */
+    public SvgRewriter setHeight(int height)
+    {
+        this.height = height;
+        return this;
+    }
+
+    /**
+     * Requests that the proband and the given patient are visually marked, and that any other stroke styling of node
+     * shapes is cleared.
+     *
+     * @param patientId the id of the patient that should be visually marked as current, may be {@code null}
+     * @return this object, for chaining
+     */
+    public SvgRewriter setCurrentPatient(String patientId)
+    {
+        this.styleCurrentPatient = true;
+        this.currentPatientId = patientId;
+        return this;
+    }
+
+    /**
+     * Requests that the links (and the corresponding label space) for the given patient are removed.
+     *
+     * @param patientId id of the patient whose links should be removed; {@code null} removes all links to patients
+     * @return this object, for chaining
+     */
+    public SvgRewriter removeLink(String patientId)
+    {
+        this.removeLinks = true;
+        this.removedPatientId = patientId;
+        return this;
+    }
+
+    /**
+     * Applies all the requested edits to the given SVG.
+     *
+     * @param svg a string representing an svg
+     * @return the updated svg, or the original svg if it is {@code null} or no edits were requested
+     */
+    public String rewrite(String svg)
+    {
+        if (svg == null || (this.width <= 0 && this.height <= 0 && !this.styleCurrentPatient && !this.removeLinks)) {
+            return svg;
+        }
+
+        List<Element> elements = tokenize(svg);
+
+        Set<String> removedNodes = new HashSet<>();
+        Element currentLink = null;
+        int currentLinksCount = 0;
+        Element probandShape = null;
+        for (Element element : elements) {
+            if (element.type == ElementType.LINK) {
+                if (this.removeLinks && matchesPatient(element, this.removedPatientId)) {
+                    element.removed = true;
+                    if (element.nodeId != null) {
+                        removedNodes.add(element.nodeId);
+                    }
+                } else if (this.styleCurrentPatient && matchesPatient(element, this.currentPatientId)) {
+                    currentLink = element;
+                    currentLinksCount++;
+                }
+            } else if (element.type.isShape() && element.proband && probandShape == null) {
+                probandShape = element;
+            }
+        }
+        // A patient linked from several nodes is ambiguous, so none of them is marked as the current patient
+        String currentNodeId = (currentLinksCount == 1) ? currentLink.nodeId : null;
+
+        StringBuilder result = new StringBuilder(svg.length() + BUFFER_SLACK);
+        int cursor = 0;
+        boolean currentShapeFound = false;
+        for (Element element : elements) {
+            if (element.start < cursor) {
+                // nested inside a removed element
+                continue;
+            }
+            switch (element.type) {
+                case SVG:
+                    result.append(svg, cursor, element.start);
+                    appendResizedSvgTag(result, svg, element);
+                    cursor = element.openEnd;
+                    break;
+                case LINK:
+                    if (element.removed) {
+                        result.append(svg, cursor, element.start);
+                        cursor = element.end;
+                    }
+                    break;
+                case TEXT:
+                    if (element.nodeId != null && removedNodes.contains(element.nodeId)) {
+                        result.append(svg, cursor, element.start);
+                        appendShiftedText(result, svg, element, -SVG_LINK_HEIGHT_IN_PIXELS);
+                        cursor = element.openEnd;
+                    }
+                    break;
+                default:
+                    if (this.styleCurrentPatient) {
+                        String strokeWidth = null;
+                        if (!currentShapeFound && currentNodeId != null
+                            && currentNodeId.equalsIgnoreCase(element.nodeId)) {
+                            currentShapeFound = true;
+                            strokeWidth = CURRENT_PATIENT_STROKE_WIDTH;
+                        } else if (element == probandShape) {
+                            strokeWidth = PROBAND_STROKE_WIDTH;
+                        }
+                        result.append(svg, cursor, element.start);
+                        appendStyledShape(result, svg, element, strokeWidth);
+                        cursor = element.openEnd;
+                    }
+                    break;
+            }
+        }
+        result.append(svg, cursor, svg.length());
+        return result.toString();
+    }
+
+    /**
+     * Scans the SVG once, recording the position and the relevant attributes of the elements that may be edited.
+     * Elements are returned in document order; nested elements are included.
+     */
+    private List<Element> tokenize(String svg)
+    {
+        List<Element> elements = new ArrayList<>();
+        boolean resize = this.width > 0 || this.height > 0;
+        boolean svgTagFound = false;
+        int position = svg.indexOf('<');
+        while (position != -1) {
+            ElementType type = ElementType.at(svg, position);
+            int openEnd = (type == null) ? -1 : svg.indexOf('>', position);
+            if (type == null || openEnd == -1) {
+                position = svg.indexOf('<', position + 1);
+                continue;
+            }
+            openEnd++;
+            Element element = null;
+            if (type == ElementType.SVG) {
+                if (resize && !svgTagFound) {
+                    svgTagFound = true;
+                    element = new Element(type, position, openEnd, openEnd);
+                }
+            } else if (type == ElementType.LINK && (this.removeLinks || this.styleCurrentPatient)
+                || type == ElementType.TEXT && this.removeLinks
+                || type.isShape() && this.styleCurrentPatient) {
+                element = parseElement(svg, type, position, openEnd);
+            }
+            if (element != null) {
+                elements.add(element);
+            }
+            position = svg.indexOf('<', openEnd);
+        }
+        return elements;
+    }
+
+    private Element parseElement(String svg, ElementType type, int start, int openEnd)
+    {
+        int end;
+        if (svg.charAt(openEnd - 2) == '/') {
+            end = openEnd;
+        } else {
+            end = svg.indexOf(type.closingTag, openEnd);
+            if (end == -1) {
+                return null;
+            }
+            end += type.closingTag.length();
+        }
+
+        String nodeIdToken = type.isShape() ? NODE_SHAPE_ID : PEDIGREE_NODE_ID;
+        int nodeIdStart = indexOf(svg, nodeIdToken, start, end);
+        if (nodeIdStart == -1) {
+            return null;
+        }
+        Element element = new Element(type, start, openEnd, end);
+        element.nodeId = parseNodeId(svg, nodeIdStart + nodeIdToken.length(), end);
+        if (type.isShape()) {
+            element.proband = indexOf(svg, PROBAND_MARKER, start, end) != -1;
+        } else if (type == ElementType.LINK) {
+            Matcher linkMatch = PATIENT_PAGE_LINK_PATTERN.matcher(svg).region(start, end);
+            element.patientId = linkMatch.find() ? linkMatch.group(1) : "";
+        }
+        return element;
+    }
+
+    /**
+     * Reads the numeric node id starting at the given position.
+     *
+     * @return the node id, or {@code null} if there's no numeric id at that position
+     */
+    private static String parseNodeId(String svg, int idStart, int end)
+    {
+        int idEnd = idStart;
+        while (idEnd < end && Character.isDigit(svg.charAt(idEnd))) {
+            idEnd++;
+        }
+        return (idEnd > idStart) ? svg.substring(idStart, idEnd) : null;
+    }
+
+    private static boolean matchesPatient(Element link, String patientId)
+    {
+        return patientId == null || patientId.equalsIgnoreCase(link.patientId);
+    }
+
+    private void appendResizedSvgTag(StringBuilder result, String svg, Element tag)
+    {
+        int widthPosition = (this.width > 0) ? findNumericAttribute(svg, WIDTH_ATTR_TOKEN, tag) : -1;
+        int heightPosition = (this.height > 0) ? findNumericAttribute(svg, HEIGHT_ATTR_TOKEN, tag) : -1;
+        int cursor = tag.start;
+        if (widthPosition != -1 && (heightPosition == -1 || widthPosition < heightPosition)) {
+            cursor = appendAttributeValue(result, svg, cursor, widthPosition + WIDTH_ATTR_TOKEN.length(), this.width);
+            widthPosition = -1;
+        }
+        if (heightPosition != -1) {
+            cursor =
+                appendAttributeValue(result, svg, cursor, heightPosition + HEIGHT_ATTR_TOKEN.length(), this.height);
+        }
+        if (widthPosition != -1) {
+            cursor = appendAttributeValue(result, svg, cursor, widthPosition + WIDTH_ATTR_TOKEN.length(), this.width);
+        }
+        result.append(svg, cursor, tag.openEnd);
+    }
+
+    /**
+     * Copies everything up to the value starting at {@code valueStart}, then the new value instead of the old one.
+     *
+     * @return the position right after the old value, where copying should continue
+     */
+    private static int appendAttributeValue(StringBuilder result, String svg, int cursor, int valueStart, int value)
+    {
+        result.append(svg, cursor, valueStart).append(value);
+        return svg.indexOf('"', valueStart);
+    }
+
+    /**
+     * Finds the last occurrence of an attribute with a numeric value inside the opening tag, the same one that the
+     * {@code (<svg[^>]+)width="\d+"} pattern would select.
+     */
+    private static int findNumericAttribute(String svg, String token, Element tag)
+    {
+        int position = svg.lastIndexOf(token, tag.openEnd - token.length());
+        // "<svg" followed by at least one character
+        int minimum = tag.start + ElementType.SVG.openingTag.length() + 1;
+        while (position >= minimum) {
+            int valueEnd = position + token.length();
+            while (valueEnd < tag.openEnd && Character.isDigit(svg.charAt(valueEnd))) {
+                valueEnd++;
+            }
+            if (valueEnd > position + token.length() && valueEnd < tag.openEnd && svg.charAt(valueEnd) == '"') {
+                return position;
+            }
+            position = svg.lastIndexOf(token, position - 1);
+        }
+        return -1;
+    }
+
+    private static void appendShiftedText(StringBuilder result, String svg, Element text, int shiftBy)
+    {
+        int valueStart = indexOf(svg, Y_ATTR_TOKEN, text.start, text.openEnd);
+        int valueEnd = (valueStart == -1) ? -1 : svg.indexOf('"', valueStart + Y_ATTR_TOKEN.length());
+        if (valueStart == -1 || valueEnd == -1 || valueEnd >= text.openEnd) {
+            result.append(svg, text.start, text.openEnd);
+            return;
+        }
+        valueStart += Y_ATTR_TOKEN.length();
+        try {
+            double position = Double.parseDouble(svg.substring(valueStart, valueEnd));
+            result.append(svg, text.start, valueStart).append(Double.toString(position + shiftBy));
+            result.append(svg, valueEnd, text.openEnd);
+        } catch (NumberFormatException ex) {
+            result.append(svg, text.start, text.openEnd);
+        }
+    }
+
+    private static void appendStyledShape(StringBuilder result, String svg, Element shape, String strokeWidth)
+    {
+        int closing = shape.openEnd - 1;
+        if (svg.charAt(closing - 1) == '/') {
+            closing--;
+        }
+        int tokenStart = indexOf(svg, STROKE_ATTR_TOKEN, shape.start, closing);
+        int tokenEnd = (tokenStart == -1) ? -1 : svg.indexOf('"', tokenStart + STROKE_ATTR_TOKEN.length());
+        if (tokenStart != -1 && tokenEnd != -1 && tokenEnd < closing) {
+            // remove the existing stroke, the only allowed styles are the proband and current patient ones
+            result.append(svg, shape.start, tokenStart).append(svg, tokenEnd + 1, closing);
+        } else {
+            result.append(svg, shape.start, closing);
+        }
+        if (strokeWidth != null) {
+            result.append(' ').append(STROKE_ATTR_TOKEN).append(strokeWidth).append('"');
+        }
+        result.append(svg, closing, shape.openEnd);
+    }
+
+    /** Looks for a token inside the {@code [start, end)} region of the string, without copying it. */
+    private static int indexOf(String svg, String token, int start, int end)
+    {
+        int last = Math.min(end, svg.length()) - token.length();
+        for (int position = start; position <= last; position++) {
+            if (svg.regionMatches(position, token, 0, token.length())) {
+                return position;
+            }
+        }
+        return -1;
+    }
+
+    private enum ElementType
+    {
+        SVG("<svg", null),
+        LINK("<a", "</a>"),
+        TEXT("<text", "</text>"),
+        RECT("<rect", "</rect>"),
+        CIRCLE("<circle", "</circle>");
+
+        private final String openingTag;
+
+        private final String closingTag;
+
+        ElementType(String openingTag, String closingTag)
+        {
+            this.openingTag = openingTag;
+            this.closingTag = closingTag;
+        }
+
+        boolean isShape()
+        {
+            return this == RECT || this == CIRCLE;
+        }
+
+        static ElementType at(String svg, int position)
+        {
+            for (ElementType type : values()) {
+                int nameEnd = position + type.openingTag.length();
+                if (svg.startsWith(type.openingTag, position) && nameEnd < svg.length()) {
+                    char next = svg.charAt(nameEnd);
+                    if (Character.isWhitespace(next) || next == '>' || next == '/') {
+                        return type;
+                    }
+                }
+            }
+            return null;
+        }
+    }
+
+    private static final class Element
+    {
+        private final ElementType type;
+
+        private final int start;
+
+        /** Position right after the opening tag. */
+        private final int openEnd;
+
+        /** Position right after the closing tag. */
+        private final int end;
+
+        private String nodeId;
+
+        private String patientId = "";
+
+        private boolean proband;
+
+        private boolean removed;
+
+        Element(ElementType type, int start, int openEnd, int end)
+        {
+            this.type = type;
+            this.start = start;
+            this.openEnd = openEnd;
+            this.end = end;
+        }
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.studies.family.internal;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests for the {@link PedigreeImageCache}.
+ *
+ * @version $Id$
+ */
+public class PedigreeImageCacheTest
+{
+    private static final String VERSION = "xwiki:Families.FAM0000001|1.1";
+
+    @Test
+    public void storedImagesAreReturnedForTheSameKeyOnly()
+    {
+        PedigreeImageCache cache = new PedigreeImageCache();
+        cache.set(VERSION, "P0000001", 400, 0, "<svg/>");
+
+        Assert.assertEquals("<svg/>", cache.get(VERSION, "P0000001", 400, -1));
+        Assert.assertNull(cache.get(VERSION, "P0000002", 400, 0));
+        Assert.assertNull(cache.get(VERSION, "P0000001", 0, 400));
+        Assert.assertNull(cache.get(VERSION, null, 400, 0));
+        Assert.assertNull(cache.get("xwiki:Families.FAM0000001|1.2", "P0000001", 400, 0));
+
+        cache.set(VERSION, null, 0, 0, "<svg></svg>");
+        Assert.assertEquals("<svg></svg>", cache.get(VERSION, null, 0, 0));
+    }
+
+    @Test
+    public void nullImagesAreNotStored()
+    {
+        PedigreeImageCache cache = new PedigreeImageCache();
+        cache.set(VERSION, "P0000001", 0, 0, null);
+
+        Assert.assertNull(cache.get(VERSION, "P0000001", 0, 0));
+    }
+
+    @Test
+    public void leastRecentlyUsedImagesAreEvictedWhenTheSizeLimitIsExceeded()
+    {
+        PedigreeImageCache cache = new PedigreeImageCache(25);
+        cache.set(VERSION, "P1", 0, 0, "1111111111");
+        cache.set(VERSION, "P2", 0, 0, "2222222222");
+        // P1 becomes the most recently used
+        Assert.assertNotNull(cache.get(VERSION, "P1", 0, 0));
+        cache.set(VERSION, "P3", 0, 0, "3333333333");
+
+        Assert.assertNull(cache.get(VERSION, "P2", 0, 0));
+        Assert.assertEquals("1111111111", cache.get(VERSION, "P1", 0, 0));
+        Assert.assertEquals("3333333333", cache.get(VERSION, "P3", 0, 0));
+    }
+
+    @Test
+    public void oneLargeImageCanEvictSeveralSmallOnes()
+    {
+        PedigreeImageCache cache = new PedigreeImageCache(25);
+        cache.set(VERSION, "P1", 0, 0, "11111");
+        cache.set(VERSION, "P2", 0, 0, "22222");
+        cache.set(VERSION, "P3", 0, 0, "33333");
+        cache.set(VERSION, "P4", 0, 0, "44444444444444444444");
+
+        Assert.assertNull(cache.get(VERSION, "P1", 0, 0));
+        Assert.assertNull(cache.get(VERSION, "P2", 0, 0));
+        Assert.assertEquals("33333", cache.get(VERSION, "P3", 0, 0));
+        Assert.assertNotNull(cache.get(VERSION, "P4", 0, 0));
+    }
+
+    @Test
+    public void replacedImagesAreOnlyCountedOnce()
+    {
+        PedigreeImageCache cache = new PedigreeImageCache(25);
+        cache.set(VERSION, "P1", 0, 0, "1111111111");
+        cache.set(VERSION, "P2", 0, 0, "2222222222");
+        cache.set(VERSION, "P2", 0, 0, "2222222222");
+        cache.set(VERSION, "P2", 0, 0, "22222");
+
+        Assert.assertEquals("1111111111", cache.get(VERSION, "P1", 0, 0));
+        Assert.assertEquals("22222", cache.get(VERSION, "P2", 0, 0));
+    }
+
+    @Test
+    public void imagesLargerThanTheCacheAreNotStored()
+    {
+        PedigreeImageCache cache = new PedigreeImageCache(10);
+        cache.set(VERSION, "P1", 0, 0, "11111");
+        cache.set(VERSION, "P2", 0, 0, "22222222222");
+
+        Assert.assertNull(cache.get(VERSION, "P2", 0, 0));
+        Assert.assertEquals("11111", cache.get(VERSION, "P1", 0, 0));
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.studies.family.internal;
+
+import org.phenotips.data.Patient;
+import org.phenotips.data.PatientRepository;
+import org.phenotips.security.authorization.AuthorizationService;
+import org.phenotips.studies.family.Family;
+import org.phenotips.studies.family.FamilyRepository;
+import org.phenotips.studies.family.Pedigree;
+import org.phenotips.studies.family.PedigreeProcessor;
+import org.phenotips.studies.family.exceptions.PTInternalErrorException;
+
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.EntityReference;
+import org.xwiki.security.authorization.Right;
+import org.xwiki.test.mockito.MockitoComponentMockingRule;
+import org.xwiki.users.User;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import javax.inject.Provider;
+
+import org.json.JSONObject;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import com.xpn.xwiki.XWiki;
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.XWikiException;
+import com.xpn.xwiki.doc.XWikiDocument;
+import com.xpn.xwiki.objects.BaseObject;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests for saving pedigrees through the {@link PhenotipsFamilyRepository}.
+ *
+ * @version $Id$
+ */
+public class PhenotipsFamilyRepositoryTest
+{
+    private static final String PATIENT_ID = "P0000001";
+
+    @Rule
+    public final MockitoComponentMockingRule<FamilyRepository> mocker =
+        new MockitoComponentMockingRule<FamilyRepository>(PhenotipsFamilyRepository.class);
+
+    @Mock
+    private XWikiContext context;
+
+    @Mock
+    private XWiki xwiki;
+
+    @Mock
+    private User user;
+
+    @Mock
+    private Family family;
+
+    @Mock
+    private XWikiDocument familyDoc;
+
+    @Mock
+    private Pedigree pedigree;
+
+    @Mock
+    private Patient patient;
+
+    @Mock
+    private XWikiDocument patientDoc;
+
+    private final DocumentReference familyReference = new DocumentReference("xwiki", "Families", "FAM0000001");
+
+    private final DocumentReference patientReference = new DocumentReference("xwiki", "data", PATIENT_ID);
+
+    private final JSONObject patientJson = new JSONObject().put("id", PATIENT_ID);
+
+    @Before
+    public void setup() throws Exception
+    {
+        MockitoAnnotations.initMocks(this);
+
+        Provider<XWikiContext> contextProvider = this.mocker.getInstance(XWikiContext.TYPE_PROVIDER);
+        when(contextProvider.get()).thenReturn(this.context);
+        when(this.context.getWiki()).thenReturn(this.xwiki);
+
+        AuthorizationService authorization = this.mocker.getInstance(AuthorizationService.class);
+        when(authorization.hasAccess(any(User.class), any(Right.class), any(DocumentReference.class)))
+            .thenReturn(true);
+
+        when(this.family.getId()).thenReturn("FAM0000001");
+        when(this.family.getDocumentReference()).thenReturn(this.familyReference);
+        when(this.family.getXDocument()).thenReturn(this.familyDoc);
+        when(this.family.getPedigree()).thenReturn(mock(Pedigree.class));
+        when(this.familyDoc.getDocumentReference()).thenReturn(this.familyReference);
+        when(this.familyDoc.getXObject(Family.CLASS_REFERENCE)).thenReturn(mock(BaseObject.class));
+        when(this.familyDoc.getXObject(Pedigree.CLASS_REFERENCE)).thenReturn(mock(BaseObject.class));
+
+        when(this.pedigree.extractIds()).thenReturn(Collections.singletonList(PATIENT_ID));
+        when(this.pedigree.getData()).thenReturn(new JSONObject());
+        when(this.pedigree.getImage(null)).thenReturn("<svg/>");
+        PedigreeProcessor converter = this.mocker.getInstance(PedigreeProcessor.class);
+        when(converter.convert(this.pedigree)).thenReturn(Collections.singletonList(this.patientJson));
+
+        when(this.patient.getId()).thenReturn(PATIENT_ID);
+        when(this.patient.getDocumentReference()).thenReturn(this.patientReference);
+        when(this.patient.getXDocument()).thenReturn(this.patientDoc);
+        when(this.patient.applyJSON(this.patientJson)).thenReturn(true);
+        when(this.patientDoc.getXObject(Patient.CLASS_REFERENCE)).thenReturn(mock(BaseObject.class));
+        when(this.patientDoc.getXObject(any(EntityReference.class), anyBoolean(), any(XWikiContext.class)))
+            .thenReturn(mock(BaseObject.class));
+        PatientRepository patients = this.mocker.getInstance(PatientRepository.class);
+        when(patients.get(PATIENT_ID)).thenReturn(this.patient);
+    }
+
+    @Test
+    public void addedPatientIsUpdatedAndSavedOnce() throws Exception
+    {
+        when(this.family.getMembersIds()).thenReturn(Collections.<String>emptyList());
+
+        this.mocker.getComponentUnderTest().setPedigree(this.family, this.pedigree, this.user);
+
+        verify(this.patient).applyJSON(this.patientJson);
+        verify(this.patient, never()).updateFromJSON(any(JSONObject.class));
+        verify(this.xwiki, times(1)).saveDocument(this.patientDoc, "added to family FAM0000001", this.context);
+        verify(this.xwiki, times(1)).saveDocument(this.familyDoc, "Updated family from saved pedigree",
+            this.context);
+    }
+
+    @Test
+    public void existingMemberIsSavedAfterJsonUpdate() throws Exception
+    {
+        when(this.family.getMembersIds()).thenReturn(Arrays.asList(PATIENT_ID));
+
+        this.mocker.getComponentUnderTest().setPedigree(this.family, this.pedigree, this.user);
+
+        verify(this.xwiki, times(1)).saveDocument(this.patientDoc, "Updated from JSON", this.context);
+    }
+
+    @Test
+    public void failingToSaveAnAddedPatientIsReported() throws Exception
+    {
+        when(this.family.getMembersIds()).thenReturn(Collections.<String>emptyList());
+        doThrow(new XWikiException()).when(this.xwiki).saveDocument(this.patientDoc, "added to family FAM0000001",
+            this.context);
+
+        try {
+            this.mocker.getComponentUnderTest().setPedigree(this.family, this.pedigree, this.user);
+            Assert.fail("A failed patient save must be reported");
+        } catch (PTInternalErrorException ex) {
+            // Expected
+        }
+        // The family must not list a patient that doesn't point back to it
+        verify(this.xwiki, never()).saveDocument(this.familyDoc, "Updated family from saved pedigree", this.context);
+    }
+
+    @Test(expected = PTInternalErrorException.class)
+    public void failingToSaveAnUpdatedMemberIsReported() throws Exception
+    {
+        when(this.family.getMembersIds()).thenReturn(Arrays.asList(PATIENT_ID));
+        doThrow(new XWikiException()).when(this.xwiki).saveDocument(any(XWikiDocument.class), anyString(),
+            any(XWikiContext.class));
+
+        this.mocker.getComponentUnderTest().setPedigree(this.family, this.pedigree, this.user);
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.studies.family.internal;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests for the {@link SvgRewriter}.
+ *
+ * @version $Id$
+ */
+public class SvgRewriterTest
+{
+    private static final String SVG_START = "<svg height=\"300\" version=\"1.1\" width=\"500\">";
+
+    private static final String PROBAND = "<rect x=\"1\" class=\"node-shape-1\" stroke-width=\"1\" isProband=\"true\">"
+        + "</rect>";
+
+    private static final String RELATIVE = "<circle cx=\"1\" class=\"node-shape-2\"></circle>";
+
+    private static final String LINK = "<a href=\"/bin/data/P0000002\"><text x=\"1\" y=\"3\" pedigreeNodeID=\"2\">"
+        + "P0000002</text></a>";
+
+    private static final String LABEL = "<text x=\"5\" y=\"40\" pedigreeNodeID=\"2\">age</text>";
+
+    private static final String SVG = SVG_START + PROBAND + RELATIVE + LINK + LABEL + "</svg>";
+
+    @Test
+    public void unchangedWhenNoEditsRequested()
+    {
+        Assert.assertSame(SVG, new SvgRewriter().rewrite(SVG));
+        Assert.assertNull(new SvgRewriter().setWidth(10).rewrite(null));
+    }
+
+    @Test
+    public void resizesSvgElement()
+    {
+        String result = new SvgRewriter().setWidth(800).setHeight(600).rewrite(SVG);
+        Assert.assertTrue(result.startsWith("<svg height=\"600\" version=\"1.1\" width=\"800\">"));
+        Assert.assertEquals(SVG.substring(SVG_START.length()), result.substring(result.indexOf('>') + 1));
+    }
+
+    @Test
+    public void stylesProbandAndCurrentPatient()
+    {
+        String result = new SvgRewriter().setCurrentPatient("P0000002").rewrite(SVG);
+        Assert.assertTrue(result.contains("<rect x=\"1\" class=\"node-shape-1\"  isProband=\"true\" "
+            + "stroke-width=\"2.0\"></rect>"));
+        Assert.assertTrue(result.contains("<circle cx=\"1\" class=\"node-shape-2\" stroke-width=\"5.0\"></circle>"));
+        Assert.assertTrue(result.contains(LINK + LABEL));
+    }
+
+    @Test
+    public void onlyProbandStyledForUnlinkedPatient()
+    {
+        String result = new SvgRewriter().setCurrentPatient("P0000009").rewrite(SVG);
+        Assert.assertTrue(result.contains("stroke-width=\"2.0\""));
+        Assert.assertFalse(result.contains("stroke-width=\"5.0\""));
+        Assert.assertTrue(result.contains(RELATIVE));
+    }
+
+    @Test
+    public void removesLinkAndShiftsLabels()
+    {
+        String result = new SvgRewriter().removeLink("P0000002").rewrite(SVG);
+        Assert.assertEquals(SVG_START + PROBAND + RELATIVE
+            + "<text x=\"5\" y=\"18.0\" pedigreeNodeID=\"2\">age</text></svg>", result);
+    }
+
+    @Test
+    public void labelsWithoutPositionAreNotShifted()
+    {
+        String label = "<text x=\"5\" y=\"\" pedigreeNodeID=\"2\">age</text>";
+        String shortLabel = "<text x=\"5\" y=\"7\" pedigreeNodeID=\"2\">sex</text>";
+        String svg = SVG_START + LINK + label + shortLabel + "</svg>";
+        String result = new SvgRewriter().removeLink("P0000002").rewrite(svg);
+        Assert.assertEquals(SVG_START + label + "<text x=\"5\" y=\"-15.0\" pedigreeNodeID=\"2\">sex</text></svg>",
+            result);
+    }
+
+    @Test
+    public void markersOfLaterElementsAreIgnored()
+    {
+        String svg = SVG_START + RELATIVE + PROBAND + "</svg>";
+        String result = new SvgRewriter().setCurrentPatient("P0000009").rewrite(svg);
+        Assert.assertEquals(SVG_START + RELATIVE
+            + "<rect x=\"1\" class=\"node-shape-1\"  isProband=\"true\" stroke-width=\"2.0\"></rect></svg>", result);
+    }
+
+    @Test
+    public void removingOtherPatientLinkKeepsSvg()
+    {
+        Assert.assertEquals(SVG, new SvgRewriter().removeLink("P0000003").rewrite(SVG));
+    }
+
+    @Test
+    public void combinedEditsAreAppliedInOnePass()
+    {
+        String result = new SvgRewriter().setCurrentPatient("P0000002").setWidth(800).setHeight(600).rewrite(SVG);
+        Assert.assertEquals("<svg height=\"600\" version=\"1.1\" width=\"800\">"
+            + "<rect x=\"1\" class=\"node-shape-1\"  isProband=\"true\" stroke-width=\"2.0\"></rect>"
+            + "<circle cx=\"1\" class=\"node-shape-2\" stroke-width=\"5.0\"></circle>"
+            + LINK + LABEL + "</svg>", result);
+    }
+
+    @Test
+    public void removedLinkIsNotStyledAsCurrentPatient()
+    {
+        String result = new SvgRewriter().setCurrentPatient("P0000002").removeLink("P0000002").setWidth(800)
+            .setHeight(600).rewrite(SVG);
+        Assert.assertEquals("<svg height=\"600\" version=\"1.1\" width=\"800\">"
+            + "<rect x=\"1\" class=\"node-shape-1\"  isProband=\"true\" stroke-width=\"2.0\"></rect>"
+            + RELATIVE + "<text x=\"5\" y=\"18.0\" pedigreeNodeID=\"2\">age</text></svg>", result);
+    }
+
+    @Test
+    public void patientLinkedFromSeveralNodesIsNotMarked()
+    {
+        String otherNode = "<circle cx=\"9\" class=\"node-shape-3\"></circle>";
+        String otherLink = LINK.replace("pedigreeNodeID=\"2\"", "pedigreeNodeID=\"3\"");
+        String svg = SVG_START + PROBAND + RELATIVE + LINK + otherNode + otherLink + "</svg>";
+
+        String result = new SvgRewriter().setCurrentPatient("P0000002").rewrite(svg);
+        Assert.assertEquals(SVG_START
+            + "<rect x=\"1\" class=\"node-shape-1\"  isProband=\"true\" stroke-width=\"2.0\"></rect>"
+            + RELATIVE + LINK + otherNode + otherLink + "</svg>", result);
+    }
+}
@@ -38,7 +38,7 @@
 
 /**
  * This listener creates a {@code PhenoTips.OwnerClass} object when a new patient is created, with the creator set as
- * the owner.
+ * the owner, unless the new patient already has an explicit owner.
  *
  * @version $Id$
  * @since 1.0M13
@@ -64,6 +64,10 @@ public OwnerUpdateEventListener()
     public void onEvent(Event event, Object source, Object data)
     {
         XWikiDocument doc = (XWikiDocument) source;
+        if (doc.getXObject(Owner.CLASS_REFERENCE) != null) {
+            // The owner was already set while filling in the new record
+            return;
+        }
         XWikiContext context = (XWikiContext) this.execution.getContext().getProperty("xwikicontext");
         try {
             BaseObject ownerObject = doc.newXObject(Owner.CLASS_REFERENCE, context);
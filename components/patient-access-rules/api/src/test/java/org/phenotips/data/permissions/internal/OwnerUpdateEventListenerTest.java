@@ -44,6 +44,7 @@
 
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -102,6 +103,16 @@ public void onEventWithGuestCreatorAddsEmptyOwnerObject() throws Exception
         verify(ownerObject).setStringValue("owner", "");
     }
 
+    /** Sending an event with a new patient document which already has an owner doesn't add another owner. */
+    @Test
+    public void onEventKeepsExistingOwner() throws Exception
+    {
+        when(this.doc.getXObject(Owner.CLASS_REFERENCE)).thenReturn(mock(BaseObject.class));
+        when(this.doc.getCreatorReference()).thenReturn(new DocumentReference("xwiki", "XWiki", "jdoe"));
+        this.mocker.getComponentUnderTest().onEvent(new PatientCreatingEvent(), this.doc, this.context);
+        verify(this.doc, never()).newXObject(Owner.CLASS_REFERENCE, this.context);
+    }
+
     /**
      * Sending an event with a new patient document created by a guest adds a {@code PhenoTips.OwnerClass} object, with
      * an empty owner.
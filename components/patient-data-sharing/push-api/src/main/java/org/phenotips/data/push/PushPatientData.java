@@ -23,7 +23,10 @@
 import org.xwiki.component.annotation.Role;
 import org.xwiki.stability.Unstable;
 
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 
 import org.json.JSONObject;
 
@@ -92,6 +95,55 @@ PushServerSendPatientResponse sendPatient(Patient patient, Set<String> exportFie
         String groupName, String remoteGUID, String remoteServerIdentifier, String userName, String password,
         String user_token);
 
+    /**
+     * Same as {@link #sendPatient}, but doesn't wait for the remote server to respond. The request is performed in the
+     * background, so that pushing a patient to several servers happens concurrently.
+     *
+     * @param patient local patient to be pushed to the remove server
+     * @param exportFields patient fields to be pushed. All other fields will be omitted.
+     * @param patientState JSON containing different categories of patient state, such as granted consents
+     * @param groupName group name (optional, can be {@code null})
+     * @param remoteGUID if a remote patient with the same GUID exists and is owned by the given group and is authored
+     *            by the given user patient data will be updated instead of creating a new patient (optional, can be
+     *            {@code null})
+     * @param remoteServerIdentifier server name as configured in TODO
+     * @param userName user name on the remote server
+     * @param password user password on the remote server. Ignored if userToken is not null.
+     * @param userToken passwordless-login token provided by the remote server on the last successful login (optional,
+     *            can be {@code null})
+     * @return the future server response, see {@link #sendPatient}; the future completes exceptionally if no response
+     *         was received from the server
+     * @since 1.4
+     */
+    CompletableFuture<PushServerSendPatientResponse> sendPatientAsync(Patient patient, Set<String> exportFields,
+        JSONObject patientState, String groupName, String remoteGUID, String remoteServerIdentifier, String userName,
+        String password, String userToken);
+
+    /**
+     * Submits the specified subset of data of several patients to the specified remote server, with the same semantics
+     * as {@link #sendPatient}. Servers which support it receive all the patients in a single request, and, for
+     * patients previously pushed to the same remote patient, only the fields changed since the last push; other
+     * servers receive one request per patient.
+     *
+     * @param patients local patients to be pushed to the remove server
+     * @param exportFields patient fields to be pushed. All other fields will be omitted.
+     * @param patientState JSON containing different categories of patient state, such as granted consents
+     * @param groupName group name (optional, can be {@code null})
+     * @param remoteGUIDs the GUIDs of the remote patients to update, indexed by local patient ID; patients not
+     *            present in this map will be pushed as new remote patients
+     * @param remoteServerIdentifier server name as configured in TODO
+     * @param userName user name on the remote server
+     * @param password user password on the remote server. Ignored if user_token is not null.
+     * @param userToken passwordless-login token provided by the remote server on the last successful login (optional,
+     *            can be {@code null})
+     * @return server responses, in the same order as the patients; an item is {@code null} if no response was received
+     *         from the server for that patient
+     * @since 1.4
+     */
+    List<PushServerSendPatientResponse> sendPatients(List<Patient> patients, Set<String> exportFields,
+        JSONObject patientState, String groupName, Map<String, String> remoteGUIDs, String remoteServerIdentifier,
+        String userName, String password, String userToken);
+
     /**
      * Gets the remote patient ID and URL for viewing the remote patient.
      * <p>
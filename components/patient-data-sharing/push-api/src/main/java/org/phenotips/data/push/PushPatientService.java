@@ -21,6 +21,7 @@
 import org.xwiki.component.annotation.Role;
 import org.xwiki.stability.Unstable;
 
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -151,6 +152,45 @@ PushServerSendPatientResponse sendPatient(String patientID, String exportFieldLi
     PushServerSendPatientResponse sendPatient(String patientID, String exportFieldListJSON, String patientState,
         String groupName, String remoteGUID, String remoteServerIdentifier);
 
+    /**
+     * Submits a patient to several remote servers at the same time, using the previously stored remote user names and
+     * login tokens to authenticate on each remote server. On servers where the patient was previously pushed, the
+     * remote patient is updated, otherwise a new remote patient is created.
+     *
+     * @param patientID local patient to be pushed to the remote servers
+     * @param exportFieldListJSON patient fields to be pushed, as a string representing a JSON array, or {@code null}
+     *            to push all available data fields
+     * @param patientState a JSON encoded as a {@link String}, containing (meta) information about the state of the
+     *            patient's record
+     * @param groupNames the target servers, each mapped to the remote group which should own the patient on that
+     *            server, or to {@code null}
+     * @return the response of each server, see {@code PushServerSendPatientResponse}; {@code null} if no response was
+     *         received from that server
+     * @since 1.4
+     */
+    Map<String, PushServerSendPatientResponse> sendPatient(String patientID, String exportFieldListJSON,
+        String patientState, Map<String, String> groupNames);
+
+    /**
+     * Submits several patients to the specified remote server, using the previously stored remote user name and login
+     * token to authenticate on the remote server. Patients previously pushed to the server update their remote
+     * counterpart, others are created as new remote patients. Servers which support it receive all the patients in a
+     * single request, and only the fields changed since the last push.
+     *
+     * @param patientIDs local patients to be pushed to the remove server
+     * @param exportFieldListJSON patient fields to be pushed, as a string representing a JSON array, or {@code null}
+     *            to push all available data fields
+     * @param patientState a JSON encoded as a {@link String}, containing (meta) information about the state of the
+     *            patients' records
+     * @param groupName group name (optional, can be {@code null})
+     * @param remoteServerIdentifier server name as configured in TODO
+     * @return server responses, in the same order as the patient IDs; an item is {@code null} if no response was
+     *         received from the server for that patient
+     * @since 1.4
+     */
+    List<PushServerSendPatientResponse> sendPatients(List<String> patientIDs, String exportFieldListJSON,
+        String patientState, String groupName, String remoteServerIdentifier);
+
     /**
      * @param remoteServerIdentifier
      * @param remotePatientGUID
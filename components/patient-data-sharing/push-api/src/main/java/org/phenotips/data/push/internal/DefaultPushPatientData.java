@@ -24,19 +24,38 @@
 import org.phenotips.data.push.PushServerConfigurationResponse;
 import org.phenotips.data.push.PushServerGetPatientIDResponse;
 import org.phenotips.data.push.PushServerSendPatientResponse;
+import org.phenotips.data.securestorage.PatientPushedToInfo;
+import org.phenotips.data.securestorage.SecureStorageManager;
 import org.phenotips.data.shareprotocol.ShareProtocol;
 import org.phenotips.data.shareprotocol.ShareProtocol.Incompatibility;
+import org.phenotips.http.SharedHttpClient;
 
 import org.xwiki.component.annotation.Component;
 import org.xwiki.context.Execution;
 import org.xwiki.model.reference.DocumentReference;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.net.URLEncoder;
-import java.util.HashMap;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.function.BiConsumer;
+import java.util.zip.GZIPOutputStream;
 
 import javax.inject.Inject;
 import javax.inject.Singleton;
@@ -44,13 +63,16 @@
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.http.Consts;
+import org.apache.http.HttpResponse;
 import org.apache.http.NameValuePair;
+import org.apache.http.client.ResponseHandler;
 import org.apache.http.client.entity.UrlEncodedFormEntity;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpPost;
-import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClients;
 import org.apache.http.message.BasicNameValuePair;
+import org.apache.http.util.EntityUtils;
+import org.json.JSONArray;
+import org.json.JSONException;
 import org.json.JSONObject;
 import org.slf4j.Logger;
 
@@ -93,6 +115,9 @@ public class DefaultPushPatientData implements PushPatientData
 
     private static final String XWIKI_RAW_OUTPUT_VALUE = "plain";
 
+    /** Patient JSON fields which are always sent, even in a delta push, since they identify the record and format. */
+    private static final Set<String> DELTA_ALWAYS_SENT_FIELDS = new HashSet<>(Arrays.asList("id", "meta"));
+
     /** Logging helper object. */
     @Inject
     private Logger logger;
@@ -102,10 +127,15 @@ public class DefaultPushPatientData implements PushPatientData
     private Execution execution;
 
     /** HTTP client used for communicating with the remote server. */
-    private final CloseableHttpClient client = HttpClients.createSystem();
+    @Inject
+    private SharedHttpClient httpClient;
+
+    /** Used for remembering what was pushed to which server. */
+    @Inject
+    private SecureStorageManager storageManager;
 
-    /** A cache of known protocol versions for various server */
-    private Map<String, String> protocolVersionsCache = new HashMap<>();
+    /** A cache of known protocol versions for various server, updated and read by concurrent requests. */
+    private Map<String, String> protocolVersionsCache = new ConcurrentHashMap<>();
 
     /**
      * Helper method for obtaining a valid xcontext from the execution context.
@@ -244,7 +274,7 @@ private PushServerConfigurationResponse sendRemoteConfigurationRequest(String re
                 return null;
             }
 
-            try (CloseableHttpResponse httpResponse = this.client.execute(method)) {
+            try (CloseableHttpResponse httpResponse = this.httpClient.getClient().execute(method)) {
                 int returnCode = httpResponse.getStatusLine().getStatusCode();
                 this.logger.trace("GetConfig HTTP return code: {}", returnCode);
 
@@ -284,9 +314,23 @@ public PushServerSendPatientResponse sendPatient(Patient patient, Set<String> ex
         String groupName, String remoteGUID, String remoteServerIdentifier, String userName, String password,
         String userToken)
     {
-        this.logger.info("Pushing data to server: [{}]", remoteServerIdentifier);
+        try {
+            return sendPatientAsync(patient, exportFields, patientState, groupName, remoteGUID, remoteServerIdentifier,
+                userName, password, userToken).get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException ex) {
+            // Already logged
+        }
+        return null;
+    }
 
-        HttpPost method = null;
+    @Override
+    public CompletableFuture<PushServerSendPatientResponse> sendPatientAsync(final Patient patient,
+        Set<String> exportFields, JSONObject patientState, String groupName, String remoteGUID,
+        final String remoteServerIdentifier, String userName, String password, String userToken)
+    {
+        this.logger.info("Pushing data to server: [{}]", remoteServerIdentifier);
 
         try {
             String serverProtocolVersion = this.getProtocolVersionForPushingToServer(remoteServerIdentifier);
@@ -294,33 +338,11 @@ public PushServerSendPatientResponse sendPatient(Patient patient, Set<String> ex
             List<NameValuePair> data =
                 generateRequestData(ShareProtocol.CLIENT_POST_ACTIONKEY_VALUE_PUSH, userName, password, userToken,
                     serverProtocolVersion);
-            if (exportFields != null) {
-                // Version information is required in the JSON; when exportFields is null everything is included anyway
-                exportFields.add(VersionsController.getEnablingFieldName());
-            }
-
-            // for compatibility with servers running older versions of PhenoTips:
-            //
-            // if the target server is known to support only old versions of push protocol, replace
-            // those fields which are not compatible with compatible alternatives (to trigger old serializers)
-            if (this.protocolVersionsCache.containsKey(remoteServerIdentifier)) {
-                if (ShareProtocol.INCOMPATIBILITIES_IN_OLD_PROTOCOL_VERSIONS.containsKey(serverProtocolVersion)) {
-                    this.logger.warn("Using old serializers for protocol version [{}] to push data to server [{}]",
-                        serverProtocolVersion, remoteServerIdentifier);
-                    List<ShareProtocol.Incompatibility> incompatibilitiesList =
-                        ShareProtocol.INCOMPATIBILITIES_IN_OLD_PROTOCOL_VERSIONS.get(serverProtocolVersion);
-                    for (Incompatibility incompat : incompatibilitiesList) {
-                        if (exportFields.contains(incompat.getCurrentFieldName())) {
-                            exportFields.remove(incompat.getCurrentFieldName());
-                            if (!StringUtils.isEmpty(incompat.getDeprecatedFieldName())) {
-                                exportFields.add(incompat.getDeprecatedFieldName());
-                            }
-                        }
-                    }
-                }
-            }
 
-            String patientJSON = patient.toJSON(exportFields).toString();
+            final PreparedPatient prepared = preparePatient(patient,
+                getExportFields(exportFields, remoteServerIdentifier, serverProtocolVersion), remoteGUID,
+                remoteServerIdentifier, serverProtocolVersion);
+            String patientJSON = prepared.data.toString();
             this.logger.debug("Sending patient JSON: [{}]", patientJSON);
 
             data.add(new BasicNameValuePair(ShareProtocol.CLIENT_POST_KEY_NAME_PATIENTJSON,
@@ -335,29 +357,276 @@ public PushServerSendPatientResponse sendPatient(Patient patient, Set<String> ex
             if (remoteGUID != null) {
                 data.add(new BasicNameValuePair(ShareProtocol.CLIENT_POST_KEY_NAME_GUID, remoteGUID));
             }
+            if (prepared.delta) {
+                data.add(new BasicNameValuePair(ShareProtocol.CLIENT_POST_KEY_NAME_DELTA, Boolean.TRUE.toString()));
+            }
 
-            method = generateRequest(remoteServerIdentifier, data);
+            HttpPost method = generateRequest(remoteServerIdentifier, data);
             if (method == null) {
-                return null;
+                return CompletableFuture.completedFuture(null);
             }
-            try (CloseableHttpResponse httpResponse = this.client.execute(method)) {
-                int returnCode = httpResponse.getStatusLine().getStatusCode();
-                this.logger.trace("Push HTTP return code: {}", returnCode);
+            // The request and the processing of the response happen in the background, without access to the
+            // current execution context; the secure storage doesn't need it
+            return this.httpClient.execute(method, new ResponseHandler<PushServerSendPatientResponse>()
+            {
+                @Override
+                public PushServerSendPatientResponse handleResponse(HttpResponse httpResponse) throws IOException
+                {
+                    DefaultPushPatientData.this.logger.trace("Push HTTP return code: {}",
+                        httpResponse.getStatusLine().getStatusCode());
+
+                    String response = EntityUtils.toString(httpResponse.getEntity(), Consts.UTF_8);
+                    DefaultPushPatientData.this.logger.trace("RESPONSE FROM SERVER: {}", response);
+                    JSONObject responseJSON = new JSONObject(response);
 
-                String response = IOUtils.toString(httpResponse.getEntity().getContent(), Consts.UTF_8);
-                this.logger.trace("RESPONSE FROM SERVER: {}", response);
-                JSONObject responseJSON = new JSONObject(response);
+                    PushServerSendPatientResponse result = new DefaultPushServerSendPatientResponse(responseJSON);
+                    recordPush(prepared, result, remoteServerIdentifier);
+                    return result;
+                }
+            }).whenComplete(new BiConsumer<PushServerSendPatientResponse, Throwable>()
+            {
+                @Override
+                public void accept(PushServerSendPatientResponse result, Throwable ex)
+                {
+                    if (ex != null) {
+                        DefaultPushPatientData.this.logger.error("Failed to push patient [{}] to [{}]: {}",
+                            patient.getId(), remoteServerIdentifier, ex.getMessage(), ex);
+                    }
+                }
+            });
+        } catch (Exception ex) {
+            this.logger.error("Failed to push patient: {}", ex.getMessage(), ex);
+            CompletableFuture<PushServerSendPatientResponse> failed = new CompletableFuture<>();
+            failed.completeExceptionally(ex);
+            return failed;
+        }
+    }
+
+    @Override
+    public List<PushServerSendPatientResponse> sendPatients(List<Patient> patients, Set<String> exportFields,
+        JSONObject patientState, String groupName, Map<String, String> remoteGUIDs, String remoteServerIdentifier,
+        String userName, String password, String userToken)
+    {
+        String serverProtocolVersion = this.getProtocolVersionForPushingToServer(remoteServerIdentifier);
+        List<PushServerSendPatientResponse> result = new ArrayList<>(patients.size());
+
+        if (!ShareProtocol.BATCH_PUSH_PROTOCOL_VERSIONS.contains(serverProtocolVersion)) {
+            // older servers only accept one patient per request
+            for (Patient patient : patients) {
+                result.add(sendPatient(patient, exportFields, patientState, groupName,
+                    remoteGUIDs.get(patient.getId()), remoteServerIdentifier, userName, password, userToken));
+            }
+            return result;
+        }
+
+        this.logger.info("Pushing [{}] patients to server: [{}]", patients.size(), remoteServerIdentifier);
+
+        HttpPost method = null;
+
+        try {
+            Set<String> fields = getExportFields(exportFields, remoteServerIdentifier, serverProtocolVersion);
+            List<PreparedPatient> prepared = new ArrayList<>(patients.size());
+            JSONArray batch = new JSONArray();
+            for (Patient patient : patients) {
+                String remoteGUID = remoteGUIDs.get(patient.getId());
+                PreparedPatient entry =
+                    preparePatient(patient, fields, remoteGUID, remoteServerIdentifier, serverProtocolVersion);
+                prepared.add(entry);
+
+                JSONObject batchEntry = new JSONObject();
+                batchEntry.put(ShareProtocol.CLIENT_POST_KEY_NAME_PATIENTJSON, entry.data);
+                batchEntry.put(ShareProtocol.CLIENT_POST_KEY_NAME_PATIENTSTATE, patientState);
+                if (remoteGUID != null) {
+                    batchEntry.put(ShareProtocol.CLIENT_POST_KEY_NAME_GUID, remoteGUID);
+                }
+                if (entry.delta) {
+                    batchEntry.put(ShareProtocol.CLIENT_POST_KEY_NAME_DELTA, true);
+                }
+                batch.put(batchEntry);
+            }
+
+            List<NameValuePair> data =
+                generateRequestData(ShareProtocol.CLIENT_POST_ACTIONKEY_VALUE_PUSH_BATCH, userName, password,
+                    userToken, serverProtocolVersion);
+            data.add(new BasicNameValuePair(ShareProtocol.CLIENT_POST_KEY_NAME_PATIENTBATCH, encodeBatch(batch)));
+            if (groupName != null) {
+                data.add(new BasicNameValuePair(ShareProtocol.CLIENT_POST_KEY_NAME_GROUPNAME, groupName));
+            }
+
+            method = generateRequest(remoteServerIdentifier, data);
+            if (method != null) {
+                try (CloseableHttpResponse httpResponse = this.httpClient.getClient().execute(method)) {
+                    int returnCode = httpResponse.getStatusLine().getStatusCode();
+                    this.logger.trace("Batch push HTTP return code: {}", returnCode);
 
-                return new DefaultPushServerSendPatientResponse(responseJSON);
+                    String response = IOUtils.toString(httpResponse.getEntity().getContent(), Consts.UTF_8);
+                    this.logger.trace("RESPONSE FROM SERVER: {}", response);
+                    JSONObject responseJSON = new JSONObject(response);
+                    JSONArray results = responseJSON.optJSONArray(ShareProtocol.SERVER_JSON_PUSH_KEY_NAME_BATCHRESULTS);
+
+                    for (int i = 0; i < prepared.size(); ++i) {
+                        // a failure of the whole batch (e.g. login failed) applies to each patient
+                        PushServerSendPatientResponse patientResponse = new DefaultPushServerSendPatientResponse(
+                            (results != null && i < results.length()) ? results.getJSONObject(i) : responseJSON);
+                        recordPush(prepared.get(i), patientResponse, remoteServerIdentifier);
+                        result.add(patientResponse);
+                    }
+                    return result;
+                }
             }
         } catch (Exception ex) {
-            this.logger.error("Failed to push patient: {}", ex.getMessage(), ex);
+            this.logger.error("Failed to push patients: {}", ex.getMessage(), ex);
         } finally {
             if (method != null) {
                 method.releaseConnection();
             }
         }
-        return null;
+
+        // no response received
+        return new ArrayList<>(Collections.<PushServerSendPatientResponse>nCopies(patients.size(), null));
+    }
+
+    /**
+     * Computes the fields to export, without altering the requested fields.
+     *
+     * @return the fields to export, or {@code null} if all fields must be exported
+     */
+    private Set<String> getExportFields(Set<String> exportFields, String remoteServerIdentifier,
+        String serverProtocolVersion)
+    {
+        if (exportFields == null) {
+            return null;
+        }
+        Set<String> result = new HashSet<>(exportFields);
+        // Version information is required in the JSON; when exportFields is null everything is included anyway
+        result.add(VersionsController.getEnablingFieldName());
+
+        // for compatibility with servers running older versions of PhenoTips:
+        //
+        // if the target server is known to support only old versions of push protocol, replace
+        // those fields which are not compatible with compatible alternatives (to trigger old serializers)
+        if (this.protocolVersionsCache.get(remoteServerIdentifier) != null) {
+            if (ShareProtocol.INCOMPATIBILITIES_IN_OLD_PROTOCOL_VERSIONS.containsKey(serverProtocolVersion)) {
+                this.logger.warn("Using old serializers for protocol version [{}] to push data to server [{}]",
+                    serverProtocolVersion, remoteServerIdentifier);
+                List<ShareProtocol.Incompatibility> incompatibilitiesList =
+                    ShareProtocol.INCOMPATIBILITIES_IN_OLD_PROTOCOL_VERSIONS.get(serverProtocolVersion);
+                for (Incompatibility incompat : incompatibilitiesList) {
+                    if (result.contains(incompat.getCurrentFieldName())) {
+                        result.remove(incompat.getCurrentFieldName());
+                        if (!StringUtils.isEmpty(incompat.getDeprecatedFieldName())) {
+                            result.add(incompat.getDeprecatedFieldName());
+                        }
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Serializes a patient for pushing. When updating a remote patient on a server which supports it, and the data
+     * sent during the last push to the same remote patient is known, only the changed fields are included.
+     */
+    private PreparedPatient preparePatient(Patient patient, Set<String> exportFields, String remoteGUID,
+        String remoteServerIdentifier, String serverProtocolVersion)
+    {
+        PreparedPatient result = new PreparedPatient();
+        result.patient = patient;
+        result.data = patient.toJSON(exportFields);
+        JSONObject digests = computeDigests(result.data);
+        result.digests = digests.toString();
+
+        if (remoteGUID == null || !ShareProtocol.BATCH_PUSH_PROTOCOL_VERSIONS.contains(serverProtocolVersion)) {
+            return result;
+        }
+        PatientPushedToInfo lastPush = this.storageManager.getPatientPushInfo(patient.getId(), remoteServerIdentifier);
+        if (lastPush == null || lastPush.getPushedDataDigests() == null
+            || !remoteGUID.equals(lastPush.getRemotePatientGUID())) {
+            return result;
+        }
+
+        try {
+            JSONObject delta = getDelta(result.data, digests, new JSONObject(lastPush.getPushedDataDigests()));
+            this.logger.debug("Pushing [{}] changed fields out of [{}] for patient [{}]", delta.length(),
+                result.data.length(), patient.getId());
+            result.data = delta;
+            result.delta = true;
+        } catch (JSONException ex) {
+            this.logger.warn("Invalid digests for the last push of [{}], pushing all data", patient.getId());
+        }
+        return result;
+    }
+
+    /**
+     * Selects the fields whose digest changed since the last push, along with the fields always sent.
+     *
+     * @param data the full patient data
+     * @param digests the {@link #computeDigests digests} of the full patient data
+     * @param lastDigests the digests of the data sent during the last push
+     * @return the fields to send in a delta push
+     */
+    static JSONObject getDelta(JSONObject data, JSONObject digests, JSONObject lastDigests)
+    {
+        JSONObject delta = new JSONObject();
+        for (String key : data.keySet()) {
+            if (DELTA_ALWAYS_SENT_FIELDS.contains(key)
+                || !digests.getString(key).equals(lastDigests.optString(key, null))) {
+                delta.put(key, data.get(key));
+            }
+        }
+        return delta;
+    }
+
+    /**
+     * Computes a digest of each top level field of the patient data.
+     *
+     * @param data the patient data
+     * @return the Base64 encoded SHA-1 digest of each field, keyed by the field name
+     */
+    static JSONObject computeDigests(JSONObject data)
+    {
+        JSONObject result = new JSONObject();
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            for (String key : data.keySet()) {
+                byte[] hash = digest.digest(String.valueOf(data.get(key)).getBytes(StandardCharsets.UTF_8));
+                result.put(key, Base64.getEncoder().encodeToString(hash));
+            }
+        } catch (NoSuchAlgorithmException ex) {
+            // SHA-1 is always available
+            throw new IllegalStateException(ex);
+        }
+        return result;
+    }
+
+    /**
+     * Encodes a batch of patients as gzipped JSON, in Base64 so that it can be sent as a form field.
+     *
+     * @param batch the batch to encode
+     * @return the encoded batch
+     * @throws IOException if compressing fails
+     */
+    static String encodeBatch(JSONArray batch) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (Writer writer = new OutputStreamWriter(new GZIPOutputStream(bytes), StandardCharsets.UTF_8)) {
+            batch.write(writer);
+        }
+        return Base64.getEncoder().encodeToString(bytes.toByteArray());
+    }
+
+    /**
+     * Remembers a successful push, along with the digests of the data that the remote patient now holds.
+     */
+    private void recordPush(PreparedPatient prepared, PushServerSendPatientResponse response,
+        String remoteServerIdentifier)
+    {
+        if (response.isSuccessful()) {
+            this.storageManager.storePatientPushInfo(prepared.patient.getId(), remoteServerIdentifier,
+                response.getRemotePatientGUID(), response.getRemotePatientID(), response.getRemotePatientURL(),
+                prepared.digests);
+        }
     }
 
     @Override
@@ -379,7 +648,7 @@ public PushServerGetPatientIDResponse getPatientURL(String remoteServerIdentifie
                 return null;
             }
 
-            try (CloseableHttpResponse httpResponse = this.client.execute(method)) {
+            try (CloseableHttpResponse httpResponse = this.httpClient.getClient().execute(method)) {
                 int returnCode = httpResponse.getStatusLine().getStatusCode();
                 this.logger.trace("Push HTTP return code: {}", returnCode);
 
@@ -399,10 +668,25 @@ public PushServerGetPatientIDResponse getPatientURL(String remoteServerIdentifie
         return null;
     }
 
+    /**
+     * A patient serialized for pushing.
+     */
+    private static final class PreparedPatient
+    {
+        private Patient patient;
+
+        /** The data to push, either the full patient data, or just the changed fields. */
+        private JSONObject data;
+
+        private boolean delta;
+
+        /** Digests of the full patient data. */
+        private String digests;
+    }
+
     private String getProtocolVersionForPushingToServer(String remoteServerIdentifier)
     {
-        return this.protocolVersionsCache.containsKey(remoteServerIdentifier)
-            ? this.protocolVersionsCache.get(remoteServerIdentifier)
-            : ShareProtocol.CURRENT_PUSH_PROTOCOL_VERSION;
+        String knownVersion = this.protocolVersionsCache.get(remoteServerIdentifier);
+        return knownVersion != null ? knownVersion : ShareProtocol.CURRENT_PUSH_PROTOCOL_VERSION;
     }
 }
@@ -38,12 +38,18 @@
 import org.xwiki.security.authorization.AuthorizationManager;
 import org.xwiki.security.authorization.Right;
 
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 import javax.inject.Inject;
 import javax.inject.Singleton;
@@ -317,15 +323,8 @@ public PushServerSendPatientResponse sendPatient(String patientID, String export
         Set<String> exportFields = parseJSONArrayIntoSet(exportFieldListJSON);
         JSONObject patientStateJSON = this.parsePatientStateToJSON(patientState);
 
-        PushServerSendPatientResponse response = this.internalService.sendPatient(patient, exportFields,
-            patientStateJSON, groupName, remoteGUID, remoteServerIdentifier, storedData.getRemoteUserName(), null,
-            storedData.getLoginToken());
-
-        if (response != null && response.isSuccessful()) {
-            this.storageManager.storePatientPushInfo(patient.getId(), remoteServerIdentifier,
-                response.getRemotePatientGUID(), response.getRemotePatientID(), response.getRemotePatientURL());
-        }
-        return response;
+        return this.internalService.sendPatient(patient, exportFields, patientStateJSON, groupName, remoteGUID,
+            remoteServerIdentifier, storedData.getRemoteUserName(), null, storedData.getLoginToken());
     }
 
     @Override
@@ -340,15 +339,101 @@ public PushServerSendPatientResponse sendPatient(String patientID, String export
         Set<String> exportFields = parseJSONArrayIntoSet(exportFieldListJSON);
         JSONObject patientStateJSON = this.parsePatientStateToJSON(patientState);
 
-        PushServerSendPatientResponse response = this.internalService.sendPatient(patient, exportFields,
-            patientStateJSON, groupName, remoteGUID, remoteServerIdentifier, remoteUserName, password, null);
+        return this.internalService.sendPatient(patient, exportFields, patientStateJSON, groupName, remoteGUID,
+            remoteServerIdentifier, remoteUserName, password, null);
+    }
 
-        if (response != null && response.isSuccessful()) {
-            this.storageManager.storePatientPushInfo(patient.getId(), remoteServerIdentifier,
-                response.getRemotePatientGUID(), response.getRemotePatientID(), response.getRemotePatientURL());
+    @Override
+    public Map<String, PushServerSendPatientResponse> sendPatient(String patientID, String exportFieldListJSON,
+        String patientState, Map<String, String> groupNames)
+    {
+        Map<String, PushServerSendPatientResponse> result = new LinkedHashMap<>();
+        Patient patient = getPatientByID(patientID, "push");
+        if (patient == null) {
+            for (String remoteServerIdentifier : groupNames.keySet()) {
+                result.put(remoteServerIdentifier,
+                    new DefaultPushServerSendPatientResponse(DefaultPushServerResponse.generateActionFailedJSON()));
+            }
+            return result;
         }
 
-        return response;
+        Set<String> exportFields = parseJSONArrayIntoSet(exportFieldListJSON);
+        JSONObject patientStateJSON = this.parsePatientStateToJSON(patientState);
+
+        // Start all the pushes before waiting for any of them
+        Map<String, Future<PushServerSendPatientResponse>> pending = new LinkedHashMap<>();
+        for (Map.Entry<String, String> target : groupNames.entrySet()) {
+            String remoteServerIdentifier = target.getKey();
+            RemoteLoginData storedData = getStoredData(remoteServerIdentifier);
+            if (storedData == null || storedData.getRemoteUserName() == null || storedData.getLoginToken() == null) {
+                result.put(remoteServerIdentifier, new DefaultPushServerSendPatientResponse(
+                    DefaultPushServerResponse.generateIncorrectCredentialsJSON()));
+                continue;
+            }
+            PatientPushedToInfo lastPush = this.storageManager.getPatientPushInfo(patient.getId(),
+                remoteServerIdentifier);
+            String remoteGUID = lastPush != null ? lastPush.getRemotePatientGUID() : null;
+            result.put(remoteServerIdentifier, null);
+            pending.put(remoteServerIdentifier, this.internalService.sendPatientAsync(patient, exportFields,
+                patientStateJSON, target.getValue(), remoteGUID, remoteServerIdentifier,
+                storedData.getRemoteUserName(), null, storedData.getLoginToken()));
+        }
+
+        for (Map.Entry<String, Future<PushServerSendPatientResponse>> push : pending.entrySet()) {
+            try {
+                result.put(push.getKey(), push.getValue().get());
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (ExecutionException ex) {
+                // Failure already logged, no response received from this server
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public List<PushServerSendPatientResponse> sendPatients(List<String> patientIDs, String exportFieldListJSON,
+        String patientState, String groupName, String remoteServerIdentifier)
+    {
+        List<PushServerSendPatientResponse> result = new ArrayList<>(patientIDs.size());
+        RemoteLoginData storedData = getStoredData(remoteServerIdentifier);
+        if (storedData == null || storedData.getRemoteUserName() == null || storedData.getLoginToken() == null) {
+            for (int i = 0; i < patientIDs.size(); ++i) {
+                result.add(new DefaultPushServerSendPatientResponse(
+                    DefaultPushServerResponse.generateIncorrectCredentialsJSON()));
+            }
+            return result;
+        }
+
+        // loaded patients, aligned with the requested IDs, null for those that can't be pushed
+        List<Patient> loaded = new ArrayList<>(patientIDs.size());
+        List<Patient> patients = new ArrayList<>(patientIDs.size());
+        Map<String, String> remoteGUIDs = new HashMap<>();
+        for (String patientID : patientIDs) {
+            Patient patient = getPatientByID(patientID, "push");
+            loaded.add(patient);
+            if (patient == null) {
+                continue;
+            }
+            patients.add(patient);
+            PatientPushedToInfo lastPush = this.storageManager.getPatientPushInfo(patient.getId(),
+                remoteServerIdentifier);
+            if (lastPush != null && lastPush.getRemotePatientGUID() != null) {
+                remoteGUIDs.put(patient.getId(), lastPush.getRemotePatientGUID());
+            }
+        }
+
+        Iterator<PushServerSendPatientResponse> responses = patients.isEmpty()
+            ? Collections.<PushServerSendPatientResponse>emptyIterator()
+            : this.internalService.sendPatients(patients, parseJSONArrayIntoSet(exportFieldListJSON),
+                this.parsePatientStateToJSON(patientState), groupName, remoteGUIDs, remoteServerIdentifier,
+                storedData.getRemoteUserName(), null, storedData.getLoginToken()).iterator();
+        for (Patient patient : loaded) {
+            result.add(patient != null ? responses.next()
+                : new DefaultPushServerSendPatientResponse(DefaultPushServerResponse.generateActionFailedJSON()));
+        }
+        return result;
     }
 
     @Override
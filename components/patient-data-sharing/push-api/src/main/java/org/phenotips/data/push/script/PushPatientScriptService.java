@@ -28,6 +28,7 @@
 import org.xwiki.script.service.ScriptService;
 import org.xwiki.stability.Unstable;
 
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -110,6 +111,19 @@ public PushServerSendPatientResponse sendPatient(String patientID, String export
             remoteGUID, remoteServerIdentifier, remoteUserName, password);
     }
 
+    public Map<String, PushServerSendPatientResponse> sendPatient(String patientID, String exportFieldListJSON,
+        String patientState, Map<String, String> groupNames)
+    {
+        return this.internalService.sendPatient(patientID, exportFieldListJSON, patientState, groupNames);
+    }
+
+    public List<PushServerSendPatientResponse> sendPatients(List<String> patientIDs, String exportFieldListJSON,
+        String patientState, String groupName, String remoteServerIdentifier)
+    {
+        return this.internalService.sendPatients(patientIDs, exportFieldListJSON, patientState, groupName,
+            remoteServerIdentifier);
+    }
+
     public PushServerGetPatientIDResponse getPatientURL(String remoteServerIdentifier, String remotePatientGUID)
     {
         return this.internalService.getPatientURL(remoteServerIdentifier, remotePatientGUID);
@@ -0,0 +1,120 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.data.push.internal;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.zip.GZIPInputStream;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests for the batch encoding and the delta computation of {@link DefaultPushPatientData}.
+ *
+ * @version $Id$
+ */
+public class DefaultPushPatientDataTest
+{
+    @Test
+    public void encodedBatchDecodesToTheSameEntries() throws IOException
+    {
+        JSONArray batch = new JSONArray();
+        batch.put(new JSONObject().put("id", "P0000001").put("external_id", "Fam\u00edlia 1"));
+        batch.put(new JSONObject().put("id", "P0000002").put("features", new JSONArray().put("HP:0000118")));
+
+        String encoded = DefaultPushPatientData.encodeBatch(batch);
+
+        Assert.assertTrue(batch.similar(decode(encoded)));
+    }
+
+    @Test
+    public void emptyBatchIsEncoded() throws IOException
+    {
+        Assert.assertEquals(0, decode(DefaultPushPatientData.encodeBatch(new JSONArray())).length());
+    }
+
+    @Test
+    public void digestsAreStableAndDependOnTheValue()
+    {
+        JSONObject data = new JSONObject().put("id", "P0000001").put("sex", "M");
+        JSONObject digests = DefaultPushPatientData.computeDigests(data);
+
+        Assert.assertEquals(data.keySet(), digests.keySet());
+        Assert.assertEquals(digests.getString("sex"),
+            DefaultPushPatientData.computeDigests(new JSONObject().put("sex", "M")).getString("sex"));
+        Assert.assertNotEquals(digests.getString("sex"),
+            DefaultPushPatientData.computeDigests(new JSONObject().put("sex", "F")).getString("sex"));
+    }
+
+    @Test
+    public void deltaContainsOnlyChangedAndNewFields()
+    {
+        JSONObject last = new JSONObject().put("id", "P0000001").put("sex", "M").put("notes", "old");
+        JSONObject current = new JSONObject().put("id", "P0000001").put("sex", "M").put("notes", "new")
+            .put("features", new JSONArray().put("HP:0000118"));
+
+        JSONObject delta = DefaultPushPatientData.getDelta(current, DefaultPushPatientData.computeDigests(current),
+            DefaultPushPatientData.computeDigests(last));
+
+        Assert.assertFalse(delta.has("sex"));
+        Assert.assertEquals("new", delta.getString("notes"));
+        Assert.assertTrue(delta.has("features"));
+    }
+
+    @Test
+    public void deltaAlwaysContainsIdAndMeta()
+    {
+        JSONObject data = new JSONObject().put("id", "P0000001").put("sex", "M")
+            .put("meta", new JSONObject().put("owner", "xwiki:XWiki.Admin"));
+        JSONObject digests = DefaultPushPatientData.computeDigests(data);
+
+        JSONObject delta = DefaultPushPatientData.getDelta(data, digests, digests);
+
+        Assert.assertEquals(2, delta.length());
+        Assert.assertEquals("P0000001", delta.getString("id"));
+        Assert.assertTrue(delta.has("meta"));
+    }
+
+    @Test
+    public void noPreviousDigestsSendsEverything()
+    {
+        JSONObject data = new JSONObject().put("id", "P0000001").put("sex", "M").put("notes", "text");
+
+        JSONObject delta =
+            DefaultPushPatientData.getDelta(data, DefaultPushPatientData.computeDigests(data), new JSONObject());
+
+        Assert.assertTrue(data.similar(delta));
+    }
+
+    private JSONArray decode(String encoded) throws IOException
+    {
+        byte[] compressed = Base64.getDecoder().decode(encoded);
+        try (Reader reader = new InputStreamReader(new GZIPInputStream(new ByteArrayInputStream(compressed)),
+            StandardCharsets.UTF_8)) {
+            return new JSONArray(new JSONTokener(reader));
+        }
+    }
+}
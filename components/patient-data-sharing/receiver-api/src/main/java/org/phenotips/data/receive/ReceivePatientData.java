@@ -116,6 +116,26 @@
      */
     JSONObject receivePatient();
 
+    /**
+     * Receives a batch of patients, each of which either updates an existing patient or creates a new patient, exactly
+     * like {@link #receivePatient()} would for a single patient. The patients are sent in the {@code patient_batch}
+     * parameter, as a base64 encoded, gzip compressed, JSON array, where each entry holds the {@code patient_json} and
+     * {@code patient_state} of one patient as JSON objects, and optionally the {@code patient_guid} of the existing
+     * patient to update and a {@code delta} flag signaling that only the changed fields were sent. The user and group
+     * are validated once, for the whole batch, and each patient record is stored with a single save.
+     * <p>
+     * If the credentials or the group are not valid, or the batch cannot be decoded, returns the same failure
+     * {@code JSONObject} that {@link #receivePatient()} would. Otherwise, returns a {@code JSONObject} with
+     * {@code success} set to {@code true}, and a {@code results} JSON array holding, in the same order as the batch,
+     * the response that {@link #receivePatient()} would have returned for each patient. A failure to store one patient
+     * doesn't prevent the others from being stored.
+     *
+     * @return {@code JSONObject} with {@code success} set to {@code true} if the batch was processed, and set to
+     *         {@code false} if the whole batch was rejected
+     * @since 1.4
+     */
+    JSONObject receivePatients();
+
     /**
      * Returns the URL of the patient object with the given GUID. Requires a valid username and credentials to be
      * supplied in the request, which are validated the same way {@code getConfiguration()} does, and returns the same
@@ -22,8 +22,11 @@
 import org.phenotips.consents.internal.ConsentAuthorizer;
 import org.phenotips.consents.ConsentManager;
 import org.phenotips.data.Patient;
+import org.phenotips.data.PatientRecordInitializer;
 import org.phenotips.data.PatientRepository;
 import org.phenotips.data.internal.PhenoTipsPatient;
+import org.phenotips.data.permissions.Collaborator;
+import org.phenotips.data.permissions.Owner;
 import org.phenotips.data.permissions.PermissionsManager;
 import org.phenotips.data.receive.ReceivePatientData;
 import org.phenotips.data.securestorage.LocalLoginToken;
@@ -39,19 +42,29 @@
 import org.xwiki.context.Execution;
 import org.xwiki.model.reference.DocumentReference;
 import org.xwiki.model.reference.DocumentReferenceResolver;
+import org.xwiki.model.reference.EntityReferenceSerializer;
 import org.xwiki.query.Query;
 import org.xwiki.query.QueryManager;
 import org.xwiki.security.authorization.Right;
 import org.xwiki.users.User;
 import org.xwiki.users.UserManager;
 
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
 import java.math.BigInteger;
 import java.net.InetAddress;
 import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
 import java.security.SecureRandom;
+import java.util.Base64;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.zip.GZIPInputStream;
 
 import javax.inject.Inject;
 import javax.inject.Named;
@@ -60,10 +73,12 @@
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
+import org.json.JSONTokener;
 import org.slf4j.Logger;
 
 import com.xpn.xwiki.XWiki;
 import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.XWikiException;
 import com.xpn.xwiki.doc.XWikiDocument;
 import com.xpn.xwiki.objects.BaseObject;
 import com.xpn.xwiki.web.XWikiRequest;
@@ -80,6 +95,11 @@ public class DefaultReceivePatientData implements ReceivePatientData
 {
     private static final String PATIENT_LABEL = "patient";
 
+    /** The setting holding the maximum size of a decompressed patient batch, in bytes. */
+    private static final String MAX_BATCH_SIZE_PROPERTY = "phenotips.receive.maxBatchSize";
+
+    private static final long DEFAULT_MAX_BATCH_SIZE = 64L * 1024 * 1024;
+
     private final static int DEFAULT_USER_TOKEN_LIFETIME = 7;
 
     private final static boolean DEFAULT_USER_TOKENS_ENABLED = true;
@@ -144,6 +164,10 @@ public class DefaultReceivePatientData implements ReceivePatientData
     @Inject
     private PermissionsManager permissionManager;
 
+    /** Serializes references to users and groups for storing them in the patient access rights. */
+    @Inject
+    private EntityReferenceSerializer<String> entitySerializer;
+
     @Inject
     private AuthorizationService authService;
 
@@ -462,10 +486,8 @@ public JSONObject receivePatient()
                 return loginError;
             }
 
-            String userName = request.getParameter(ShareProtocol.CLIENT_POST_KEY_NAME_USERNAME);
-            String groupName = request.getParameter(ShareProtocol.CLIENT_POST_KEY_NAME_GROUPNAME);
-            if (groupName != null && !isValidUserGroup(userName, groupName)) {
-                this.logger.warn("Incorrect group name provided by {}", request.getRemoteAddr());
+            PushSource source = getPushSource(request, context);
+            if (source == null) {
                 return generateFailedActionResponse(ShareProtocol.SERVER_JSON_KEY_NAME_ERROR_INCORRECTGROUP);
             }
 
@@ -478,83 +500,182 @@ public JSONObject receivePatient()
             Set<String> consentIds = null;
             String patientStateRaw = request.getParameter(ShareProtocol.CLIENT_POST_KEY_NAME_PATIENTSTATE);
             if (patientStateRaw != null) {
-                consentIds = extractConsents(patientStateRaw);
-                // there should not be any consent updates if consents are not enabled
-                if (!consentIds.isEmpty() && !this.consentAuthorizer.consentsGloballyEnabled()) {
-                    // reject, as a non-malicious user would never arrive to this execution point
-                    return this.generateFailedActionResponse();
-                }
-            }
-
-            boolean requireConsents =
-                areConsentsRequired(request.getParameter(ShareProtocol.CLIENT_POST_KEY_NAME_PROTOCOLVER));
-            if (requireConsents) {
-                boolean consentAuthorized = this.consentAuthorizer.authorizeInteraction(consentIds);
-                if (!consentAuthorized) {
-                    this.logger.error("Rejecting patient data from {} - not all required consents have been given",
-                        request.getRemoteAddr());
-                    return this.generateFailedActionResponse(ShareProtocol.SERVER_JSON_KEY_NAME_ERROR_MISSINGCONSENT);
-                }
+                consentIds = extractConsents(patientStateToJson(patientStateRaw));
             }
 
             String patientJSON = URLDecoder.decode(patientJSONRaw, XWiki.DEFAULT_ENCODING);
             this.logger.debug("Received patient JSON: [{}]", patientJSON);
 
-            Patient affectedPatient;
-
             // if GUID is present in the request attempt to update an existing patient
             // (or fail if GUID is invalid or the patient is not created/authored by the user)
             String guid = request.getParameter(ShareProtocol.CLIENT_POST_KEY_NAME_GUID);
-            User user = this.userManager.getUser(userName);
-            context.setUserReference(user.getProfileDocument());
+            boolean delta = Boolean.parseBoolean(request.getParameter(ShareProtocol.CLIENT_POST_KEY_NAME_DELTA));
 
+            return storePatient(new JSONObject(patientJSON), consentIds, guid, delta, source, context);
+        } catch (Exception ex) {
+            this.logger.error("Error importing patient [{}] {}", ex.getMessage(), ex);
+            return this.generateFailedActionResponse();
+        }
+    }
+
+    @Override
+    public JSONObject receivePatients()
+    {
+        try {
+            XWikiContext context = getXContext();
+            XWikiRequest request = context.getRequest();
+
+            this.logger.warn("Push patient batch request from remote [{}]", request.getRemoteAddr());
+
+            JSONObject loginError = validateLogin(request, context);
+            if (loginError != null) {
+                return loginError;
+            }
+
+            PushSource source = getPushSource(request, context);
+            if (source == null) {
+                return generateFailedActionResponse(ShareProtocol.SERVER_JSON_KEY_NAME_ERROR_INCORRECTGROUP);
+            }
+
+            String batchRaw = request.getParameter(ShareProtocol.CLIENT_POST_KEY_NAME_PATIENTBATCH);
+            if (batchRaw == null) {
+                this.logger.error("No patient data provided by {})", request.getRemoteAddr());
+                return generateFailedActionResponse();
+            }
+            JSONArray batch = decodeBatch(batchRaw);
+
+            JSONArray results = new JSONArray();
+            for (int i = 0; i < batch.length(); ++i) {
+                results.put(receiveBatchEntry(batch.optJSONObject(i), source, context));
+            }
+            this.logger.warn("Processed [{}] pushed patients", batch.length());
+
+            JSONObject response = generateSuccessfulResponse();
+            response.put(ShareProtocol.SERVER_JSON_PUSH_KEY_NAME_BATCHRESULTS, results);
+            return response;
+        } catch (Exception ex) {
+            this.logger.error("Error importing patients [{}] {}", ex.getMessage(), ex);
+            return this.generateFailedActionResponse();
+        }
+    }
+
+    /**
+     * Validates the group given in the request, and collects the information about the sender of the request that is
+     * needed for storing each received patient.
+     *
+     * @return the sender details, or {@code null} if the user is not a member of the group given in the request
+     */
+    private PushSource getPushSource(XWikiRequest request, XWikiContext context)
+    {
+        String userName = request.getParameter(ShareProtocol.CLIENT_POST_KEY_NAME_USERNAME);
+        String groupName = request.getParameter(ShareProtocol.CLIENT_POST_KEY_NAME_GROUPNAME);
+        if (groupName != null && !isValidUserGroup(userName, groupName)) {
+            this.logger.warn("Incorrect group name provided by {}", request.getRemoteAddr());
+            return null;
+        }
+
+        PushSource source = new PushSource();
+        source.userName = userName;
+        source.user = this.userManager.getUser(userName);
+        source.groupName = groupName;
+        source.consentsRequired =
+            areConsentsRequired(request.getParameter(ShareProtocol.CLIENT_POST_KEY_NAME_PROTOCOLVER));
+        BaseObject serverConfig = getSourceServerConfiguration(request.getRemoteAddr(), context);
+        source.serverName = getRemoteServerName(serverConfig, request);
+        context.setUserReference(source.user.getProfileDocument());
+        return source;
+    }
+
+    private JSONObject receiveBatchEntry(JSONObject entry, PushSource source, XWikiContext context)
+    {
+        JSONObject patientData = entry != null ? entry.optJSONObject(ShareProtocol.CLIENT_POST_KEY_NAME_PATIENTJSON)
+            : null;
+        if (patientData == null) {
+            this.logger.error("No patient data provided by {})", source.serverName);
+            return generateFailedActionResponse();
+        }
+
+        Set<String> consentIds = null;
+        if (entry.has(ShareProtocol.CLIENT_POST_KEY_NAME_PATIENTSTATE)) {
+            consentIds = extractConsents(entry.optJSONObject(ShareProtocol.CLIENT_POST_KEY_NAME_PATIENTSTATE));
+        }
+
+        return storePatient(patientData, consentIds, entry.optString(ShareProtocol.CLIENT_POST_KEY_NAME_GUID, null),
+            entry.optBoolean(ShareProtocol.CLIENT_POST_KEY_NAME_DELTA), source, context);
+    }
+
+    /**
+     * Stores one received patient, either updating the existing patient with the given GUID, or creating a new patient
+     * owned by the user or the group that pushed it. All the changes, including ownership and consents, are applied in
+     * memory, and the patient document is saved only once.
+     *
+     * @param patientData the received patient data
+     * @param consentIds the consents granted for the patient, {@code null} if the patient state was not sent
+     * @param guid the GUID of the existing patient to update, {@code null} for creating a new patient
+     * @param delta whether only the fields changed since the previous push were sent
+     * @param source the user, group and server that pushed the patient
+     * @param context the current request context
+     * @return the response for this patient
+     */
+    private JSONObject storePatient(final JSONObject patientData, final Set<String> consentIds, String guid,
+        boolean delta, final PushSource source, final XWikiContext context)
+    {
+        try {
+            // there should not be any consent updates if consents are not enabled
+            if (consentIds != null && !consentIds.isEmpty() && !this.consentAuthorizer.consentsGloballyEnabled()) {
+                // reject, as a non-malicious user would never arrive to this execution point
+                return this.generateFailedActionResponse();
+            }
+            if (source.consentsRequired && !this.consentAuthorizer.authorizeInteraction(consentIds)) {
+                this.logger.error("Rejecting patient data from {} - not all required consents have been given",
+                    source.serverName);
+                return this.generateFailedActionResponse(ShareProtocol.SERVER_JSON_KEY_NAME_ERROR_MISSINGCONSENT);
+            }
+
+            Patient affectedPatient;
             if (guid != null) {
                 affectedPatient = getPatientByGUID(guid);
                 if (affectedPatient == null) {
                     return generateFailedActionResponse(ShareProtocol.SERVER_JSON_KEY_NAME_ERROR_INCORRECTGUID);
                 }
-                if (!userCanAccessPatient(userName, affectedPatient)) {
+                if (!userCanAccessPatient(source.userName, affectedPatient)) {
                     return generateFailedActionResponse(ShareProtocol.SERVER_JSON_KEY_NAME_ERROR_GUIDACCESSDENIED);
                 }
                 this.logger.warn("Loaded existing patient [{}] successfully", affectedPatient.getId());
-            } else {
 
-                affectedPatient = this.patientRepository.create(user.getProfileDocument());
+                // fields missing from the received data, including the ones left out of a delta, are left unchanged
+                applyPatientData(affectedPatient, patientData, consentIds);
+                context.getWiki().saveDocument(affectedPatient.getXDocument(), "Updated from JSON", true, context);
+            } else if (delta) {
+                // only the changes since a previous push were sent, which can't be used for a new patient
+                return generateFailedActionResponse(ShareProtocol.SERVER_JSON_KEY_NAME_ERROR_INCORRECTGUID);
+            } else {
+                affectedPatient = this.patientRepository.create(source.user.getProfileDocument(),
+                    new PatientRecordInitializer()
+                    {
+                        @Override
+                        public void initialize(Patient patient)
+                        {
+                            try {
+                                setAccess(patient, source, context);
+                            } catch (XWikiException ex) {
+                                // abort creating the patient, rather than saving a patient without the right owner
+                                throw new IllegalStateException(ex);
+                            }
+                            applyPatientData(patient, patientData, consentIds);
+                        }
+                    });
                 if (affectedPatient == null) {
                     this.logger.error("Can not create new patient");
                     return generateFailedActionResponse();
                 }
-
-                XWikiDocument doc = affectedPatient.getXDocument();
-                doc.setAuthorReference(user.getProfileDocument());
-
-                // assign ownership to group (if provided) or to the user, and set access rights
-                if (groupName != null) {
-                    Group group = this.groupManager.getGroup(groupName);
-                    this.permissionManager.getPatientAccess(affectedPatient).setOwner(group.getReference());
-                    this.permissionManager.getPatientAccess(affectedPatient).addCollaborator(user.getProfileDocument(),
-                        this.permissionManager.resolveAccessLevel("manage"));
-                } else {
-                    this.permissionManager.getPatientAccess(affectedPatient).setOwner(user.getProfileDocument());
-                }
-
                 this.logger.warn("Created new patient successfully");
             }
 
-            JSONObject patientData = new JSONObject(patientJSON);
-            affectedPatient.updateFromJSON(patientData);
-
-            if (consentIds != null) {
-                this.consentManager.setPatientConsents(affectedPatient, consentIds);
-            }
-
             this.logger.warn("Updated patient successfully");
 
             // store separately from the patient object
-            BaseObject serverConfig = getSourceServerConfiguration(request.getRemoteAddr(), context);
-            String sourceServerName = getRemoteServerName(serverConfig, request);
-            String patientGUID = getPatientGUID(affectedPatient);
-            this.storageManager.storePatientSourceServerInfo(patientGUID, sourceServerName);
+            this.storageManager.storePatientSourceServerInfo(getPatientGUID(affectedPatient), source.serverName);
 
             return generateSuccessfulResponseWithPatientIDs(affectedPatient, context);
         } catch (Exception ex) {
@@ -563,6 +684,55 @@ public JSONObject receivePatient()
         }
     }
 
+    /**
+     * Sets the owner of a new patient, without saving it: the group that the patient was pushed for, with the user
+     * who pushed it as a collaborator with full access, or the user if no group was given.
+     */
+    private void setAccess(Patient patient, PushSource source, XWikiContext context) throws XWikiException
+    {
+        XWikiDocument doc = patient.getXDocument();
+        DocumentReference userReference = source.user.getProfileDocument();
+        DocumentReference ownerReference = userReference;
+        if (source.groupName != null) {
+            ownerReference = this.groupManager.getGroup(source.groupName).getReference();
+            BaseObject collaborator = doc.newXObject(Collaborator.CLASS_REFERENCE, context);
+            collaborator.setStringValue("collaborator", this.entitySerializer.serialize(userReference));
+            collaborator.setStringValue("access", this.permissionManager.resolveAccessLevel("manage").getName());
+        }
+        BaseObject owner = doc.newXObject(Owner.CLASS_REFERENCE, context);
+        owner.setStringValue("owner", this.entitySerializer.serialize(ownerReference));
+    }
+
+    /** Updates the patient document with the received data and consents, without saving it. */
+    private void applyPatientData(Patient patient, JSONObject patientData, Set<String> consentIds)
+    {
+        patient.applyJSON(patientData);
+        if (consentIds != null) {
+            this.consentManager.setPatientConsents(patient, consentIds, false);
+        }
+    }
+
+    /**
+     * Decodes a batch of patients, sent as a base64 encoded, gzip compressed, JSON array. Since a small compressed
+     * request can expand into a huge amount of data, the batch is rejected as soon as the decompressed data exceeds the
+     * size configured in {@code phenotips.receive.maxBatchSize}, 64 MB by default.
+     */
+    private JSONArray decodeBatch(String batch) throws IOException
+    {
+        byte[] compressed = Base64.getDecoder().decode(batch);
+        long maxSize = this.configuration.getProperty(MAX_BATCH_SIZE_PROPERTY, DEFAULT_MAX_BATCH_SIZE);
+        try (Reader reader = new InputStreamReader(new SizeLimitedInputStream(
+            new GZIPInputStream(new ByteArrayInputStream(compressed)), maxSize), StandardCharsets.UTF_8)) {
+            return new JSONArray(new JSONTokener(reader));
+        } catch (JSONException ex) {
+            // The tokener wraps read failures, including exceeding the size limit
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            throw ex;
+        }
+    }
+
     private boolean areConsentsRequired(String clientProtocolVersion)
     {
         if (!ShareProtocol.ALLOW_NO_CONSENTS_PROTOCOL_VERSIONS.contains(clientProtocolVersion)) {
@@ -578,14 +748,13 @@ private boolean areConsentsRequired(String clientProtocolVersion)
     }
 
     /**
-     * Exctacts the list of granted consents from a request
+     * Exctacts the list of granted consents from a patient state
      *
-     * @param rawPatientState patient state JSON string directly from the {@link Request} object
+     * @param patientState patient state JSON, may be {@code null}
      */
-    private Set<String> extractConsents(String rawPatientState)
+    private Set<String> extractConsents(JSONObject patientState)
     {
         Set<String> consents = new HashSet<>();
-        JSONObject patientState = this.patientStateToJson(rawPatientState);
         if (patientState != null) {
             try {
                 JSONArray consentsJson =
@@ -819,4 +988,68 @@ private BaseObject getMainConfiguration(XWikiContext context)
             return null;
         }
     }
+
+    /** The user, group and server which pushed patients in the current request. */
+    private static final class PushSource
+    {
+        private String userName;
+
+        private User user;
+
+        private String groupName;
+
+        private boolean consentsRequired;
+
+        private String serverName;
+    }
+
+    /** Fails when more than a maximum number of bytes are read from the wrapped stream. */
+    private static final class SizeLimitedInputStream extends FilterInputStream
+    {
+        private final long maxSize;
+
+        private long size;
+
+        SizeLimitedInputStream(InputStream in, long maxSize)
+        {
+            super(in);
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        public int read() throws IOException
+        {
+            int result = super.read();
+            if (result >= 0) {
+                count(1);
+            }
+            return result;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException
+        {
+            int result = super.read(b, off, len);
+            if (result > 0) {
+                count(result);
+            }
+            return result;
+        }
+
+        @Override
+        public long skip(long n) throws IOException
+        {
+            long result = super.skip(n);
+            count(result);
+            return result;
+        }
+
+        private void count(long read) throws IOException
+        {
+            this.size += read;
+            if (this.size > this.maxSize) {
+                throw new IOException("Patient batch larger than the allowed " + this.maxSize + " bytes");
+            }
+        }
+    }
 }
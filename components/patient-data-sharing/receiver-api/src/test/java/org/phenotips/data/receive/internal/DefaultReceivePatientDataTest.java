@@ -0,0 +1,372 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.data.receive.internal;
+
+import org.phenotips.consents.internal.ConsentAuthorizer;
+import org.phenotips.data.Patient;
+import org.phenotips.data.PatientRecordInitializer;
+import org.phenotips.data.PatientRepository;
+import org.phenotips.data.internal.PhenoTipsPatient;
+import org.phenotips.data.permissions.Owner;
+import org.phenotips.data.permissions.PatientAccess;
+import org.phenotips.data.permissions.PermissionsManager;
+import org.phenotips.data.securestorage.SecureStorageManager;
+import org.phenotips.data.shareprotocol.ShareProtocol;
+
+import org.xwiki.component.util.ReflectionUtils;
+import org.xwiki.configuration.ConfigurationSource;
+import org.xwiki.context.Execution;
+import org.xwiki.context.ExecutionContext;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.EntityReference;
+import org.xwiki.model.reference.EntityReferenceSerializer;
+import org.xwiki.users.User;
+import org.xwiki.users.UserManager;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.security.Principal;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.GZIPOutputStream;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Matchers;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.slf4j.Logger;
+
+import com.xpn.xwiki.XWiki;
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.doc.XWikiDocument;
+import com.xpn.xwiki.objects.BaseObject;
+import com.xpn.xwiki.user.api.XWikiAuthService;
+import com.xpn.xwiki.web.XWikiRequest;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests for the batch and delta pushes handled by {@link DefaultReceivePatientData}.
+ *
+ * @version $Id$
+ */
+public class DefaultReceivePatientDataTest
+{
+    private static final String USER = "jdoe";
+
+    private static final String PASSWORD = "secret";
+
+    private static final String GUID = "4b0d1f5c-guid";
+
+    private static final String NOTES = String.join("", Collections.nCopies(500, "a"));
+
+    private static final String UPDATED_COMMENT = "Updated from JSON";
+
+    private static final String SUCCESS = ShareProtocol.SERVER_JSON_KEY_NAME_SUCCESS;
+
+    private static final String INCORRECT_GUID = ShareProtocol.SERVER_JSON_KEY_NAME_ERROR_INCORRECTGUID;
+
+    /** The patients which can be found by their GUID. */
+    private final Map<String, Patient> existingPatients = new HashMap<>();
+
+    private DefaultReceivePatientData receiver;
+
+    @Mock
+    private XWikiContext context;
+
+    @Mock
+    private XWiki xwiki;
+
+    @Mock
+    private XWikiRequest request;
+
+    @Mock
+    private PatientRepository repository;
+
+    @Mock
+    private ConfigurationSource configuration;
+
+    @Mock
+    private EntityReferenceSerializer<String> serializer;
+
+    @Mock
+    private User user;
+
+    @Mock
+    private PhenoTipsPatient existingPatient;
+
+    @Mock
+    private XWikiDocument existingDocument;
+
+    @Mock
+    private Patient newPatient;
+
+    private DocumentReference userProfile = new DocumentReference("xwiki", "XWiki", USER);
+
+    @Before
+    public void setUp() throws Exception
+    {
+        MockitoAnnotations.initMocks(this);
+        this.receiver = new DefaultReceivePatientData()
+        {
+            @Override
+            protected Patient getPatientByGUID(String guid)
+            {
+                return DefaultReceivePatientDataTest.this.existingPatients.get(guid);
+            }
+        };
+
+        Execution execution = mock(Execution.class);
+        ExecutionContext executionContext = mock(ExecutionContext.class);
+        when(execution.getContext()).thenReturn(executionContext);
+        when(executionContext.getProperty(XWikiContext.EXECUTIONCONTEXT_KEY)).thenReturn(this.context);
+        when(this.context.getRequest()).thenReturn(this.request);
+        when(this.context.getWiki()).thenReturn(this.xwiki);
+        XWikiAuthService authService = mock(XWikiAuthService.class);
+        when(this.xwiki.getAuthService()).thenReturn(authService);
+        when(authService.authenticate(USER, PASSWORD, this.context)).thenReturn(mock(Principal.class));
+
+        when(this.request.getRemoteAddr()).thenReturn("127.0.0.1");
+        when(this.request.getParameter(ShareProtocol.CLIENT_POST_KEY_NAME_PROTOCOLVER))
+            .thenReturn(ShareProtocol.CURRENT_PUSH_PROTOCOL_VERSION);
+        when(this.request.getParameter(ShareProtocol.CLIENT_POST_KEY_NAME_USERNAME)).thenReturn(USER);
+        when(this.request.getParameter(ShareProtocol.CLIENT_POST_KEY_NAME_PASSWORD)).thenReturn(PASSWORD);
+
+        UserManager userManager = mock(UserManager.class);
+        when(userManager.getUser(USER)).thenReturn(this.user);
+        when(this.user.getProfileDocument()).thenReturn(this.userProfile);
+        when(this.serializer.serialize(this.userProfile)).thenReturn("xwiki:XWiki.jdoe");
+        ConsentAuthorizer consentAuthorizer = mock(ConsentAuthorizer.class);
+        when(consentAuthorizer.authorizeInteraction(Matchers.<Set<String>>any())).thenReturn(true);
+        when(this.configuration.getProperty(anyString(), (Object) any())).thenAnswer(new Answer<Object>()
+        {
+            @Override
+            public Object answer(InvocationOnMock invocation)
+            {
+                return invocation.getArguments()[1];
+            }
+        });
+
+        when(this.existingPatient.getXDocument()).thenReturn(this.existingDocument);
+        when(this.existingPatient.getId()).thenReturn("P0000001");
+        this.existingPatients.put(GUID, this.existingPatient);
+        PermissionsManager permissions = mock(PermissionsManager.class);
+        PatientAccess access = mock(PatientAccess.class);
+        Owner owner = mock(Owner.class);
+        when(permissions.getPatientAccess(this.existingPatient)).thenReturn(access);
+        when(access.getOwner()).thenReturn(owner);
+        when(owner.getUsername()).thenReturn(USER);
+        when(this.newPatient.getId()).thenReturn("P0000002");
+        when(this.repository.create(eq(this.userProfile), any(PatientRecordInitializer.class)))
+            .thenReturn(this.newPatient);
+
+        ReflectionUtils.setFieldValue(this.receiver, "logger", mock(Logger.class));
+        ReflectionUtils.setFieldValue(this.receiver, "execution", execution);
+        ReflectionUtils.setFieldValue(this.receiver, "patientRepository", this.repository);
+        ReflectionUtils.setFieldValue(this.receiver, "userManager", userManager);
+        ReflectionUtils.setFieldValue(this.receiver, "storageManager", mock(SecureStorageManager.class));
+        ReflectionUtils.setFieldValue(this.receiver, "configuration", this.configuration);
+        ReflectionUtils.setFieldValue(this.receiver, "permissionManager", permissions);
+        ReflectionUtils.setFieldValue(this.receiver, "entitySerializer", this.serializer);
+        ReflectionUtils.setFieldValue(this.receiver, "consentAuthorizer", consentAuthorizer);
+    }
+
+    @Test
+    public void batchCreatesNewPatientsAndUpdatesExistingOnes() throws Exception
+    {
+        JSONObject update = new JSONObject().put("external_id", "B");
+        JSONArray batch = new JSONArray()
+            .put(entry(new JSONObject().put("external_id", "A")))
+            .put(entry(update).put(ShareProtocol.CLIENT_POST_KEY_NAME_GUID, GUID)
+                .put(ShareProtocol.CLIENT_POST_KEY_NAME_DELTA, true));
+        setBatch(batch);
+
+        JSONObject response = this.receiver.receivePatients();
+
+        Assert.assertTrue(response.getBoolean(SUCCESS));
+        JSONArray results = response.getJSONArray(ShareProtocol.SERVER_JSON_PUSH_KEY_NAME_BATCHRESULTS);
+        Assert.assertEquals(2, results.length());
+        Assert.assertTrue(results.getJSONObject(0).getBoolean(SUCCESS));
+        Assert.assertEquals("P0000002",
+            results.getJSONObject(0).getString(ShareProtocol.SERVER_JSON_PUSH_KEY_NAME_PATIENTID));
+        Assert.assertTrue(results.getJSONObject(1).getBoolean(SUCCESS));
+        Assert.assertEquals("P0000001",
+            results.getJSONObject(1).getString(ShareProtocol.SERVER_JSON_PUSH_KEY_NAME_PATIENTID));
+
+        verify(this.repository, times(1)).create(eq(this.userProfile), any(PatientRecordInitializer.class));
+        assertUpdated(update);
+    }
+
+    @Test
+    public void newPatientsAreFilledInBeforeTheirFirstSave() throws Exception
+    {
+        JSONObject data = new JSONObject().put("external_id", "A");
+        setBatch(new JSONArray().put(entry(data)));
+
+        this.receiver.receivePatients();
+
+        ArgumentCaptor<PatientRecordInitializer> initializer = ArgumentCaptor.forClass(PatientRecordInitializer.class);
+        verify(this.repository).create(eq(this.userProfile), initializer.capture());
+        PhenoTipsPatient created = mock(PhenoTipsPatient.class);
+        XWikiDocument doc = mock(XWikiDocument.class);
+        BaseObject owner = mock(BaseObject.class);
+        when(created.getXDocument()).thenReturn(doc);
+        when(doc.newXObject(any(EntityReference.class), eq(this.context))).thenReturn(owner);
+        initializer.getValue().initialize(created);
+
+        verify(owner).setStringValue("owner", "xwiki:XWiki.jdoe");
+        ArgumentCaptor<JSONObject> applied = ArgumentCaptor.forClass(JSONObject.class);
+        verify(created).applyJSON(applied.capture());
+        Assert.assertTrue(data.similar(applied.getValue()));
+        verify(this.xwiki, never()).saveDocument(any(XWikiDocument.class), anyString(), anyBoolean(),
+            any(XWikiContext.class));
+    }
+
+    @Test
+    public void batchDeltasRequireAnExistingPatient() throws Exception
+    {
+        setBatch(new JSONArray()
+            .put(entry(new JSONObject()).put(ShareProtocol.CLIENT_POST_KEY_NAME_DELTA, true))
+            .put(entry(new JSONObject()).put(ShareProtocol.CLIENT_POST_KEY_NAME_GUID, "unknown"))
+            .put("not a patient"));
+
+        JSONObject response = this.receiver.receivePatients();
+
+        Assert.assertTrue(response.getBoolean(SUCCESS));
+        JSONArray results = response.getJSONArray(ShareProtocol.SERVER_JSON_PUSH_KEY_NAME_BATCHRESULTS);
+        Assert.assertEquals(3, results.length());
+        Assert.assertTrue(results.getJSONObject(0).getBoolean(INCORRECT_GUID));
+        Assert.assertTrue(results.getJSONObject(1).getBoolean(INCORRECT_GUID));
+        Assert.assertFalse(results.getJSONObject(2).getBoolean(SUCCESS));
+        verify(this.repository, never()).create(any(DocumentReference.class), any(PatientRecordInitializer.class));
+    }
+
+    @Test
+    public void oversizedBatchesAreRejected() throws Exception
+    {
+        when(this.configuration.getProperty("phenotips.receive.maxBatchSize", 64L * 1024 * 1024)).thenReturn(1000L);
+        JSONArray batch = new JSONArray();
+        for (int i = 0; i < 10; ++i) {
+            // Highly compressible, the compressed batch is much smaller than the limit
+            batch.put(entry(new JSONObject().put("notes", NOTES)));
+        }
+        setBatch(batch);
+
+        JSONObject response = this.receiver.receivePatients();
+
+        Assert.assertFalse(response.getBoolean(SUCCESS));
+        Assert.assertTrue(response.getBoolean(ShareProtocol.SERVER_JSON_KEY_NAME_ERROR_ACTIONFAILED));
+        verify(this.repository, never()).create(any(DocumentReference.class), any(PatientRecordInitializer.class));
+    }
+
+    @Test
+    public void batchesWithinTheConfiguredSizeAreAccepted() throws Exception
+    {
+        when(this.configuration.getProperty("phenotips.receive.maxBatchSize", 64L * 1024 * 1024)).thenReturn(1000L);
+        setBatch(new JSONArray().put(entry(new JSONObject().put("notes", NOTES))));
+
+        Assert.assertTrue(this.receiver.receivePatients().getBoolean(SUCCESS));
+        verify(this.repository).create(eq(this.userProfile), any(PatientRecordInitializer.class));
+    }
+
+    @Test
+    public void malformedBatchesAreRejected() throws Exception
+    {
+        when(this.request.getParameter(ShareProtocol.CLIENT_POST_KEY_NAME_PATIENTBATCH))
+            .thenReturn(Base64.getEncoder().encodeToString("[{}]".getBytes(StandardCharsets.UTF_8)));
+
+        Assert.assertFalse(this.receiver.receivePatients().getBoolean(SUCCESS));
+    }
+
+    @Test
+    public void singleDeltaPushUpdatesTheExistingPatient() throws Exception
+    {
+        JSONObject update = new JSONObject().put("external_id", "B");
+        setSinglePush(update);
+        when(this.request.getParameter(ShareProtocol.CLIENT_POST_KEY_NAME_GUID)).thenReturn(GUID);
+
+        JSONObject response = this.receiver.receivePatient();
+
+        Assert.assertTrue(response.getBoolean(SUCCESS));
+        assertUpdated(update);
+        verify(this.repository, never()).create(any(DocumentReference.class), any(PatientRecordInitializer.class));
+    }
+
+    @Test
+    public void singleDeltaPushWithoutGuidIsRejected() throws Exception
+    {
+        setSinglePush(new JSONObject().put("external_id", "B"));
+
+        JSONObject response = this.receiver.receivePatient();
+
+        Assert.assertFalse(response.getBoolean(SUCCESS));
+        Assert.assertTrue(response.getBoolean(INCORRECT_GUID));
+        verify(this.repository, never()).create(any(DocumentReference.class), any(PatientRecordInitializer.class));
+    }
+
+    private void assertUpdated(JSONObject update) throws Exception
+    {
+        ArgumentCaptor<JSONObject> applied = ArgumentCaptor.forClass(JSONObject.class);
+        verify(this.existingPatient).applyJSON(applied.capture());
+        Assert.assertTrue(update.similar(applied.getValue()));
+        verify(this.xwiki, times(1)).saveDocument(this.existingDocument, UPDATED_COMMENT, true, this.context);
+    }
+
+    private void setSinglePush(JSONObject patient) throws IOException
+    {
+        when(this.request.getParameter(ShareProtocol.CLIENT_POST_KEY_NAME_PATIENTJSON))
+            .thenReturn(URLEncoder.encode(patient.toString(), "UTF-8"));
+        when(this.request.getParameter(ShareProtocol.CLIENT_POST_KEY_NAME_DELTA)).thenReturn("true");
+    }
+
+    private JSONObject entry(JSONObject patient)
+    {
+        return new JSONObject().put(ShareProtocol.CLIENT_POST_KEY_NAME_PATIENTJSON, patient);
+    }
+
+    private void setBatch(JSONArray batch) throws IOException
+    {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (OutputStream out = new GZIPOutputStream(compressed)) {
+            out.write(batch.toString().getBytes(StandardCharsets.UTF_8));
+        }
+        when(this.request.getParameter(ShareProtocol.CLIENT_POST_KEY_NAME_PATIENTBATCH))
+            .thenReturn(Base64.getEncoder().encodeToString(compressed.toByteArray()));
+    }
+}
@@ -23,6 +23,7 @@
 import javax.persistence.Entity;
 import javax.persistence.GeneratedValue;
 import javax.persistence.Id;
+import javax.persistence.Lob;
 
 /**
  * Stores information about previous pushes of patient data to a given remote server.
@@ -56,6 +57,10 @@
 
     private String remotePatientGUID; // supposedly never changes; nullable: in case remote server does not provide a GUID
 
+    @Lob
+    private String pushedDataDigests; // digests of the pushed patient JSON fields, used for pushing only changed data;
+    // nullable: in case the full data of the last push is not known
+
     /** Default constructor used by Hibernate. */
     protected PatientPushedToInfo()
     {
@@ -126,4 +131,23 @@ public void setRemotePatientURL(String remotePatientURL)
     {
         this.remotePatientURL = remotePatientURL;
     }
+
+    /**
+     * @return a JSON object, serialized as a string, mapping each top-level field of the patient JSON sent during the
+     *         last push to a digest of its value; {@code null} if not known
+     * @since 1.4
+     */
+    public String getPushedDataDigests()
+    {
+        return this.pushedDataDigests;
+    }
+
+    /**
+     * @param pushedDataDigests the digests of the patient JSON sent during the last push, may be {@code null}
+     * @since 1.4
+     */
+    public void setPushedDataDigests(String pushedDataDigests)
+    {
+        this.pushedDataDigests = pushedDataDigests;
+    }
 }
@@ -52,6 +52,10 @@
     void storePatientPushInfo(String localPatientID, String remoteServerName,
         String remotePatientGUID, String remotePatientID, String remotePatientURL);
 
+    // same as above, also recording the digests of the pushed data; null digests mean that the pushed data is unknown
+    void storePatientPushInfo(String localPatientID, String remoteServerName,
+        String remotePatientGUID, String remotePatientID, String remotePatientURL, String pushedDataDigests);
+
     // null if never pushed to the given server
     PatientPushedToInfo getPatientPushInfo(String localPatientID, String remoteServerName);
 }
@@ -255,6 +255,14 @@ public PatientSourceServerInfo getPatientSourceServerInfo(String patientGUID)
     @Override
     public void storePatientPushInfo(String localPatientID, String remoteServerName,
         String remotePatientGUID, String remotePatientID, String remotePatientURL)
+    {
+        storePatientPushInfo(localPatientID, remoteServerName, remotePatientGUID, remotePatientID, remotePatientURL,
+            null);
+    }
+
+    @Override
+    public void storePatientPushInfo(String localPatientID, String remoteServerName,
+        String remotePatientGUID, String remotePatientID, String remotePatientURL, String pushedDataDigests)
     {
         if (localPatientID == null || remoteServerName == null) {
             return;
@@ -274,14 +282,17 @@ public void storePatientPushInfo(String localPatientID, String remoteServerName,
             existing.setRemotePatientID(remotePatientID);
             existing.setRemotePatientGUID(remotePatientGUID);
             existing.setRemotePatientURL(remotePatientURL);
+            existing.setPushedDataDigests(pushedDataDigests);
             session.update(existing);
         }
         else
         {
             this.logger.debug("Saving new patient push info [{}]: [{}@{}]", localPatientID,
                 remotePatientID, remoteServerName);
-            session.save(new PatientPushedToInfo(localPatientID, remoteServerName,
-                remotePatientGUID, remotePatientID, remotePatientURL));
+            PatientPushedToInfo info = new PatientPushedToInfo(localPatientID, remoteServerName,
+                remotePatientGUID, remotePatientID, remotePatientURL);
+            info.setPushedDataDigests(pushedDataDigests);
+            session.save(info);
         }
         t.commit();
     }
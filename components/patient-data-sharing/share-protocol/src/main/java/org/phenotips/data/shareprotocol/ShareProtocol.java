@@ -40,12 +40,14 @@
     public static final String VERSION_1_1 = "1.1";
     /** version 1.2: new date format in patient JSON + new genes + new prenatal features format */   // TODO: check what is the difference between 1.1 and 1.2
     public static final String VERSION_1_2 = "1.2";
+    /** version 1.3: batch push of many patients per request + delta push of changed fields only */
+    public static final String VERSION_1_3 = "1.3";
 
-    public static final String CURRENT_PUSH_PROTOCOL_VERSION = VERSION_1_2;
+    public static final String CURRENT_PUSH_PROTOCOL_VERSION = VERSION_1_3;
 
     // list of protocol versions that the current server can read data from
     public static final List<String> COMPATIBLE_CLIENT_PROTOCOL_VERSIONS =
-            Arrays.asList(VERSION_1, VERSION_1_1, VERSION_1_2);
+            Arrays.asList(VERSION_1, VERSION_1_1, VERSION_1_2, VERSION_1_3);
 
     // list of versions which can push even if requred consents have not been checked
     public static final List<String> ALLOW_NO_CONSENTS_PROTOCOL_VERSIONS = Arrays.asList(VERSION_1);
@@ -72,11 +74,16 @@
     // But we may explicitly disallow pushing to a known old version which is known to be incompatible
     public static final List<String> OLD_INCOMPATIBLE_VERSIONS = Arrays.asList();
 
+    // list of server protocol versions which accept many patients in one compressed request, and pushes of only
+    // the fields that changed since the last push. Clients pushing to servers running other versions fall back to
+    // sending one full patient per request
+    public static final List<String> BATCH_PUSH_PROTOCOL_VERSIONS = Arrays.asList(VERSION_1_3);
+
     // list of protocol versions that the current client can regress to.
     // Those are listed explicitly because there is no way to tell if a version is old or new
     // unless it is explicitly listed
     public static final List<String> COMPATIBLE_OLD_SERVER_PROTOCOL_VERSIONS =
-            Arrays.asList(VERSION_1, VERSION_1_1);
+            Arrays.asList(VERSION_1, VERSION_1_1, VERSION_1_2);
 
     //=========================================================================
 
@@ -93,6 +100,7 @@
     public static final String CLIENT_POST_ACTIONKEY_VALUE_STATE = "get_patient_state";  // get the state of a patient record
     public static final String CLIENT_POST_ACTIONKEY_VALUE_PUSH  = "push";             // push the patient
     public static final String CLIENT_POST_ACTIONKEY_VALUE_GETID = "get_patient_id";   // get remote ID and remote URL of the patient object with the given GUID
+    public static final String CLIENT_POST_ACTIONKEY_VALUE_PUSH_BATCH = "push_batch";  // push several patients at once (since 1.3)
 
     // for the PUSH action the following fields must be set:
     public static final String CLIENT_POST_KEY_NAME_PATIENTJSON  = "patient_json";
@@ -105,6 +113,13 @@
     public static final String CLIENT_POST_KEY_NAME_PATIENTSTATE_CONSENTS = "consents"; // key name which can exist within the patient state JSON
     // for the GETURL action the String CLIENT_POST_KEY_NAME_GUID key must be set
 
+    // for the PUSH_BATCH action the following field must be set, holding a base64 encoded, gzip compressed, JSON array;
+    // each element of the array is a JSON object with the same keys as a single PUSH (PATIENTJSON and PATIENTSTATE as
+    // JSON values, optional GUID), plus the optional DELTA flag; GROUPNAME, if provided, applies to all patients
+    public static final String CLIENT_POST_KEY_NAME_PATIENTBATCH = "patient_batch";
+    public static final String CLIENT_POST_KEY_NAME_DELTA        = "delta";        // if true, PATIENTJSON only contains the fields changed since the last push
+                                                                                   //   of the patient with the given GUID, and the other fields must be left unchanged
+
     //=========================================================================
 
     // every server response JSON will include the following fields:
@@ -147,6 +162,10 @@
     public static final String SERVER_JSON_PUSH_KEY_NAME_PATIENTGUID = "patient_guid";    // GUID of the patient object on the remote server which can be used to link to the
                                                                                           //  patient from the remote server and/or to update the patient later
 
+    // response to a PUSH_BATCH action request will include the following field (iff login was successful), a JSON array
+    // holding one PUSH response for each patient in the batch, in the same order
+    public static final String SERVER_JSON_PUSH_KEY_NAME_BATCHRESULTS = "results";
+
     /**
      * Helper class describing an incompatibility between serializers in two different PhenoTips versions.
      *
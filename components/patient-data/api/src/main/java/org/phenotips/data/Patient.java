@@ -129,4 +129,16 @@ public interface Patient extends PrimaryEntity
      */
     @Override
     void updateFromJSON(JSONObject json);
+
+    /**
+     * Update patient data using the provided json object, like {@link #updateFromJSON(JSONObject)}, but without saving
+     * the patient document, so that the caller can save {@link #getXDocument() the document} only once, together with
+     * other changes.
+     *
+     * @param json JSON object containing patient data
+     * @return {@code true} if the data was applied and the document must be saved, {@code false} if the document
+     *         doesn't hold a patient record
+     * @since 1.4
+     */
+    boolean applyJSON(JSONObject json);
 }
@@ -88,6 +88,20 @@ public interface PatientRepository extends PrimaryEntityManager<Patient>
     @Deprecated
     Patient createNewPatient(DocumentReference creator);
 
+    /**
+     * Create and return a new patient record (owned by the given entity), filled in with data before being saved for
+     * the first time. Unlike creating an empty record and then updating it, the new record is stored only once, with
+     * all its data, which is both faster and never leaves a partially filled record behind.
+     *
+     * @param creator a reference to the document representing an entity (a user or a group) which will be set as the
+     *            owner for the created {@link Patient patient}
+     * @param recordFiller inserts data into the new patient record, which will be saved afterwards; it should only
+     *            change the {@link Patient#getXDocument() patient document}, without saving it; may be {@code null}
+     * @return the created patient record, or {@code null} if creating it failed
+     * @since 1.4
+     */
+    Patient create(DocumentReference creator, PatientRecordInitializer recordFiller);
+
     /**
      * Delete a patient record, identified by its internal PhenoTips identifier. If the indicated patient record doesn't
      * exist, or if the user sending the request doesn't have the right to delete the target patient record, no change
@@ -0,0 +1,188 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.data.internal;
+
+import org.phenotips.vocabulary.Vocabulary;
+import org.phenotips.vocabulary.VocabularyTerm;
+
+import org.xwiki.component.annotation.Component;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.slf4j.Logger;
+
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.objects.BaseObject;
+import com.xpn.xwiki.objects.DBStringListProperty;
+
+/**
+ * Maps deprecated HPO identifiers, listed as alternative identifiers of the current terms, to their current identifier.
+ * The map is read from the HPO index once, the first time it is needed, and is read again after the HPO is reindexed,
+ * so replacing deprecated terms only needs one lookup in memory for each term.
+ *
+ * @version $Id$
+ * @since 1.4
+ */
+@Component(roles = DeprecatedPhenotypeMapping.class)
+@Singleton
+public class DeprecatedPhenotypeMapping
+{
+    /** The list of field names which might contain deprecated terms. */
+    public static final Set<String> FIELDS_TO_FIX = Collections.unmodifiableSet(new LinkedHashSet<>(Arrays.asList(
+        "phenotype", "extended_phenotype", "negative_phenotype", "extended_negative_phenotype", "prenatal_phenotype",
+        "extended_prenatal_phenotype", "negative_prenatal_phenotype", "extended_negative_prenatal_phenotype")));
+
+    private static final String ALTERNATIVE_ID_FIELD = "alt_id";
+
+    @Inject
+    private Logger logger;
+
+    @Inject
+    @Named("hpo")
+    private Vocabulary hpo;
+
+    /** The current identifier for each deprecated identifier, {@code null} until first needed. */
+    private volatile Map<String, String> replacements;
+
+    /** Incremented by {@link #clear()}, so that a map read before the HPO was reindexed is not kept. */
+    private final AtomicLong generation = new AtomicLong();
+
+    /**
+     * Get the current identifier of a term.
+     *
+     * @param termId the identifier to check
+     * @return the current identifier of the term, or {@code null} if the identifier is not deprecated
+     */
+    public String getReplacement(String termId)
+    {
+        return getReplacements().get(termId);
+    }
+
+    /**
+     * Get all the known deprecated identifiers, along with their current identifiers.
+     *
+     * @return an unmodifiable map, with deprecated identifiers as keys and current identifiers as values
+     */
+    public Map<String, String> getReplacements()
+    {
+        Map<String, String> result = this.replacements;
+        if (result == null) {
+            long expectedGeneration = this.generation.get();
+            result = readReplacements();
+            if (result == null) {
+                // The vocabulary is not available right now, try again next time
+                return Collections.emptyMap();
+            }
+            synchronized (this) {
+                if (expectedGeneration == this.generation.get()) {
+                    this.replacements = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Replaces the deprecated terms in all the phenotype fields of a patient record object. Duplicates resulting from
+     * the replacement are removed. Fields without deprecated terms are not touched.
+     *
+     * @param patientObject the patient record object to fix
+     * @param context the current request context
+     * @return {@code true} if at least one term was replaced
+     */
+    public boolean replaceDeprecatedTerms(BaseObject patientObject, XWikiContext context)
+    {
+        Map<String, String> known = getReplacements();
+        if (known.isEmpty()) {
+            return false;
+        }
+        boolean changed = false;
+        for (String field : FIELDS_TO_FIX) {
+            DBStringListProperty currentTermList = (DBStringListProperty) patientObject.getField(field);
+            if (currentTermList == null) {
+                continue;
+            }
+            List<String> terms = currentTermList.getList();
+            Set<String> correctSet = new LinkedHashSet<>();
+            boolean fieldChanged = false;
+            for (String term : terms) {
+                String replacement = known.get(term);
+                fieldChanged |= replacement != null;
+                correctSet.add(replacement != null ? replacement : term);
+            }
+            if (fieldChanged) {
+                List<String> correctList = new LinkedList<>();
+                correctList.addAll(correctSet);
+                patientObject.set(field, correctList, context);
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    /** Forget the known deprecated identifiers, for example after the HPO was reindexed. */
+    public synchronized void clear()
+    {
+        this.generation.incrementAndGet();
+        this.replacements = null;
+    }
+
+    private Map<String, String> readReplacements()
+    {
+        try {
+            Map<String, String> query = Collections.singletonMap(ALTERNATIVE_ID_FIELD, "*");
+            long count = this.hpo.count(query);
+            if (count < 0) {
+                return null;
+            }
+            Map<String, String> options = new HashMap<>();
+            options.put("rows", String.valueOf(count));
+            options.put("fl", "id," + ALTERNATIVE_ID_FIELD);
+            options.put("spellcheck", Boolean.toString(false));
+            Map<String, String> result = new HashMap<>();
+            for (VocabularyTerm term : this.hpo.search(query, options)) {
+                Object alternatives = term.get(ALTERNATIVE_ID_FIELD);
+                if (alternatives instanceof Collection) {
+                    for (Object alternative : (Collection<?>) alternatives) {
+                        result.put(String.valueOf(alternative), term.getId());
+                    }
+                } else if (alternatives != null) {
+                    result.put(String.valueOf(alternatives), term.getId());
+                }
+            }
+            this.logger.debug("Found [{}] deprecated HPO identifiers", result.size());
+            return Collections.unmodifiableMap(result);
+        } catch (RuntimeException ex) {
+            this.logger.warn("Failed to read the deprecated HPO identifiers: {}", ex.getMessage());
+            return null;
+        }
+    }
+}
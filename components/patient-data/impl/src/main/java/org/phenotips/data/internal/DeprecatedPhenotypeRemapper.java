@@ -0,0 +1,457 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.data.internal;
+
+import org.phenotips.data.Patient;
+import org.phenotips.vocabulary.SolrCoreContainerHandler;
+
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.phase.Disposable;
+import org.xwiki.context.Execution;
+import org.xwiki.context.ExecutionContext;
+import org.xwiki.context.ExecutionContextException;
+import org.xwiki.context.ExecutionContextManager;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.DocumentReferenceResolver;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.inject.Inject;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+
+import org.apache.solr.client.solrj.SolrClient;
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.embedded.EmbeddedSolrServer;
+import org.apache.solr.client.solrj.util.ClientUtils;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrDocumentList;
+import org.slf4j.Logger;
+
+import com.xpn.xwiki.XWiki;
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.XWikiException;
+import com.xpn.xwiki.doc.XWikiDocument;
+import com.xpn.xwiki.objects.BaseObject;
+
+/**
+ * Background job replacing deprecated HPO terms in all the patient records, started after each HPO update. The patients
+ * using deprecated terms are found with a search in the patients index, and only those records are loaded and saved
+ * again, in parallel batches. Each record is locked while it is updated, and records already locked by someone editing
+ * them are skipped, since their deprecated terms will be replaced when the pending changes are saved. The progress is
+ * logged periodically, and can be queried while the job runs.
+ *
+ * @version $Id$
+ * @since 1.4
+ */
+@Component(roles = DeprecatedPhenotypeRemapper.class)
+@Singleton
+public class DeprecatedPhenotypeRemapper implements Disposable
+{
+    /** The fields of the patients index holding phenotypes. */
+    private static final String[] INDEXED_FIELDS =
+        new String[] { "phenotype", "negative_phenotype", "prenatal_phenotype", "negative_prenatal_phenotype" };
+
+    private static final String DOCUMENT_FIELD = "document";
+
+    /** How many identifiers are searched at once, keeping the number of query clauses below the Solr limit. */
+    private static final int IDS_PER_QUERY = 200;
+
+    /** How many search results are fetched at once. */
+    private static final int RESULTS_PER_PAGE = 1000;
+
+    /** How many patients are submitted before waiting for them to be saved. */
+    private static final int BATCH_SIZE = 32;
+
+    /** How many patients are updated in parallel. */
+    private static final int WORKER_THREADS = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+    /** How often the progress is logged, in milliseconds. */
+    private static final long PROGRESS_INTERVAL = 30000L;
+
+    /** Logging helper object. */
+    @Inject
+    private Logger logger;
+
+    @Inject
+    private DeprecatedPhenotypeMapping mapping;
+
+    /** Provides access to the patients index. */
+    @Inject
+    private SolrCoreContainerHandler cores;
+
+    @Inject
+    private DocumentReferenceResolver<String> resolver;
+
+    /** Used for setting up an execution context in the background threads. */
+    @Inject
+    private ExecutionContextManager contextManager;
+
+    @Inject
+    private Execution execution;
+
+    @Inject
+    private Provider<XWikiContext> xcontextProvider;
+
+    /** The thread running the current or last job, {@code null} if no job was started yet. */
+    private Thread job;
+
+    private final AtomicInteger affected = new AtomicInteger();
+
+    private final AtomicInteger processed = new AtomicInteger();
+
+    private final AtomicInteger remapped = new AtomicInteger();
+
+    private final AtomicInteger failed = new AtomicInteger();
+
+    private final AtomicInteger skipped = new AtomicInteger();
+
+    /**
+     * Start replacing deprecated terms in the background, unless a job is already running.
+     *
+     * @return {@code true} if a new job was started, {@code false} if a job is already running
+     */
+    public synchronized boolean start()
+    {
+        if (isRunning()) {
+            return false;
+        }
+        XWikiContext xcontext = this.xcontextProvider.get();
+        final String wiki = xcontext != null ? xcontext.getWikiId() : null;
+        this.affected.set(0);
+        this.processed.set(0);
+        this.remapped.set(0);
+        this.failed.set(0);
+        this.skipped.set(0);
+        this.job = new Thread(new ContextRunnable(wiki, new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                remapAll(wiki);
+            }
+        }), "PhenoTips deprecated phenotypes remapper");
+        this.job.setDaemon(true);
+        this.job.setPriority(Thread.MIN_PRIORITY);
+        this.job.start();
+        return true;
+    }
+
+    /**
+     * Check if a job is running.
+     *
+     * @return {@code true} if deprecated terms are being replaced right now
+     */
+    public synchronized boolean isRunning()
+    {
+        return this.job != null && this.job.isAlive();
+    }
+
+    /**
+     * Get the number of patients found to use deprecated terms by the current or last job.
+     *
+     * @return a number of patients, {@code 0} while the patients are being searched
+     */
+    public int getAffectedPatients()
+    {
+        return this.affected.get();
+    }
+
+    /**
+     * Get the number of affected patients already processed by the current or last job, including the failed ones.
+     *
+     * @return a number of patients, at most {@link #getAffectedPatients()}
+     */
+    public int getProcessedPatients()
+    {
+        return this.processed.get();
+    }
+
+    /**
+     * Get the number of patients actually updated by the current or last job.
+     *
+     * @return a number of patients, at most {@link #getProcessedPatients()}
+     */
+    public int getRemappedPatients()
+    {
+        return this.remapped.get();
+    }
+
+    /**
+     * Get the number of patients that couldn't be updated by the current or last job.
+     *
+     * @return a number of patients, at most {@link #getProcessedPatients()}
+     */
+    public int getFailedPatients()
+    {
+        return this.failed.get();
+    }
+
+    /**
+     * Get the number of patients skipped by the current or last job because they were being edited.
+     *
+     * @return a number of patients, at most {@link #getProcessedPatients()}
+     */
+    public int getSkippedPatients()
+    {
+        return this.skipped.get();
+    }
+
+    @Override
+    public synchronized void dispose()
+    {
+        if (this.job != null) {
+            this.job.interrupt();
+        }
+    }
+
+    private void remapAll(String wiki)
+    {
+        long start = System.currentTimeMillis();
+        Collection<String> patients = findAffectedPatients(this.mapping.getReplacements().keySet());
+        if (patients == null) {
+            return;
+        }
+        this.affected.set(patients.size());
+        this.logger.info("Replacing deprecated phenotypes in [{}] patients", patients.size());
+
+        ExecutorService workers = Executors.newFixedThreadPool(WORKER_THREADS, new WorkerThreadFactory(wiki));
+        long lastReport = start;
+        try {
+            Iterator<String> it = patients.iterator();
+            while (it.hasNext() && !Thread.currentThread().isInterrupted()) {
+                List<Future<Boolean>> batch = new ArrayList<>(BATCH_SIZE);
+                for (int i = 0; i < BATCH_SIZE && it.hasNext(); ++i) {
+                    final String patient = it.next();
+                    batch.add(workers.submit(new Callable<Boolean>()
+                    {
+                        @Override
+                        public Boolean call() throws XWikiException
+                        {
+                            return remap(patient);
+                        }
+                    }));
+                }
+                for (Future<Boolean> result : batch) {
+                    waitFor(result);
+                }
+                if (System.currentTimeMillis() - lastReport >= PROGRESS_INTERVAL) {
+                    lastReport = System.currentTimeMillis();
+                    logProgress("Replacing", start);
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } finally {
+            workers.shutdownNow();
+        }
+        logProgress(Thread.currentThread().isInterrupted() ? "Interrupted replacing" : "Finished replacing", start);
+    }
+
+    /**
+     * Search the patients index for patients having at least one of the deprecated terms.
+     *
+     * @param deprecatedIds the deprecated identifiers to look for
+     * @return the names of the affected patient documents, or {@code null} if the search failed
+     */
+    private Collection<String> findAffectedPatients(Collection<String> deprecatedIds)
+    {
+        Set<String> result = new LinkedHashSet<>();
+        if (deprecatedIds.isEmpty()) {
+            return result;
+        }
+        SolrClient server = getPatientsIndex();
+        List<String> ids = new ArrayList<>(deprecatedIds);
+        try {
+            for (int from = 0; from < ids.size(); from += IDS_PER_QUERY) {
+                int to = Math.min(ids.size(), from + IDS_PER_QUERY);
+                SolrQuery query = new SolrQuery(getQuery(ids.subList(from, to)));
+                query.setFields(DOCUMENT_FIELD);
+                query.setRows(RESULTS_PER_PAGE);
+                for (int page = 0;; page += RESULTS_PER_PAGE) {
+                    query.setStart(page);
+                    SolrDocumentList results = server.query(query).getResults();
+                    for (SolrDocument doc : results) {
+                        result.add(String.valueOf(doc.getFieldValue(DOCUMENT_FIELD)));
+                    }
+                    if (page + RESULTS_PER_PAGE >= results.getNumFound()) {
+                        break;
+                    }
+                }
+            }
+        } catch (SolrServerException | IOException | RuntimeException ex) {
+            this.logger.warn("Failed to search patients with deprecated phenotypes: {}", ex.getMessage());
+            return null;
+        }
+        return result;
+    }
+
+    /**
+     * Get a client for the patients index. Closing it would shut down the shared core container, so it must be left
+     * open.
+     *
+     * @return a client for the patients core
+     */
+    SolrClient getPatientsIndex()
+    {
+        return new EmbeddedSolrServer(this.cores.getContainer(), "patients");
+    }
+
+    private String getQuery(List<String> ids)
+    {
+        StringBuilder values = new StringBuilder("(");
+        for (String id : ids) {
+            values.append(ClientUtils.escapeQueryChars(id)).append(' ');
+        }
+        values.setCharAt(values.length() - 1, ')');
+        StringBuilder query = new StringBuilder();
+        for (String field : INDEXED_FIELDS) {
+            query.append(field).append(':').append(values).append(' ');
+        }
+        return query.toString().trim();
+    }
+
+    /**
+     * Replaces the deprecated terms in one patient record, and saves it if needed. The record is locked while it is
+     * updated, and records already locked are skipped.
+     *
+     * @param patient the name of the patient document
+     * @return {@code true} if the patient was updated
+     * @throws XWikiException if loading, locking or saving the document fails
+     */
+    private boolean remap(String patient) throws XWikiException
+    {
+        XWikiContext xcontext = this.xcontextProvider.get();
+        XWiki xwiki = xcontext.getWiki();
+        DocumentReference reference = this.resolver.resolve(patient);
+        XWikiDocument locked = xwiki.getDocument(reference, xcontext);
+        if (locked.getLock(xcontext) != null) {
+            this.skipped.incrementAndGet();
+            return false;
+        }
+        locked.setLock(xcontext.getUser(), xcontext);
+        try {
+            // Reload the record once locked, so that changes saved in the meantime aren't overwritten
+            XWikiDocument doc = xwiki.getDocument(reference, xcontext).clone();
+            BaseObject patientObject = doc.getXObject(Patient.CLASS_REFERENCE);
+            if (patientObject == null || !this.mapping.replaceDeprecatedTerms(patientObject, xcontext)) {
+                return false;
+            }
+            xwiki.saveDocument(doc, "Replaced deprecated phenotypes", true, xcontext);
+            return true;
+        } finally {
+            locked.removeLock(xcontext);
+        }
+    }
+
+    private void waitFor(Future<Boolean> result) throws InterruptedException
+    {
+        try {
+            if (result.get()) {
+                this.remapped.incrementAndGet();
+            }
+        } catch (ExecutionException ex) {
+            this.failed.incrementAndGet();
+            this.logger.warn("Failed to replace deprecated phenotypes: {}", ex.getCause().getMessage());
+        }
+        this.processed.incrementAndGet();
+    }
+
+    private void logProgress(String action, long start)
+    {
+        long seconds = Math.max(1, (System.currentTimeMillis() - start) / 1000);
+        this.logger.info(
+            "{} deprecated phenotypes: [{}] of [{}] patients processed, [{}] updated, [{}] skipped while being edited,"
+                + " [{}] failed, in [{}]s",
+            action, this.processed.get(), this.affected.get(), this.remapped.get(), this.skipped.get(),
+            this.failed.get(), seconds);
+    }
+
+    /**
+     * Runs a task in a new execution context, targeting a specific wiki.
+     */
+    private final class ContextRunnable implements Runnable
+    {
+        private final String wiki;
+
+        private final Runnable task;
+
+        ContextRunnable(String wiki, Runnable task)
+        {
+            this.wiki = wiki;
+            this.task = task;
+        }
+
+        @Override
+        public void run()
+        {
+            ExecutionContext context = new ExecutionContext();
+            DeprecatedPhenotypeRemapper.this.execution.setContext(context);
+            try {
+                DeprecatedPhenotypeRemapper.this.contextManager.initialize(context);
+                if (this.wiki != null) {
+                    DeprecatedPhenotypeRemapper.this.xcontextProvider.get().setWikiId(this.wiki);
+                }
+                this.task.run();
+            } catch (ExecutionContextException ex) {
+                DeprecatedPhenotypeRemapper.this.logger.error("Failed to initialize the remapping thread: {}",
+                    ex.getMessage(), ex);
+            } finally {
+                DeprecatedPhenotypeRemapper.this.execution.removeContext();
+            }
+        }
+    }
+
+    /**
+     * Creates the worker threads, each with its own execution context, targeting the wiki being processed.
+     */
+    private final class WorkerThreadFactory implements ThreadFactory
+    {
+        private final AtomicInteger count = new AtomicInteger();
+
+        private final String wiki;
+
+        WorkerThreadFactory(String wiki)
+        {
+            this.wiki = wiki;
+        }
+
+        @Override
+        public Thread newThread(Runnable task)
+        {
+            Thread thread = new Thread(new ContextRunnable(this.wiki, task),
+                "PhenoTips deprecated phenotypes remapper " + this.count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -19,20 +19,12 @@
 
 import org.phenotips.data.Patient;
 import org.phenotips.data.events.PatientChangingEvent;
-import org.phenotips.vocabulary.VocabularyManager;
-import org.phenotips.vocabulary.VocabularyTerm;
 
 import org.xwiki.component.annotation.Component;
 import org.xwiki.context.Execution;
 import org.xwiki.observation.AbstractEventListener;
 import org.xwiki.observation.event.Event;
 
-import java.util.HashSet;
-import java.util.LinkedHashSet;
-import java.util.LinkedList;
-import java.util.List;
-import java.util.Set;
-
 import javax.inject.Inject;
 import javax.inject.Named;
 import javax.inject.Singleton;
@@ -40,11 +32,12 @@
 import com.xpn.xwiki.XWikiContext;
 import com.xpn.xwiki.doc.XWikiDocument;
 import com.xpn.xwiki.objects.BaseObject;
-import com.xpn.xwiki.objects.DBStringListProperty;
 
 /**
  * Listens for patient records being changed, and before the action takes place, iterates over all the HPO terms and
- * replaces the deprecated ones with their updated ID.
+ * replaces the deprecated ones with their updated ID. Deprecated terms are looked up in the in-memory
+ * {@link DeprecatedPhenotypeMapping}; records that aren't saved are fixed by the {@link DeprecatedPhenotypeRemapper}
+ * after each HPO update.
  *
  * @version $Id$
  */
@@ -54,28 +47,15 @@
 public class DeprecatedPhenotypeUpdaterEventListener extends AbstractEventListener
 {
     @Inject
-    private VocabularyManager vocabularyManager;
+    private DeprecatedPhenotypeMapping mapping;
 
     @Inject
     private Execution execution;
 
-    /** The list of field names which might contain deprecated terms. */
-    private final Set<String> fieldsToFix;
-
     /** Default constructor, sets up the listener name and the list of events to subscribe to. */
     public DeprecatedPhenotypeUpdaterEventListener()
     {
         super("deprecated-phenotype-updater", new PatientChangingEvent());
-
-        this.fieldsToFix = new HashSet<>();
-        this.fieldsToFix.add("phenotype");
-        this.fieldsToFix.add("extended_phenotype");
-        this.fieldsToFix.add("negative_phenotype");
-        this.fieldsToFix.add("extended_negative_phenotype");
-        this.fieldsToFix.add("prenatal_phenotype");
-        this.fieldsToFix.add("extended_prenatal_phenotype");
-        this.fieldsToFix.add("negative_prenatal_phenotype");
-        this.fieldsToFix.add("extended_negative_prenatal_phenotype");
     }
 
     @Override
@@ -86,25 +66,7 @@ public void onEvent(Event event, Object source, Object data)
 
         if (patientObject != null) {
             XWikiContext context = (XWikiContext) this.execution.getContext().getProperty("xwikicontext");
-            for (String field : this.fieldsToFix) {
-                DBStringListProperty currentTermList = (DBStringListProperty) patientObject.getField(field);
-                if (currentTermList == null) {
-                    continue;
-                }
-                List<String> terms = currentTermList.getList();
-                Set<String> correctSet = new LinkedHashSet<>();
-                for (String term : terms) {
-                    VocabularyTerm properTerm = this.vocabularyManager.resolveTerm(term);
-                    if (properTerm != null) {
-                        correctSet.add(properTerm.getId());
-                    } else {
-                        correctSet.add(term);
-                    }
-                }
-                List<String> correctList = new LinkedList<>();
-                correctList.addAll(correctSet);
-                patientObject.set(field, correctList, context);
-            }
+            this.mapping.replaceDeprecatedTerms(patientObject, context);
         }
     }
 }
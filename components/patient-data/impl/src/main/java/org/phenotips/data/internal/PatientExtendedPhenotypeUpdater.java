@@ -19,8 +19,6 @@
 
 import org.phenotips.data.Patient;
 import org.phenotips.data.events.PatientChangingEvent;
-import org.phenotips.vocabulary.VocabularyManager;
-import org.phenotips.vocabulary.VocabularyTerm;
 
 import org.xwiki.component.annotation.Component;
 import org.xwiki.observation.AbstractEventListener;
@@ -28,7 +26,6 @@
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Set;
 import java.util.TreeSet;
 
 import javax.inject.Inject;
@@ -39,7 +36,9 @@
 import com.xpn.xwiki.objects.BaseObject;
 
 /**
- * Update the extended_*_phenotype aggregated properties whenever the phenotypes change.
+ * Update the extended_*_phenotype aggregated properties whenever the phenotypes change. Fields whose phenotypes are the
+ * same as in the previously saved version of the document are left untouched, and the ancestors of the changed ones are
+ * taken from the shared {@link PhenotypeAncestorIndex}.
  *
  * @version $Id$
  */
@@ -48,9 +47,9 @@
 @Singleton
 public class PatientExtendedPhenotypeUpdater extends AbstractEventListener
 {
-    /** Needed for accessing the feature ontologies. */
+    /** Provides the ancestors of each phenotype. */
     @Inject
-    private VocabularyManager vocabularyManager;
+    private PhenotypeAncestorIndex ancestors;
 
     /** Default constructor, sets up the listener name and the list of events to subscribe to. */
     public PatientExtendedPhenotypeUpdater()
@@ -67,36 +66,54 @@ public void onEvent(Event event, Object source, Object data)
         if (patientRecordObj == null) {
             return;
         }
-        updateField("phenotype", "extended_phenotype", patientRecordObj);
-        updateField("prenatal_phenotype", "extended_prenatal_phenotype", patientRecordObj);
-        updateField("negative_phenotype", "extended_negative_phenotype", patientRecordObj);
+        XWikiDocument originalDoc = doc.getOriginalDocument();
+        BaseObject originalObj = originalDoc == null ? null : originalDoc.getXObject(Patient.CLASS_REFERENCE);
+        updateField("phenotype", "extended_phenotype", patientRecordObj, originalObj);
+        updateField("prenatal_phenotype", "extended_prenatal_phenotype", patientRecordObj, originalObj);
+        updateField("negative_phenotype", "extended_negative_phenotype", patientRecordObj, originalObj);
     }
 
     /**
-     * Fills in an extended phenotype field using the base phenotype field.
+     * Fills in an extended phenotype field using the base phenotype field, unless the base field didn't change since
+     * the previous version of the document.
      *
      * @param baseFieldName the name of the field holding the basic list of phenotypes
      * @param extendedFieldName the name of the target field that will hold the extended list of phenotypes
      * @param patientRecordObj the object to update
+     * @param originalObj the object as it was last saved, {@code null} for new documents
      */
-    private void updateField(String baseFieldName, String extendedFieldName, BaseObject patientRecordObj)
+    private void updateField(String baseFieldName, String extendedFieldName, BaseObject patientRecordObj,
+        BaseObject originalObj)
     {
         @SuppressWarnings("unchecked")
         List<String> phenotypes = patientRecordObj.getListValue(baseFieldName);
-        Set<String> extendedPhenotypes = new TreeSet<>();
-        Set<String> sortedPhenotypes = new TreeSet<>();
-        for (String phenotype : phenotypes) {
-            sortedPhenotypes.add(phenotype);
-            VocabularyTerm phenotypeTerm = this.vocabularyManager.resolveTerm(phenotype);
-            if (phenotypeTerm != null) {
-                for (VocabularyTerm term : phenotypeTerm.getAncestorsAndSelf()) {
-                    extendedPhenotypes.add(term.getId());
-                }
-            } else {
-                extendedPhenotypes.add(phenotype);
-            }
+        List<String> sortedPhenotypes = new ArrayList<>(new TreeSet<>(phenotypes));
+        if (!isUnchanged(sortedPhenotypes, baseFieldName, extendedFieldName, patientRecordObj, originalObj)) {
+            patientRecordObj.setDBStringListValue(extendedFieldName,
+                new ArrayList<>(this.ancestors.getAncestorsAndSelf(sortedPhenotypes)));
         }
-        patientRecordObj.setDBStringListValue(extendedFieldName, new ArrayList<>(extendedPhenotypes));
-        patientRecordObj.setDBStringListValue(baseFieldName, new ArrayList<>(sortedPhenotypes));
+        patientRecordObj.setDBStringListValue(baseFieldName, sortedPhenotypes);
+    }
+
+    /**
+     * Checks if the extended field is still up to date: the phenotypes are the same as the previously saved ones, and
+     * the stored extended phenotypes, which were computed from them, were not altered.
+     *
+     * @param sortedPhenotypes the new sorted list of phenotypes
+     * @param baseFieldName the name of the field holding the basic list of phenotypes
+     * @param extendedFieldName the name of the field holding the extended list of phenotypes
+     * @param patientRecordObj the object to update
+     * @param originalObj the object as it was last saved, may be {@code null}
+     * @return {@code true} if the extended field doesn't need to be recomputed
+     */
+    private boolean isUnchanged(List<String> sortedPhenotypes, String baseFieldName, String extendedFieldName,
+        BaseObject patientRecordObj, BaseObject originalObj)
+    {
+        if (originalObj == null || !sortedPhenotypes.equals(originalObj.getListValue(baseFieldName))) {
+            return false;
+        }
+        List<?> extendedPhenotypes = patientRecordObj.getListValue(extendedFieldName);
+        return extendedPhenotypes.equals(originalObj.getListValue(extendedFieldName))
+            && (sortedPhenotypes.isEmpty() || !extendedPhenotypes.isEmpty());
     }
 }
@@ -85,15 +85,18 @@ public DocumentLock getLock(DocumentReference doc)
             if (xdoc == null) {
                 return null;
             }
+            XWikiLock xlock = xdoc.getLock(context);
+            if (xlock == null) {
+                return null;
+            }
+            // checking the lock is much cheaper than loading the patient
             String documentId = xdoc.getDocumentReference().getName();
             Patient patient = this.patientRepository.getPatientById(documentId);
             if (patient == null) {
                 return null;
             }
-
-            XWikiLock xlock = xdoc.getLock(context);
             User user = this.userManager.getUser(xlock.getUserName());
-            if (xlock != null && !user.getId().equals(this.userManager.getCurrentUser().getId())) {
+            if (!user.getId().equals(this.userManager.getCurrentUser().getId())) {
                 Set<String> actions = Collections.singleton("edit");
                 return new DocumentLock(user, xlock.getDate(), this.tm.translate("patient.locks.patientInUse",
                     user.getName()), actions, false);
@@ -229,33 +229,40 @@ public void updateFromJSON(JSONObject json)
 
             XWikiContext context = getXContext();
 
-            BaseObject data = this.document.getXObject(CLASS_REFERENCE);
-            if (data == null) {
-                return;
+            if (applyJSON(json)) {
+                context.getWiki().saveDocument(this.document, "Updated from JSON", true, context);
             }
+        } catch (Exception ex) {
+            this.logger.error("Failed to update patient data from JSON [{}]: {}", ex.getMessage(), ex);
+        }
+    }
 
-            for (PatientDataController<?> serializer : this.serializers.values()) {
-                try {
-                    PatientData<?> patientData = serializer.readJSON(json);
-                    if (patientData != null) {
-                        this.extraData.put(patientData.getName(), patientData);
-                        serializer.save(this);
-                        this.logger.info("Successfully updated patient form JSON using serializer [{}]",
-                            serializer.getName());
-                    }
-                } catch (UnsupportedOperationException ex) {
-                    this.logger.debug("Unable to update patient from JSON using serializer [{}]: not supported",
+    @Override
+    public boolean applyJSON(JSONObject json)
+    {
+        BaseObject data = this.document.getXObject(CLASS_REFERENCE);
+        if (data == null) {
+            return false;
+        }
+
+        for (PatientDataController<?> serializer : this.serializers.values()) {
+            try {
+                PatientData<?> patientData = serializer.readJSON(json);
+                if (patientData != null) {
+                    this.extraData.put(patientData.getName(), patientData);
+                    serializer.save(this);
+                    this.logger.info("Successfully updated patient form JSON using serializer [{}]",
                         serializer.getName());
-                } catch (Exception ex) {
-                    this.logger.error("Failed to update patient data from JSON using serializer [{}]: {}",
-                        serializer.getName(), ex.getMessage(), ex);
                 }
+            } catch (UnsupportedOperationException ex) {
+                this.logger.debug("Unable to update patient from JSON using serializer [{}]: not supported",
+                    serializer.getName());
+            } catch (Exception ex) {
+                this.logger.error("Failed to update patient data from JSON using serializer [{}]: {}",
+                    serializer.getName(), ex.getMessage(), ex);
             }
-
-            context.getWiki().saveDocument(this.document, "Updated from JSON", true, context);
-        } catch (Exception ex) {
-            this.logger.error("Failed to update patient data from JSON [{}]: {}", ex.getMessage(), ex);
         }
+        return true;
     }
 
     @Override
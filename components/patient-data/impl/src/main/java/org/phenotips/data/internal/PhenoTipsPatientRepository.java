@@ -110,17 +110,21 @@ public synchronized Patient createNewPatient(DocumentReference creator)
 
     @Override
     public synchronized Patient create(DocumentReference creator)
+    {
+        return create(creator, null);
+    }
+
+    @Override
+    public synchronized Patient create(DocumentReference creator, PatientRecordInitializer recordFiller)
     {
         try {
             XWikiContext context = this.xcontextProvider.get();
-            Patient patient = super.create(creator);
-            XWikiDocument doc = patient.getXDocument();
+            XWikiDocument doc = createDocument(creator);
             doc.getXObject(Patient.CLASS_REFERENCE).setLongValue("identifier",
-                Integer.parseInt(patient.getId().replaceAll("\\D++", "")));
-            if (creator != null) {
-                doc.setCreatorReference(creator);
-                doc.setAuthorReference(creator);
-                doc.setContentAuthorReference(creator);
+                Integer.parseInt(doc.getDocumentReference().getName().replaceAll("\\D++", "")));
+            Patient patient = load(doc);
+            if (recordFiller != null) {
+                recordFiller.initialize(patient);
             }
             context.getWiki().saveDocument(doc, context);
             for (PatientRecordInitializer initializer : this.initializers.get()) {
@@ -0,0 +1,106 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.data.internal;
+
+import org.phenotips.vocabulary.VocabularyManager;
+import org.phenotips.vocabulary.VocabularyTerm;
+
+import org.xwiki.component.annotation.Component;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+/**
+ * In-memory index of the ancestors of vocabulary terms. The closure of each term, i.e. the term itself and all its
+ * ancestors, is looked up in the vocabulary the first time it is needed, and kept until the vocabulary is reindexed, so
+ * that the extended phenotypes of a patient can be computed as the union of the precomputed closures of its phenotypes.
+ *
+ * @version $Id$
+ * @since 1.4
+ */
+@Component(roles = PhenotypeAncestorIndex.class)
+@Singleton
+public class PhenotypeAncestorIndex
+{
+    /** The maximum number of terms whose ancestors are remembered; more than enough for the whole HPO. */
+    private static final int MAX_CACHED_TERMS = 50000;
+
+    /** Needed for accessing the feature ontologies. */
+    @Inject
+    private VocabularyManager vocabularyManager;
+
+    /** The known closures, for each term identifier. */
+    private final ConcurrentMap<String, Set<String>> closures = new ConcurrentHashMap<>();
+
+    /**
+     * Get the identifiers of a term and all its ancestors.
+     *
+     * @param termId the identifier of the target term
+     * @return an unmodifiable set of term identifiers, containing only the identifier itself if the term cannot be
+     *         resolved, for example for free text phenotypes
+     */
+    public Set<String> getAncestorsAndSelf(String termId)
+    {
+        Set<String> result = this.closures.get(termId);
+        if (result == null) {
+            VocabularyTerm term = this.vocabularyManager.resolveTerm(termId);
+            if (term == null) {
+                // Unknown terms are not remembered, since they're usually free text
+                return Collections.singleton(termId);
+            }
+            Set<String> ids = new TreeSet<>();
+            for (VocabularyTerm ancestor : term.getAncestorsAndSelf()) {
+                ids.add(ancestor.getId());
+            }
+            result = Collections.unmodifiableSet(ids);
+            if (this.closures.size() >= MAX_CACHED_TERMS) {
+                this.closures.clear();
+            }
+            this.closures.put(termId, result);
+        }
+        return result;
+    }
+
+    /**
+     * Get the identifiers of several terms and all their ancestors.
+     *
+     * @param termIds the identifiers of the target terms
+     * @return the sorted union of the closures of each term, a new set which can be freely modified
+     */
+    public Set<String> getAncestorsAndSelf(Collection<String> termIds)
+    {
+        Set<String> result = new TreeSet<>();
+        for (String termId : termIds) {
+            result.addAll(getAncestorsAndSelf(termId));
+        }
+        return result;
+    }
+
+    /** Forget all the known closures, for example after a vocabulary was reindexed. */
+    public void clear()
+    {
+        this.closures.clear();
+    }
+}
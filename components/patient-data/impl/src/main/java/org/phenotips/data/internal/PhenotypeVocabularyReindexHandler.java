@@ -0,0 +1,91 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.data.internal;
+
+import org.phenotips.vocabulary.Vocabulary;
+import org.phenotips.vocabulary.VocabularyExtension;
+import org.phenotips.vocabulary.VocabularyInputTerm;
+
+import org.xwiki.component.annotation.Component;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.apache.solr.client.solrj.SolrQuery;
+
+/**
+ * Keeps the in-memory phenotype data up to date when vocabularies are reindexed: clears the
+ * {@link PhenotypeAncestorIndex} whenever a vocabulary is reindexed, since the hierarchy of terms may have changed,
+ * and after an HPO update, reloads the {@link DeprecatedPhenotypeMapping} and starts the
+ * {@link DeprecatedPhenotypeRemapper} job. Terms and queries are not altered in any way.
+ *
+ * @version $Id$
+ * @since 1.4
+ */
+@Component
+@Named("phenotype-vocabulary-reindex-handler")
+@Singleton
+public class PhenotypeVocabularyReindexHandler implements VocabularyExtension
+{
+    private static final String HPO = "hpo";
+
+    @Inject
+    private PhenotypeAncestorIndex index;
+
+    @Inject
+    private DeprecatedPhenotypeMapping deprecatedPhenotypes;
+
+    @Inject
+    private DeprecatedPhenotypeRemapper remapper;
+
+    @Override
+    public boolean isVocabularySupported(Vocabulary vocabulary)
+    {
+        return true;
+    }
+
+    @Override
+    public void indexingStarted(Vocabulary vocabulary)
+    {
+        this.index.clear();
+    }
+
+    @Override
+    public void extendTerm(VocabularyInputTerm term, Vocabulary vocabulary)
+    {
+        // Nothing to do
+    }
+
+    @Override
+    public void indexingEnded(Vocabulary vocabulary)
+    {
+        // Terms may have been looked up while the index was being rebuilt
+        this.index.clear();
+        if (HPO.equals(vocabulary.getIdentifier())) {
+            this.deprecatedPhenotypes.clear();
+            this.remapper.start();
+        }
+    }
+
+    @Override
+    public void extendQuery(SolrQuery query, Vocabulary vocabulary)
+    {
+        // Nothing to do
+    }
+}
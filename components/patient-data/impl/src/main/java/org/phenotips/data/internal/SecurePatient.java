@@ -80,6 +80,18 @@ public void updateFromJSON(JSONObject json)
         throw new UnsupportedOperationException();
     }
 
+    /**
+     * Disallow updates for read-only patients.
+     *
+     * @param json a JSON object
+     * @return always throws
+     */
+    @Override
+    public boolean applyJSON(JSONObject json)
+    {
+        throw new UnsupportedOperationException();
+    }
+
     @Override
     public String getExternalId()
     {
@@ -18,6 +18,7 @@
 package org.phenotips.data.internal;
 
 import org.phenotips.data.Patient;
+import org.phenotips.data.PatientRecordInitializer;
 import org.phenotips.data.PatientRepository;
 import org.phenotips.security.authorization.AuthorizationService;
 
@@ -88,7 +89,7 @@ public EntityReference getDataSpace()
     @Override
     public Patient create()
     {
-        return create(this.userManager.getCurrentUser());
+        return create(this.userManager.getCurrentUser(), null);
     }
 
     @Override
@@ -100,14 +101,21 @@ public synchronized Patient createNewPatient()
     @Override
     public Patient create(DocumentReference creator)
     {
-        return create(this.userManager.getUser(this.serializer.serialize(creator)));
+        return create(this.userManager.getUser(this.serializer.serialize(creator)), null);
     }
 
-    private Patient create(User creator)
+    @Override
+    public Patient create(DocumentReference creator, PatientRecordInitializer recordFiller)
+    {
+        return create(this.userManager.getUser(this.serializer.serialize(creator)), recordFiller);
+    }
+
+    private Patient create(User creator, PatientRecordInitializer recordFiller)
     {
         if (this.access.hasAccess(creator, Right.EDIT,
             this.currentResolver.resolve(Patient.DEFAULT_DATA_SPACE, EntityType.SPACE))) {
-            Patient patient = this.internalService.create(creator != null ? creator.getProfileDocument() : null);
+            Patient patient = this.internalService.create(creator != null ? creator.getProfileDocument() : null,
+                recordFiller);
             return createSecurePatient(patient);
         }
         throw new SecurityException("User not authorized to create new patients");
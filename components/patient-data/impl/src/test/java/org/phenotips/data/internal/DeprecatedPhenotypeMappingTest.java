@@ -0,0 +1,133 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.data.internal;
+
+import org.phenotips.vocabulary.Vocabulary;
+import org.phenotips.vocabulary.VocabularyTerm;
+
+import org.xwiki.test.mockito.MockitoComponentMockingRule;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.objects.BaseObject;
+import com.xpn.xwiki.objects.DBStringListProperty;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyMapOf;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests for the {@link DeprecatedPhenotypeMapping} component.
+ *
+ * @version $Id$
+ */
+public class DeprecatedPhenotypeMappingTest
+{
+    @Rule
+    public final MockitoComponentMockingRule<DeprecatedPhenotypeMapping> mocker =
+        new MockitoComponentMockingRule<DeprecatedPhenotypeMapping>(DeprecatedPhenotypeMapping.class);
+
+    private Vocabulary hpo;
+
+    @Before
+    public void setup() throws Exception
+    {
+        this.hpo = this.mocker.getInstance(Vocabulary.class, "hpo");
+        VocabularyTerm term1 = mock(VocabularyTerm.class);
+        when(term1.getId()).thenReturn("HP:0000001");
+        when(term1.get("alt_id")).thenReturn(Arrays.asList("HP:0000101", "HP:0000102"));
+        VocabularyTerm term2 = mock(VocabularyTerm.class);
+        when(term2.getId()).thenReturn("HP:0000002");
+        when(term2.get("alt_id")).thenReturn("HP:0000201");
+        Map<String, String> query = Collections.singletonMap("alt_id", "*");
+        when(this.hpo.count(query)).thenReturn(2L);
+        when(this.hpo.search(eq(query), anyMapOf(String.class, String.class)))
+            .thenReturn(Arrays.asList(term1, term2));
+    }
+
+    @Test
+    public void alternativeIdentifiersAreMappedToTheCurrentOnes() throws Exception
+    {
+        DeprecatedPhenotypeMapping mapping = this.mocker.getComponentUnderTest();
+        Assert.assertEquals("HP:0000001", mapping.getReplacement("HP:0000101"));
+        Assert.assertEquals("HP:0000001", mapping.getReplacement("HP:0000102"));
+        Assert.assertEquals("HP:0000002", mapping.getReplacement("HP:0000201"));
+        Assert.assertNull(mapping.getReplacement("HP:0000001"));
+        Assert.assertEquals(3, mapping.getReplacements().size());
+
+        verify(this.hpo, times(1)).search(eq(Collections.singletonMap("alt_id", "*")),
+            anyMapOf(String.class, String.class));
+    }
+
+    @Test
+    public void clearReloadsTheMapping() throws Exception
+    {
+        DeprecatedPhenotypeMapping mapping = this.mocker.getComponentUnderTest();
+        mapping.getReplacements();
+        mapping.clear();
+        mapping.getReplacements();
+
+        verify(this.hpo, times(2)).search(eq(Collections.singletonMap("alt_id", "*")),
+            anyMapOf(String.class, String.class));
+    }
+
+    @Test
+    public void deprecatedTermsAreReplacedAndDeduplicated() throws Exception
+    {
+        BaseObject patient = mock(BaseObject.class);
+        XWikiContext context = mock(XWikiContext.class);
+        DBStringListProperty phenotype = mock(DBStringListProperty.class);
+        when(phenotype.getList()).thenReturn(Arrays.asList("HP:0000101", "HP:0000001", "HP:0000003"));
+        when(patient.getField("phenotype")).thenReturn(phenotype);
+        DBStringListProperty negative = mock(DBStringListProperty.class);
+        when(negative.getList()).thenReturn(Arrays.asList("HP:0000004"));
+        when(patient.getField("negative_phenotype")).thenReturn(negative);
+
+        Assert.assertTrue(this.mocker.getComponentUnderTest().replaceDeprecatedTerms(patient, context));
+
+        List<String> expected = Arrays.asList("HP:0000001", "HP:0000003");
+        verify(patient).set("phenotype", expected, context);
+        verify(patient, never()).set(eq("negative_phenotype"), any(), eq(context));
+    }
+
+    @Test
+    public void recordsWithoutDeprecatedTermsAreNotChanged() throws Exception
+    {
+        BaseObject patient = mock(BaseObject.class);
+        DBStringListProperty phenotype = mock(DBStringListProperty.class);
+        when(phenotype.getList()).thenReturn(Arrays.asList("HP:0000001"));
+        when(patient.getField(anyString())).thenReturn(phenotype);
+
+        Assert.assertFalse(this.mocker.getComponentUnderTest().replaceDeprecatedTerms(patient, null));
+    }
+}
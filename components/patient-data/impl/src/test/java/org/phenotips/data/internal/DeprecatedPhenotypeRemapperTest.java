@@ -0,0 +1,265 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.data.internal;
+
+import org.phenotips.data.Patient;
+
+import org.xwiki.component.util.ReflectionUtils;
+import org.xwiki.context.Execution;
+import org.xwiki.context.ExecutionContextManager;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.DocumentReferenceResolver;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.inject.Provider;
+
+import org.apache.solr.client.solrj.SolrClient;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrDocumentList;
+import org.apache.solr.common.params.SolrParams;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.InOrder;
+import org.slf4j.Logger;
+
+import com.xpn.xwiki.XWiki;
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.XWikiException;
+import com.xpn.xwiki.doc.XWikiDocument;
+import com.xpn.xwiki.doc.XWikiLock;
+import com.xpn.xwiki.objects.BaseObject;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests for the {@link DeprecatedPhenotypeRemapper} job.
+ *
+ * @version $Id$
+ */
+public class DeprecatedPhenotypeRemapperTest
+{
+    private static final String COMMENT = "Replaced deprecated phenotypes";
+
+    private static final String USER = "XWiki.XWikiGuest";
+
+    private final DocumentReference reference1 = new DocumentReference("xwiki", "data", "P0000001");
+
+    private final DocumentReference reference2 = new DocumentReference("xwiki", "data", "P0000002");
+
+    private final SolrClient index = mock(SolrClient.class);
+
+    private final DeprecatedPhenotypeMapping mapping = mock(DeprecatedPhenotypeMapping.class);
+
+    private final XWikiContext xcontext = mock(XWikiContext.class);
+
+    private final XWiki xwiki = mock(XWiki.class);
+
+    private final XWikiDocument doc1 = mock(XWikiDocument.class);
+
+    private final XWikiDocument copy1 = mock(XWikiDocument.class);
+
+    private final BaseObject patient1 = mock(BaseObject.class);
+
+    private final XWikiDocument doc2 = mock(XWikiDocument.class);
+
+    private final XWikiDocument copy2 = mock(XWikiDocument.class);
+
+    private final BaseObject patient2 = mock(BaseObject.class);
+
+    private DeprecatedPhenotypeRemapper remapper;
+
+    @Before
+    public void setup() throws Exception
+    {
+        this.remapper = new DeprecatedPhenotypeRemapper()
+        {
+            @Override
+            SolrClient getPatientsIndex()
+            {
+                return DeprecatedPhenotypeRemapperTest.this.index;
+            }
+        };
+
+        @SuppressWarnings("unchecked")
+        Provider<XWikiContext> contextProvider = mock(Provider.class);
+        when(contextProvider.get()).thenReturn(this.xcontext);
+        when(this.xcontext.getWikiId()).thenReturn("xwiki");
+        when(this.xcontext.getWiki()).thenReturn(this.xwiki);
+        when(this.xcontext.getUser()).thenReturn(USER);
+
+        @SuppressWarnings("unchecked")
+        DocumentReferenceResolver<String> resolver = mock(DocumentReferenceResolver.class);
+        when(resolver.resolve("xwiki:data.P0000001")).thenReturn(this.reference1);
+        when(resolver.resolve("xwiki:data.P0000002")).thenReturn(this.reference2);
+
+        ReflectionUtils.setFieldValue(this.remapper, "logger", mock(Logger.class));
+        ReflectionUtils.setFieldValue(this.remapper, "mapping", this.mapping);
+        ReflectionUtils.setFieldValue(this.remapper, "resolver", resolver);
+        ReflectionUtils.setFieldValue(this.remapper, "contextManager", mock(ExecutionContextManager.class));
+        ReflectionUtils.setFieldValue(this.remapper, "execution", mock(Execution.class));
+        ReflectionUtils.setFieldValue(this.remapper, "xcontextProvider", contextProvider);
+
+        when(this.mapping.getReplacements()).thenReturn(Collections.singletonMap("HP:0000101", "HP:0000001"));
+        mockIndex("xwiki:data.P0000001", "xwiki:data.P0000002");
+
+        mockPatient(this.reference1, this.doc1, this.copy1, this.patient1);
+        mockPatient(this.reference2, this.doc2, this.copy2, this.patient2);
+        when(this.mapping.replaceDeprecatedTerms(this.patient1, this.xcontext)).thenReturn(true);
+        when(this.mapping.replaceDeprecatedTerms(this.patient2, this.xcontext)).thenReturn(false);
+    }
+
+    @Test
+    public void affectedPatientsAreUpdatedWhileLocked() throws Exception
+    {
+        runJob();
+
+        InOrder order = inOrder(this.doc1, this.xwiki, this.mapping);
+        order.verify(this.doc1).setLock(USER, this.xcontext);
+        order.verify(this.xwiki).getDocument(this.reference1, this.xcontext);
+        order.verify(this.mapping).replaceDeprecatedTerms(this.patient1, this.xcontext);
+        order.verify(this.xwiki).saveDocument(this.copy1, COMMENT, true, this.xcontext);
+        order.verify(this.doc1).removeLock(this.xcontext);
+
+        verify(this.xwiki, never()).saveDocument(this.copy2, COMMENT, true, this.xcontext);
+        verify(this.doc2).setLock(USER, this.xcontext);
+        verify(this.doc2).removeLock(this.xcontext);
+
+        Assert.assertEquals(2, this.remapper.getAffectedPatients());
+        Assert.assertEquals(2, this.remapper.getProcessedPatients());
+        Assert.assertEquals(1, this.remapper.getRemappedPatients());
+        Assert.assertEquals(0, this.remapper.getSkippedPatients());
+        Assert.assertEquals(0, this.remapper.getFailedPatients());
+    }
+
+    @Test
+    public void patientsBeingEditedAreSkipped() throws Exception
+    {
+        when(this.doc1.getLock(this.xcontext)).thenReturn(mock(XWikiLock.class));
+
+        runJob();
+
+        verify(this.doc1, never()).setLock(anyString(), any(XWikiContext.class));
+        verify(this.doc1, never()).removeLock(any(XWikiContext.class));
+        verify(this.mapping, never()).replaceDeprecatedTerms(this.patient1, this.xcontext);
+        verify(this.xwiki, never()).saveDocument(any(XWikiDocument.class), anyString(), anyBoolean(),
+            any(XWikiContext.class));
+        Assert.assertEquals(2, this.remapper.getProcessedPatients());
+        Assert.assertEquals(1, this.remapper.getSkippedPatients());
+        Assert.assertEquals(0, this.remapper.getRemappedPatients());
+    }
+
+    @Test
+    public void failedSavesAreCountedAndReleaseTheLock() throws Exception
+    {
+        doThrow(new XWikiException()).when(this.xwiki).saveDocument(this.copy1, COMMENT, true, this.xcontext);
+
+        runJob();
+
+        verify(this.doc1).removeLock(this.xcontext);
+        Assert.assertEquals(2, this.remapper.getProcessedPatients());
+        Assert.assertEquals(1, this.remapper.getFailedPatients());
+        Assert.assertEquals(0, this.remapper.getRemappedPatients());
+    }
+
+    @Test
+    public void searchFailuresStopTheJob() throws Exception
+    {
+        when(this.index.query(any(SolrParams.class))).thenThrow(new SolrServerException("Core not loaded"));
+
+        runJob();
+
+        verify(this.xwiki, never()).getDocument(any(DocumentReference.class), any(XWikiContext.class));
+        Assert.assertEquals(0, this.remapper.getAffectedPatients());
+        Assert.assertEquals(0, this.remapper.getProcessedPatients());
+    }
+
+    @Test
+    public void manyDeprecatedTermsAreSearchedInSeveralQueries() throws Exception
+    {
+        Map<String, String> replacements = new HashMap<>();
+        for (int i = 0; i < 250; ++i) {
+            replacements.put(String.format("HP:%07d", 100000 + i), "HP:0000001");
+        }
+        when(this.mapping.getReplacements()).thenReturn(replacements);
+
+        runJob();
+
+        verify(this.index, times(2)).query(any(SolrParams.class));
+        // Patients found by both queries are only updated once
+        verify(this.xwiki, times(1)).saveDocument(this.copy1, COMMENT, true, this.xcontext);
+        Assert.assertEquals(2, this.remapper.getAffectedPatients());
+    }
+
+    @Test
+    public void noDeprecatedTermsMeansNothingToDo() throws Exception
+    {
+        when(this.mapping.getReplacements()).thenReturn(Collections.<String, String>emptyMap());
+
+        runJob();
+
+        verify(this.index, never()).query(any(SolrParams.class));
+        Assert.assertEquals(0, this.remapper.getAffectedPatients());
+    }
+
+    private void runJob() throws InterruptedException
+    {
+        Assert.assertTrue(this.remapper.start());
+        long deadline = System.currentTimeMillis() + 5000;
+        while (this.remapper.isRunning() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertFalse(this.remapper.isRunning());
+    }
+
+    private void mockIndex(String... patients) throws Exception
+    {
+        SolrDocumentList results = new SolrDocumentList();
+        for (String patient : patients) {
+            SolrDocument doc = new SolrDocument();
+            doc.setField("document", patient);
+            results.add(doc);
+        }
+        results.setNumFound(patients.length);
+        QueryResponse response = mock(QueryResponse.class);
+        when(response.getResults()).thenReturn(results);
+        when(this.index.query(any(SolrParams.class))).thenReturn(response);
+    }
+
+    private void mockPatient(DocumentReference reference, XWikiDocument doc, XWikiDocument copy, BaseObject patient)
+        throws XWikiException
+    {
+        when(this.xwiki.getDocument(reference, this.xcontext)).thenReturn(doc);
+        when(doc.clone()).thenReturn(copy);
+        when(copy.getXObject(Patient.CLASS_REFERENCE)).thenReturn(patient);
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.data.internal;
+
+import org.phenotips.data.Patient;
+import org.phenotips.data.events.PatientChangingEvent;
+
+import org.xwiki.observation.EventListener;
+import org.xwiki.test.mockito.MockitoComponentMockingRule;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeSet;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import com.xpn.xwiki.doc.XWikiDocument;
+import com.xpn.xwiki.objects.BaseObject;
+
+import static org.mockito.Matchers.anyCollectionOf;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests for the {@link PatientExtendedPhenotypeUpdater} component.
+ *
+ * @version $Id$
+ */
+public class PatientExtendedPhenotypeUpdaterTest
+{
+    private static final String PHENOTYPE = "phenotype";
+
+    private static final String EXTENDED_PHENOTYPE = "extended_phenotype";
+
+    @Rule
+    public final MockitoComponentMockingRule<EventListener> mocker =
+        new MockitoComponentMockingRule<EventListener>(PatientExtendedPhenotypeUpdater.class);
+
+    @Mock
+    private XWikiDocument doc;
+
+    @Mock
+    private XWikiDocument originalDoc;
+
+    @Mock
+    private BaseObject patientObj;
+
+    @Mock
+    private BaseObject originalObj;
+
+    private PhenotypeAncestorIndex index;
+
+    @Before
+    public void setup() throws Exception
+    {
+        MockitoAnnotations.initMocks(this);
+
+        doReturn(this.patientObj).when(this.doc).getXObject(Patient.CLASS_REFERENCE);
+        when(this.doc.getOriginalDocument()).thenReturn(this.originalDoc);
+        doReturn(this.originalObj).when(this.originalDoc).getXObject(Patient.CLASS_REFERENCE);
+        doReturn(Collections.emptyList()).when(this.patientObj).getListValue(anyString());
+        doReturn(Collections.emptyList()).when(this.originalObj).getListValue(anyString());
+
+        this.index = this.mocker.getInstance(PhenotypeAncestorIndex.class);
+        when(this.index.getAncestorsAndSelf(anyCollectionOf(String.class))).thenReturn(new TreeSet<String>());
+        when(this.index.getAncestorsAndSelf(Arrays.asList("HP:0000002", "HP:0000003")))
+            .thenReturn(new TreeSet<>(Arrays.asList("HP:0000001", "HP:0000002", "HP:0000003")));
+    }
+
+    @Test
+    public void changedPhenotypesAreExtendedWithTheirAncestors() throws Exception
+    {
+        doReturn(Arrays.asList("HP:0000003", "HP:0000002")).when(this.patientObj).getListValue(PHENOTYPE);
+
+        this.mocker.getComponentUnderTest().onEvent(new PatientChangingEvent(), this.doc, null);
+
+        verify(this.patientObj).setDBStringListValue(EXTENDED_PHENOTYPE,
+            Arrays.asList("HP:0000001", "HP:0000002", "HP:0000003"));
+        verify(this.patientObj).setDBStringListValue(PHENOTYPE, Arrays.asList("HP:0000002", "HP:0000003"));
+    }
+
+    @Test
+    public void unchangedPhenotypesAreNotExtendedAgain() throws Exception
+    {
+        List<String> phenotypes = Arrays.asList("HP:0000002", "HP:0000003");
+        List<String> extended = Arrays.asList("HP:0000001", "HP:0000002", "HP:0000003");
+        doReturn(Arrays.asList("HP:0000003", "HP:0000002")).when(this.patientObj).getListValue(PHENOTYPE);
+        doReturn(extended).when(this.patientObj).getListValue(EXTENDED_PHENOTYPE);
+        doReturn(phenotypes).when(this.originalObj).getListValue(PHENOTYPE);
+        doReturn(extended).when(this.originalObj).getListValue(EXTENDED_PHENOTYPE);
+
+        this.mocker.getComponentUnderTest().onEvent(new PatientChangingEvent(), this.doc, null);
+
+        verify(this.index, never()).getAncestorsAndSelf(phenotypes);
+        verify(this.patientObj, never()).setDBStringListValue(eq(EXTENDED_PHENOTYPE), anyCollectionOf(String.class));
+        verify(this.patientObj).setDBStringListValue(PHENOTYPE, phenotypes);
+    }
+
+    @Test
+    public void missingExtendedPhenotypesAreComputed() throws Exception
+    {
+        List<String> phenotypes = Arrays.asList("HP:0000002", "HP:0000003");
+        doReturn(phenotypes).when(this.patientObj).getListValue(PHENOTYPE);
+        doReturn(phenotypes).when(this.originalObj).getListValue(PHENOTYPE);
+
+        this.mocker.getComponentUnderTest().onEvent(new PatientChangingEvent(), this.doc, null);
+
+        verify(this.patientObj).setDBStringListValue(EXTENDED_PHENOTYPE,
+            Arrays.asList("HP:0000001", "HP:0000002", "HP:0000003"));
+    }
+}
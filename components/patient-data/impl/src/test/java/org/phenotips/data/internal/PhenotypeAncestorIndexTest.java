@@ -0,0 +1,104 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.data.internal;
+
+import org.phenotips.vocabulary.VocabularyManager;
+import org.phenotips.vocabulary.VocabularyTerm;
+
+import org.xwiki.test.mockito.MockitoComponentMockingRule;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests for the {@link PhenotypeAncestorIndex} component.
+ *
+ * @version $Id$
+ */
+public class PhenotypeAncestorIndexTest
+{
+    @Rule
+    public final MockitoComponentMockingRule<PhenotypeAncestorIndex> mocker =
+        new MockitoComponentMockingRule<PhenotypeAncestorIndex>(PhenotypeAncestorIndex.class);
+
+    private VocabularyManager vocabularyManager;
+
+    @Before
+    public void setup() throws Exception
+    {
+        this.vocabularyManager = this.mocker.getInstance(VocabularyManager.class);
+        VocabularyTerm root = mockTerm("HP:0000001");
+        VocabularyTerm parent = mockTerm("HP:0000002");
+        VocabularyTerm child1 = mockTerm("HP:0000003");
+        VocabularyTerm child2 = mockTerm("HP:0000004");
+        when(parent.getAncestorsAndSelf()).thenReturn(new LinkedHashSet<>(Arrays.asList(parent, root)));
+        when(child1.getAncestorsAndSelf()).thenReturn(new LinkedHashSet<>(Arrays.asList(child1, parent, root)));
+        when(child2.getAncestorsAndSelf()).thenReturn(new LinkedHashSet<>(Arrays.asList(child2, parent, root)));
+    }
+
+    @Test
+    public void closuresAreComputedOnceAndMerged() throws Exception
+    {
+        PhenotypeAncestorIndex index = this.mocker.getComponentUnderTest();
+        Assert.assertEquals(Arrays.asList("HP:0000001", "HP:0000002", "HP:0000003"),
+            Arrays.asList(index.getAncestorsAndSelf("HP:0000003").toArray()));
+        Assert.assertEquals(Arrays.asList("HP:0000001", "HP:0000002", "HP:0000003", "HP:0000004", "free text"),
+            Arrays.asList(index.getAncestorsAndSelf(Arrays.asList("HP:0000004", "free text", "HP:0000003")).toArray()));
+
+        verify(this.vocabularyManager, times(1)).resolveTerm("HP:0000003");
+        verify(this.vocabularyManager, times(1)).resolveTerm("HP:0000004");
+    }
+
+    @Test
+    public void unknownTermsAreReturnedAsIs() throws Exception
+    {
+        PhenotypeAncestorIndex index = this.mocker.getComponentUnderTest();
+        Assert.assertEquals(Collections.singleton("free text"), index.getAncestorsAndSelf("free text"));
+        Assert.assertEquals(Collections.singleton("free text"), index.getAncestorsAndSelf("free text"));
+        verify(this.vocabularyManager, times(2)).resolveTerm("free text");
+    }
+
+    @Test
+    public void clearForgetsClosures() throws Exception
+    {
+        PhenotypeAncestorIndex index = this.mocker.getComponentUnderTest();
+        index.getAncestorsAndSelf("HP:0000002");
+        index.clear();
+        index.getAncestorsAndSelf("HP:0000002");
+        verify(this.vocabularyManager, times(2)).resolveTerm("HP:0000002");
+    }
+
+    private VocabularyTerm mockTerm(String id)
+    {
+        VocabularyTerm term = mock(VocabularyTerm.class);
+        when(term.getId()).thenReturn(id);
+        when(this.vocabularyManager.resolveTerm(id)).thenReturn(term);
+        return term;
+    }
+}
@@ -18,6 +18,7 @@
 package org.phenotips.data.internal;
 
 import org.phenotips.data.Patient;
+import org.phenotips.data.PatientRecordInitializer;
 import org.phenotips.data.PatientRepository;
 import org.phenotips.security.authorization.AuthorizationService;
 
@@ -27,6 +28,7 @@
 import org.xwiki.model.reference.DocumentReference;
 import org.xwiki.model.reference.EntityReference;
 import org.xwiki.model.reference.EntityReferenceResolver;
+import org.xwiki.model.reference.EntityReferenceSerializer;
 import org.xwiki.security.authorization.Right;
 import org.xwiki.test.mockito.MockitoComponentMockingRule;
 import org.xwiki.users.User;
@@ -96,7 +98,7 @@ public void setup() throws ComponentLookupException
         when(this.internalRepo.get("P0123456")).thenReturn(this.patient);
         when(this.internalRepo.getByName("Neuro123")).thenReturn(this.patient);
         when(this.internalRepo.create()).thenReturn(this.patient);
-        when(this.internalRepo.create(this.currentUser.getProfileDocument())).thenReturn(this.patient);
+        when(this.internalRepo.create(this.currentUser.getProfileDocument(), null)).thenReturn(this.patient);
         when(this.internalRepo.load(any(DocumentModelBridge.class))).thenReturn(this.patient);
 
         EntityReferenceResolver<EntityReference> currentResolver =
@@ -165,6 +167,23 @@ public void createDeniesUnauthorizedAccess() throws ComponentLookupException
         this.mocker.getComponentUnderTest().create();
     }
 
+    @Test
+    public void createWithFillerForwardsFillerWhenAuthorized() throws ComponentLookupException
+    {
+        DocumentReference profile = this.currentUser.getProfileDocument();
+        EntityReferenceSerializer<String> serializer =
+            this.mocker.getInstance(EntityReferenceSerializer.TYPE_STRING);
+        when(serializer.serialize(profile)).thenReturn("xwiki:XWiki.jdoe");
+        UserManager userManager = this.mocker.getInstance(UserManager.class);
+        when(userManager.getUser("xwiki:XWiki.jdoe")).thenReturn(this.currentUser);
+        PatientRecordInitializer filler = mock(PatientRecordInitializer.class);
+        when(this.internalRepo.create(profile, filler)).thenReturn(this.patient);
+        when(this.access.hasAccess(this.currentUser, Right.EDIT, this.patientReference.getParent()))
+            .thenReturn(true);
+
+        Assert.assertSame(this.securePatient, this.componentUnderTest.create(profile, filler));
+    }
+
     @Test
     public void loadForwardsCalls() throws ComponentLookupException
     {
@@ -54,6 +54,25 @@
      */
     double valueToStandardDeviation(boolean male, float ageInMonths, double value);
 
+    /**
+     * Get the percentiles and standard deviations for many measured values at once, for example all the measurements of
+     * this type in a cohort. The results are written into the provided arrays, so that large cohorts can be processed
+     * without allocating memory for each measurement.
+     *
+     * @param male for each measurement, {@code true} for boys, {@code false} for girls
+     * @param agesInMonths for each measurement, the age of the measurement, in months
+     * @param values the measured values, usually in centimeters or kilograms
+     * @param percentiles where to store the percentile of each measurement, as returned by
+     *            {@link #valueToPercentile(boolean, float, double)}; may be {@code null} if percentiles aren't needed
+     * @param deviations where to store the standard deviation of each measurement, as returned by
+     *            {@link #valueToStandardDeviation(boolean, float, double)}; may be {@code null} if standard deviations
+     *            aren't needed
+     * @throws IllegalArgumentException if the arrays don't all have the same length
+     * @since 1.4
+     */
+    void valuesToPercentiles(boolean[] male, float[] agesInMonths, double[] values, int[] percentiles,
+        double[] deviations);
+
     /**
      * Get the measurement that would correspond to the given percentile.
      *
@@ -90,4 +109,16 @@
      * @return a list of chart configurations, or an empty list if no charts are configured for this measurement
      */
     List<MeasurementsChartConfiguration> getChartsConfigurations();
+
+    /**
+     * Get the percentile and standard deviation curves to draw on a chart. The curves for the
+     * {@link #getChartsConfigurations() configured charts} are computed once, when the handler is initialized; curves
+     * for other charts are computed on request.
+     *
+     * @param male {@code true} for boys, {@code false} for girls
+     * @param chart the configuration of the chart, only its age limits are taken into account
+     * @return the curves, with one value for each month of age between the age limits of the chart
+     * @since 1.4
+     */
+    MeasurementsChartCurves getChartCurves(boolean male, MeasurementsChartConfiguration chart);
 }
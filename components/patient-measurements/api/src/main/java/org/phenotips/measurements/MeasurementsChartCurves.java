@@ -0,0 +1,111 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.measurements;
+
+import org.xwiki.stability.Unstable;
+
+/**
+ * The percentile and standard deviation curves drawn on a measurements chart, for one sex. The curves only depend on
+ * the measurement type, the sex and the age limits of the chart, so they are computed once, with one value for each
+ * month of age between the {@link #getLowerAgeLimit() lower} and the {@link #getUpperAgeLimit() upper} age limits of
+ * the chart, both inclusive.
+ *
+ * @version $Id$
+ * @since 1.4
+ */
+@Unstable
+public interface MeasurementsChartCurves
+{
+    /** The percentiles for which curves are always available. */
+    int[] STANDARD_PERCENTILES = new int[] { 3, 10, 25, 50, 75, 90, 97 };
+
+    /** The standard deviations for which curves are always available. */
+    int[] STANDARD_DEVIATIONS = new int[] { -3, -2, -1, 0, 1, 2, 3 };
+
+    /**
+     * Get the measurement for which these curves are computed.
+     *
+     * @return the measurement identifier
+     */
+    String getMeasurementType();
+
+    /**
+     * Get the sex for which these curves are computed.
+     *
+     * @return {@code true} for boys, {@code false} for girls
+     */
+    boolean isMale();
+
+    /**
+     * Get the age of the first value of each curve, in months.
+     *
+     * @return the lower age limit of the chart
+     */
+    int getLowerAgeLimit();
+
+    /**
+     * Get the age of the last value of each curve, in months.
+     *
+     * @return the upper age limit of the chart
+     */
+    int getUpperAgeLimit();
+
+    /**
+     * Get the measurement corresponding to a percentile at a certain age.
+     *
+     * @param percentile a number between 0 and 100 (inclusive) specifying the target percentile
+     * @param ageInMonths the age, in months
+     * @return the same value as {@link MeasurementHandler#percentileToValue(boolean, float, int)}, read from the
+     *         precomputed curve if the age is between the limits of the chart
+     */
+    double getPercentileValue(int percentile, int ageInMonths);
+
+    /**
+     * Get the measurement corresponding to a standard deviation at a certain age.
+     *
+     * @param deviation the target standard deviation
+     * @param ageInMonths the age, in months
+     * @return the same value as {@link MeasurementHandler#standardDeviationToValue(boolean, float, double)}, read from
+     *         the precomputed curve if the age is between the limits of the chart
+     */
+    double getStandardDeviationValue(int deviation, int ageInMonths);
+
+    /**
+     * Get a whole percentile curve.
+     *
+     * @param percentile a number between 0 and 100 (inclusive) specifying the target percentile
+     * @return a new array holding the value for each month of age between the age limits of the chart, both inclusive
+     */
+    double[] getPercentileCurve(int percentile);
+
+    /**
+     * Get a whole standard deviation curve.
+     *
+     * @param deviation the target standard deviation
+     * @return a new array holding the value for each month of age between the age limits of the chart, both inclusive
+     */
+    double[] getStandardDeviationCurve(int deviation);
+
+    /**
+     * Get an identifier of the content of these curves, which only changes when the values of the standard curves
+     * change, for example after the measurement tables are updated. Useful for validating cached copies of the curves.
+     *
+     * @return a hexadecimal hash of the standard curves
+     */
+    String getVersion();
+}
@@ -20,6 +20,7 @@
 import org.phenotips.measurements.MeasurementHandler;
 import org.phenotips.measurements.MeasurementsChartConfiguration;
 import org.phenotips.measurements.MeasurementsChartConfigurationsFactory;
+import org.phenotips.measurements.MeasurementsChartCurves;
 
 import org.xwiki.component.phase.Initializable;
 import org.xwiki.component.phase.InitializationException;
@@ -28,9 +29,11 @@
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.UnsupportedEncodingException;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import javax.inject.Inject;
 
@@ -38,50 +41,28 @@
 import org.slf4j.Logger;
 
 /**
- * Base class for implementing a {@link MeasurementHandler}.
+ * Base class for implementing a {@link MeasurementHandler}. The LMS triplets are stored in dense tables of primitive
+ * values, with one entry for each day of age, and with the gaps in the source data already filled in by linear
+ * interpolation, so that looking up the triplet for an age is a simple array access. The curves drawn on the
+ * configured charts are also computed once, during initialization.
  *
  * @version $Id$
  */
 public abstract class AbstractMeasurementHandler implements MeasurementHandler, Initializable
 {
-    /** Tool used for computing the percentile corresponding to a given z-score. */
+    /** Tool used for computing the value corresponding to a given percentile. */
     private static final NormalDistribution NORMAL = new NormalDistribution();
 
+    /** The average number of days in a month. */
+    private static final double DAYS_PER_MONTH = 30.4375;
+
     /**
-     * Triplet storing the median (M), the generalized coefficient of variation (S), and the power in the Box-Cox
-     * transformation (L) values used to compute the percentile corresponding to a given value.
+     * The z-scores where the rounded percentile changes: the percentile of a z-score is the number of thresholds not
+     * greater than it. The thresholds are computed once, using the same rounding of the normal cumulative probability
+     * as a direct computation, so that converting a z-score into a percentile is a short binary search, without
+     * evaluating the error function.
      */
-    protected static class LMS
-    {
-        /** L value, the power. */
-        private double l;
-
-        /** M value, the median. */
-        private double m;
-
-        /** S value, the generalized coefficient of variation. */
-        private double s;
-
-        /**
-         * Constructor specifying all three values of the triplet.
-         *
-         * @param l L value, the power
-         * @param m M value, the median
-         * @param s S value, the generalized coefficient of variation
-         */
-        public LMS(double l, double m, double s)
-        {
-            this.l = l;
-            this.m = m;
-            this.s = s;
-        }
-
-        @Override
-        public String toString()
-        {
-            return String.format("[%.6g, %.6g, %.6g]", this.l, this.m, this.s);
-        }
-    }
+    private static final double[] PERCENTILE_THRESHOLDS = computePercentileThresholds();
 
     /** Logging helper object. */
     @Inject
@@ -91,21 +72,21 @@ public String toString()
     @Inject
     private MeasurementsChartConfigurationsFactory settingsFactory;
 
-    /**
-     * Table storing the LMS triplets for each month of the normal development of boys corresponding to this measurement
-     * type.
-     */
-    private List<LMS> measurementsForAgeBoys;
+    /** Table storing the LMS triplets for each day of the normal development of boys for this measurement type. */
+    private LMSTable measurementsForAgeBoys;
 
     /**
-     * Table storing the LMS triplets for each month of the normal development of girls corresponding to this
-     * measurement type.
+     * Table storing the LMS triplets for each day of the normal development of girls for this measurement type, the
+     * same as the boys table if there are no distinct measurements for girls.
      */
-    private List<LMS> measurementsForAgeGirls;
+    private LMSTable measurementsForAgeGirls;
 
     /** The list of chart settings configured for this measurement. */
     private List<MeasurementsChartConfiguration> chartConfigurations;
 
+    /** The precomputed curves for the configured charts, for both sexes. */
+    private Map<String, MeasurementsChartCurves> chartCurves;
+
     /**
      * Get the name of this specific kind of measurements.
      *
@@ -116,35 +97,67 @@ public String toString()
     @Override
     public int valueToPercentile(boolean male, float ageInMonths, double value)
     {
-        LMS lms = getLMSForAge(getLMSList(male), ageInMonths);
-        return valueToPercentile(value, lms);
+        LMSTable table = getLMSTable(male);
+        int index = table.indexOf(ageInMonths);
+        if (index < 0) {
+            return -1;
+        }
+        return zScoreToPercentile(table.zScore(index, value));
     }
 
     @Override
     public double valueToStandardDeviation(boolean male, float ageInMonths, double value)
     {
-        LMS lms = getLMSForAge(getLMSList(male), ageInMonths);
-        return valueToStandardDeviation(value, lms);
+        LMSTable table = getLMSTable(male);
+        int index = table.indexOf(ageInMonths);
+        if (index < 0) {
+            return Double.NaN;
+        }
+        return table.zScore(index, value);
+    }
+
+    @Override
+    public void valuesToPercentiles(boolean[] male, float[] agesInMonths, double[] values, int[] percentiles,
+        double[] deviations)
+    {
+        int count = values.length;
+        if (male.length != count || agesInMonths.length != count || percentiles != null && percentiles.length != count
+            || deviations != null && deviations.length != count) {
+            throw new IllegalArgumentException("All the measurement arrays must have the same length");
+        }
+        for (int i = 0; i < count; ++i) {
+            LMSTable table = getLMSTable(male[i]);
+            int index = table.indexOf(agesInMonths[i]);
+            double z = index < 0 ? Double.NaN : table.zScore(index, values[i]);
+            if (percentiles != null) {
+                percentiles[i] = index < 0 ? -1 : zScoreToPercentile(z);
+            }
+            if (deviations != null) {
+                deviations[i] = z;
+            }
+        }
     }
 
     @Override
     public double percentileToValue(boolean male, float ageInMonths, int targetPercentile)
     {
-        LMS lms = getLMSForAge(getLMSList(male), ageInMonths);
-        if (lms == null) {
+        LMSTable table = getLMSTable(male);
+        int index = table.indexOf(ageInMonths);
+        if (index < 0) {
             return Double.NaN;
         }
-        return percentileToValue(targetPercentile, lms.m, lms.l, lms.s);
+        return percentileToValue(targetPercentile, table.m(index), table.l(index), table.s(index));
     }
 
     @Override
     public double standardDeviationToValue(boolean male, float ageInMonths, double targetDeviation)
     {
-        LMS lms = getLMSForAge(getLMSList(male), ageInMonths);
-        if (lms == null) {
+        LMSTable table = getLMSTable(male);
+        int index = table.indexOf(ageInMonths);
+        if (index < 0) {
             return Double.NaN;
         }
-        return standardDeviationToValue(targetDeviation, lms.m, lms.l, lms.s);
+        return standardDeviationToValue(targetDeviation, table.m(index), table.l(index), table.s(index));
     }
 
     @Override
@@ -159,11 +172,49 @@ public List<MeasurementsChartConfiguration> getChartsConfigurations()
         return this.chartConfigurations;
     }
 
+    @Override
+    public MeasurementsChartCurves getChartCurves(boolean male, MeasurementsChartConfiguration chart)
+    {
+        MeasurementsChartCurves result =
+            this.chartCurves.get(getCurvesKey(male, chart.getLowerAgeLimit(), chart.getUpperAgeLimit()));
+        if (result == null) {
+            result = new DefaultMeasurementsChartCurves(this, getName(), male, chart.getLowerAgeLimit(),
+                chart.getUpperAgeLimit());
+        }
+        return result;
+    }
+
     @Override
     public void initialize() throws InitializationException
     {
         readData();
         this.chartConfigurations = this.settingsFactory.loadConfigurationsForMeasurementType(getName());
+        precomputeChartCurves();
+    }
+
+    /**
+     * Compute the curves for each configured chart, for both boys and girls.
+     */
+    private void precomputeChartCurves()
+    {
+        Map<String, MeasurementsChartCurves> curves = new HashMap<>();
+        if (this.chartConfigurations != null) {
+            for (MeasurementsChartConfiguration chart : this.chartConfigurations) {
+                for (boolean male : new boolean[] { true, false }) {
+                    String key = getCurvesKey(male, chart.getLowerAgeLimit(), chart.getUpperAgeLimit());
+                    if (!curves.containsKey(key)) {
+                        curves.put(key, new DefaultMeasurementsChartCurves(this, getName(), male,
+                            chart.getLowerAgeLimit(), chart.getUpperAgeLimit()));
+                    }
+                }
+            }
+        }
+        this.chartCurves = curves;
+    }
+
+    private String getCurvesKey(boolean male, int lowerAgeLimit, int upperAgeLimit)
+    {
+        return (male ? "M" : "F") + lowerAgeLimit + '-' + upperAgeLimit;
     }
 
     /**
@@ -173,109 +224,35 @@ public void initialize() throws InitializationException
      */
     private void readData() throws InitializationException
     {
-        BufferedReader in = null;
         String filename = getName() + ".csv";
-        this.measurementsForAgeBoys = new ArrayList<>();
-        this.measurementsForAgeGirls = new ArrayList<>();
+        List<double[]> boys = new ArrayList<>();
+        List<double[]> girls = new ArrayList<>();
         InputStream inStream = this.getClass().getResourceAsStream(filename);
         if (inStream == null) {
             throw new InitializationException("Missing measurements tables for [" + this.getName() + "]");
         }
-        try {
-            in = new BufferedReader(new InputStreamReader(inStream, "UTF-8"));
-        } catch (UnsupportedEncodingException ex) {
-            // This should never happen, UTF-8 is always present
-            in = new BufferedReader(new InputStreamReader(inStream));
-        }
-        String line;
-        try {
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(inStream, StandardCharsets.UTF_8))) {
+            String line;
             while ((line = in.readLine()) != null) {
                 String[] tokens = line.split(",");
                 if (tokens.length < 5) {
                     continue;
                 }
                 int day = Integer.parseInt(tokens[1], 10);
-                double l = Double.parseDouble(tokens[2]);
-                double m = Double.parseDouble(tokens[3]);
-                double s = Double.parseDouble(tokens[4]);
-                LMS lms = new LMS(l, m, s);
-                if ("1".equals(tokens[0])) {
-                    while (day >= this.measurementsForAgeBoys.size()) {
-                        this.measurementsForAgeBoys.add(null);
-                    }
-                    this.measurementsForAgeBoys.set(day, lms);
-                } else {
-                    while (day >= this.measurementsForAgeGirls.size()) {
-                        this.measurementsForAgeGirls.add(null);
-                    }
-                    this.measurementsForAgeGirls.set(day, lms);
+                double[] lms = new double[] { Double.parseDouble(tokens[2]), Double.parseDouble(tokens[3]),
+                    Double.parseDouble(tokens[4]) };
+                List<double[]> target = "1".equals(tokens[0]) ? boys : girls;
+                while (day >= target.size()) {
+                    target.add(null);
                 }
+                target.set(day, lms);
             }
         } catch (IOException ex) {
             // This shouldn't happen
             this.logger.error("Failed to read data table [{}]: {}", new Object[] { filename, ex.getMessage(), ex });
         }
-    }
-
-    /**
-     * Extract the LMS triplet corresponding to a given month from the given list. If the requested month is before the
-     * first element of the list, {@code null} is returned. If a valid entry corresponding to the requested month is
-     * found in the list, then return that entry. If there's no entry for the requested month, but there are valid
-     * entries in previous and later months, a linear interpolation of the nearest surrounding entries is computed and
-     * returned. Otherwise, if the requested month is beyond the last valid entry, return the last valid entry.
-     *
-     * @param list the standard list of measurements where to look in
-     * @param ageInMonths the target age (in months) for which to compute the LMS triplet
-     * @return a LMS triplet computed according to the rules above, possibly {@code null}
-     */
-    protected LMS getLMSForAge(List<LMS> list, float ageInMonths)
-    {
-        // LMS data is stored per day, currently but input is given as a float for months
-        int ageInDays = (int) Math.round(ageInMonths * 30.4375);
-        if (ageInDays < 0) {
-            return null;
-        } else if (ageInDays >= list.size()) {
-            return list.get(list.size() - 1);
-        }
-
-        LMS result;
-        result = list.get(ageInDays);
-        if (result == null) {
-            int lowerAge = ageInDays - 1;
-            while (lowerAge >= 0 && list.get(lowerAge) == null) {
-                --lowerAge;
-            }
-            if (lowerAge < 0) {
-                return null;
-            }
-            int upperAge = ageInDays + 1;
-            while (upperAge < list.size() && list.get(upperAge) == null) {
-                ++upperAge;
-            }
-            LMS lowerLMS = list.get(lowerAge);
-            LMS upperLMS = list.get(upperAge);
-            double delta = ((double) ageInDays - lowerAge) / (upperAge - lowerAge);
-            result =
-                new LMS(lowerLMS.l + (upperLMS.l - lowerLMS.l) * delta, lowerLMS.m + (upperLMS.m - lowerLMS.m) * delta,
-                    lowerLMS.s + (upperLMS.s - lowerLMS.s) * delta);
-        }
-        return result;
-    }
-
-    /**
-     * Compute the percentile corresponding to a given absolute value, according to a normal distribution specified by
-     * the given Box-Cox triplet.
-     *
-     * @param x the absolute value to fit into the normal distribution
-     * @param lms the parameters defining the normal distribution
-     * @return a number between 0 and 100 (inclusive) specifying the percentile of this measurement
-     */
-    protected int valueToPercentile(double x, LMS lms)
-    {
-        if (lms == null) {
-            return -1;
-        }
-        return valueToPercentile(x, lms.m, lms.l, lms.s);
+        this.measurementsForAgeBoys = new LMSTable(boys);
+        this.measurementsForAgeGirls = girls.isEmpty() ? this.measurementsForAgeBoys : new LMSTable(girls);
     }
 
     /**
@@ -290,25 +267,7 @@ protected int valueToPercentile(double x, LMS lms)
      */
     protected int valueToPercentile(double x, double m, double l, double s)
     {
-        double z = (l != 0) ? ((Math.pow(x / m, l) - 1) / (l * s)) : (Math.log(x / m) / s);
-        double p = NORMAL.cumulativeProbability(z) * 100;
-        return (int) Math.round(p);
-    }
-
-    /**
-     * Compute the standard deviation corresponding to a given absolute value, according to a normal distribution
-     * specified by the given Box-Cox triplet.
-     *
-     * @param x the absolute value to fit into the normal distribution
-     * @param lms the parameters defining the normal distribution
-     * @return a number specifying how many standard deviations does this measurement deviate from the mean
-     */
-    protected double valueToStandardDeviation(double x, LMS lms)
-    {
-        if (lms == null) {
-            return Double.NaN;
-        }
-        return valueToStandardDeviation(x, lms.m, lms.l, lms.s);
+        return zScoreToPercentile(valueToStandardDeviation(x, m, l, s));
     }
 
     /**
@@ -323,7 +282,7 @@ protected double valueToStandardDeviation(double x, LMS lms)
      */
     protected double valueToStandardDeviation(double x, double m, double l, double s)
     {
-        return (l != 0) ? ((Math.pow(x / m, l) - 1) / (l * s)) : (Math.log(x / m) / s);
+        return zScore(x, m, l, s);
     }
 
     /**
@@ -366,17 +325,157 @@ protected double standardDeviationToValue(double deviation, double m, double l,
     }
 
     /**
-     * Choose between the girls and boys measurements list, depending on the requested sex and on the availability of
-     * distinct measurements for girls.
+     * Choose between the girls and boys measurements table, depending on the requested sex.
      *
      * @param male {@code true} for boys, {@code false} for girls
-     * @return a list of {@link LMS} triplets
+     * @return a table of LMS triplets
+     */
+    private LMSTable getLMSTable(boolean male)
+    {
+        return male ? this.measurementsForAgeBoys : this.measurementsForAgeGirls;
+    }
+
+    private static double zScore(double x, double m, double l, double s)
+    {
+        return (l != 0) ? ((Math.pow(x / m, l) - 1) / (l * s)) : (Math.log(x / m) / s);
+    }
+
+    /**
+     * Convert a z-score into the rounded percentile of the standard normal distribution.
+     *
+     * @param z the z-score, may be {@code NaN}
+     * @return a number between 0 and 100 (inclusive); {@code NaN} scores are reported as 0
      */
-    protected List<LMS> getLMSList(boolean male)
+    private static int zScoreToPercentile(double z)
     {
-        if (!male && !this.measurementsForAgeGirls.isEmpty()) {
-            return this.measurementsForAgeGirls;
+        int low = 0;
+        int high = PERCENTILE_THRESHOLDS.length;
+        // NaN is never greater than or equal to a threshold, so it ends up as 0
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (z >= PERCENTILE_THRESHOLDS[middle]) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Finds, for each percentile from 1 to 100, the smallest z-score which rounds to that percentile, by bisection.
+     *
+     * @return the 100 thresholds, in increasing order
+     */
+    private static double[] computePercentileThresholds()
+    {
+        double[] result = new double[100];
+        for (int percentile = 1; percentile <= 100; ++percentile) {
+            double low = -40;
+            double high = 40;
+            while (true) {
+                double middle = low + (high - low) / 2;
+                if (middle <= low || middle >= high) {
+                    break;
+                }
+                if (Math.round(NORMAL.cumulativeProbability(middle) * 100) >= percentile) {
+                    high = middle;
+                } else {
+                    low = middle;
+                }
+            }
+            result[percentile - 1] = high;
+        }
+        return result;
+    }
+
+    /**
+     * Dense table of LMS triplets, one for each day of age starting with the first day present in the source data. The
+     * median (M), the generalized coefficient of variation (S), and the power in the Box-Cox transformation (L) are
+     * interleaved in a single array, so that the three values needed for a computation are next to each other.
+     */
+    private static final class LMSTable
+    {
+        private final double[] values;
+
+        /** The first day for which a triplet is available. */
+        private final int firstDay;
+
+        /** The last day for which a triplet is available. */
+        private final int lastDay;
+
+        /**
+         * Builds the dense table from the sparse source data.
+         *
+         * @param triplets the {@code [L, M, S]} triplets for each day, with {@code null} for the missing days; the last
+         *            entry must not be {@code null}
+         */
+        LMSTable(List<double[]> triplets)
+        {
+            int first = 0;
+            while (first < triplets.size() && triplets.get(first) == null) {
+                ++first;
+            }
+            this.firstDay = first;
+            this.lastDay = triplets.size() - 1;
+            this.values = new double[Math.max(0, this.lastDay - this.firstDay + 1) * 3];
+            int lower = first;
+            for (int day = first; day <= this.lastDay; ++day) {
+                double[] lms = triplets.get(day);
+                if (lms != null) {
+                    lower = day;
+                } else {
+                    int upper = day + 1;
+                    while (triplets.get(upper) == null) {
+                        ++upper;
+                    }
+                    double[] lowerLMS = triplets.get(lower);
+                    double[] upperLMS = triplets.get(upper);
+                    double delta = ((double) day - lower) / (upper - lower);
+                    lms = new double[] { lowerLMS[0] + (upperLMS[0] - lowerLMS[0]) * delta,
+                        lowerLMS[1] + (upperLMS[1] - lowerLMS[1]) * delta,
+                        lowerLMS[2] + (upperLMS[2] - lowerLMS[2]) * delta };
+                }
+                System.arraycopy(lms, 0, this.values, (day - first) * 3, 3);
+            }
+        }
+
+        /**
+         * Finds the position of the triplet for the given age. Ages before the first available day have no triplet,
+         * while ages after the last available day use the last triplet.
+         *
+         * @param ageInMonths the target age, in months
+         * @return the position of the triplet, or {@code -1} if there's no triplet for this age
+         */
+        int indexOf(float ageInMonths)
+        {
+            // LMS data is stored per day, but input is given as a float for months
+            int ageInDays = (int) Math.round(ageInMonths * DAYS_PER_MONTH);
+            if (ageInDays < this.firstDay || this.values.length == 0) {
+                return -1;
+            }
+            return (Math.min(ageInDays, this.lastDay) - this.firstDay) * 3;
+        }
+
+        double l(int index)
+        {
+            return this.values[index];
+        }
+
+        double m(int index)
+        {
+            return this.values[index + 1];
+        }
+
+        double s(int index)
+        {
+            return this.values[index + 2];
+        }
+
+        double zScore(int index, double x)
+        {
+            return AbstractMeasurementHandler.zScore(x, this.values[index + 1], this.values[index],
+                this.values[index + 2]);
         }
-        return this.measurementsForAgeBoys;
     }
 }
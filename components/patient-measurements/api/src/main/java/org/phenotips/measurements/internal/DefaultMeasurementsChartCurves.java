@@ -0,0 +1,222 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.measurements.internal;
+
+import org.phenotips.measurements.MeasurementHandler;
+import org.phenotips.measurements.MeasurementsChartCurves;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.apache.commons.lang3.ArrayUtils;
+
+/**
+ * Default implementation of {@link MeasurementsChartCurves}. The standard curves are computed in the constructor and
+ * stored in a single array of primitive values, one row for each curve; the curves for the other percentiles, needed
+ * for drawing guidelines through the actual measurements of a patient, are computed the first time they are needed,
+ * and kept afterwards.
+ *
+ * @version $Id$
+ * @since 1.4
+ */
+final class DefaultMeasurementsChartCurves implements MeasurementsChartCurves
+{
+    private final MeasurementHandler handler;
+
+    private final String measurementType;
+
+    private final boolean male;
+
+    private final int lowerAgeLimit;
+
+    private final int upperAgeLimit;
+
+    /** How many values each curve has. */
+    private final int length;
+
+    /** The standard percentile curves, followed by the standard deviation curves. */
+    private final double[] standardCurves;
+
+    /** The other percentile curves, indexed by the percentile, computed when first needed. */
+    private final AtomicReferenceArray<double[]> otherPercentileCurves = new AtomicReferenceArray<>(101);
+
+    private final String version;
+
+    /**
+     * Constructor which computes the standard curves.
+     *
+     * @param handler the handler of the target measurement type
+     * @param measurementType the name of the measurement type
+     * @param male {@code true} for boys, {@code false} for girls
+     * @param lowerAgeLimit the age of the first value of each curve, in months
+     * @param upperAgeLimit the age of the last value of each curve, in months
+     */
+    DefaultMeasurementsChartCurves(MeasurementHandler handler, String measurementType, boolean male,
+        int lowerAgeLimit, int upperAgeLimit)
+    {
+        this.handler = handler;
+        this.measurementType = measurementType;
+        this.male = male;
+        this.lowerAgeLimit = lowerAgeLimit;
+        this.upperAgeLimit = Math.max(lowerAgeLimit, upperAgeLimit);
+        this.length = this.upperAgeLimit - lowerAgeLimit + 1;
+
+        int curves = STANDARD_PERCENTILES.length + STANDARD_DEVIATIONS.length;
+        this.standardCurves = new double[curves * this.length];
+        int offset = 0;
+        for (int percentile : STANDARD_PERCENTILES) {
+            computePercentileCurve(percentile, this.standardCurves, offset);
+            offset += this.length;
+        }
+        for (int deviation : STANDARD_DEVIATIONS) {
+            computeDeviationCurve(deviation, this.standardCurves, offset);
+            offset += this.length;
+        }
+        this.version = computeVersion();
+    }
+
+    @Override
+    public String getMeasurementType()
+    {
+        return this.measurementType;
+    }
+
+    @Override
+    public boolean isMale()
+    {
+        return this.male;
+    }
+
+    @Override
+    public int getLowerAgeLimit()
+    {
+        return this.lowerAgeLimit;
+    }
+
+    @Override
+    public int getUpperAgeLimit()
+    {
+        return this.upperAgeLimit;
+    }
+
+    @Override
+    public double getPercentileValue(int percentile, int ageInMonths)
+    {
+        if (ageInMonths < this.lowerAgeLimit || ageInMonths > this.upperAgeLimit) {
+            return this.handler.percentileToValue(this.male, ageInMonths, percentile);
+        }
+        int index = ageInMonths - this.lowerAgeLimit;
+        int standard = ArrayUtils.indexOf(STANDARD_PERCENTILES, percentile);
+        if (standard >= 0) {
+            return this.standardCurves[standard * this.length + index];
+        }
+        return getOtherPercentileCurve(percentile)[index];
+    }
+
+    @Override
+    public double getStandardDeviationValue(int deviation, int ageInMonths)
+    {
+        int standard = ArrayUtils.indexOf(STANDARD_DEVIATIONS, deviation);
+        if (standard < 0 || ageInMonths < this.lowerAgeLimit || ageInMonths > this.upperAgeLimit) {
+            return this.handler.standardDeviationToValue(this.male, ageInMonths, deviation);
+        }
+        return this.standardCurves[(STANDARD_PERCENTILES.length + standard) * this.length + ageInMonths
+            - this.lowerAgeLimit];
+    }
+
+    @Override
+    public double[] getPercentileCurve(int percentile)
+    {
+        int standard = ArrayUtils.indexOf(STANDARD_PERCENTILES, percentile);
+        if (standard >= 0) {
+            int from = standard * this.length;
+            return Arrays.copyOfRange(this.standardCurves, from, from + this.length);
+        }
+        return getOtherPercentileCurve(percentile).clone();
+    }
+
+    @Override
+    public double[] getStandardDeviationCurve(int deviation)
+    {
+        int standard = ArrayUtils.indexOf(STANDARD_DEVIATIONS, deviation);
+        if (standard >= 0) {
+            int from = (STANDARD_PERCENTILES.length + standard) * this.length;
+            return Arrays.copyOfRange(this.standardCurves, from, from + this.length);
+        }
+        double[] result = new double[this.length];
+        computeDeviationCurve(deviation, result, 0);
+        return result;
+    }
+
+    @Override
+    public String getVersion()
+    {
+        return this.version;
+    }
+
+    private double[] getOtherPercentileCurve(int percentile)
+    {
+        // Percentiles outside the [0, 100] range are treated as 0, respectively 100, by the handler
+        int key = Math.max(0, Math.min(100, percentile));
+        double[] result = this.otherPercentileCurves.get(key);
+        if (result == null) {
+            result = new double[this.length];
+            computePercentileCurve(key, result, 0);
+            // Concurrent computations yield the same values, so it doesn't matter which one is kept
+            this.otherPercentileCurves.set(key, result);
+        }
+        return result;
+    }
+
+    private void computePercentileCurve(int percentile, double[] target, int offset)
+    {
+        for (int i = 0; i < this.length; ++i) {
+            target[offset + i] = this.handler.percentileToValue(this.male, this.lowerAgeLimit + i, percentile);
+        }
+    }
+
+    private void computeDeviationCurve(int deviation, double[] target, int offset)
+    {
+        for (int i = 0; i < this.length; ++i) {
+            target[offset + i] = this.handler.standardDeviationToValue(this.male, this.lowerAgeLimit + i, deviation);
+        }
+    }
+
+    private String computeVersion()
+    {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(this.measurementType.getBytes(StandardCharsets.UTF_8));
+            ByteBuffer buffer = ByteBuffer.allocate(9 + 8 * this.standardCurves.length);
+            buffer.put((byte) (this.male ? 1 : 0)).putInt(this.lowerAgeLimit).putInt(this.upperAgeLimit);
+            for (double value : this.standardCurves) {
+                buffer.putDouble(value);
+            }
+            digest.update(buffer.array());
+            return String.format("%064x", new BigInteger(1, digest.digest()));
+        } catch (NoSuchAlgorithmException ex) {
+            // SHA-256 is always available in Java
+            return Integer.toHexString(Arrays.hashCode(this.standardCurves));
+        }
+    }
+}
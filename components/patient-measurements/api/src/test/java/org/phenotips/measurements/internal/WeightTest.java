@@ -18,6 +18,8 @@
 package org.phenotips.measurements.internal;
 
 import org.phenotips.measurements.MeasurementHandler;
+import org.phenotips.measurements.MeasurementsChartConfiguration;
+import org.phenotips.measurements.MeasurementsChartCurves;
 
 import org.xwiki.component.manager.ComponentLookupException;
 import org.xwiki.test.mockito.MockitoComponentMockingRule;
@@ -26,6 +28,9 @@
 import org.junit.Rule;
 import org.junit.Test;
 
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
 /**
  * Tests for the {@link WeightMeasurementHandler} component.
  *
@@ -66,6 +71,36 @@ public void testValueToStandardDeviation() throws ComponentLookupException
         Assert.assertTrue(Double.isNaN(this.mocker.getComponentUnderTest().valueToStandardDeviation(true, -1, 4.0)));
     }
 
+    @Test
+    public void testValuesToPercentiles() throws ComponentLookupException
+    {
+        MeasurementHandler handler = this.mocker.getComponentUnderTest();
+        boolean[] male = new boolean[] { true, false, true, true, false, true };
+        float[] ages = new float[] { 0, 0, 1000, 349, 359, -1 };
+        double[] values = new double[] { 3.35, 3.23, 71.9, 67.0, 49.0, 4.0 };
+        int[] percentiles = new int[values.length];
+        double[] deviations = new double[values.length];
+        handler.valuesToPercentiles(male, ages, values, percentiles, deviations);
+        for (int i = 0; i < values.length; ++i) {
+            Assert.assertEquals(handler.valueToPercentile(male[i], ages[i], values[i]), percentiles[i]);
+            Assert.assertEquals(handler.valueToStandardDeviation(male[i], ages[i], values[i]), deviations[i], 0);
+        }
+        Assert.assertEquals(-1, percentiles[5]);
+        Assert.assertTrue(Double.isNaN(deviations[5]));
+
+        // Only the percentiles are needed
+        percentiles = new int[values.length];
+        handler.valuesToPercentiles(male, ages, values, percentiles, null);
+        Assert.assertEquals(32, percentiles[3]);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testValuesToPercentilesRejectsMismatchedArrays() throws ComponentLookupException
+    {
+        this.mocker.getComponentUnderTest().valuesToPercentiles(new boolean[2], new float[2], new double[2],
+            new int[1], null);
+    }
+
     @Test
     public void testPercentileToValue() throws ComponentLookupException
     {
@@ -106,4 +141,31 @@ public void testIsDoubleSided() throws ComponentLookupException
     {
         Assert.assertFalse(this.mocker.getComponentUnderTest().isDoubleSided());
     }
+
+    @Test
+    public void testChartCurves() throws ComponentLookupException
+    {
+        MeasurementHandler handler = this.mocker.getComponentUnderTest();
+        MeasurementsChartConfiguration chart = mock(MeasurementsChartConfiguration.class);
+        when(chart.getLowerAgeLimit()).thenReturn(0);
+        when(chart.getUpperAgeLimit()).thenReturn(36);
+        MeasurementsChartCurves curves = handler.getChartCurves(false, chart);
+        Assert.assertFalse(curves.isMale());
+        Assert.assertEquals(0, curves.getLowerAgeLimit());
+        Assert.assertEquals(36, curves.getUpperAgeLimit());
+        Assert.assertEquals(37, curves.getPercentileCurve(3).length);
+        for (int age = 0; age <= 36; age += 6) {
+            for (int p : new int[] { 3, 50, 97, 42 }) {
+                Assert.assertEquals(handler.percentileToValue(false, age, p), curves.getPercentileValue(p, age), 0);
+            }
+            for (int d = -3; d <= 3; ++d) {
+                Assert.assertEquals(handler.standardDeviationToValue(false, age, d),
+                    curves.getStandardDeviationValue(d, age), 0);
+            }
+        }
+        Assert.assertEquals(handler.percentileToValue(false, 40, 10), curves.getPercentileValue(10, 40), 0);
+        Assert.assertEquals(handler.percentileToValue(false, 12, 42), curves.getPercentileCurve(42)[12], 0);
+        Assert.assertEquals(curves.getVersion(), handler.getChartCurves(false, chart).getVersion());
+        Assert.assertNotEquals(curves.getVersion(), handler.getChartCurves(true, chart).getVersion());
+    }
 }
@@ -0,0 +1,69 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.measurements.rest;
+
+import org.phenotips.rest.ParentResource;
+import org.phenotips.rest.Relation;
+
+import org.xwiki.rest.resources.RootResource;
+import org.xwiki.stability.Unstable;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.HeaderParam;
+import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
+import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+
+/**
+ * Resource providing the percentile and standard deviation curves drawn on the measurements charts. Since the curves
+ * never change while the application runs, responses carry a strong entity tag and can be cached by browsers and
+ * proxies.
+ *
+ * @version $Id$
+ * @since 1.4
+ */
+@Unstable("New API introduced in 1.4")
+@Path("/measurements/{measurement-type}/curves")
+@Relation("https://phenotips.org/rel/measurementsChartCurves")
+@ParentResource(RootResource.class)
+public interface MeasurementsChartCurvesResource
+{
+    /**
+     * Retrieves a JSON representation of the curves drawn on one of the charts configured for a measurement type. The
+     * response contains the age limits of the chart and, for each standard percentile and standard deviation, the
+     * measurement value at each month of age between these limits.
+     *
+     * @param measurementType the measurement identifier, for example {@code weight} or {@code hc}
+     * @param sex {@code M} for boys, {@code F} for girls
+     * @param lowerAgeLimit the lower age limit of the chart, in months; if missing, the first configured chart is used
+     * @param upperAgeLimit the upper age limit of the chart, in months; if missing, the first configured chart with the
+     *            requested lower age limit is used
+     * @param ifNoneMatch the entity tags of the copies already cached by the client, if any
+     * @return the requested curves, {@code 304 Not Modified} if the client's copy is still valid, or an error if the
+     *         measurement type or the chart doesn't exist
+     */
+    @GET
+    @Produces(MediaType.APPLICATION_JSON)
+    Response getChartCurves(@PathParam("measurement-type") String measurementType, @QueryParam("sex") String sex,
+        @QueryParam("lowerAgeLimit") Integer lowerAgeLimit, @QueryParam("upperAgeLimit") Integer upperAgeLimit,
+        @HeaderParam(HttpHeaders.IF_NONE_MATCH) String ifNoneMatch);
+}
@@ -0,0 +1,190 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.measurements.rest.internal;
+
+import org.phenotips.measurements.MeasurementHandler;
+import org.phenotips.measurements.MeasurementsChartConfiguration;
+import org.phenotips.measurements.MeasurementsChartCurves;
+import org.phenotips.measurements.rest.MeasurementsChartCurvesResource;
+
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.manager.ComponentLookupException;
+import org.xwiki.component.manager.ComponentManager;
+import org.xwiki.rest.XWikiResource;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+import javax.ws.rs.core.CacheControl;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.Status;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+
+/**
+ * Default implementation of the {@link MeasurementsChartCurvesResource}. The curves are precomputed by the measurement
+ * handlers, and their JSON serialization is kept as well, keyed by the version of the curves, which is also used as the
+ * entity tag of the response.
+ *
+ * @version $Id$
+ * @since 1.4
+ */
+@Component
+@Named("org.phenotips.measurements.rest.internal.DefaultMeasurementsChartCurvesResource")
+@Singleton
+public class DefaultMeasurementsChartCurvesResource extends XWikiResource implements MeasurementsChartCurvesResource
+{
+    /** How long can clients reuse the curves without checking if they changed, in seconds. */
+    private static final int MAX_AGE = 24 * 60 * 60;
+
+    private static final String MALE = "M";
+
+    private static final String FEMALE = "F";
+
+    @Inject
+    private Logger logger;
+
+    /** Provides access to the different measurement handlers by name at runtime. */
+    @Inject
+    @Named("context")
+    private Provider<ComponentManager> contextComponentManager;
+
+    /** The serialized curves, for each version of the curves. */
+    private final ConcurrentMap<String, String> serializedCurves = new ConcurrentHashMap<>();
+
+    @Override
+    public Response getChartCurves(String measurementType, String sex, Integer lowerAgeLimit, Integer upperAgeLimit,
+        String ifNoneMatch)
+    {
+        boolean male;
+        if (MALE.equalsIgnoreCase(sex)) {
+            male = true;
+        } else if (FEMALE.equalsIgnoreCase(sex)) {
+            male = false;
+        } else {
+            this.logger.debug("Invalid sex requested for the measurement curves: [{}]", sex);
+            return Response.status(Status.BAD_REQUEST).build();
+        }
+
+        MeasurementHandler handler = getHandler(measurementType);
+        MeasurementsChartConfiguration chart = null;
+        if (handler != null) {
+            chart = findChart(handler, lowerAgeLimit, upperAgeLimit);
+        }
+        if (chart == null) {
+            return Response.status(Status.NOT_FOUND).build();
+        }
+
+        MeasurementsChartCurves curves = handler.getChartCurves(male, chart);
+        EntityTag tag = new EntityTag(curves.getVersion());
+        CacheControl cacheControl = new CacheControl();
+        cacheControl.setMaxAge(MAX_AGE);
+        if (matches(ifNoneMatch, tag)) {
+            return Response.notModified(tag).cacheControl(cacheControl).build();
+        }
+
+        String body = this.serializedCurves.get(curves.getVersion());
+        if (body == null) {
+            body = toJSON(curves).toString();
+            this.serializedCurves.put(curves.getVersion(), body);
+        }
+        return Response.ok(body, MediaType.APPLICATION_JSON_TYPE).tag(tag).cacheControl(cacheControl).build();
+    }
+
+    private MeasurementHandler getHandler(String measurementType)
+    {
+        try {
+            return this.contextComponentManager.get().getInstance(MeasurementHandler.class, measurementType);
+        } catch (ComponentLookupException ex) {
+            this.logger.debug("Requested curves for unknown measurement type [{}]", measurementType);
+            return null;
+        }
+    }
+
+    private MeasurementsChartConfiguration findChart(MeasurementHandler handler, Integer lowerAgeLimit,
+        Integer upperAgeLimit)
+    {
+        for (MeasurementsChartConfiguration chart : handler.getChartsConfigurations()) {
+            if ((lowerAgeLimit == null || lowerAgeLimit == chart.getLowerAgeLimit())
+                && (upperAgeLimit == null || upperAgeLimit == chart.getUpperAgeLimit())) {
+                return chart;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Checks if the value of an {@code If-None-Match} header matches an entity tag.
+     *
+     * @param ifNoneMatch the header value, a comma separated list of entity tags, or {@code *}, may be {@code null}
+     * @param tag the current entity tag
+     * @return {@code true} if the tag is listed in the header
+     */
+    private boolean matches(String ifNoneMatch, EntityTag tag)
+    {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        String expected = '"' + tag.getValue() + '"';
+        for (String candidate : ifNoneMatch.split(",")) {
+            String trimmed = candidate.trim();
+            if ("*".equals(trimmed) || expected.equals(trimmed)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private JSONObject toJSON(MeasurementsChartCurves curves)
+    {
+        JSONObject result = new JSONObject();
+        result.put("measurement", curves.getMeasurementType());
+        result.put("sex", curves.isMale() ? MALE : FEMALE);
+        result.put("lowerAgeLimit", curves.getLowerAgeLimit());
+        result.put("upperAgeLimit", curves.getUpperAgeLimit());
+        JSONObject percentiles = new JSONObject();
+        for (int percentile : MeasurementsChartCurves.STANDARD_PERCENTILES) {
+            percentiles.put(String.valueOf(percentile), toJSON(curves.getPercentileCurve(percentile)));
+        }
+        result.put("percentiles", percentiles);
+        JSONObject deviations = new JSONObject();
+        for (int deviation : MeasurementsChartCurves.STANDARD_DEVIATIONS) {
+            deviations.put(String.valueOf(deviation), toJSON(curves.getStandardDeviationCurve(deviation)));
+        }
+        result.put("deviations", deviations);
+        return result;
+    }
+
+    private JSONArray toJSON(double[] curve)
+    {
+        JSONArray result = new JSONArray();
+        for (double value : curve) {
+            // JSON can't represent NaN, which is returned for ages not covered by the measurement tables
+            result.put(Double.isNaN(value) || Double.isInfinite(value) ? JSONObject.NULL : (Object) value);
+        }
+        return result;
+    }
+}
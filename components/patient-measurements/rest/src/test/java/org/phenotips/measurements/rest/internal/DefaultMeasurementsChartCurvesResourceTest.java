@@ -0,0 +1,172 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.measurements.rest.internal;
+
+import org.phenotips.measurements.MeasurementHandler;
+import org.phenotips.measurements.MeasurementsChartConfiguration;
+import org.phenotips.measurements.MeasurementsChartCurves;
+import org.phenotips.measurements.rest.MeasurementsChartCurvesResource;
+
+import org.xwiki.component.manager.ComponentLookupException;
+import org.xwiki.component.manager.ComponentManager;
+import org.xwiki.context.Execution;
+import org.xwiki.context.ExecutionContext;
+import org.xwiki.test.mockito.MockitoComponentMockingRule;
+
+import java.util.Arrays;
+
+import javax.inject.Provider;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.Response;
+
+import org.json.JSONObject;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import com.xpn.xwiki.XWikiContext;
+
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests for the default {@link MeasurementsChartCurvesResource} implementation,
+ * {@link DefaultMeasurementsChartCurvesResource}.
+ *
+ * @version $Id$
+ */
+public class DefaultMeasurementsChartCurvesResourceTest
+{
+    private static final String WEIGHT = "weight";
+
+    private static final String VERSION = "0123456789abcdef";
+
+    @Rule
+    public final MockitoComponentMockingRule<MeasurementsChartCurvesResource> mocker =
+        new MockitoComponentMockingRule<MeasurementsChartCurvesResource>(DefaultMeasurementsChartCurvesResource.class);
+
+    @Mock
+    private MeasurementHandler handler;
+
+    @Mock
+    private MeasurementsChartConfiguration infantChart;
+
+    @Mock
+    private MeasurementsChartConfiguration childChart;
+
+    @Mock
+    private MeasurementsChartCurves curves;
+
+    private MeasurementsChartCurvesResource resource;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        MockitoAnnotations.initMocks(this);
+        Execution execution = mock(Execution.class);
+        ExecutionContext executionContext = mock(ExecutionContext.class);
+        ComponentManager componentManager = this.mocker.getInstance(ComponentManager.class, "context");
+        Provider<XWikiContext> provider = this.mocker.getInstance(XWikiContext.TYPE_PROVIDER);
+        XWikiContext context = provider.get();
+        when(componentManager.getInstance(Execution.class)).thenReturn(execution);
+        doReturn(executionContext).when(execution).getContext();
+        doReturn(context).when(executionContext).getProperty("xwikicontext");
+
+        when(componentManager.getInstance(MeasurementHandler.class, WEIGHT)).thenReturn(this.handler);
+        when(componentManager.getInstance(MeasurementHandler.class, "unknown"))
+            .thenThrow(new ComponentLookupException("No such measurement"));
+        when(this.infantChart.getLowerAgeLimit()).thenReturn(0);
+        when(this.infantChart.getUpperAgeLimit()).thenReturn(36);
+        when(this.childChart.getLowerAgeLimit()).thenReturn(24);
+        when(this.childChart.getUpperAgeLimit()).thenReturn(240);
+        when(this.handler.getChartsConfigurations()).thenReturn(Arrays.asList(this.infantChart, this.childChart));
+        when(this.handler.getChartCurves(true, this.childChart)).thenReturn(this.curves);
+        when(this.handler.getChartCurves(true, this.infantChart)).thenReturn(this.curves);
+
+        when(this.curves.getMeasurementType()).thenReturn(WEIGHT);
+        when(this.curves.isMale()).thenReturn(true);
+        when(this.curves.getLowerAgeLimit()).thenReturn(24);
+        when(this.curves.getUpperAgeLimit()).thenReturn(25);
+        when(this.curves.getPercentileCurve(anyInt())).thenReturn(new double[] { 12.5, 12.75 });
+        when(this.curves.getStandardDeviationCurve(anyInt())).thenReturn(new double[] { 12.5, Double.NaN });
+        when(this.curves.getVersion()).thenReturn(VERSION);
+
+        this.resource = this.mocker.getComponentUnderTest();
+    }
+
+    @Test
+    public void curvesAreReturnedWithAStrongEntityTag()
+    {
+        Response response = this.resource.getChartCurves(WEIGHT, "M", 24, 240, null);
+        Assert.assertEquals(Response.Status.OK.getStatusCode(), response.getStatus());
+        Assert.assertEquals(VERSION, ((EntityTag) response.getMetadata().getFirst(HttpHeaders.ETAG)).getValue());
+        verify(this.handler).getChartCurves(true, this.childChart);
+
+        JSONObject json = new JSONObject((String) response.getEntity());
+        Assert.assertEquals(WEIGHT, json.getString("measurement"));
+        Assert.assertEquals("M", json.getString("sex"));
+        Assert.assertEquals(24, json.getInt("lowerAgeLimit"));
+        Assert.assertEquals(25, json.getInt("upperAgeLimit"));
+        Assert.assertEquals(12.75, json.getJSONObject("percentiles").getJSONArray("97").getDouble(1), 0);
+        Assert.assertTrue(json.getJSONObject("deviations").getJSONArray("-3").isNull(1));
+    }
+
+    @Test
+    public void matchingEntityTagReturnsNotModified()
+    {
+        Response response = this.resource.getChartCurves(WEIGHT, "m", null, 240, "\"other\", \"" + VERSION + '"');
+        Assert.assertEquals(Response.Status.NOT_MODIFIED.getStatusCode(), response.getStatus());
+        Assert.assertNull(response.getEntity());
+        verify(this.curves, times(0)).getPercentileCurve(anyInt());
+    }
+
+    @Test
+    public void serializedCurvesAreReused()
+    {
+        this.resource.getChartCurves(WEIGHT, "M", 24, 240, null);
+        this.resource.getChartCurves(WEIGHT, "M", null, null, "\"other\"");
+        verify(this.handler).getChartCurves(true, this.infantChart);
+        verify(this.curves, times(7)).getPercentileCurve(anyInt());
+    }
+
+    @Test
+    public void unknownChartsAreNotFound()
+    {
+        Assert.assertEquals(Response.Status.NOT_FOUND.getStatusCode(),
+            this.resource.getChartCurves("unknown", "M", null, null, null).getStatus());
+        Assert.assertEquals(Response.Status.NOT_FOUND.getStatusCode(),
+            this.resource.getChartCurves(WEIGHT, "F", 12, null, null).getStatus());
+    }
+
+    @Test
+    public void invalidSexIsRejected()
+    {
+        Assert.assertEquals(Response.Status.BAD_REQUEST.getStatusCode(),
+            this.resource.getChartCurves(WEIGHT, "X", null, null, null).getStatus());
+        Assert.assertEquals(Response.Status.BAD_REQUEST.getStatusCode(),
+            this.resource.getChartCurves(WEIGHT, null, null, null, null).getStatus());
+    }
+}
@@ -0,0 +1,368 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.tools;
+
+import org.phenotips.vocabulary.Vocabulary;
+import org.phenotips.vocabulary.VocabularyTerm;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.text.WordUtils;
+
+/**
+ * The static part of a phenotype form: the sections defined by a template, completed with the top sections of the
+ * phenotype vocabulary, along with everything that the form needs from the vocabulary for the terms mentioned in the
+ * template, namely their labels, whether they have more specific terms, and the terms behind the section categories.
+ * A layout doesn't depend on the patient being displayed, so it is compiled once, and used by {@link PropertyDisplayer}
+ * for displaying any number of patients, which only requires adding the patient's selections on top of it.
+ *
+ * @version $Id$
+ * @since 1.4
+ */
+final class FormLayout
+{
+    static final String TYPE_KEY = "type";
+
+    static final String GROUP_TYPE_KEY = "group_type";
+
+    static final String ID_KEY = "id";
+
+    static final String TITLE_KEY = "title";
+
+    static final String CATEGORIES_KEY = "categories";
+
+    static final String DATA_KEY = "data";
+
+    static final String ITEM_TYPE_SECTION = "section";
+
+    static final String ITEM_TYPE_SUBSECTION = "subsection";
+
+    static final String ITEM_TYPE_CONDITIONAL_SUBSECTION = "conditionalSubsection";
+
+    static final String ITEM_TYPE_FIELD = "field";
+
+    /** The root of the vocabulary, used as a catch-all section. */
+    static final String ROOT_ID = "HP:0000001";
+
+    /** The "Phenotypic abnormality" term, whose children are the default sections. */
+    static final String PHENOTYPIC_ABNORMALITY_ID = "HP:0000118";
+
+    private static final String INDEXED_PARENT_KEY = "is_a";
+
+    private static final String TERM_PREFIX = "HP:";
+
+    private final List<Map<String, ?>> template;
+
+    private final Map<String, String> labels = new HashMap<>();
+
+    private final Map<String, Boolean> expandable = new HashMap<>();
+
+    private final Map<String, VocabularyTerm> categoryTerms = new HashMap<>();
+
+    private final Map<String, Long> rootDistances = new HashMap<>();
+
+    private FormLayout(List<Map<String, ?>> template)
+    {
+        this.template = template;
+    }
+
+    /**
+     * Compiles a form template.
+     *
+     * @param template the form template, as configured in the phenotype mapping; it is not modified
+     * @param vocabulary the phenotype vocabulary
+     * @return the compiled layout
+     */
+    static FormLayout compile(Collection<Map<String, ?>> template, Vocabulary vocabulary)
+    {
+        FormLayout result = new FormLayout(addTopSections(template, vocabulary));
+        Set<String> ids = new LinkedHashSet<>();
+        Set<String> fieldIds = new LinkedHashSet<>();
+        Set<String> categories = new LinkedHashSet<>();
+        for (Map<String, ?> section : result.template) {
+            if (isSection(section)) {
+                categories.addAll(getCategories(section));
+                collectIds(section, ids, fieldIds);
+            }
+        }
+        result.readLabels(ids, vocabulary);
+        for (String id : fieldIds) {
+            result.expandable.put(id, hasDescendants(id, vocabulary));
+        }
+        result.readCategories(categories, vocabulary);
+        return result;
+    }
+
+    /**
+     * The sections of the form, including the top vocabulary sections not explicitly configured.
+     *
+     * @return an unmodifiable list of section templates
+     */
+    List<Map<String, ?>> getTemplate()
+    {
+        return this.template;
+    }
+
+    /**
+     * The label of a term mentioned in the template.
+     *
+     * @param id a term identifier
+     * @return the translated name of the term, the identifier itself if it doesn't belong to the vocabulary, or
+     *         {@code null} if the term isn't mentioned in the template
+     */
+    String getLabel(String id)
+    {
+        return this.labels.get(id);
+    }
+
+    /**
+     * Whether a field of the template has more specific terms.
+     *
+     * @param id a term identifier
+     * @return {@code true} if the term has children in the vocabulary, {@code false} if it doesn't, or {@code null}
+     *         if the term isn't a field of the template
+     */
+    Boolean isExpandable(String id)
+    {
+        return this.expandable.get(id);
+    }
+
+    /**
+     * The vocabulary term corresponding to a section category.
+     *
+     * @param categoryId the identifier of a category used by a section
+     * @return the category term, the "Phenotypic abnormality" term for non-standard categories, or {@code null} if the
+     *         category isn't used by any section
+     */
+    VocabularyTerm getCategoryTerm(String categoryId)
+    {
+        return this.categoryTerms.get(categoryId);
+    }
+
+    /**
+     * The distance between a section category and the root of the vocabulary.
+     *
+     * @param categoryId the identifier of a category used by a section
+     * @return the distance, {@code -1} if the category isn't connected to the root or isn't used by any section
+     */
+    long getDistanceToRoot(String categoryId)
+    {
+        Long result = this.rootDistances.get(categoryId);
+        return result == null ? -1 : result;
+    }
+
+    static boolean isSection(Map<String, ?> item)
+    {
+        return ITEM_TYPE_SECTION.equals(item.get(TYPE_KEY)) && Collection.class.isInstance(item.get(CATEGORIES_KEY))
+            && String.class.isInstance(item.get(TITLE_KEY)) && Collection.class.isInstance(item.get(DATA_KEY));
+    }
+
+    static boolean isSubsection(Map<String, ?> item)
+    {
+        return (ITEM_TYPE_SUBSECTION.equals(item.get(TYPE_KEY))
+            || ITEM_TYPE_CONDITIONAL_SUBSECTION.equals(item.get(TYPE_KEY)))
+            && (String.class.isInstance(item.get(TITLE_KEY)) || String.class.isInstance(item.get(ID_KEY)))
+            && Collection.class.isInstance(item.get(DATA_KEY));
+    }
+
+    /**
+     * This function is meant to be used on sections that are already know to be subsections.
+     *
+     * @param item the configuration object of the subsection
+     * @return true if the subsection is conditional, false otherwise
+     */
+    static boolean isConditionalSubsection(Map<String, ?> item)
+    {
+        return ITEM_TYPE_CONDITIONAL_SUBSECTION.equals(item.get(TYPE_KEY));
+    }
+
+    static boolean isField(Map<String, ?> item)
+    {
+        return item.get(TYPE_KEY) == null || ITEM_TYPE_FIELD.equals(item.get(TYPE_KEY)) && item.get(ID_KEY) != null
+            && String.class.isAssignableFrom(item.get(ID_KEY).getClass());
+    }
+
+    @SuppressWarnings("unchecked")
+    static Collection<String> getCategories(Map<String, ?> section)
+    {
+        return (Collection<String>) section.get(CATEGORIES_KEY);
+    }
+
+    @SuppressWarnings("unchecked")
+    static Collection<Map<String, ?>> getData(Map<String, ?> group)
+    {
+        return (Collection<Map<String, ?>>) group.get(DATA_KEY);
+    }
+
+    /**
+     * Adds top sections (direct children of HP:0000118) to a copy of the existing templates list, if those are not
+     * present. Also deletes any categories that are HP:0000118.
+     *
+     * @param originalTemplate the existing templates list, which is not modified
+     * @param vocabulary the phenotype vocabulary
+     * @return a modified, unmodifiable templates list
+     */
+    private static List<Map<String, ?>> addTopSections(Collection<Map<String, ?>> originalTemplate,
+        Vocabulary vocabulary)
+    {
+        List<Map<String, ?>> template = new ArrayList<>(originalTemplate.size() + 32);
+
+        Map<String, String> m = new HashMap<>();
+        m.put(INDEXED_PARENT_KEY, PHENOTYPIC_ABNORMALITY_ID);
+        List<VocabularyTerm> topSections = vocabulary.search(m);
+        Set<String> topSectionsId = new LinkedHashSet<>();
+        if (topSections != null) {
+            for (VocabularyTerm section : topSections) {
+                topSectionsId.add(section.getId());
+            }
+        }
+        // Explicitly add Death, since it's not part of the "Phenotypic abnormality" branch of HPO, but still makes
+        // sense as a patient feature
+        topSectionsId.add("HP:0011420");
+        // Catch-all, in case someone wants to add a qualifier
+        topSectionsId.add(ROOT_ID);
+
+        for (Map<String, ?> sectionTemplate : originalTemplate) {
+            Object templateCategoriesUC = sectionTemplate.get(CATEGORIES_KEY);
+            if (templateCategoriesUC instanceof List) {
+                @SuppressWarnings("unchecked")
+                List<String> templateCategories = new ArrayList<>((List<String>) templateCategoriesUC);
+                topSectionsId.removeAll(templateCategories);
+                templateCategories.remove(PHENOTYPIC_ABNORMALITY_ID);
+                if (!templateCategories.isEmpty()) {
+                    Map<String, Object> copy = new LinkedHashMap<>(sectionTemplate);
+                    copy.put(CATEGORIES_KEY, Collections.unmodifiableList(templateCategories));
+                    template.add(Collections.unmodifiableMap(copy));
+                }
+            } else if (templateCategoriesUC instanceof String) {
+                if (!StringUtils.equals((String) templateCategoriesUC, PHENOTYPIC_ABNORMALITY_ID)) {
+                    topSectionsId.remove(templateCategoriesUC);
+                    template.add(sectionTemplate);
+                }
+            } else {
+                template.add(sectionTemplate);
+            }
+        }
+        for (String sectionId : topSectionsId) {
+            VocabularyTerm term = vocabulary.getTerm(sectionId);
+            if (term == null) {
+                continue;
+            }
+            Map<String, Object> templateSection = new HashMap<>();
+
+            String title = term.getName();
+            title = title.replace("Abnormality of the ", "").replace("Abnormality of ", "");
+            title = WordUtils.capitalizeFully(title);
+            templateSection.put(TYPE_KEY, ITEM_TYPE_SECTION);
+            templateSection.put(TITLE_KEY, title);
+            templateSection.put(CATEGORIES_KEY, Collections.singletonList(sectionId));
+            templateSection.put(DATA_KEY, Collections.emptyList());
+
+            template.add(Collections.unmodifiableMap(templateSection));
+        }
+
+        return Collections.unmodifiableList(template);
+    }
+
+    /** Collects the identifiers of all the terms which need a label, and of the fields which can be expanded. */
+    private static void collectIds(Map<String, ?> group, Set<String> ids, Set<String> fieldIds)
+    {
+        for (Map<String, ?> item : getData(group)) {
+            if (isSubsection(item)) {
+                String id = (String) item.get(ID_KEY);
+                if (StringUtils.isNotEmpty(id)) {
+                    ids.add(id);
+                    if (isConditionalSubsection(item)) {
+                        fieldIds.add(id);
+                    }
+                }
+                collectIds(item, ids, fieldIds);
+            } else if (isField(item)) {
+                String id = (String) item.get(ID_KEY);
+                if (id != null) {
+                    ids.add(id);
+                    fieldIds.add(id);
+                }
+            }
+        }
+    }
+
+    /** Reads the labels of all the terms in the template, fetching the vocabulary terms in one request. */
+    private void readLabels(Set<String> ids, Vocabulary vocabulary)
+    {
+        Set<String> termIds = new HashSet<>();
+        for (String id : ids) {
+            if (id.startsWith(TERM_PREFIX)) {
+                termIds.add(id);
+            } else {
+                this.labels.put(id, id);
+            }
+        }
+        Set<VocabularyTerm> terms = termIds.isEmpty() ? null : vocabulary.getTerms(termIds);
+        if (terms != null) {
+            for (VocabularyTerm term : terms) {
+                if (term != null && termIds.contains(term.getId())) {
+                    this.labels.put(term.getId(), term.getTranslatedName());
+                }
+            }
+        }
+        // Obsolete identifiers are not always returned by the bulk request, look them up individually
+        for (String id : termIds) {
+            if (!this.labels.containsKey(id)) {
+                VocabularyTerm term = vocabulary.getTerm(id);
+                this.labels.put(id, term != null ? term.getTranslatedName() : id);
+            }
+        }
+    }
+
+    private void readCategories(Set<String> categories, Vocabulary vocabulary)
+    {
+        VocabularyTerm root = vocabulary.getTerm(ROOT_ID);
+        VocabularyTerm defaultCategory = vocabulary.getTerm(PHENOTYPIC_ABNORMALITY_ID);
+        for (String categoryId : categories) {
+            VocabularyTerm categoryTerm = vocabulary.getTerm(categoryId);
+            if (categoryTerm == null) {
+                categoryTerm = defaultCategory;
+            }
+            if (categoryTerm != null) {
+                this.categoryTerms.put(categoryId, categoryTerm);
+                this.rootDistances.put(categoryId, categoryTerm.getDistanceTo(root));
+            }
+        }
+    }
+
+    private static boolean hasDescendants(String id, Vocabulary vocabulary)
+    {
+        if (!id.startsWith(TERM_PREFIX)) {
+            return false;
+        }
+        Map<String, String> params = new HashMap<>();
+        params.put(INDEXED_PARENT_KEY, id);
+        return vocabulary.count(params) > 0;
+    }
+}
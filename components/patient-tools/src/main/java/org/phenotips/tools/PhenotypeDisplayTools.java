@@ -22,13 +22,18 @@
 
 import org.xwiki.component.annotation.Component;
 import org.xwiki.context.Execution;
+import org.xwiki.localization.LocalizationContext;
 import org.xwiki.script.service.ScriptService;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import javax.inject.Inject;
 import javax.inject.Named;
@@ -40,7 +45,8 @@
 import com.xpn.xwiki.api.Document;
 
 /**
- * Display lists of phenotype properties.
+ * Display lists of phenotype properties. The layout of the form, which only depends on the template, on the version of
+ * the vocabulary and on the current language, is {@link FormLayout compiled} once and reused for all the patients.
  *
  * @version $Id$
  */
@@ -53,6 +59,9 @@ public class PhenotypeDisplayTools implements ScriptService
 
     private static final String MESSAGES_KEY = "pdt.messages";
 
+    /** The maximum number of compiled form layouts to remember. */
+    private static final int MAX_CACHED_LAYOUTS = 50;
+
     @Inject
     private Logger logger;
 
@@ -63,6 +72,12 @@ public class PhenotypeDisplayTools implements ScriptService
     @Named("hpo")
     private Vocabulary ontologyService;
 
+    @Inject
+    private LocalizationContext localizationContext;
+
+    /** Compiled form layouts, keyed by a copy of the template, the vocabulary version, and the language. */
+    private final ConcurrentMap<List<Object>, FormLayout> layouts = new ConcurrentHashMap<>();
+
     public void use(String prefix, String name)
     {
         getFormData().setPositivePropertyName(name);
@@ -121,7 +136,7 @@ public String display(Collection<Map<String, ?>> template)
     {
         try {
             FormData formData = this.replaceOldTerms(this.getFormData());
-            return new PropertyDisplayer(template, formData, this.ontologyService).display();
+            return new PropertyDisplayer(getLayout(template), formData, this.ontologyService).display();
         } catch (Exception ex) {
             this.logger.error("An error has occurred while trying to display phenotypes. {}", ex.getMessage(), ex);
             return "";
@@ -136,6 +151,42 @@ public void clear()
         }
     }
 
+    private FormLayout getLayout(Collection<Map<String, ?>> template)
+    {
+        // The template is copied, so that it can't change while used as a key
+        Collection<Map<String, ?>> templateCopy = copy(template);
+        List<Object> key = Arrays.<Object>asList(templateCopy, this.ontologyService.getVersion(),
+            String.valueOf(this.localizationContext.getCurrentLocale()));
+        FormLayout result = this.layouts.get(key);
+        if (result == null) {
+            result = FormLayout.compile(templateCopy, this.ontologyService);
+            if (this.layouts.size() >= MAX_CACHED_LAYOUTS) {
+                this.layouts.clear();
+            }
+            this.layouts.put(key, result);
+        }
+        return result;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T copy(T value)
+    {
+        if (value instanceof Map) {
+            Map<Object, Object> result = new LinkedHashMap<>();
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                result.put(entry.getKey(), copy(entry.getValue()));
+            }
+            return (T) result;
+        } else if (value instanceof Collection) {
+            List<Object> result = new ArrayList<>(((Collection<?>) value).size());
+            for (Object item : (Collection<?>) value) {
+                result.add(copy(item));
+            }
+            return (T) result;
+        }
+        return value;
+    }
+
     private FormData getFormData()
     {
         FormData data = (FormData) this.execution.getContext().getProperty(CONTEXT_KEY);
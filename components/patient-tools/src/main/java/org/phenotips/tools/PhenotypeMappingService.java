@@ -39,12 +39,19 @@
 import org.xwiki.velocity.VelocityManager;
 import org.xwiki.velocity.XWikiVelocityException;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
 
 import javax.inject.Inject;
 import javax.inject.Named;
@@ -61,6 +68,12 @@
  * Provides access to the phenotype mappings configured for the current space. The field mappings are defined as a JSON
  * object contained in a document. The name of that document must be configured in the "phenotypeMapping" field of a
  * "DBConfigurationClass" object attached to the homepage (WebHome) of the current space.
+ * <p>
+ * Each mapping document is parsed only once for each language, even when many requests need it at the same time, and
+ * the parsed mappings are returned as immutable maps and lists, safe to share between requests. When a mapping
+ * document is modified, the next request needing it parses it again, while the other requests continue using the
+ * previous version until the new one is ready.
+ * </p>
  *
  * @version $Id$
  * @since 1.0
@@ -70,6 +83,9 @@
 @Singleton
 public class PhenotypeMappingService implements ScriptService, EventListener, Initializable
 {
+    /** Separates the document name from the language in the cache keys. */
+    private static final char KEY_SEPARATOR = '/';
+
     /**
      * Logging helper object.
      */
@@ -77,9 +93,13 @@ public class PhenotypeMappingService implements ScriptService, EventListener, In
     private Logger logger;
 
     /**
-     * Cached mappings for faster responses.
+     * Cached mappings for faster responses, for each mapping document and language. A pending future means that the
+     * mappings are being parsed by another request.
      */
-    private Map<String, Map<String, Object>> cache = new HashMap<>();
+    private final ConcurrentMap<String, CompletableFuture<Map<String, Object>>> cache = new ConcurrentHashMap<>();
+
+    /** The keys of the cached mappings whose document was modified since they were parsed. */
+    private final Set<String> outdated = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
 
     @Inject
     private LocalizationContext lc;
@@ -133,13 +153,23 @@ public String getName()
     @Override
     public List<Event> getEvents()
     {
-        return Collections.emptyList();
+        return Arrays.<Event>asList(new DocumentUpdatedEvent(), new DocumentDeletedEvent());
     }
 
     @Override
     public void onEvent(Event event, Object source, Object data)
     {
-        this.cache.remove(((AbstractDocumentEvent) event).getEventFilter().getFilter());
+        String prefix = ((AbstractDocumentEvent) event).getEventFilter().getFilter() + KEY_SEPARATOR;
+        for (String key : this.cache.keySet()) {
+            if (key.startsWith(prefix)) {
+                if (event instanceof DocumentDeletedEvent) {
+                    this.cache.remove(key);
+                    this.outdated.remove(key);
+                } else {
+                    this.outdated.add(key);
+                }
+            }
+        }
     }
 
     /**
@@ -212,22 +242,77 @@ public Object get(String name)
      */
     private Object getMapping(String mappingName)
     {
-        DocumentReference mappingDoc = getMappingDocument();
-        Object result = getMapping(mappingDoc, mappingName);
-        if (result == null) {
-            try {
-                String mappingContent =
-                    this.bridge.getDocumentContent(mappingDoc, this.lc.getCurrentLocale().toString());
-                if (mappingContent.startsWith("{{velocity")) {
-                    result = parseVelocityMapping(mappingDoc).get(mappingName);
-                } else {
-                    result = parseJSONMapping(mappingContent).get(mappingName);
+        Map<String, Object> mappings = getMappings(getMappingDocument());
+        return mappings == null ? null : mappings.get(mappingName);
+    }
+
+    /**
+     * Get all the mappings defined in a document, parsing it if it isn't cached yet, or if it was modified. Only one
+     * request parses a document at a time; while a document is parsed for the first time, the other requests needing
+     * it wait for the result, and while a modified document is parsed again, the other requests use the previous
+     * version.
+     *
+     * @param mappingDoc the reference of the document containing the mapping
+     * @return the parsed mappings, or {@code null} if the document can't be parsed
+     */
+    private Map<String, Object> getMappings(DocumentReference mappingDoc)
+    {
+        if (mappingDoc == null) {
+            return null;
+        }
+        String locale = String.valueOf(this.lc.getCurrentLocale());
+        String key = this.serializer.serialize(mappingDoc) + KEY_SEPARATOR + locale;
+        CompletableFuture<Map<String, Object>> cached = this.cache.get(key);
+        if (cached == null) {
+            CompletableFuture<Map<String, Object>> loading = new CompletableFuture<>();
+            cached = this.cache.putIfAbsent(key, loading);
+            if (cached == null) {
+                Map<String, Object> result = load(mappingDoc, locale);
+                loading.complete(result);
+                if (result == null) {
+                    // Don't remember failures, try again next time
+                    this.cache.remove(key, loading);
                 }
-            } catch (Exception ex) {
-                this.logger.warn("Failed to access mapping: {}", ex.getMessage());
+                return result;
+            }
+        } else if (cached.isDone() && this.outdated.remove(key)) {
+            Map<String, Object> result = load(mappingDoc, locale);
+            if (result != null) {
+                this.cache.replace(key, cached, CompletableFuture.completedFuture(result));
+                return result;
             }
+            // Keep using the previous version, but try again next time
+            this.outdated.add(key);
         }
-        return result;
+        return waitFor(cached, mappingDoc);
+    }
+
+    private Map<String, Object> waitFor(CompletableFuture<Map<String, Object>> mappings, DocumentReference mappingDoc)
+    {
+        try {
+            return mappings.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            this.logger.warn("Interrupted while waiting for the mapping [{}] to be parsed", mappingDoc);
+        } catch (ExecutionException ex) {
+            this.logger.warn("Failed to access mapping: {}", ex.getMessage());
+        }
+        return null;
+    }
+
+    private Map<String, Object> load(DocumentReference mappingDoc, String locale)
+    {
+        try {
+            String mappingContent = this.bridge.getDocumentContent(mappingDoc, locale);
+            if (mappingContent.startsWith("{{velocity")) {
+                return parseVelocityMapping(mappingDoc);
+            } else {
+                return parseJSONMapping(mappingContent);
+            }
+        } catch (Exception ex) {
+            this.logger.warn("Failed to access mapping: {}", ex.getMessage());
+        }
+        return null;
     }
 
     private Map<String, Object> parseVelocityMapping(DocumentReference mappingDoc)
@@ -237,12 +322,9 @@ private Map<String, Object> parseVelocityMapping(DocumentReference mappingDoc)
             VelocityContext c = this.velocityManager.getVelocityContext();
             e.evaluate(c, new NullWriter(), mappingDoc.getName(),
                 this.bridge.getDocumentContentForDefaultLanguage(mappingDoc));
-            this.observationManager.addEvent(this.getName(), new DocumentUpdatedEvent(mappingDoc));
-            this.observationManager.addEvent(this.getName(), new DocumentDeletedEvent(mappingDoc));
             @SuppressWarnings("unchecked")
             Map<String, Object> mappings = (Map<String, Object>) c.get("mappings");
-            setMappings(mappingDoc, mappings);
-            return mappings;
+            return immutableCopy(mappings);
         } catch (XWikiVelocityException ex) {
             this.logger.error("Failed to get a VelocityEngine instance", ex);
         } catch (Exception ex) {
@@ -254,7 +336,7 @@ private Map<String, Object> parseVelocityMapping(DocumentReference mappingDoc)
     private Map<String, Object> parseJSONMapping(String mappingContent)
     {
         JSONObject json = new JSONObject(mappingContent);
-        return convertJSONObject(json);
+        return immutableCopy(convertJSONObject(json));
     }
 
     private Map<String, Object> convertJSONObject(JSONObject json)
@@ -289,30 +371,28 @@ private List<Object> convertJSONArray(JSONArray json)
     }
 
     /**
-     * Get the configuration for a specific property, taking the configuration from a specified document.
+     * Creates a deep copy of the parsed mappings, in which all the maps and lists are unmodifiable.
      *
-     * @param doc the reference of the document containing the mapping
-     * @param mappingName the name of the configuration to return
-     * @return configuration object, should be a Map
+     * @param value the parsed value to copy
+     * @return an immutable copy of the value, with the same iteration order
      */
-    private Object getMapping(DocumentReference doc, String mappingName)
+    @SuppressWarnings("unchecked")
+    private static <T> T immutableCopy(T value)
     {
-        String docName = this.serializer.serialize(doc);
-        if (!this.cache.containsKey(docName)) {
-            return null;
+        if (value instanceof Map) {
+            Map<Object, Object> result = new LinkedHashMap<>();
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                result.put(entry.getKey(), immutableCopy(entry.getValue()));
+            }
+            return (T) Collections.unmodifiableMap(result);
+        } else if (value instanceof Collection) {
+            List<Object> result = new ArrayList<>(((Collection<?>) value).size());
+            for (Object item : (Collection<?>) value) {
+                result.add(immutableCopy(item));
+            }
+            return (T) Collections.unmodifiableList(result);
         }
-        return this.cache.get(docName).get(mappingName);
-    }
-
-    /**
-     * Store all the mappings defined in the specified document in the cache.
-     *
-     * @param doc the reference of the document containing the mapping
-     * @param mappings defined mappings, a map of maps
-     */
-    private void setMappings(DocumentReference doc, Map<String, Object> mappings)
-    {
-        this.cache.put(this.serializer.serialize(doc), mappings);
+        return value;
     }
 
     /**
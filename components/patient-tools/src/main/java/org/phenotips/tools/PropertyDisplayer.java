@@ -22,53 +22,27 @@
 
 import org.xwiki.xml.XMLUtils;
 
-import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 
-import org.apache.commons.collections4.CollectionUtils;
 import org.apache.commons.lang3.StringUtils;
-import org.apache.commons.text.WordUtils;
 
 import com.xpn.xwiki.api.Property;
 
 public class PropertyDisplayer
 {
-    private static final String TYPE_KEY = "type";
-
-    private static final String GROUP_TYPE_KEY = "group_type";
-
-    private static final String ID_KEY = "id";
-
-    private static final String TITLE_KEY = "title";
-
-    private static final String CATEGORIES_KEY = "categories";
-
-    private static final String DATA_KEY = "data";
-
-    private static final String ITEM_TYPE_SECTION = "section";
-
-    private static final String ITEM_TYPE_SUBSECTION = "subsection";
-
-    private static final String ITEM_TYPE_CONDITIONAL_SUBSECTION = "conditionalSubsection";
-
-    private static final String ITEM_TYPE_FIELD = "field";
-
     public static final String INDEXED_CATEGORY_KEY = "term_category";
 
-    private static final String INDEXED_PARENT_KEY = "is_a";
-
     protected Vocabulary ontologyService;
 
     private final FormData data;
 
+    private final FormLayout layout;
+
     protected final String[] fieldNames;
 
     protected final String propertyName;
@@ -78,8 +52,14 @@
     private List<FormSection> sections = new LinkedList<>();
 
     PropertyDisplayer(Collection<Map<String, ?>> template, FormData data, Vocabulary ontologyService)
+    {
+        this(FormLayout.compile(template, ontologyService), data, ontologyService);
+    }
+
+    PropertyDisplayer(FormLayout layout, FormData data, Vocabulary ontologyService)
     {
         this.data = data;
+        this.layout = layout;
         this.ontologyService = ontologyService;
         this.fieldNames = new String[2];
         this.fieldNames[0] = data.getPositiveFieldName();
@@ -95,9 +75,8 @@
             customNoSelected.addAll(data.getSelectedNegativeValues());
         }
 
-        template = replaceOtherWithTopSections(template);
-        for (Map<String, ?> sectionTemplate : template) {
-            if (isSection(sectionTemplate)) {
+        for (Map<String, ?> sectionTemplate : layout.getTemplate()) {
+            if (FormLayout.isSection(sectionTemplate)) {
                 this.sections.add(generateSection(sectionTemplate, customYesSelected, customNoSelected));
             }
         }
@@ -110,50 +89,56 @@ protected void putTermsInSections(List<String> selectedTerms, Map<String, List<S
     {
         for (String value : selectedTerms) {
             VocabularyTerm term = this.ontologyService.getTerm(value);
-            VocabularyTerm root = this.ontologyService.getTerm("HP:0000001");
             List<String> categories = new LinkedList<>();
-            categories.addAll(this.getCategoriesFromOntology(value));
+            if (value.startsWith("HP:")) {
+                categories.addAll(this.getCategoriesFromOntology(term));
+            }
             categories.addAll(this.getCategoriesFromCustomMapping(value, customCategories));
             if (categories.isEmpty()) {
-                categories.add("HP:0000118");
+                categories.add(FormLayout.PHENOTYPIC_ABNORMALITY_ID);
             }
+            // The distances only depend on the category, compute each one once
+            Map<String, Long> distances = new HashMap<>();
             FormSection mostSpecificSection = null;
             long bestDistance = Long.MAX_VALUE;
             for (FormSection section : this.sections) {
-                Collection<String> categoriesInCommon =
-                    CollectionUtils.intersection(section.getCategories(), categories);
-                if (!categoriesInCommon.isEmpty()) {
-                    for (String categoryId : categoriesInCommon) {
-                        VocabularyTerm categoryTerm = getCategoryTerm(categoryId);
-                        long distance = (term != null)
-                            ? categoryTerm.getDistanceTo(term)
-                            : 1000 - categoryTerm.getDistanceTo(root);
-                        if (distance >= 0 && distance < bestDistance) {
-                            bestDistance = distance;
-                            mostSpecificSection = section;
-                        }
+                for (String categoryId : section.getCategories()) {
+                    if (!categories.contains(categoryId)) {
+                        continue;
+                    }
+                    Long distance = distances.get(categoryId);
+                    if (distance == null) {
+                        distance = getDistance(categoryId, term);
+                        distances.put(categoryId, distance);
+                    }
+                    if (distance >= 0 && distance < bestDistance) {
+                        bestDistance = distance;
+                        mostSpecificSection = section;
                     }
                 }
             }
             if (mostSpecificSection != null) {
-                mostSpecificSection
-                    .addCustomElement(this.generateField(value, null, false, positive, !positive));
+                mostSpecificSection.addCustomElement(
+                    this.generateField(value, null, false, positive, !positive, getLabel(value, term)));
             }
         }
     }
 
     /**
-     * Gets the {@link VocabularyTerm} associated with the provided {@code categoryId}. If {@code categoryId} refers to
-     * a non-standard category, will set "phenotypic abnormality" ("HP:0000118") as the default.
+     * Computes how close a selected term is to a section category. Terms missing from the vocabulary are placed in
+     * the most generic matching category.
      *
-     * @param categoryId the ID of a category of interest
-     * @return a {@link VocabularyTerm} associated with the provided {@code categoryId} or {@link VocabularyTerm} for
-     *         "HP:0000118"
+     * @param categoryId the ID of a section category
+     * @param term the selected term, may be {@code null}
+     * @return a positive distance, smaller for better matches, or {@code -1} if the term isn't related to the category
      */
-    private VocabularyTerm getCategoryTerm(final String categoryId)
+    private long getDistance(String categoryId, VocabularyTerm term)
     {
-        final VocabularyTerm categoryTerm = this.ontologyService.getTerm(categoryId);
-        return categoryTerm != null ? categoryTerm : this.ontologyService.getTerm("HP:0000118");
+        VocabularyTerm categoryTerm = this.layout.getCategoryTerm(categoryId);
+        if (categoryTerm == null) {
+            return -1;
+        }
+        return (term != null) ? categoryTerm.getDistanceTo(term) : 1000 - this.layout.getDistanceToRoot(categoryId);
     }
 
     public String display()
@@ -171,119 +156,11 @@ public String display()
         return str.toString();
     }
 
-    /**
-     * Adds top sections (direct children of HP:0000118) to a copy of the existing templates list, if those are not
-     * present. Also deletes any categories that are HP:0000118.
-     *
-     * @param originalTemplate the existing templates list
-     * @return a modified templates list
-     */
-    protected Collection<Map<String, ?>> replaceOtherWithTopSections(Collection<Map<String, ?>> originalTemplate)
-    {
-        // Need to work with a copy to prevent concurrency problems.
-        List<Map<String, ?>> template = new LinkedList<>();
-        template.addAll(originalTemplate);
-
-        Map<String, String> m = new HashMap<>();
-        m.put("is_a", "HP:0000118");
-        List<VocabularyTerm> topSections = this.ontologyService.search(m);
-        Set<String> topSectionsId = new LinkedHashSet<>();
-        for (VocabularyTerm section : topSections) {
-            topSectionsId.add(section.getId());
-        }
-        // Explicitly add Death, since it's not part of the "Phenotypic abnormality" branch of HPO, but still makes
-        // sense as a patient feature
-        topSectionsId.add("HP:0011420");
-        // Catch-all, in case someone wants to add a qualifier
-        topSectionsId.add("HP:0000001");
-
-        for (Map<String, ?> sectionTemplate : template) {
-            try {
-                Object templateCategoriesUC = sectionTemplate.get("categories");
-                if (templateCategoriesUC instanceof List) {
-                    @SuppressWarnings("unchecked")
-                    List<String> templateCategories = (List<String>) templateCategoriesUC;
-                    for (String category : templateCategories) {
-                        topSectionsId.remove(category);
-                    }
-                    templateCategories.remove("HP:0000118");
-                    if (templateCategories.isEmpty()) {
-                        template.remove(sectionTemplate);
-                    }
-                } else {
-                    String templateCategory = (String) templateCategoriesUC;
-                    if (StringUtils.equals(templateCategory, "HP:0000118")) {
-                        template.remove(sectionTemplate);
-                    } else {
-                        topSectionsId.remove(templateCategory);
-                    }
-                }
-            } catch (Exception ex) {
-                continue;
-            }
-            if (topSectionsId.isEmpty()) {
-                break;
-            }
-        }
-        for (String sectionId : topSectionsId) {
-            VocabularyTerm term = this.ontologyService.getTerm(sectionId);
-            if (term == null) {
-                continue;
-            }
-            Map<String, Object> templateSection = new HashMap<>();
-
-            String title = term.getName();
-            title = title.replace("Abnormality of the ", "").replace("Abnormality of ", "");
-            title = WordUtils.capitalizeFully(title);
-            templateSection.put(TYPE_KEY, ITEM_TYPE_SECTION);
-            templateSection.put(TITLE_KEY, title);
-            templateSection.put(CATEGORIES_KEY, Arrays.asList(sectionId));
-            templateSection.put(DATA_KEY, new ArrayList<Map<String, String>>());
-
-            template.add(templateSection);
-        }
-
-        return template;
-    }
-
-    private boolean isSection(Map<String, ?> item)
-    {
-        return ITEM_TYPE_SECTION.equals(item.get(TYPE_KEY)) && Collection.class.isInstance(item.get(CATEGORIES_KEY))
-            && String.class.isInstance(item.get(TITLE_KEY)) && Collection.class.isInstance(item.get(DATA_KEY));
-    }
-
-    private boolean isSubsection(Map<String, ?> item)
-    {
-        return (ITEM_TYPE_SUBSECTION.equals(item.get(TYPE_KEY))
-            || ITEM_TYPE_CONDITIONAL_SUBSECTION.equals(item.get(TYPE_KEY)))
-            && (String.class.isInstance(item.get(TITLE_KEY)) || String.class.isInstance(item.get(ID_KEY)))
-            && Collection.class.isInstance(item.get(DATA_KEY));
-    }
-
-    /**
-     * This function is meant to be used on sections that are already know to be subsections.
-     *
-     * @param item the configuration object of the subsection
-     * @return true if the subsection is conditional, false otherwise
-     */
-    private boolean isConditionalSubsection(Map<String, ?> item)
-    {
-        return ITEM_TYPE_CONDITIONAL_SUBSECTION.equals(item.get(TYPE_KEY));
-    }
-
-    private boolean isField(Map<String, ?> item)
-    {
-        return item.get(TYPE_KEY) == null || ITEM_TYPE_FIELD.equals(item.get(TYPE_KEY)) && item.get(ID_KEY) != null
-            && String.class.isAssignableFrom(item.get(ID_KEY).getClass());
-    }
-
-    @SuppressWarnings("unchecked")
     private FormSection generateSection(Map<String, ?> sectionTemplate, List<String> customYesSelected,
         List<String> customNoSelected)
     {
-        String title = (String) sectionTemplate.get(TITLE_KEY);
-        Collection<String> categories = (Collection<String>) sectionTemplate.get(CATEGORIES_KEY);
-        FormSection section = new FormSection(title, this.propertyName, categories);
+        String title = (String) sectionTemplate.get(FormLayout.TITLE_KEY);
+        FormSection section = new FormSection(title, this.propertyName, FormLayout.getCategories(sectionTemplate));
         generateData(section, sectionTemplate, customYesSelected, customNoSelected);
         return section;
     }
@@ -291,20 +168,20 @@ private FormSection generateSection(Map<String, ?> sectionTemplate, List<String>
     private FormElement generateSubsection(Map<String, ?> subsectionTemplate, List<String> customYesSelected,
         List<String> customNoSelected)
     {
-        String title = (String) subsectionTemplate.get(TITLE_KEY);
-        String id = (String) subsectionTemplate.get(ID_KEY);
+        String title = (String) subsectionTemplate.get(FormLayout.TITLE_KEY);
+        String id = (String) subsectionTemplate.get(FormLayout.ID_KEY);
         if (StringUtils.isEmpty(title) && StringUtils.isNotEmpty(id)) {
-            title = getLabelFromOntology(id);
+            title = getLabel(id);
         }
-        String type = (String) subsectionTemplate.get(GROUP_TYPE_KEY);
+        String type = (String) subsectionTemplate.get(FormLayout.GROUP_TYPE_KEY);
         if (type == null) {
             type = "";
         }
         FormGroup subsection;
-        if (isConditionalSubsection(subsectionTemplate)) {
+        if (FormLayout.isConditionalSubsection(subsectionTemplate)) {
             boolean yesSelected = customYesSelected.remove(id);
             boolean noSelected = customNoSelected.remove(id);
-            FormElement titleYesNoPicker = generateField(id, title, true, yesSelected, noSelected);
+            FormElement titleYesNoPicker = generateField(id, title, true, yesSelected, noSelected, getLabel(id));
             subsection = new FormConditionalSubsection(title, type, titleYesNoPicker, yesSelected, noSelected);
         } else {
             subsection = new FormSubsection(title, type);
@@ -313,15 +190,13 @@ private FormElement generateSubsection(Map<String, ?> subsectionTemplate, List<S
         return subsection;
     }
 
-    @SuppressWarnings("unchecked")
     private void generateData(FormGroup formGroup, Map<String, ?> groupTemplate, List<String> customYesSelected,
         List<String> customNoSelected)
     {
-        Collection<Map<String, ?>> data = (Collection<Map<String, ?>>) groupTemplate.get(DATA_KEY);
-        for (Map<String, ?> item : data) {
-            if (isSubsection(item)) {
+        for (Map<String, ?> item : FormLayout.getData(groupTemplate)) {
+            if (FormLayout.isSubsection(item)) {
                 formGroup.addElement(generateSubsection(item, customYesSelected, customNoSelected));
-            } else if (isField(item)) {
+            } else if (FormLayout.isField(item)) {
                 formGroup.addElement(generateField(item, customYesSelected, customNoSelected));
             }
         }
@@ -330,22 +205,18 @@ private void generateData(FormGroup formGroup, Map<String, ?> groupTemplate, Lis
     private FormElement generateField(Map<String, ?> fieldTemplate, List<String> customYesSelected,
         List<String> customNoSelected)
     {
-        String id = (String) fieldTemplate.get(ID_KEY);
+        String id = (String) fieldTemplate.get(FormLayout.ID_KEY);
         boolean yesSelected = customYesSelected.remove(id);
         boolean noSelected = customNoSelected.remove(id);
-        return this.generateField(id, (String) fieldTemplate.get(TITLE_KEY), yesSelected, noSelected);
-
-    }
-
-    private FormElement generateField(String id, String title, boolean yesSelected, boolean noSelected)
-    {
-        return generateField(id, title, hasDescendantsInOntology(id), yesSelected, noSelected);
+        Boolean expandable = this.layout.isExpandable(id);
+        return generateField(id, (String) fieldTemplate.get(FormLayout.TITLE_KEY),
+            expandable != null && expandable, yesSelected, noSelected, getLabel(id));
     }
 
     private FormElement generateField(String id, String title, boolean expandable, boolean yesSelected,
-        boolean noSelected)
+        boolean noSelected, String label)
     {
-        String hint = getLabelFromOntology(id);
+        String hint = label;
         if (id.equals(hint) && title != null) {
             hint = title;
         }
@@ -360,40 +231,29 @@ private FormElement generateField(String id, String title, boolean expandable, b
             expandable, yesSelected, noSelected);
     }
 
-    private String getLabelFromOntology(String id)
+    /** The label of a term from the template, already known by the layout. */
+    private String getLabel(String id)
     {
-        if (!id.startsWith("HP:")) {
-            return id;
-        }
-        VocabularyTerm phObj = this.ontologyService.getTerm(id);
-        if (phObj != null) {
-            return phObj.getTranslatedName();
-        }
-        return id;
+        String label = this.layout.getLabel(id);
+        return label != null ? label : getLabel(id, id.startsWith("HP:") ? this.ontologyService.getTerm(id) : null);
     }
 
-    private boolean hasDescendantsInOntology(String id)
+    private String getLabel(String id, VocabularyTerm term)
     {
-        if (!id.startsWith("HP:")) {
-            return false;
+        if (term != null && id.startsWith("HP:")) {
+            return term.getTranslatedName();
         }
-        Map<String, String> params = new HashMap<>();
-        params.put(INDEXED_PARENT_KEY, id);
-        return (this.ontologyService.count(params) > 0);
+        return id;
     }
 
     @SuppressWarnings("unchecked")
-    private List<String> getCategoriesFromOntology(String value)
+    private List<String> getCategoriesFromOntology(VocabularyTerm termObj)
     {
-        if (!value.startsWith("HP:")) {
-            return Collections.emptyList();
-        }
-        VocabularyTerm termObj = this.ontologyService.getTerm(value);
         if (termObj != null && termObj.get(INDEXED_CATEGORY_KEY) != null
             && List.class.isAssignableFrom(termObj.get(INDEXED_CATEGORY_KEY).getClass())) {
             return (List<String>) termObj.get(INDEXED_CATEGORY_KEY);
         }
-        return new LinkedList<>();
+        return Collections.emptyList();
     }
 
     private List<String> getCategoriesFromCustomMapping(String value, Map<String, List<String>> customCategories)
@@ -403,7 +263,7 @@ private List<String> getCategoriesFromCustomMapping(String value, Map<String, Li
                 return category.getValue();
             }
         }
-        return new LinkedList<>();
+        return Collections.emptyList();
     }
 
     private void prepareMetaData()
@@ -0,0 +1,130 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.tools;
+
+import org.phenotips.vocabulary.Vocabulary;
+import org.phenotips.vocabulary.VocabularyTerm;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Matchers;
+
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests for the {@link FormLayout}.
+ *
+ * @version $Id$
+ */
+public class FormLayoutTest
+{
+    private static final String EYE = "HP:0000478";
+
+    private static final String NERVOUS = "HP:0000707";
+
+    private static final String SEIZURES = "HP:0001250";
+
+    private Vocabulary vocabulary;
+
+    private VocabularyTerm eyeTerm;
+
+    private Collection<Map<String, ?>> template;
+
+    @Before
+    public void setUp()
+    {
+        this.vocabulary = mock(Vocabulary.class);
+        this.eyeTerm = mockTerm(EYE, "Abnormality of the eye");
+        VocabularyTerm nervousTerm = mockTerm(NERVOUS, "Abnormality of the nervous system");
+        doReturn(Arrays.asList(this.eyeTerm, nervousTerm)).when(this.vocabulary)
+            .search(Matchers.anyMapOf(String.class, Object.class));
+        when(this.vocabulary.getTerm(EYE)).thenReturn(this.eyeTerm);
+        when(this.vocabulary.getTerm(NERVOUS)).thenReturn(nervousTerm);
+        VocabularyTerm seizuresTerm = mockTerm(SEIZURES, "Seizures");
+        when(this.vocabulary.getTerms(Matchers.anyCollectionOf(String.class)))
+            .thenReturn(Collections.singleton(seizuresTerm));
+        Map<String, String> children = new HashMap<>();
+        children.put("is_a", SEIZURES);
+        when(this.vocabulary.count(children)).thenReturn(3L);
+
+        Map<String, Object> seizures = new HashMap<>();
+        seizures.put("id", SEIZURES);
+        Map<String, Object> custom = new HashMap<>();
+        custom.put("id", "custom");
+        Map<String, Object> section = new HashMap<>();
+        section.put("type", "section");
+        section.put("title", "Eyes");
+        section.put("categories", new LinkedList<>(Arrays.asList(EYE, "HP:0000118")));
+        section.put("data", Arrays.asList(seizures, custom));
+        this.template = Collections.<Map<String, ?>>singletonList(section);
+    }
+
+    @Test
+    public void compilingDoesNotModifyTheTemplate()
+    {
+        FormLayout.compile(this.template, this.vocabulary);
+        Assert.assertEquals(Arrays.asList(EYE, "HP:0000118"), this.template.iterator().next().get("categories"));
+    }
+
+    @Test
+    public void missingTopSectionsAreAdded()
+    {
+        List<Map<String, ?>> sections = FormLayout.compile(this.template, this.vocabulary).getTemplate();
+        Assert.assertEquals(2, sections.size());
+        Assert.assertEquals("Eyes", sections.get(0).get("title"));
+        Assert.assertEquals(Collections.singletonList(EYE), sections.get(0).get("categories"));
+        Assert.assertEquals("Nervous System", sections.get(1).get("title"));
+        Assert.assertEquals(Collections.singletonList(NERVOUS), sections.get(1).get("categories"));
+    }
+
+    @Test
+    public void vocabularyDataIsPrecomputed()
+    {
+        FormLayout layout = FormLayout.compile(this.template, this.vocabulary);
+        Assert.assertEquals("Seizures", layout.getLabel(SEIZURES));
+        Assert.assertEquals("custom", layout.getLabel("custom"));
+        Assert.assertNull(layout.getLabel("HP:0000001"));
+        Assert.assertTrue(layout.isExpandable(SEIZURES));
+        Assert.assertFalse(layout.isExpandable("custom"));
+        Assert.assertSame(this.eyeTerm, layout.getCategoryTerm(EYE));
+        verify(this.vocabulary, times(1)).getTerms(Matchers.anyCollectionOf(String.class));
+        verify(this.vocabulary, times(0)).getTerm(SEIZURES);
+    }
+
+    private VocabularyTerm mockTerm(String id, String name)
+    {
+        VocabularyTerm term = mock(VocabularyTerm.class);
+        when(term.getId()).thenReturn(id);
+        when(term.getName()).thenReturn(name);
+        when(term.getTranslatedName()).thenReturn(name);
+        return term;
+    }
+}
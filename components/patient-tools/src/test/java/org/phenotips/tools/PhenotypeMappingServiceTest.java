@@ -0,0 +1,272 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.tools;
+
+import org.phenotips.configuration.RecordConfiguration;
+import org.phenotips.configuration.RecordConfigurationManager;
+
+import org.xwiki.bridge.DocumentAccessBridge;
+import org.xwiki.bridge.event.DocumentDeletedEvent;
+import org.xwiki.bridge.event.DocumentUpdatedEvent;
+import org.xwiki.component.util.ReflectionUtils;
+import org.xwiki.localization.LocalizationContext;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.EntityReferenceSerializer;
+import org.xwiki.observation.ObservationManager;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.slf4j.Logger;
+
+/**
+ * Tests for the caching of parsed mappings in {@link PhenotypeMappingService}.
+ *
+ * @version $Id$
+ */
+public class PhenotypeMappingServiceTest
+{
+    private static final String MAPPING_NAME = "xwiki:PhenoTips.PhenotypeMapping";
+
+    private static final String OLD_MAPPING = "{\"phenotype\": {\"version\": \"old\"}}";
+
+    private static final String NEW_MAPPING = "{\"phenotype\": {\"version\": \"new\"}}";
+
+    private final DocumentReference mappingDoc = new DocumentReference("xwiki", "PhenoTips", "PhenotypeMapping");
+
+    private PhenotypeMappingService service;
+
+    private DocumentAccessBridge bridge;
+
+    private ExecutorService executor = Executors.newCachedThreadPool();
+
+    @Before
+    @SuppressWarnings("unchecked")
+    public void setUp() throws Exception
+    {
+        this.service = new PhenotypeMappingService();
+        this.bridge = Mockito.mock(DocumentAccessBridge.class);
+        ReflectionUtils.setFieldValue(this.service, "bridge", this.bridge);
+        ReflectionUtils.setFieldValue(this.service, "logger", Mockito.mock(Logger.class));
+
+        LocalizationContext lc = Mockito.mock(LocalizationContext.class);
+        Mockito.when(lc.getCurrentLocale()).thenReturn(Locale.ENGLISH);
+        ReflectionUtils.setFieldValue(this.service, "lc", lc);
+
+        EntityReferenceSerializer<String> serializer = Mockito.mock(EntityReferenceSerializer.class);
+        Mockito.when(serializer.serialize(this.mappingDoc)).thenReturn(MAPPING_NAME);
+        ReflectionUtils.setFieldValue(this.service, "serializer", serializer);
+
+        RecordConfiguration configuration = Mockito.mock(RecordConfiguration.class);
+        Mockito.when(configuration.getPhenotypeMapping()).thenReturn(this.mappingDoc);
+        RecordConfigurationManager configurationManager = Mockito.mock(RecordConfigurationManager.class);
+        Mockito.when(configurationManager.getConfiguration("patient")).thenReturn(configuration);
+        ReflectionUtils.setFieldValue(this.service, "configurationManager", configurationManager);
+
+        ReflectionUtils.setFieldValue(this.service, "observationManager", Mockito.mock(ObservationManager.class));
+
+        Mockito.doReturn(OLD_MAPPING).when(this.bridge).getDocumentContent(this.mappingDoc, "en");
+    }
+
+    @After
+    public void tearDown()
+    {
+        this.executor.shutdownNow();
+    }
+
+    @Test
+    public void registersItselfAsListener() throws Exception
+    {
+        ObservationManager observationManager = Mockito.mock(ObservationManager.class);
+        ReflectionUtils.setFieldValue(this.service, "observationManager", observationManager);
+
+        this.service.initialize();
+
+        Mockito.verify(observationManager).addListener(this.service);
+    }
+
+    @Test
+    public void mappingsAreParsedOnce() throws Exception
+    {
+        Assert.assertEquals("old", getVersion());
+        Assert.assertEquals("old", getVersion());
+
+        Mockito.verify(this.bridge, Mockito.times(1)).getDocumentContent(this.mappingDoc, "en");
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void parsedMappingsCannotBeModified()
+    {
+        @SuppressWarnings("unchecked")
+        Map<String, Object> phenotype = (Map<String, Object>) this.service.getPhenotype();
+        phenotype.put("version", "modified");
+    }
+
+    @Test
+    public void concurrentFirstLoadsParseOnce() throws Exception
+    {
+        CountDownLatch parsing = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        blockWhileReading(OLD_MAPPING, parsing, release);
+
+        Future<String> first = this.executor.submit(new VersionGetter());
+        Assert.assertTrue(parsing.await(5, TimeUnit.SECONDS));
+        Future<String> second = this.executor.submit(new VersionGetter());
+        // Give the second request time to find the pending parse and start waiting for it
+        Thread.sleep(100);
+        release.countDown();
+
+        Assert.assertEquals("old", first.get(5, TimeUnit.SECONDS));
+        Assert.assertEquals("old", second.get(5, TimeUnit.SECONDS));
+        Mockito.verify(this.bridge, Mockito.times(1)).getDocumentContent(this.mappingDoc, "en");
+    }
+
+    @Test
+    public void updateDuringFirstLoadIsParsedByTheNextRequest() throws Exception
+    {
+        CountDownLatch parsing = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        blockWhileReading(OLD_MAPPING, parsing, release);
+
+        Future<String> first = this.executor.submit(new VersionGetter());
+        Assert.assertTrue(parsing.await(5, TimeUnit.SECONDS));
+        this.service.onEvent(new DocumentUpdatedEvent(MAPPING_NAME), null, null);
+        Mockito.doReturn(NEW_MAPPING).when(this.bridge).getDocumentContent(this.mappingDoc, "en");
+        release.countDown();
+
+        Assert.assertEquals("old", first.get(5, TimeUnit.SECONDS));
+        Assert.assertEquals("new", getVersion());
+        Assert.assertEquals("new", getVersion());
+        Mockito.verify(this.bridge, Mockito.times(2)).getDocumentContent(this.mappingDoc, "en");
+    }
+
+    @Test
+    public void requestsDuringAReparseUseThePreviousVersion() throws Exception
+    {
+        Assert.assertEquals("old", getVersion());
+        this.service.onEvent(new DocumentUpdatedEvent(MAPPING_NAME), null, null);
+
+        CountDownLatch parsing = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        blockWhileReading(NEW_MAPPING, parsing, release);
+        Future<String> reparse = this.executor.submit(new VersionGetter());
+        Assert.assertTrue(parsing.await(5, TimeUnit.SECONDS));
+
+        Assert.assertEquals("old", getVersion());
+        release.countDown();
+        Assert.assertEquals("new", reparse.get(5, TimeUnit.SECONDS));
+        Assert.assertEquals("new", getVersion());
+        Mockito.verify(this.bridge, Mockito.times(2)).getDocumentContent(this.mappingDoc, "en");
+    }
+
+    @Test
+    public void deletionDropsTheCachedMappings() throws Exception
+    {
+        Assert.assertEquals("old", getVersion());
+        this.service.onEvent(new DocumentDeletedEvent(MAPPING_NAME), null, null);
+        Mockito.doReturn(NEW_MAPPING).when(this.bridge).getDocumentContent(this.mappingDoc, "en");
+
+        Assert.assertEquals("new", getVersion());
+        Mockito.verify(this.bridge, Mockito.times(2)).getDocumentContent(this.mappingDoc, "en");
+    }
+
+    @Test
+    public void failedReparseKeepsThePreviousVersionAndIsRetried() throws Exception
+    {
+        Assert.assertEquals("old", getVersion());
+        this.service.onEvent(new DocumentUpdatedEvent(MAPPING_NAME), null, null);
+        Mockito.doReturn("{invalid").when(this.bridge).getDocumentContent(this.mappingDoc, "en");
+
+        Assert.assertEquals("old", getVersion());
+        Mockito.doReturn(NEW_MAPPING).when(this.bridge).getDocumentContent(this.mappingDoc, "en");
+        Assert.assertEquals("new", getVersion());
+    }
+
+    @Test
+    public void failedFirstLoadIsNotCached() throws Exception
+    {
+        Mockito.doReturn("{invalid").when(this.bridge).getDocumentContent(this.mappingDoc, "en");
+        Assert.assertNull(this.service.getPhenotype());
+
+        Mockito.doReturn(OLD_MAPPING).when(this.bridge).getDocumentContent(this.mappingDoc, "en");
+        Assert.assertEquals("old", getVersion());
+    }
+
+    @Test
+    public void changesToOtherDocumentsAreIgnored() throws Exception
+    {
+        Assert.assertEquals("old", getVersion());
+        this.service.onEvent(new DocumentUpdatedEvent(MAPPING_NAME + "2"), null, null);
+        this.service.onEvent(new DocumentDeletedEvent("xwiki:PhenoTips.Other"), null, null);
+
+        Assert.assertEquals("old", getVersion());
+        Mockito.verify(this.bridge, Mockito.times(1)).getDocumentContent(this.mappingDoc, "en");
+    }
+
+    @Test
+    public void listensToDocumentUpdatesAndDeletions()
+    {
+        Assert.assertEquals(2, this.service.getEvents().size());
+        Assert.assertTrue(this.service.getEvents().get(0).matches(new DocumentUpdatedEvent(MAPPING_NAME)));
+        Assert.assertTrue(this.service.getEvents().get(1).matches(new DocumentDeletedEvent(MAPPING_NAME)));
+    }
+
+    private String getVersion()
+    {
+        @SuppressWarnings("unchecked")
+        Map<String, Object> phenotype = (Map<String, Object>) this.service.getPhenotype();
+        return (String) phenotype.get("version");
+    }
+
+    private void blockWhileReading(final String content, final CountDownLatch parsing, final CountDownLatch release)
+        throws Exception
+    {
+        Mockito.doAnswer(new Answer<String>()
+        {
+            @Override
+            public String answer(InvocationOnMock invocation) throws InterruptedException
+            {
+                parsing.countDown();
+                Assert.assertTrue(release.await(5, TimeUnit.SECONDS));
+                return content;
+            }
+        }).when(this.bridge).getDocumentContent(this.mappingDoc, "en");
+    }
+
+    private final class VersionGetter implements Callable<String>
+    {
+        @Override
+        public String call()
+        {
+            return getVersion();
+        }
+    }
+}
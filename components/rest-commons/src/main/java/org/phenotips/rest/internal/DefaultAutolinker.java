@@ -17,21 +17,15 @@
  */
 package org.phenotips.rest.internal;
 
-import org.phenotips.rest.AllowedActionsResolver;
 import org.phenotips.rest.Autolinker;
-import org.phenotips.rest.ParentResource;
-import org.phenotips.rest.RelatedResources;
-import org.phenotips.rest.Relation;
 import org.phenotips.rest.model.Link;
 
 import org.xwiki.component.annotation.Component;
 import org.xwiki.component.annotation.InstantiationStrategy;
 import org.xwiki.component.descriptor.ComponentInstantiationStrategy;
-import org.xwiki.rest.XWikiRestComponent;
 import org.xwiki.security.authorization.Right;
 
 import java.util.Collection;
-import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedHashSet;
 import java.util.LinkedList;
@@ -41,13 +35,12 @@
 import java.util.Set;
 
 import javax.inject.Inject;
-import javax.inject.Provider;
-import javax.ws.rs.Path;
 import javax.ws.rs.core.UriInfo;
 
 /**
  * An improved factory class for automatically creating links between resources, depending on the permissions that the
- * current user has.
+ * current user has. The annotations of the linked resources are only read once, by the {@link ResourceLinkRegistry},
+ * so building links is reduced to filling in the path templates with the parameter values.
  *
  * @version $Id$
  * @since 1.3M2
@@ -56,17 +49,15 @@
 @InstantiationStrategy(ComponentInstantiationStrategy.PER_LOOKUP)
 public class DefaultAutolinker implements Autolinker
 {
+    /** Provides the precomputed link metadata of the resources. */
     @Inject
-    private AllowedActionsResolver actionResolver;
-
-    @Inject
-    private Provider<List<XWikiRestComponent>> resources;
+    private ResourceLinkRegistry registry;
 
     private UriInfo uriInfo;
 
     private boolean subresource;
 
-    private Class<?> baseResource;
+    private ResourceLinkMetadata baseResource;
 
     private Right grantedRight;
 
@@ -77,7 +68,7 @@ public class DefaultAutolinker implements Autolinker
     @Override
     public DefaultAutolinker forResource(Class<?> baseResource, UriInfo uriInfo)
     {
-        this.baseResource = findResourceInterface(baseResource);
+        this.baseResource = this.registry.getMetadata(baseResource);
         this.uriInfo = uriInfo;
         for (Entry<String, List<String>> entry : this.uriInfo.getPathParameters().entrySet()) {
             if (!entry.getValue().isEmpty() && !this.extraParameters.containsKey(entry.getKey())) {
@@ -129,53 +120,68 @@ public DefaultAutolinker withExtraParameters(String parameterName, String value)
     public Collection<Link> build()
     {
         List<Link> links = new LinkedList<>();
+        String baseUri = this.uriInfo.getBaseUri().toString();
         if (this.subresource) {
-            return buildForSecondaryResource();
+            return buildForSecondaryResource(baseUri);
         }
+        Set<ResourceLinkMetadata> endpoints = new LinkedHashSet<>();
         if (this.baseResource != null) {
             links.add(this.getActionableLinkToSelf());
+            addEndpoints(this.baseResource.getChildResources(), endpoints);
+            addEndpoint(this.baseResource.getParent(), endpoints);
+        }
+        addEndpoints(this.linkedActionableInterfaces, endpoints);
+        if (this.baseResource != null) {
+            addEndpoints(this.baseResource.getRelatedResources(), endpoints);
         }
-        Set<Class<?>> endpoints = new LinkedHashSet<>(findChildResources());
-        endpoints.add(getParentResource());
-        endpoints.addAll(this.linkedActionableInterfaces);
-        endpoints.addAll(getRelatedResources());
-        for (Class<?> endpoint : endpoints) {
-            if (endpoint != null) {
-                Link link = this.getActionableLink(endpoint);
-                if (link != null) {
-                    links.add(link);
-                }
+        for (ResourceLinkMetadata endpoint : endpoints) {
+            Link link = this.getActionableLink(endpoint, baseUri);
+            if (link != null) {
+                links.add(link);
             }
         }
         return links;
     }
 
-    private Collection<Link> buildForSecondaryResource()
+    private Collection<Link> buildForSecondaryResource(String baseUri)
     {
         List<Link> links = new LinkedList<>();
-        Set<Class<?>> endpoints = new LinkedHashSet<>();
+        Set<ResourceLinkMetadata> endpoints = new LinkedHashSet<>();
         if (this.baseResource != null) {
             endpoints.add(this.baseResource);
         }
-        endpoints.addAll(this.linkedActionableInterfaces);
-        for (Class<?> endpoint : endpoints) {
-            if (endpoint != null) {
-                Link link = this.getActionableLink(endpoint);
-                if (link != null) {
-                    links.add(link);
-                }
+        addEndpoints(this.linkedActionableInterfaces, endpoints);
+        for (ResourceLinkMetadata endpoint : endpoints) {
+            Link link = this.getActionableLink(endpoint, baseUri);
+            if (link != null) {
+                links.add(link);
             }
         }
         return links;
     }
 
-    private Link getActionableLink(Class<?> endpoint)
+    private void addEndpoints(Collection<Class<?>> resources, Set<ResourceLinkMetadata> endpoints)
+    {
+        for (Class<?> resource : resources) {
+            addEndpoint(resource, endpoints);
+        }
+    }
+
+    private void addEndpoint(Class<?> resource, Set<ResourceLinkMetadata> endpoints)
+    {
+        ResourceLinkMetadata endpoint = this.registry.getMetadata(resource);
+        if (endpoint != null) {
+            endpoints.add(endpoint);
+        }
+    }
+
+    private Link getActionableLink(ResourceLinkMetadata endpoint, String baseUri)
     {
         try {
             Link link = new Link()
-                .withHref(this.getPath(endpoint))
-                .withRel(getRel(endpoint))
-                .withAllowedMethods(this.getAllowedMethods(endpoint));
+                .withHref(endpoint.getPath(baseUri, this.extraParameters))
+                .withRel(endpoint.getRelation())
+                .withAllowedMethods(endpoint.getAllowedMethods(this.grantedRight));
 
             return link;
         } catch (IllegalArgumentException ex) {
@@ -184,109 +190,11 @@ private Link getActionableLink(Class<?> endpoint)
         }
     }
 
-    private String getPath(Class<?> restInterface)
-    {
-        return this.uriInfo.getBaseUriBuilder().path(restInterface).buildFromMap(this.extraParameters).toString();
-    }
-
-    private Set<String> getAllowedMethods(Class<?> restInterface)
-    {
-        return this.actionResolver.resolveActions(restInterface, this.grantedRight);
-    }
-
     private Link getActionableLinkToSelf()
     {
         return new Link()
             .withRel("self")
-            .withAllowedMethods(this.getAllowedMethods(this.baseResource))
+            .withAllowedMethods(this.baseResource.getAllowedMethods(this.grantedRight))
             .withHref(this.uriInfo.getRequestUri().toString());
     }
-
-    private Class<?> getParentResource()
-    {
-        if (this.baseResource == null) {
-            return null;
-        }
-        ParentResource parent = this.baseResource.getAnnotation(ParentResource.class);
-        if (parent != null) {
-            return parent.value();
-        }
-        return null;
-    }
-
-    private Set<Class<?>> getRelatedResources()
-    {
-        if (this.baseResource == null) {
-            return Collections.emptySet();
-        }
-        Set<Class<?>> result = new LinkedHashSet<>();
-        RelatedResources related = this.baseResource.getAnnotation(RelatedResources.class);
-        if (related == null) {
-            return result;
-        }
-        for (Class<?> resource : related.value()) {
-            Class<?> clazz = findResourceInterface(resource);
-            if (clazz != null) {
-                result.add(findResourceInterface(resource));
-            }
-        }
-        return result;
-    }
-
-    private Set<Class<?>> findChildResources()
-    {
-        Set<Class<?>> result = new LinkedHashSet<>();
-        for (XWikiRestComponent resource : this.resources.get()) {
-            Class<?> clazz = resource.getClass();
-            while (clazz != null) {
-                for (Class<?> i : clazz.getInterfaces()) {
-                    ParentResource parentAnnotation = i.getAnnotation(ParentResource.class);
-                    if (parentAnnotation != null && parentAnnotation.value().equals(this.baseResource)) {
-                        result.add(findResourceInterface(resource));
-                    }
-                }
-                clazz = clazz.getSuperclass();
-            }
-        }
-        return result;
-    }
-
-    private Class<?> findResourceInterface(Object instance)
-    {
-        return findResourceInterface(instance.getClass());
-    }
-
-    private Class<?> findResourceInterface(Class<?> instance)
-    {
-        if (instance != null && instance.getAnnotation(Path.class) != null) {
-            return instance;
-        }
-        Class<?> clazz = instance;
-        while (clazz != null) {
-            for (Class<?> i : clazz.getInterfaces()) {
-                if (i.getAnnotation(Path.class) != null) {
-                    return i;
-                }
-            }
-            clazz = clazz.getSuperclass();
-        }
-        return null;
-    }
-
-    /**
-     * Get the relation type specified in the {@code @Relation} annotation on the target class or one of its implemented
-     * interfaces.
-     *
-     * @param resource the class of a REST resource, which must have a {@code @Relation} annotation
-     * @return the specified relation type, usually in the form of an URL, or {@code null} if not set
-     */
-    private String getRel(Class<?> resource)
-    {
-        String relation = null;
-        Relation relationAnnotation = resource.getAnnotation(Relation.class);
-        if (relationAnnotation != null) {
-            relation = relationAnnotation.value();
-        }
-        return relation;
-    }
 }
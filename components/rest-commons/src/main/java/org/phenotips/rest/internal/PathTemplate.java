@@ -0,0 +1,145 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.rest.internal;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A parsed JAX-RS {@code @Path} template, such as {@code /vocabularies/{vocabulary-id}/terms/{term-id}}, which can be
+ * expanded into an actual path by substituting the variables, without having to parse the template again each time.
+ * Variable values are percent-encoded as path content, the same as {@code UriBuilder#buildFromMap} does.
+ *
+ * @version $Id$
+ * @since 1.4
+ */
+final class PathTemplate
+{
+    private static final char VARIABLE_START = '{';
+
+    private static final char VARIABLE_END = '}';
+
+    private static final char PATH_SEPARATOR = '/';
+
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+    /**
+     * Characters allowed unencoded in a path segment, besides letters and digits. The path separator is not included,
+     * since a value is always substituted as a single segment.
+     */
+    private static final String ALLOWED_PATH_CHARACTERS = "-._~!$&'()*+,;=:@";
+
+    /** The literal parts of the template, there's always one more than the number of variables. */
+    private final List<String> literals;
+
+    /** The names of the variables in the template, in the order they appear. */
+    private final List<String> variables;
+
+    /**
+     * Parses a template.
+     *
+     * @param template the value of a {@code @Path} annotation, possibly containing variables with regular expressions,
+     *            like <code>{id: [^/]+}</code>
+     * @throws IllegalArgumentException if the template contains an unclosed variable
+     */
+    PathTemplate(String template)
+    {
+        List<String> parsedLiterals = new ArrayList<>();
+        List<String> parsedVariables = new ArrayList<>();
+        StringBuilder literal = new StringBuilder();
+        if (template.isEmpty() || template.charAt(0) != PATH_SEPARATOR) {
+            literal.append(PATH_SEPARATOR);
+        }
+        int i = 0;
+        while (i < template.length()) {
+            char c = template.charAt(i);
+            if (c == VARIABLE_START) {
+                int end = findVariableEnd(template, i);
+                String variable = template.substring(i + 1, end);
+                int regexStart = variable.indexOf(':');
+                parsedVariables.add((regexStart >= 0 ? variable.substring(0, regexStart) : variable).trim());
+                parsedLiterals.add(literal.toString());
+                literal.setLength(0);
+                i = end + 1;
+            } else {
+                literal.append(c);
+                ++i;
+            }
+        }
+        parsedLiterals.add(literal.toString());
+        this.literals = Collections.unmodifiableList(parsedLiterals);
+        this.variables = Collections.unmodifiableList(parsedVariables);
+    }
+
+    /**
+     * Expands this template into a path, appended to a base URI.
+     *
+     * @param baseUri the base URI of the REST resources, with or without a trailing slash
+     * @param parameters the values of the variables in the template
+     * @return the full URI of the resource
+     * @throws IllegalArgumentException if one of the variables doesn't have a value
+     */
+    String expand(String baseUri, Map<String, String> parameters)
+    {
+        StringBuilder result = new StringBuilder(baseUri.length() + 64);
+        result.append(baseUri);
+        if (result.length() > 0 && result.charAt(result.length() - 1) == PATH_SEPARATOR) {
+            result.setLength(result.length() - 1);
+        }
+        result.append(this.literals.get(0));
+        for (int i = 0; i < this.variables.size(); ++i) {
+            String value = parameters.get(this.variables.get(i));
+            if (value == null) {
+                throw new IllegalArgumentException("Missing value for the template variable " + this.variables.get(i));
+            }
+            encode(value, result);
+            result.append(this.literals.get(i + 1));
+        }
+        return result.toString();
+    }
+
+    private static int findVariableEnd(String template, int start)
+    {
+        // Regular expressions may contain braces as well, as in {id: [0-9]{7}}
+        int depth = 0;
+        for (int i = start; i < template.length(); ++i) {
+            char c = template.charAt(i);
+            if (c == VARIABLE_START) {
+                ++depth;
+            } else if (c == VARIABLE_END && --depth == 0) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Unclosed variable in the path template " + template);
+    }
+
+    private static void encode(String value, StringBuilder out)
+    {
+        for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+            char c = (char) (b & 0xFF);
+            if (c < 0x80 && (Character.isLetterOrDigit(c) || ALLOWED_PATH_CHARACTERS.indexOf(c) >= 0)) {
+                out.append(c);
+            } else {
+                out.append('%').append(HEX_DIGITS[c >> 4]).append(HEX_DIGITS[c & 0xF]);
+            }
+        }
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.rest.internal;
+
+import org.phenotips.rest.AllowedActionsResolver;
+
+import org.xwiki.security.authorization.Right;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Everything needed for linking to a REST resource, extracted once from the annotations of its interface: the path
+ * template, the relation type, the parent, related and child resources, and the HTTP methods allowed for each right.
+ *
+ * @version $Id$
+ * @since 1.4
+ */
+final class ResourceLinkMetadata
+{
+    private final Class<?> resourceInterface;
+
+    private final PathTemplate pathTemplate;
+
+    private final String relation;
+
+    private final Class<?> parent;
+
+    private final List<Class<?>> relatedResources;
+
+    private final List<Class<?>> childResources;
+
+    private final AllowedActionsResolver actionResolver;
+
+    /** The allowed methods, for each right for which they were requested. */
+    private final ConcurrentMap<Right, Set<String>> allowedMethods = new ConcurrentHashMap<>();
+
+    /** The allowed methods when no right is granted, {@code null} until first requested. */
+    private volatile Set<String> allMethods;
+
+    /**
+     * Constructor.
+     *
+     * @param resourceInterface the interface annotated with {@code @Path} which defines the resource
+     * @param pathTemplate the parsed {@code @Path} of the interface
+     * @param relation the relation type specified with {@code @Relation}, may be {@code null}
+     * @param parent the resource interface specified with {@code @ParentResource}, may be {@code null}
+     * @param relatedResources the resource interfaces specified with {@code @RelatedResources}
+     * @param childResources the resource interfaces which specify this resource as their parent
+     * @param actionResolver resolves the allowed methods when they are first requested for a right
+     */
+    ResourceLinkMetadata(Class<?> resourceInterface, PathTemplate pathTemplate, String relation, Class<?> parent,
+        List<Class<?>> relatedResources, List<Class<?>> childResources, AllowedActionsResolver actionResolver)
+    {
+        this.resourceInterface = resourceInterface;
+        this.pathTemplate = pathTemplate;
+        this.relation = relation;
+        this.parent = parent;
+        this.relatedResources = Collections.unmodifiableList(relatedResources);
+        this.childResources = Collections.unmodifiableList(childResources);
+        this.actionResolver = actionResolver;
+    }
+
+    Class<?> getResourceInterface()
+    {
+        return this.resourceInterface;
+    }
+
+    String getRelation()
+    {
+        return this.relation;
+    }
+
+    Class<?> getParent()
+    {
+        return this.parent;
+    }
+
+    List<Class<?>> getRelatedResources()
+    {
+        return this.relatedResources;
+    }
+
+    List<Class<?>> getChildResources()
+    {
+        return this.childResources;
+    }
+
+    /**
+     * Builds the URI of the resource.
+     *
+     * @param baseUri the base URI of the REST resources
+     * @param parameters the values of the path parameters
+     * @return the URI of the resource
+     * @throws IllegalArgumentException if one of the path parameters doesn't have a value
+     */
+    String getPath(String baseUri, Map<String, String> parameters)
+    {
+        return this.pathTemplate.expand(baseUri, parameters);
+    }
+
+    /**
+     * Lists the HTTP methods which can be used on this resource with a right.
+     *
+     * @param grantedRight the right granted to the current user, may be {@code null}
+     * @return an unmodifiable set of HTTP method names
+     */
+    Set<String> getAllowedMethods(Right grantedRight)
+    {
+        if (grantedRight == null) {
+            Set<String> result = this.allMethods;
+            if (result == null) {
+                result = resolveActions(null);
+                this.allMethods = result;
+            }
+            return result;
+        }
+        Set<String> result = this.allowedMethods.get(grantedRight);
+        if (result == null) {
+            result = resolveActions(grantedRight);
+            this.allowedMethods.putIfAbsent(grantedRight, result);
+        }
+        return result;
+    }
+
+    private Set<String> resolveActions(Right grantedRight)
+    {
+        return Collections.unmodifiableSet(this.actionResolver.resolveActions(this.resourceInterface, grantedRight));
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.rest.internal;
+
+import org.phenotips.rest.AllowedActionsResolver;
+import org.phenotips.rest.ParentResource;
+import org.phenotips.rest.RelatedResources;
+import org.phenotips.rest.Relation;
+
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.event.ComponentDescriptorAddedEvent;
+import org.xwiki.component.event.ComponentDescriptorRemovedEvent;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
+import org.xwiki.observation.EventListener;
+import org.xwiki.observation.ObservationManager;
+import org.xwiki.observation.event.Event;
+import org.xwiki.rest.XWikiRestComponent;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.inject.Inject;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+import javax.ws.rs.Path;
+
+/**
+ * Holds the {@link ResourceLinkMetadata link metadata} of the REST resources, computed the first time each resource is
+ * linked. Finding the child resources requires going through all the REST components, so this is done only once, for
+ * all the resources, and redone only when REST components are registered or unregistered.
+ *
+ * @version $Id$
+ * @since 1.4
+ */
+@Component(roles = { ResourceLinkRegistry.class })
+@Singleton
+public class ResourceLinkRegistry implements EventListener, Initializable
+{
+    @Inject
+    private AllowedActionsResolver actionResolver;
+
+    @Inject
+    private Provider<List<XWikiRestComponent>> resources;
+
+    /** Allows registering this object as an event listener. */
+    @Inject
+    private ObservationManager observationManager;
+
+    /** The metadata of each resource, keyed by either the resource interface, or the class implementing it. */
+    private final ConcurrentMap<Class<?>, ResourceLinkMetadata> metadata = new ConcurrentHashMap<>();
+
+    /** The child resources of each resource, {@code null} until first needed or after the REST components change. */
+    private volatile Map<Class<?>, List<Class<?>>> children;
+
+    @Override
+    public void initialize() throws InitializationException
+    {
+        this.observationManager.addListener(this);
+    }
+
+    /**
+     * Get the link metadata of a resource.
+     *
+     * @param resource either a REST resource interface, annotated with {@code @Path}, or a class implementing it
+     * @return the metadata of the resource interface, or {@code null} if the class isn't a REST resource
+     */
+    public ResourceLinkMetadata getMetadata(Class<?> resource)
+    {
+        if (resource == null) {
+            return null;
+        }
+        ResourceLinkMetadata result = this.metadata.get(resource);
+        if (result == null) {
+            Class<?> resourceInterface = findResourceInterface(resource);
+            if (resourceInterface == null) {
+                return null;
+            }
+            result = resourceInterface == resource ? computeMetadata(resource) : getMetadata(resourceInterface);
+            ResourceLinkMetadata previous = this.metadata.putIfAbsent(resource, result);
+            if (previous != null) {
+                result = previous;
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public String getName()
+    {
+        return "rest-link-metadata";
+    }
+
+    @Override
+    public List<Event> getEvents()
+    {
+        return Arrays.<Event>asList(new ComponentDescriptorAddedEvent(XWikiRestComponent.class),
+            new ComponentDescriptorRemovedEvent(XWikiRestComponent.class));
+    }
+
+    @Override
+    public void onEvent(Event event, Object source, Object data)
+    {
+        // A REST resource was added or removed, the child resources must be recomputed
+        this.children = null;
+        this.metadata.clear();
+    }
+
+    private ResourceLinkMetadata computeMetadata(Class<?> resourceInterface)
+    {
+        Relation relation = resourceInterface.getAnnotation(Relation.class);
+        ParentResource parent = resourceInterface.getAnnotation(ParentResource.class);
+        List<Class<?>> related = new ArrayList<>();
+        RelatedResources relatedAnnotation = resourceInterface.getAnnotation(RelatedResources.class);
+        if (relatedAnnotation != null) {
+            for (Class<?> resource : relatedAnnotation.value()) {
+                Class<?> clazz = findResourceInterface(resource);
+                if (clazz != null) {
+                    related.add(clazz);
+                }
+            }
+        }
+        List<Class<?>> childResources = getChildren().get(resourceInterface);
+        return new ResourceLinkMetadata(resourceInterface,
+            new PathTemplate(resourceInterface.getAnnotation(Path.class).value()),
+            relation != null ? relation.value() : null,
+            parent != null ? parent.value() : null,
+            related,
+            childResources != null ? childResources : Collections.<Class<?>>emptyList(),
+            this.actionResolver);
+    }
+
+    private Map<Class<?>, List<Class<?>>> getChildren()
+    {
+        Map<Class<?>, List<Class<?>>> result = this.children;
+        if (result == null) {
+            result = findChildResources();
+            this.children = result;
+        }
+        return result;
+    }
+
+    /**
+     * Goes through all the REST components and indexes them by the parent resources declared by their interfaces.
+     *
+     * @return the child resource interfaces of each parent resource, in the order of the REST components
+     */
+    private Map<Class<?>, List<Class<?>>> findChildResources()
+    {
+        Map<Class<?>, Set<Class<?>>> found = new HashMap<>();
+        for (XWikiRestComponent resource : this.resources.get()) {
+            Class<?> resourceInterface = findResourceInterface(resource.getClass());
+            Class<?> clazz = resource.getClass();
+            while (clazz != null) {
+                for (Class<?> i : clazz.getInterfaces()) {
+                    ParentResource parentAnnotation = i.getAnnotation(ParentResource.class);
+                    if (parentAnnotation != null && resourceInterface != null) {
+                        Set<Class<?>> siblings = found.get(parentAnnotation.value());
+                        if (siblings == null) {
+                            siblings = new LinkedHashSet<>();
+                            found.put(parentAnnotation.value(), siblings);
+                        }
+                        siblings.add(resourceInterface);
+                    }
+                }
+                clazz = clazz.getSuperclass();
+            }
+        }
+        Map<Class<?>, List<Class<?>>> result = new HashMap<>();
+        for (Map.Entry<Class<?>, Set<Class<?>>> entry : found.entrySet()) {
+            result.put(entry.getKey(), Collections.unmodifiableList(new ArrayList<>(entry.getValue())));
+        }
+        return result;
+    }
+
+    private Class<?> findResourceInterface(Class<?> instance)
+    {
+        if (instance != null && instance.getAnnotation(Path.class) != null) {
+            return instance;
+        }
+        Class<?> clazz = instance;
+        while (clazz != null) {
+            for (Class<?> i : clazz.getInterfaces()) {
+                if (i.getAnnotation(Path.class) != null) {
+                    return i;
+                }
+            }
+            clazz = clazz.getSuperclass();
+        }
+        return null;
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.rest.internal;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for the {@link PathTemplate} class.
+ *
+ * @version $Id$
+ */
+public class PathTemplateTest
+{
+    private static final String BASE_URI = "http://localhost:8080/rest/";
+
+    private Map<String, String> parameters = new HashMap<>();
+
+    @Before
+    public void setup()
+    {
+        this.parameters.put("vocabulary-id", "hpo");
+        this.parameters.put("term-id", "HP:0000118");
+    }
+
+    @Test
+    public void variablesAreReplaced()
+    {
+        PathTemplate template = new PathTemplate("/vocabularies/{vocabulary-id}/terms/{term-id}");
+        Assert.assertEquals("http://localhost:8080/rest/vocabularies/hpo/terms/HP:0000118",
+            template.expand(BASE_URI, this.parameters));
+    }
+
+    @Test
+    public void missingSlashesAreAdded()
+    {
+        Assert.assertEquals("http://localhost:8080/rest/vocabularies/hpo",
+            new PathTemplate("vocabularies/{vocabulary-id}").expand("http://localhost:8080/rest", this.parameters));
+    }
+
+    @Test
+    public void regularExpressionsAreIgnored()
+    {
+        PathTemplate template = new PathTemplate("/vocabularies/{vocabulary-id : [a-z]{3,}}/terms/{ term-id: .+ }");
+        Assert.assertEquals("http://localhost:8080/rest/vocabularies/hpo/terms/HP:0000118",
+            template.expand(BASE_URI, this.parameters));
+    }
+
+    @Test
+    public void valuesAreEncoded()
+    {
+        this.parameters.put("vocabulary-id", "a b%c\u00e9?");
+        Assert.assertEquals("http://localhost:8080/rest/vocabularies/a%20b%25c%C3%A9%3F",
+            new PathTemplate("/vocabularies/{vocabulary-id}").expand(BASE_URI, this.parameters));
+    }
+
+    @Test
+    public void slashesInValuesAreEncoded()
+    {
+        this.parameters.put("vocabulary-id", "../patients/P0000001");
+        Assert.assertEquals("http://localhost:8080/rest/vocabularies/..%2Fpatients%2FP0000001/terms/HP:0000118",
+            new PathTemplate("/vocabularies/{vocabulary-id}/terms/{term-id}").expand(BASE_URI, this.parameters));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void missingValuesAreRejected()
+    {
+        new PathTemplate("/patients/{patient-id}").expand(BASE_URI, this.parameters);
+    }
+}
@@ -0,0 +1,245 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.rest.internal;
+
+import org.phenotips.rest.AllowedActionsResolver;
+import org.phenotips.rest.ParentResource;
+import org.phenotips.rest.RelatedResources;
+import org.phenotips.rest.Relation;
+
+import org.xwiki.component.event.ComponentDescriptorAddedEvent;
+import org.xwiki.component.event.ComponentDescriptorRemovedEvent;
+import org.xwiki.component.util.DefaultParameterizedType;
+import org.xwiki.observation.ObservationManager;
+import org.xwiki.rest.XWikiRestComponent;
+import org.xwiki.security.authorization.Right;
+import org.xwiki.test.mockito.MockitoComponentMockingRule;
+
+import java.lang.reflect.ParameterizedType;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.inject.Provider;
+import javax.ws.rs.Path;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import static org.hamcrest.Matchers.hasItem;
+import static org.hamcrest.Matchers.isA;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests for the {@link ResourceLinkRegistry} component.
+ *
+ * @version $Id$
+ */
+public class ResourceLinkRegistryTest
+{
+    @Rule
+    public final MockitoComponentMockingRule<ResourceLinkRegistry> mocker =
+        new MockitoComponentMockingRule<>(ResourceLinkRegistry.class);
+
+    private Provider<List<XWikiRestComponent>> resources;
+
+    private AllowedActionsResolver actionResolver;
+
+    @Path("/patients")
+    @Relation("https://phenotips.org/rel/patientRecords")
+    interface PatientsResource
+    {
+    }
+
+    @Path("/patients/{patient-id}")
+    @Relation("https://phenotips.org/rel/patientRecord")
+    @ParentResource(PatientsResource.class)
+    @RelatedResources({ VocabulariesResource.class, String.class })
+    interface PatientResource
+    {
+    }
+
+    @Path("/patients/{patient-id}/consents")
+    @ParentResource(PatientResource.class)
+    interface ConsentsResource
+    {
+    }
+
+    @Path("/patients/{patient-id}/family")
+    @ParentResource(PatientResource.class)
+    interface FamilyResource
+    {
+    }
+
+    @Path("/vocabularies")
+    interface VocabulariesResource
+    {
+    }
+
+    static class DefaultPatientsResource implements PatientsResource, XWikiRestComponent
+    {
+    }
+
+    static class DefaultPatientResource implements PatientResource, XWikiRestComponent
+    {
+    }
+
+    static class DefaultConsentsResource implements ConsentsResource, XWikiRestComponent
+    {
+    }
+
+    static class DefaultFamilyResource implements FamilyResource, XWikiRestComponent
+    {
+    }
+
+    static class DefaultVocabulariesResource implements VocabulariesResource, XWikiRestComponent
+    {
+    }
+
+    @Before
+    public void setup() throws Exception
+    {
+        ParameterizedType listType = new DefaultParameterizedType(null, List.class, XWikiRestComponent.class);
+        this.resources = this.mocker.getInstance(new DefaultParameterizedType(null, Provider.class, listType));
+        when(this.resources.get()).thenReturn(Arrays.<XWikiRestComponent>asList(new DefaultPatientsResource(),
+            new DefaultPatientResource(), new DefaultConsentsResource(), new DefaultVocabulariesResource()));
+
+        this.actionResolver = this.mocker.getInstance(AllowedActionsResolver.class);
+        when(this.actionResolver.resolveActions(any(Class.class), any(Right.class)))
+            .thenReturn(new HashSet<>(Arrays.asList("GET", "PUT")));
+    }
+
+    @Test
+    public void registersItselfAsListener() throws Exception
+    {
+        ResourceLinkRegistry registry = this.mocker.getComponentUnderTest();
+        verify(this.mocker.<ObservationManager>getInstance(ObservationManager.class)).addListener(registry);
+        Assert.assertEquals(2, registry.getEvents().size());
+        Assert.assertThat(registry.getEvents(), hasItem(isA(ComponentDescriptorAddedEvent.class)));
+        Assert.assertThat(registry.getEvents(), hasItem(isA(ComponentDescriptorRemovedEvent.class)));
+    }
+
+    @Test
+    public void metadataIsExtractedFromAnnotations() throws Exception
+    {
+        ResourceLinkMetadata metadata = this.mocker.getComponentUnderTest().getMetadata(PatientResource.class);
+
+        Assert.assertSame(PatientResource.class, metadata.getResourceInterface());
+        Assert.assertEquals("https://phenotips.org/rel/patientRecord", metadata.getRelation());
+        Assert.assertSame(PatientsResource.class, metadata.getParent());
+        Assert.assertEquals(Collections.<Class<?>>singletonList(VocabulariesResource.class),
+            metadata.getRelatedResources());
+        Assert.assertEquals(Collections.<Class<?>>singletonList(ConsentsResource.class),
+            metadata.getChildResources());
+        Assert.assertEquals("http://localhost/rest/patients/P0000001",
+            metadata.getPath("http://localhost/rest/", Collections.singletonMap("patient-id", "P0000001")));
+    }
+
+    @Test
+    public void resourcesWithoutAnnotationsHaveEmptyMetadata() throws Exception
+    {
+        ResourceLinkMetadata metadata = this.mocker.getComponentUnderTest().getMetadata(VocabulariesResource.class);
+
+        Assert.assertNull(metadata.getRelation());
+        Assert.assertNull(metadata.getParent());
+        Assert.assertTrue(metadata.getRelatedResources().isEmpty());
+        Assert.assertTrue(metadata.getChildResources().isEmpty());
+    }
+
+    @Test
+    public void implementationsShareTheMetadataOfTheirInterface() throws Exception
+    {
+        ResourceLinkRegistry registry = this.mocker.getComponentUnderTest();
+        Assert.assertSame(registry.getMetadata(PatientResource.class),
+            registry.getMetadata(DefaultPatientResource.class));
+        Assert.assertSame(registry.getMetadata(PatientResource.class), registry.getMetadata(PatientResource.class));
+    }
+
+    @Test
+    public void nonResourcesHaveNoMetadata() throws Exception
+    {
+        ResourceLinkRegistry registry = this.mocker.getComponentUnderTest();
+        Assert.assertNull(registry.getMetadata(null));
+        Assert.assertNull(registry.getMetadata(String.class));
+    }
+
+    @Test
+    public void childResourcesAreIndexedOnceForAllResources() throws Exception
+    {
+        ResourceLinkRegistry registry = this.mocker.getComponentUnderTest();
+        Assert.assertEquals(Collections.<Class<?>>singletonList(PatientResource.class),
+            registry.getMetadata(PatientsResource.class).getChildResources());
+        registry.getMetadata(PatientResource.class);
+        registry.getMetadata(ConsentsResource.class);
+        registry.getMetadata(DefaultVocabulariesResource.class);
+
+        verify(this.resources, times(1)).get();
+    }
+
+    @Test
+    public void indexIsRebuiltWhenRestComponentsChange() throws Exception
+    {
+        ResourceLinkRegistry registry = this.mocker.getComponentUnderTest();
+        ResourceLinkMetadata before = registry.getMetadata(PatientResource.class);
+
+        when(this.resources.get()).thenReturn(Arrays.<XWikiRestComponent>asList(new DefaultPatientsResource(),
+            new DefaultPatientResource(), new DefaultConsentsResource(), new DefaultFamilyResource()));
+        registry.onEvent(new ComponentDescriptorAddedEvent(XWikiRestComponent.class), null, null);
+        ResourceLinkMetadata after = registry.getMetadata(PatientResource.class);
+
+        Assert.assertNotSame(before, after);
+        Assert.assertEquals(Arrays.<Class<?>>asList(ConsentsResource.class, FamilyResource.class),
+            after.getChildResources());
+        verify(this.resources, times(2)).get();
+    }
+
+    @Test
+    public void removedChildResourcesAreNoLongerListed() throws Exception
+    {
+        ResourceLinkRegistry registry = this.mocker.getComponentUnderTest();
+        registry.getMetadata(PatientResource.class);
+
+        when(this.resources.get()).thenReturn(Arrays.<XWikiRestComponent>asList(new DefaultPatientsResource(),
+            new DefaultPatientResource()));
+        registry.onEvent(new ComponentDescriptorRemovedEvent(XWikiRestComponent.class), null, null);
+
+        Assert.assertTrue(registry.getMetadata(PatientResource.class).getChildResources().isEmpty());
+    }
+
+    @Test
+    public void allowedMethodsAreResolvedOncePerRight() throws Exception
+    {
+        ResourceLinkMetadata metadata = this.mocker.getComponentUnderTest().getMetadata(PatientResource.class);
+
+        Set<String> methods = metadata.getAllowedMethods(Right.EDIT);
+        Assert.assertEquals(new HashSet<>(Arrays.asList("GET", "PUT")), methods);
+        Assert.assertSame(methods, metadata.getAllowedMethods(Right.EDIT));
+        metadata.getAllowedMethods(null);
+        metadata.getAllowedMethods(null);
+
+        verify(this.actionResolver, times(1)).resolveActions(PatientResource.class, Right.EDIT);
+        verify(this.actionResolver, times(1)).resolveActions(PatientResource.class, null);
+    }
+}
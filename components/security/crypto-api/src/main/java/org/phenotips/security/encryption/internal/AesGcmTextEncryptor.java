@@ -0,0 +1,129 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.security.encryption.internal;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Base64;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Authenticated text encryption with AES in GCM mode. Unlike password based encryption, which derives the key again
+ * for each message, the key is derived from the password only once, when the encryptor is created, so encrypting and
+ * decrypting a message only costs the actual cipher work. Each message uses a new random IV, stored in front of the
+ * ciphertext, and the output is base64 encoded.
+ *
+ * @version $Id$
+ * @since 1.4
+ */
+final class AesGcmTextEncryptor
+{
+    private static final String KEY_DERIVATION_ALGORITHM = "PBKDF2WithHmacSHA256";
+
+    private static final String CIPHER_ALGORITHM = "AES/GCM/NoPadding";
+
+    /** Must never change, since the same password must always yield the same key. */
+    private static final byte[] SALT = "PhenoTips system encryption key".getBytes(StandardCharsets.UTF_8);
+
+    private static final int ITERATIONS = 100000;
+
+    /** 128 bit keys work on all Java installations, even without the unlimited strength policy files. */
+    private static final int KEY_LENGTH = 128;
+
+    private static final int IV_LENGTH = 12;
+
+    private static final int TAG_LENGTH = 128;
+
+    private final SecretKey key;
+
+    private final SecureRandom random = new SecureRandom();
+
+    /**
+     * Constructor which derives the encryption key.
+     *
+     * @param password the password from which to derive the key
+     * @throws GeneralSecurityException if the required algorithms are not available
+     */
+    AesGcmTextEncryptor(String password) throws GeneralSecurityException
+    {
+        PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), SALT, ITERATIONS, KEY_LENGTH);
+        try {
+            byte[] keyBytes = SecretKeyFactory.getInstance(KEY_DERIVATION_ALGORITHM).generateSecret(spec).getEncoded();
+            this.key = new SecretKeySpec(keyBytes, "AES");
+        } finally {
+            spec.clearPassword();
+        }
+        // fail early if AES/GCM isn't supported
+        Cipher.getInstance(CIPHER_ALGORITHM);
+    }
+
+    /**
+     * Encrypts a message.
+     *
+     * @param message the message to encrypt, must not be {@code null}
+     * @return the encrypted message, base64 encoded
+     */
+    String encrypt(String message)
+    {
+        try {
+            byte[] iv = new byte[IV_LENGTH];
+            this.random.nextBytes(iv);
+            Cipher cipher = Cipher.getInstance(CIPHER_ALGORITHM);
+            cipher.init(Cipher.ENCRYPT_MODE, this.key, new GCMParameterSpec(TAG_LENGTH, iv));
+            byte[] plaintext = message.getBytes(StandardCharsets.UTF_8);
+            ByteBuffer result = ByteBuffer.allocate(IV_LENGTH + cipher.getOutputSize(plaintext.length));
+            result.put(iv);
+            cipher.doFinal(ByteBuffer.wrap(plaintext), result);
+            return Base64.getEncoder().encodeToString(result.array());
+        } catch (GeneralSecurityException ex) {
+            throw new IllegalStateException("Failed to encrypt message: " + ex.getMessage(), ex);
+        }
+    }
+
+    /**
+     * Decrypts a message, verifying that it wasn't altered.
+     *
+     * @param encryptedMessage a message previously {@link #encrypt(String) encrypted} with the same key, must not be
+     *            {@code null}
+     * @return the decrypted message
+     * @throws IllegalArgumentException if the message is not valid, was altered, or was encrypted with another key
+     */
+    String decrypt(String encryptedMessage)
+    {
+        try {
+            byte[] input = Base64.getDecoder().decode(encryptedMessage);
+            if (input.length < IV_LENGTH) {
+                throw new IllegalArgumentException("Invalid encrypted message");
+            }
+            Cipher cipher = Cipher.getInstance(CIPHER_ALGORITHM);
+            cipher.init(Cipher.DECRYPT_MODE, this.key, new GCMParameterSpec(TAG_LENGTH, input, 0, IV_LENGTH));
+            byte[] plaintext = cipher.doFinal(input, IV_LENGTH, input.length - IV_LENGTH);
+            return new String(plaintext, StandardCharsets.UTF_8);
+        } catch (GeneralSecurityException ex) {
+            throw new IllegalArgumentException("Failed to decrypt message: " + ex.getMessage(), ex);
+        }
+    }
+}
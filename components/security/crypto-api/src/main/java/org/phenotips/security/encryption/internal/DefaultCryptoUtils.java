@@ -24,6 +24,8 @@
 import org.xwiki.component.phase.Initializable;
 import org.xwiki.component.phase.InitializationException;
 
+import java.security.GeneralSecurityException;
+
 import javax.inject.Inject;
 import javax.inject.Singleton;
 
@@ -31,7 +33,9 @@
 import org.jasypt.util.text.StrongTextEncryptor;
 
 /**
- * The straight-forward implementation of the {@link CryptoUtils} role.
+ * The straight-forward implementation of the {@link CryptoUtils} role. Messages are encrypted with AES/GCM, using a key
+ * derived from the system password once, at startup. Messages encrypted with the password based encryption used by
+ * older versions don't have a version prefix, and can still be decrypted.
  *
  * @version $Id$
  * @since 1.3M2
@@ -40,18 +44,34 @@
 @Singleton
 public class DefaultCryptoUtils implements CryptoUtils, Initializable
 {
+    /**
+     * Marks messages encrypted with AES/GCM. The base64 output of the older password based encryption never contains
+     * a colon, so older messages can't be mistaken for new ones.
+     */
+    private static final String AES_GCM_PREFIX = "v2:";
+
     @Inject
     private SystemPasswordConfiguration passwordConfig;
 
+    /** Only used for decrypting messages encrypted by older versions. */
     private StrongTextEncryptor encryptor;
 
+    private AesGcmTextEncryptor aesEncryptor;
+
     private StandardStringDigester digester;
 
     @Override
     public void initialize() throws InitializationException
     {
+        String password = this.passwordConfig.getSystemPassword();
         this.encryptor = new StrongTextEncryptor();
-        this.encryptor.setPassword(this.passwordConfig.getSystemPassword());
+        this.encryptor.setPassword(password);
+        try {
+            this.aesEncryptor = new AesGcmTextEncryptor(password);
+        } catch (GeneralSecurityException ex) {
+            throw new InitializationException("Failed to initialize the system encryption key: " + ex.getMessage(),
+                ex);
+        }
 
         this.digester = new StandardStringDigester();
         this.digester.setAlgorithm("SHA-512");
@@ -63,12 +83,21 @@ public void initialize() throws InitializationException
     @Override
     public String encryptWithSystemKey(String message)
     {
-        return this.encryptor.encrypt(message);
+        if (message == null) {
+            return null;
+        }
+        return AES_GCM_PREFIX + this.aesEncryptor.encrypt(message);
     }
 
     @Override
     public String decryptWithSystemKey(String encryptedMessage)
     {
+        if (encryptedMessage == null) {
+            return null;
+        }
+        if (encryptedMessage.startsWith(AES_GCM_PREFIX)) {
+            return this.aesEncryptor.decrypt(encryptedMessage.substring(AES_GCM_PREFIX.length()));
+        }
         return this.encryptor.decrypt(encryptedMessage);
     }
 
@@ -0,0 +1,117 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.security.encryption.internal;
+
+import org.phenotips.security.encryption.CryptoUtils;
+import org.phenotips.security.encryption.SystemPasswordConfiguration;
+
+import org.xwiki.component.phase.InitializationException;
+import org.xwiki.component.util.ReflectionUtils;
+
+import java.util.Base64;
+
+import org.jasypt.util.text.StrongTextEncryptor;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests for the default {@link CryptoUtils} component, {@link DefaultCryptoUtils}.
+ *
+ * @version $Id$
+ */
+public class DefaultCryptoUtilsTest
+{
+    private static final String PASSWORD = "system password";
+
+    private static final String MESSAGE = "Some secret text, with non-ASCII characters: \u00e9\u00e8\u4e2d";
+
+    private CryptoUtils utils;
+
+    @Before
+    public void setup() throws InitializationException
+    {
+        this.utils = createUtils(PASSWORD);
+    }
+
+    @Test
+    public void encryptedMessagesCanBeDecrypted()
+    {
+        String encrypted = this.utils.encryptWithSystemKey(MESSAGE);
+        Assert.assertTrue(encrypted.startsWith("v2:"));
+        Assert.assertFalse(encrypted.contains(MESSAGE));
+        Assert.assertEquals(MESSAGE, this.utils.decryptWithSystemKey(encrypted));
+        Assert.assertEquals("", this.utils.decryptWithSystemKey(this.utils.encryptWithSystemKey("")));
+    }
+
+    @Test
+    public void encryptingTheSameMessageTwiceGivesDifferentResults()
+    {
+        Assert.assertNotEquals(this.utils.encryptWithSystemKey(MESSAGE), this.utils.encryptWithSystemKey(MESSAGE));
+    }
+
+    @Test
+    public void sameKeyIsDerivedFromTheSamePassword() throws InitializationException
+    {
+        Assert.assertEquals(MESSAGE,
+            createUtils(PASSWORD).decryptWithSystemKey(this.utils.encryptWithSystemKey(MESSAGE)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void decryptingWithAnotherKeyFails() throws InitializationException
+    {
+        createUtils("another password").decryptWithSystemKey(this.utils.encryptWithSystemKey(MESSAGE));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void alteredMessagesAreRejected()
+    {
+        String encrypted = this.utils.encryptWithSystemKey(MESSAGE);
+        byte[] raw = Base64.getDecoder().decode(encrypted.substring(3));
+        raw[raw.length / 2] ^= 1;
+        this.utils.decryptWithSystemKey("v2:" + Base64.getEncoder().encodeToString(raw));
+    }
+
+    @Test
+    public void messagesEncryptedByOlderVersionsCanBeDecrypted()
+    {
+        StrongTextEncryptor oldEncryptor = new StrongTextEncryptor();
+        oldEncryptor.setPassword(PASSWORD);
+        Assert.assertEquals(MESSAGE, this.utils.decryptWithSystemKey(oldEncryptor.encrypt(MESSAGE)));
+    }
+
+    @Test
+    public void nullMessagesAreNotEncrypted()
+    {
+        Assert.assertNull(this.utils.encryptWithSystemKey(null));
+        Assert.assertNull(this.utils.decryptWithSystemKey(null));
+    }
+
+    private CryptoUtils createUtils(String password) throws InitializationException
+    {
+        SystemPasswordConfiguration config = mock(SystemPasswordConfiguration.class);
+        when(config.getSystemPassword()).thenReturn(password);
+        DefaultCryptoUtils result = new DefaultCryptoUtils();
+        ReflectionUtils.setFieldValue(result, "passwordConfig", config);
+        result.initialize();
+        return result;
+    }
+}
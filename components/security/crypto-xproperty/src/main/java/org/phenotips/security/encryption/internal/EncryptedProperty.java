@@ -40,12 +40,22 @@ public class EncryptedProperty extends BaseStringProperty
     /** Will be pre-pended to the values of the encrypted properties to identify that they are indeed encrypted. */
     private static final String ENCRYPTED_IDENTIFIER = "e:";
 
+    /** The decrypted value, memoized so that reading the value repeatedly only decrypts it once. */
+    private transient Plaintext plaintext;
+
+    private transient CryptoUtils cryptoUtils;
+
     @Override
     public String getValue()
     {
         String value = super.getValue();
-        if (isEncrypted(value)) {
-            return decrypt(value);
+        if (value != null && isEncrypted(value)) {
+            Plaintext memo = this.plaintext;
+            if (memo == null || !value.equals(memo.encrypted)) {
+                memo = new Plaintext(value, decrypt(value));
+                this.plaintext = memo;
+            }
+            return memo.value;
         }
         return value;
     }
@@ -61,7 +71,11 @@ public void setValue(Object value)
         if (isEncrypted(strValue)) {
             super.setValue(value);
         } else {
-            super.setValue(encrypt(strValue));
+            // new values always use the current encryption engine, so values encrypted with an older one are
+            // migrated whenever they are written
+            String encrypted = encrypt(strValue);
+            super.setValue(encrypted);
+            this.plaintext = new Plaintext(encrypted, strValue);
         }
     }
 
@@ -114,6 +128,23 @@ private String getRawValue(String value)
 
     private CryptoUtils getCryptoUtils()
     {
-        return Utils.getComponent(CryptoUtils.class);
+        if (this.cryptoUtils == null) {
+            this.cryptoUtils = Utils.getComponent(CryptoUtils.class);
+        }
+        return this.cryptoUtils;
+    }
+
+    /** A decrypted value, along with the stored value it was decrypted from. */
+    private static final class Plaintext
+    {
+        private final String encrypted;
+
+        private final String value;
+
+        Plaintext(String encrypted, String value)
+        {
+            this.encrypted = encrypted;
+            this.value = value;
+        }
     }
 }
@@ -0,0 +1,59 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.data;
+
+import org.xwiki.component.annotation.Role;
+import org.xwiki.stability.Unstable;
+
+/**
+ * Keeps the {@link PatientSpecificity patient specificity} of each patient record stored, so that it doesn't have to be
+ * computed, possibly by a slow remote service, each time a patient record is displayed or serialized. Scores are
+ * computed in the background, one patient at a time, whenever the phenotype of a patient changes.
+ *
+ * @version $Id$
+ * @since 1.4
+ */
+@Unstable
+@Role
+public interface PatientSpecificityStore
+{
+    /**
+     * Get the specificity stored for a patient record, without computing it. If the record doesn't have a stored score
+     * yet, or if the phenotype changed since the score was computed, a new computation is {@link #scheduleUpdate
+     * scheduled}.
+     *
+     * @param patient the patient whose score is requested
+     * @return the stored specificity, possibly outdated, or {@code null} if no score was stored yet
+     */
+    PatientSpecificity getStoredSpecificity(Patient patient);
+
+    /**
+     * Schedule the computation of the specificity of a patient, unless the stored score is up to date. Returns right
+     * away, the score will be computed and stored by a background worker.
+     *
+     * @param patient the patient to score
+     */
+    void scheduleUpdate(Patient patient);
+
+    /**
+     * Get the number of patient records waiting for their specificity to be computed.
+     *
+     * @return the number of scheduled computations not yet started, {@code 0} if the worker is idle
+     */
+    int getBacklog();
+}
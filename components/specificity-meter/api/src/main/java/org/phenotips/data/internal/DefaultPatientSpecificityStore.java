@@ -0,0 +1,282 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.data.internal;
+
+import org.phenotips.data.Feature;
+import org.phenotips.data.Patient;
+import org.phenotips.data.PatientRepository;
+import org.phenotips.data.PatientSpecificity;
+import org.phenotips.data.PatientSpecificityService;
+import org.phenotips.data.PatientSpecificityStore;
+
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.phase.Disposable;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
+import org.xwiki.context.Execution;
+import org.xwiki.context.ExecutionContext;
+import org.xwiki.context.ExecutionContextException;
+import org.xwiki.context.ExecutionContextManager;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.EntityReferenceSerializer;
+
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import javax.inject.Inject;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+
+import org.apache.commons.lang3.StringUtils;
+import org.hibernate.HibernateException;
+import org.hibernate.Session;
+import org.hibernate.Transaction;
+import org.slf4j.Logger;
+
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.store.hibernate.HibernateSessionFactory;
+
+/**
+ * Stores the patient specificity in a separate {@link StoredPatientSpecificity table}, along with a hash of the
+ * phenotype it was computed for, which tells when the score is outdated. The scores are computed by a single background
+ * thread, so that at most one request is sent to the remote scoring service at a time. Since the score isn't stored in
+ * the patient record, storing it doesn't save the patient document, so it can't overwrite concurrent changes made to
+ * the record, and it doesn't notify the patient change listeners again.
+ *
+ * @version $Id$
+ * @since 1.4
+ */
+@Component
+@Singleton
+public class DefaultPatientSpecificityStore implements PatientSpecificityStore, Initializable, Disposable
+{
+    @Inject
+    private Logger logger;
+
+    /** The actual service performing the specificity computation. */
+    @Inject
+    private PatientSpecificityService service;
+
+    @Inject
+    private PatientRepository repository;
+
+    @Inject
+    private Provider<XWikiContext> xcontextProvider;
+
+    /** Used for setting up an execution context in the background thread. */
+    @Inject
+    private ExecutionContextManager contextManager;
+
+    @Inject
+    private Execution execution;
+
+    /** Handles persistence. */
+    @Inject
+    private HibernateSessionFactory sessionFactory;
+
+    /** Used for serializing the patient references used as keys in the specificity table. */
+    @Inject
+    private EntityReferenceSerializer<String> serializer;
+
+    /** The patients waiting for their score to be computed, in the order they were scheduled. */
+    private final BlockingQueue<DocumentReference> queue = new LinkedBlockingQueue<>();
+
+    /** The patients already scheduled or being scored, so that they aren't scheduled more than once. */
+    private final Set<DocumentReference> pending =
+        Collections.newSetFromMap(new ConcurrentHashMap<DocumentReference, Boolean>());
+
+    private Thread worker;
+
+    @Override
+    public void initialize() throws InitializationException
+    {
+        this.worker = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                processQueue();
+            }
+        }, "PhenoTips specificity updater");
+        this.worker.setDaemon(true);
+        this.worker.setPriority(Thread.MIN_PRIORITY);
+        this.worker.start();
+    }
+
+    @Override
+    public PatientSpecificity getStoredSpecificity(Patient patient)
+    {
+        StoredPatientSpecificity stored = getStored(patient.getDocumentReference());
+        if (stored == null || !StringUtils.equals(getPhenotypeHash(patient), stored.getPhenotype())) {
+            schedule(patient.getDocumentReference());
+        }
+        if (stored == null) {
+            return null;
+        }
+        return new PatientSpecificity(stored.getScore(), stored.getComputationDate(), stored.getComputingMethod());
+    }
+
+    @Override
+    public void scheduleUpdate(Patient patient)
+    {
+        StoredPatientSpecificity stored = getStored(patient.getDocumentReference());
+        if (stored == null || !StringUtils.equals(getPhenotypeHash(patient), stored.getPhenotype())) {
+            schedule(patient.getDocumentReference());
+        }
+    }
+
+    @Override
+    public int getBacklog()
+    {
+        return this.queue.size();
+    }
+
+    @Override
+    public void dispose()
+    {
+        this.worker.interrupt();
+    }
+
+    private void schedule(DocumentReference patient)
+    {
+        if (patient != null && this.pending.add(patient)) {
+            this.queue.add(patient);
+            this.logger.debug("Scheduled the specificity computation for [{}], backlog: {}", patient,
+                this.queue.size());
+        }
+    }
+
+    private void processQueue()
+    {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                DocumentReference patient = this.queue.take();
+                try {
+                    update(patient);
+                } finally {
+                    // Changes made while the score was computed are caught the next time the record is loaded
+                    this.pending.remove(patient);
+                }
+            }
+        } catch (InterruptedException ex) {
+            // The component is being disposed
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void update(DocumentReference reference)
+    {
+        ExecutionContext context = new ExecutionContext();
+        this.execution.setContext(context);
+        try {
+            this.contextManager.initialize(context);
+            XWikiContext xcontext = this.xcontextProvider.get();
+            xcontext.setWikiId(reference.getWikiReference().getName());
+            Patient patient = this.repository.get(reference);
+            if (patient == null) {
+                return;
+            }
+            String phenotype = getPhenotypeHash(patient);
+            StoredPatientSpecificity stored = getStored(reference);
+            if (stored != null && phenotype.equals(stored.getPhenotype())) {
+                return;
+            }
+            PatientSpecificity specificity = this.service.getSpecificity(patient);
+            if (specificity == null) {
+                // Will be retried the next time the patient is loaded
+                return;
+            }
+            if (stored == null) {
+                stored = new StoredPatientSpecificity(this.serializer.serialize(reference), phenotype);
+            }
+            stored.setScore(specificity.getScore());
+            stored.setComputationDate(specificity.getComputationDate());
+            stored.setComputingMethod(specificity.getComputingMethod());
+            stored.setPhenotype(phenotype);
+            store(stored);
+        } catch (ExecutionContextException | RuntimeException ex) {
+            this.logger.warn("Failed to update the specificity score of [{}]: {}", reference, ex.getMessage());
+        } finally {
+            this.execution.removeContext();
+        }
+    }
+
+    private StoredPatientSpecificity getStored(DocumentReference patient)
+    {
+        Session session = this.sessionFactory.getSessionFactory().openSession();
+        try {
+            return (StoredPatientSpecificity) session.get(StoredPatientSpecificity.class,
+                this.serializer.serialize(patient));
+        } catch (HibernateException ex) {
+            this.logger.warn("Failed to read the specificity score of [{}]: {}", patient, ex.getMessage());
+            return null;
+        } finally {
+            session.close();
+        }
+    }
+
+    private void store(StoredPatientSpecificity specificity)
+    {
+        Session session = this.sessionFactory.getSessionFactory().openSession();
+        Transaction t = session.beginTransaction();
+        try {
+            session.saveOrUpdate(specificity);
+            t.commit();
+        } catch (HibernateException ex) {
+            this.logger.warn("Failed to store the specificity score of [{}]: {}", specificity.getPatient(),
+                ex.getMessage());
+            t.rollback();
+        } finally {
+            session.close();
+        }
+    }
+
+    /**
+     * Computes a hash of the phenotype of a patient, the only data used by the scorers.
+     *
+     * @param patient the patient whose phenotype to hash
+     * @return a hexadecimal hash, which doesn't depend on the order of the features
+     */
+    private String getPhenotypeHash(Patient patient)
+    {
+        List<String> features = new ArrayList<>();
+        for (Feature feature : patient.getFeatures()) {
+            if (StringUtils.isNotEmpty(feature.getId())) {
+                features.add(feature.isPresent() ? feature.getId() : "-" + feature.getId());
+            }
+        }
+        Collections.sort(features);
+        String phenotype = StringUtils.join(features, ',');
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return String.format("%064x", new BigInteger(1, digest.digest(phenotype.getBytes(StandardCharsets.UTF_8))));
+        } catch (NoSuchAlgorithmException ex) {
+            // SHA-256 is always available in Java
+            return Integer.toHexString(phenotype.hashCode());
+        }
+    }
+}
@@ -21,6 +21,7 @@
 import org.phenotips.data.Patient;
 import org.phenotips.data.PatientScorer;
 import org.phenotips.data.PatientSpecificity;
+import org.phenotips.http.SharedHttpClient;
 
 import org.xwiki.cache.Cache;
 import org.xwiki.cache.CacheException;
@@ -81,6 +82,9 @@ public class MonarchPatientScorer implements PatientScorer, Initializable
 
     private String scorerURL;
 
+    @Inject
+    private SharedHttpClient httpClient;
+
     /** The HTTP client used for contacting the MONARCH server. */
     private CloseableHttpClient client;
 
@@ -92,6 +96,7 @@ public class MonarchPatientScorer implements PatientScorer, Initializable
     @Override
     public void initialize() throws InitializationException
     {
+        this.client = this.httpClient.getClient();
         try {
             this.scorerURL = this.configuration
                 .getProperty("phenotips.patientScoring.monarch.serviceURL", "https://monarchinitiative.org/score");
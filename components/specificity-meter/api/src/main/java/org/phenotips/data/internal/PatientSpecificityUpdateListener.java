@@ -0,0 +1,63 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.data.internal;
+
+import org.phenotips.data.Patient;
+import org.phenotips.data.PatientSpecificityStore;
+import org.phenotips.data.events.PatientChangedEvent;
+import org.phenotips.data.events.PatientCreatedEvent;
+import org.phenotips.data.events.PatientEvent;
+
+import org.xwiki.component.annotation.Component;
+import org.xwiki.observation.AbstractEventListener;
+import org.xwiki.observation.event.Event;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+/**
+ * Schedules the computation of the patient specificity when a patient record is created or changed. The actual
+ * computation is done in the background, and only if the phenotype changed.
+ *
+ * @version $Id$
+ * @since 1.4
+ */
+@Component
+@Named("patient-specificity-updater")
+@Singleton
+public class PatientSpecificityUpdateListener extends AbstractEventListener
+{
+    @Inject
+    private PatientSpecificityStore store;
+
+    /** Default constructor, sets up the listener name and the list of events to subscribe to. */
+    public PatientSpecificityUpdateListener()
+    {
+        super("patient-specificity-updater", new PatientCreatedEvent(), new PatientChangedEvent());
+    }
+
+    @Override
+    public void onEvent(Event event, Object source, Object data)
+    {
+        Patient patient = ((PatientEvent) event).getPatient();
+        if (patient != null) {
+            this.store.scheduleUpdate(patient);
+        }
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.data.internal;
+
+import java.util.Date;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Temporal;
+import javax.persistence.TemporalType;
+
+/**
+ * The specificity score stored for a patient record, kept in its own table instead of the patient document, so that
+ * storing a newly computed score never saves, and never conflicts with changes made to, the patient record itself.
+ *
+ * @version $Id$
+ * @since 1.4
+ */
+@Entity
+public class StoredPatientSpecificity
+{
+    /** The serialized reference of the patient document, for example {@code xwiki:data.P0000001}. */
+    @Id
+    private String patient;
+
+    @Column(nullable = false)
+    private double score;
+
+    @Column(nullable = false)
+    @Temporal(TemporalType.TIMESTAMP)
+    private Date computationDate;
+
+    private String computingMethod;
+
+    /** A hash of the phenotype the score was computed for, used for detecting outdated scores. */
+    @Column(nullable = false)
+    private String phenotype;
+
+    /** Default constructor used by Hibernate. */
+    protected StoredPatientSpecificity()
+    {
+        // Nothing to do, Hibernate will populate all the fields from the database
+    }
+
+    /**
+     * Used by the {@link DefaultPatientSpecificityStore} when a new score is computed.
+     *
+     * @param patient the serialized reference of the patient document
+     * @param phenotype the hash of the scored phenotype
+     */
+    public StoredPatientSpecificity(String patient, String phenotype)
+    {
+        this.patient = patient;
+        this.phenotype = phenotype;
+    }
+
+    public String getPatient()
+    {
+        return this.patient;
+    }
+
+    public double getScore()
+    {
+        return this.score;
+    }
+
+    public void setScore(double score)
+    {
+        this.score = score;
+    }
+
+    public Date getComputationDate()
+    {
+        return this.computationDate;
+    }
+
+    public void setComputationDate(Date computationDate)
+    {
+        this.computationDate = computationDate;
+    }
+
+    public String getComputingMethod()
+    {
+        return this.computingMethod;
+    }
+
+    public void setComputingMethod(String computingMethod)
+    {
+        this.computingMethod = computingMethod;
+    }
+
+    public String getPhenotype()
+    {
+        return this.phenotype;
+    }
+
+    public void setPhenotype(String phenotype)
+    {
+        this.phenotype = phenotype;
+    }
+}
@@ -22,7 +22,7 @@
 import org.phenotips.data.PatientData;
 import org.phenotips.data.PatientDataController;
 import org.phenotips.data.PatientSpecificity;
-import org.phenotips.data.PatientSpecificityService;
+import org.phenotips.data.PatientSpecificityStore;
 
 import org.xwiki.component.annotation.Component;
 import org.xwiki.component.phase.Initializable;
@@ -46,7 +46,9 @@
 import org.json.JSONObject;
 
 /**
- * Exposes the patient profile specificity.
+ * Exposes the patient profile specificity. Only the score already stored by the {@link PatientSpecificityStore} is
+ * exposed, so that loading or serializing a patient never waits for the score to be computed; missing or outdated
+ * scores are computed in the background by the store.
  *
  * @version $Id$
  * @since 1.0M12
@@ -60,9 +62,9 @@ public class SpecificityController implements PatientDataController<Object>, Ini
     /** The name of the data module exposed by this class. */
     private static final String NAME = "specificity";
 
-    /** The actual service performing the specificity computation. */
+    /** Provides the stored specificity, and schedules its computation when needed. */
     @Inject
-    private PatientSpecificityService service;
+    private PatientSpecificityStore store;
 
     private DateFormat isoDateFormat;
 
@@ -76,7 +78,7 @@ public void initialize() throws InitializationException
     @Override
     public PatientData<Object> load(Patient patient)
     {
-        PatientSpecificity spec = this.service.getSpecificity(patient);
+        PatientSpecificity spec = this.store.getStoredSpecificity(patient);
         if (spec != null) {
             Map<String, Object> data = new LinkedHashMap<String, Object>();
             data.put("score", spec.getScore());
@@ -90,7 +92,7 @@ public PatientData<Object> load(Patient patient)
     @Override
     public void save(Patient patient)
     {
-        // Nothing to save, the score is always computed
+        // Nothing to save, the score isn't part of the patient record, the store keeps it separately when computed
     }
 
     @Override
@@ -123,7 +125,8 @@ public void writeJSON(Patient patient, JSONObject json, Collection<String> selec
     @Override
     public PatientData<Object> readJSON(JSONObject json)
     {
-        // No need to read this, the score is not persisted
+        // Imported scores are ignored, the store computes the score from the imported phenotype and keeps it outside
+        // the patient record
         return null;
     }
 
@@ -23,6 +23,7 @@
 import org.phenotips.data.Patient;
 import org.phenotips.data.PatientData;
 import org.phenotips.data.PatientSpecificityService;
+import org.phenotips.data.PatientSpecificityStore;
 
 import org.xwiki.component.annotation.Component;
 import org.xwiki.model.reference.DocumentReference;
@@ -63,6 +64,10 @@ public class PatientSpecificityScriptService implements ScriptService
     @Inject
     private PatientSpecificityService service;
 
+    /** Stores the computed scores. */
+    @Inject
+    private PatientSpecificityStore store;
+
     /**
      * Compute the raw specificity score for a patient.
      *
@@ -88,6 +93,17 @@ public double getScore(String[] features, String[] negativeFeatures)
         return this.service.getScore(patient);
     }
 
+    /**
+     * Get the number of patient records waiting for their specificity score to be computed in the background.
+     *
+     * @return the number of scheduled score computations not yet started
+     * @since 1.4
+     */
+    public int getBacklog()
+    {
+        return this.store.getBacklog();
+    }
+
     private static final class FakeFeature implements Feature
     {
         private final String id;
@@ -283,5 +299,12 @@ public void updateFromJSON(JSONObject json)
         {
             // Nothing to do
         }
+
+        @Override
+        public boolean applyJSON(JSONObject json)
+        {
+            // Nothing to do
+            return false;
+        }
     }
 }
@@ -0,0 +1,243 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.data.internal;
+
+import org.phenotips.data.Feature;
+import org.phenotips.data.Patient;
+import org.phenotips.data.PatientRepository;
+import org.phenotips.data.PatientSpecificity;
+import org.phenotips.data.PatientSpecificityService;
+import org.phenotips.data.PatientSpecificityStore;
+
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.EntityReferenceSerializer;
+import org.xwiki.test.mockito.MockitoComponentMockingRule;
+
+import java.util.Collections;
+import java.util.Date;
+
+import javax.inject.Provider;
+
+import org.hibernate.HibernateException;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.Transaction;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.MockitoAnnotations;
+
+import com.xpn.xwiki.XWiki;
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.store.hibernate.HibernateSessionFactory;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.after;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests for the {@link DefaultPatientSpecificityStore} component.
+ *
+ * @version $Id$
+ */
+public class DefaultPatientSpecificityStoreTest
+{
+    private static final String PATIENT_KEY = "xwiki:data.P0000001";
+
+    @Rule
+    public final MockitoComponentMockingRule<PatientSpecificityStore> mocker =
+        new MockitoComponentMockingRule<PatientSpecificityStore>(DefaultPatientSpecificityStore.class);
+
+    private final DocumentReference patientReference = new DocumentReference("xwiki", "data", "P0000001");
+
+    private final PatientSpecificity specificity = new PatientSpecificity(0.5, new Date(), "monarchinitiative.org");
+
+    @Mock
+    private Patient patient;
+
+    @Mock
+    private Feature feature;
+
+    @Mock
+    private XWikiContext xcontext;
+
+    @Mock
+    private XWiki xwiki;
+
+    @Mock
+    private Session session;
+
+    @Mock
+    private Transaction transaction;
+
+    private PatientSpecificityService service;
+
+    @Before
+    public void setup() throws Exception
+    {
+        MockitoAnnotations.initMocks(this);
+
+        when(this.patient.getDocumentReference()).thenReturn(this.patientReference);
+        when(this.feature.getId()).thenReturn("HP:0000118");
+        when(this.feature.isPresent()).thenReturn(true);
+        Mockito.doReturn(Collections.singleton(this.feature)).when(this.patient).getFeatures();
+
+        Provider<XWikiContext> contextProvider = this.mocker.getInstance(XWikiContext.TYPE_PROVIDER);
+        when(contextProvider.get()).thenReturn(this.xcontext);
+        when(this.xcontext.getWiki()).thenReturn(this.xwiki);
+
+        EntityReferenceSerializer<String> serializer =
+            this.mocker.getInstance(EntityReferenceSerializer.TYPE_STRING);
+        when(serializer.serialize(this.patientReference)).thenReturn(PATIENT_KEY);
+
+        HibernateSessionFactory sessionFactory = this.mocker.getInstance(HibernateSessionFactory.class);
+        SessionFactory hibernateFactory = Mockito.mock(SessionFactory.class);
+        when(sessionFactory.getSessionFactory()).thenReturn(hibernateFactory);
+        when(hibernateFactory.openSession()).thenReturn(this.session);
+        when(this.session.beginTransaction()).thenReturn(this.transaction);
+
+        PatientRepository repository = this.mocker.getInstance(PatientRepository.class);
+        when(repository.get(this.patientReference)).thenReturn(this.patient);
+        this.service = this.mocker.getInstance(PatientSpecificityService.class);
+        when(this.service.getSpecificity(this.patient)).thenReturn(this.specificity);
+    }
+
+    @Test
+    public void missingScoreIsComputedInTheBackgroundAndStoredOutsideThePatientRecord() throws Exception
+    {
+        Assert.assertNull(this.mocker.getComponentUnderTest().getStoredSpecificity(this.patient));
+
+        StoredPatientSpecificity stored = getStoredEntity();
+        Assert.assertEquals(PATIENT_KEY, stored.getPatient());
+        Assert.assertEquals(0.5, stored.getScore(), 0.0);
+        Assert.assertEquals(this.specificity.getComputationDate(), stored.getComputationDate());
+        Assert.assertEquals("monarchinitiative.org", stored.getComputingMethod());
+        Assert.assertNotNull(stored.getPhenotype());
+        verify(this.transaction).commit();
+        verify(this.patient, never()).getXDocument();
+        verifyZeroInteractions(this.xwiki);
+    }
+
+    @Test
+    public void upToDateScoreIsReturnedWithoutComputingIt() throws Exception
+    {
+        String phenotype = getStoredEntity().getPhenotype();
+        StoredPatientSpecificity stored = new StoredPatientSpecificity(PATIENT_KEY, phenotype);
+        stored.setScore(0.25);
+        Date date = new Date(1000);
+        stored.setComputationDate(date);
+        stored.setComputingMethod("local-omim");
+        when(this.session.get(StoredPatientSpecificity.class, PATIENT_KEY)).thenReturn(stored);
+
+        PatientSpecificity result = this.mocker.getComponentUnderTest().getStoredSpecificity(this.patient);
+        Assert.assertEquals(0.25, result.getScore(), 0.0);
+        Assert.assertEquals(date, result.getComputationDate());
+        Assert.assertEquals("local-omim", result.getComputingMethod());
+        this.mocker.getComponentUnderTest().scheduleUpdate(this.patient);
+
+        verify(this.service, after(200).times(1)).getSpecificity(this.patient);
+    }
+
+    @Test
+    public void outdatedScoreIsReturnedAndRecomputed() throws Exception
+    {
+        StoredPatientSpecificity stored = new StoredPatientSpecificity(PATIENT_KEY, "outdated");
+        stored.setScore(0.25);
+        stored.setComputationDate(new Date(1000));
+        when(this.session.get(StoredPatientSpecificity.class, PATIENT_KEY)).thenReturn(stored);
+
+        PatientSpecificity result = this.mocker.getComponentUnderTest().getStoredSpecificity(this.patient);
+        Assert.assertEquals(0.25, result.getScore(), 0.0);
+
+        verify(this.session, timeout(2000)).saveOrUpdate(stored);
+        Assert.assertEquals(0.5, stored.getScore(), 0.0);
+        Assert.assertNotEquals("outdated", stored.getPhenotype());
+    }
+
+    @Test
+    public void changedPatientsAreScheduled() throws Exception
+    {
+        this.mocker.getComponentUnderTest().scheduleUpdate(this.patient);
+
+        verify(this.session, timeout(2000)).saveOrUpdate(any(StoredPatientSpecificity.class));
+    }
+
+    @Test
+    public void failedComputationsAreNotStored() throws Exception
+    {
+        when(this.service.getSpecificity(this.patient)).thenReturn(null);
+
+        this.mocker.getComponentUnderTest().scheduleUpdate(this.patient);
+
+        verify(this.service, timeout(2000)).getSpecificity(this.patient);
+        verify(this.session, after(200).never()).saveOrUpdate(any());
+        Assert.assertEquals(0, this.mocker.getComponentUnderTest().getBacklog());
+    }
+
+    @Test
+    public void storageFailuresAreRolledBack() throws Exception
+    {
+        Mockito.doThrow(new HibernateException("Database down")).when(this.session)
+            .saveOrUpdate(any(StoredPatientSpecificity.class));
+
+        this.mocker.getComponentUnderTest().scheduleUpdate(this.patient);
+
+        verify(this.transaction, timeout(2000)).rollback();
+        verify(this.transaction, never()).commit();
+        verify(this.session, timeout(2000).atLeast(2)).close();
+    }
+
+    @Test
+    public void readFailuresScheduleTheComputation() throws Exception
+    {
+        when(this.session.get(StoredPatientSpecificity.class, PATIENT_KEY))
+            .thenThrow(new HibernateException("Database down")).thenReturn(null);
+
+        Assert.assertNull(this.mocker.getComponentUnderTest().getStoredSpecificity(this.patient));
+
+        verify(this.session, timeout(2000)).saveOrUpdate(any(StoredPatientSpecificity.class));
+    }
+
+    @Test
+    public void deletedPatientsAreSkipped() throws Exception
+    {
+        PatientRepository repository = this.mocker.getInstance(PatientRepository.class);
+        when(repository.get(this.patientReference)).thenReturn(null);
+
+        this.mocker.getComponentUnderTest().scheduleUpdate(this.patient);
+
+        verify(repository, timeout(2000)).get(this.patientReference);
+        verify(this.service, after(200).never()).getSpecificity(this.patient);
+    }
+
+    private StoredPatientSpecificity getStoredEntity() throws Exception
+    {
+        this.mocker.getComponentUnderTest().scheduleUpdate(this.patient);
+        ArgumentCaptor<StoredPatientSpecificity> stored = ArgumentCaptor.forClass(StoredPatientSpecificity.class);
+        verify(this.session, timeout(2000)).saveOrUpdate(stored.capture());
+        return stored.getValue();
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.data.internal;
+
+import org.phenotips.data.Patient;
+import org.phenotips.data.PatientSpecificityStore;
+import org.phenotips.data.events.PatientChangedEvent;
+import org.phenotips.data.events.PatientCreatedEvent;
+
+import org.xwiki.observation.EventListener;
+import org.xwiki.test.mockito.MockitoComponentMockingRule;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+
+import static org.hamcrest.Matchers.hasItem;
+import static org.hamcrest.Matchers.isA;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+/**
+ * Tests for the {@link PatientSpecificityUpdateListener} component.
+ *
+ * @version $Id$
+ */
+public class PatientSpecificityUpdateListenerTest
+{
+    @Rule
+    public final MockitoComponentMockingRule<EventListener> mocker =
+        new MockitoComponentMockingRule<EventListener>(PatientSpecificityUpdateListener.class);
+
+    @Test
+    public void listensToPatientChanges() throws Exception
+    {
+        EventListener listener = this.mocker.getComponentUnderTest();
+        Assert.assertEquals("patient-specificity-updater", listener.getName());
+        Assert.assertThat(listener.getEvents(), hasItem(isA(PatientCreatedEvent.class)));
+        Assert.assertThat(listener.getEvents(), hasItem(isA(PatientChangedEvent.class)));
+    }
+
+    @Test
+    public void changedPatientsAreScheduled() throws Exception
+    {
+        Patient patient = mock(Patient.class);
+        this.mocker.getComponentUnderTest().onEvent(new PatientChangedEvent(patient, null), null, null);
+        verify(this.mocker.<PatientSpecificityStore>getInstance(PatientSpecificityStore.class))
+            .scheduleUpdate(patient);
+    }
+
+    @Test
+    public void eventsWithoutPatientsAreIgnored() throws Exception
+    {
+        this.mocker.getComponentUnderTest().onEvent(new PatientCreatedEvent(), null, null);
+        verify(this.mocker.<PatientSpecificityStore>getInstance(PatientSpecificityStore.class), never())
+            .scheduleUpdate(any(Patient.class));
+    }
+}
@@ -23,7 +23,7 @@
 import org.phenotips.data.PatientData;
 import org.phenotips.data.PatientDataController;
 import org.phenotips.data.PatientSpecificity;
-import org.phenotips.data.PatientSpecificityService;
+import org.phenotips.data.PatientSpecificityStore;
 
 import org.xwiki.cache.CacheException;
 import org.xwiki.component.manager.ComponentLookupException;
@@ -62,7 +62,7 @@
     @Mock
     private PatientSpecificity spec;
 
-    private PatientSpecificityService service;
+    private PatientSpecificityStore store;
 
     private Date date;
 
@@ -76,7 +76,7 @@ public void setup() throws CacheException, ComponentLookupException
         MockitoAnnotations.initMocks(this);
         this.isoDateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.ROOT);
         this.isoDateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
-        this.service = this.mocker.getInstance(PatientSpecificityService.class);
+        this.store = this.mocker.getInstance(PatientSpecificityStore.class);
         when(this.spec.getComputingMethod()).thenReturn("monarchinitiative.org");
         Calendar c = Calendar.getInstance(TimeZone.getTimeZone("GMT+02:00"), Locale.ROOT);
         c.set(2010, 2, 20, 14, 20, 0);
@@ -86,7 +86,7 @@ public void setup() throws CacheException, ComponentLookupException
         when(this.spec.getComputationDate()).thenReturn(this.date);
         when(this.spec.getScore()).thenReturn(0.25);
 
-        when(this.service.getSpecificity(this.patient)).thenReturn(this.spec);
+        when(this.store.getStoredSpecificity(this.patient)).thenReturn(this.spec);
     }
 
     @Test
@@ -103,7 +103,7 @@ public void load() throws ComponentLookupException
     @Test
     public void loadWithNoSpecificityDoesNothing() throws ComponentLookupException
     {
-        when(this.service.getSpecificity(this.patient)).thenReturn(null);
+        when(this.store.getStoredSpecificity(this.patient)).thenReturn(null);
         Assert.assertNull(this.mocker.getComponentUnderTest().load(this.patient));
     }
 
@@ -193,7 +193,7 @@ public void saveDoesNothing() throws ComponentLookupException
     {
         this.mocker.getComponentUnderTest().save(this.patient);
         this.mocker.getComponentUnderTest().save(null);
-        Mockito.verifyZeroInteractions(this.service);
+        Mockito.verifyZeroInteractions(this.store);
     }
 
     @Test
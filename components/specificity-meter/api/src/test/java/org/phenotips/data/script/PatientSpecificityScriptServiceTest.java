@@ -20,6 +20,7 @@
 import org.phenotips.data.Feature;
 import org.phenotips.data.Patient;
 import org.phenotips.data.PatientSpecificityService;
+import org.phenotips.data.PatientSpecificityStore;
 
 import org.xwiki.component.manager.ComponentLookupException;
 import org.xwiki.test.mockito.MockitoComponentMockingRule;
@@ -191,4 +192,12 @@ public void getScoreWithNullFeaturesDoesntFail() throws ComponentLookupException
         patient = patientCapture.getLastValue();
         Assert.assertTrue(patient.getFeatures().isEmpty());
     }
+
+    @Test
+    public void getBacklogForwardsToStore() throws ComponentLookupException
+    {
+        PatientSpecificityStore store = this.mocker.getInstance(PatientSpecificityStore.class);
+        when(store.getBacklog()).thenReturn(3);
+        Assert.assertEquals(3, this.mocker.getComponentUnderTest().getBacklog());
+    }
 }
@@ -21,6 +21,7 @@
 import org.xwiki.model.reference.EntityReference;
 import org.xwiki.stability.Unstable;
 
+import java.util.Collection;
 import java.util.Iterator;
 
 /**
@@ -56,6 +57,35 @@
      */
     Iterator<T> getData();
 
+    /**
+     * Retrieves the data available in this store, resuming a previously interrupted retrieval. The data is returned in
+     * a stable order, and is fetched lazily, so that even very large stores can be traversed without loading
+     * everything at once. By default, the retrieval cannot be resumed and all the data is returned; since migrated
+     * entities are discarded, this only means that failed entities are retried sooner.
+     *
+     * @param checkpoint a value previously returned by {@link #getCheckpoint(Object)}, only the entities which come
+     *            after it will be returned; if {@code null}, all the data is returned, as in {@link #getData()}
+     * @return the available data, with the same restrictions as {@link #getData()}
+     * @since 1.4
+     */
+    default Iterator<T> getData(String checkpoint)
+    {
+        return getData();
+    }
+
+    /**
+     * Identifies the position of an entity in the data returned by {@link #getData(String)}.
+     *
+     * @param entity an entity previously returned by this reader
+     * @return a value which can be passed to {@link #getData(String)} to resume the retrieval after this entity, or
+     *         {@code null} if the retrieval cannot be resumed, which is the default
+     * @since 1.4
+     */
+    default String getCheckpoint(T entity)
+    {
+        return null;
+    }
+
     /**
      * Permanently deletes an entity from this store.
      *
@@ -64,6 +94,24 @@
      */
     boolean discardEntity(T entity);
 
+    /**
+     * Permanently deletes several entities from this store, at once. By default, the entities are
+     * {@link #discardEntity(Object) deleted} one by one.
+     *
+     * @param entities the entities to delete
+     * @return {@code true} if all the entities were successfully deleted, {@code false} in case of failure
+     * @since 1.4
+     */
+    default boolean discardEntities(Collection<T> entities)
+    {
+        boolean result = true;
+        for (T entity : entities) {
+            // Don't change the order, or the operation will be short-circuited before the call
+            result = discardEntity(entity) && result;
+        }
+        return result;
+    }
+
     /**
      * Permanently deletes all the entities (of the managed type) from this store.
      *
@@ -25,20 +25,51 @@
 import org.xwiki.component.manager.ComponentManager;
 import org.xwiki.component.util.DefaultParameterizedType;
 import org.xwiki.configuration.ConfigurationSource;
+import org.xwiki.context.Execution;
+import org.xwiki.context.ExecutionContext;
+import org.xwiki.context.ExecutionContextException;
+import org.xwiki.context.ExecutionContextManager;
+import org.xwiki.environment.Environment;
 
+import java.io.File;
+import java.io.IOException;
 import java.lang.reflect.ParameterizedType;
 import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.inject.Inject;
 import javax.inject.Named;
 import javax.inject.Provider;
 
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+
+import com.xpn.xwiki.XWikiContext;
+
 /**
  * Implementation for the {@link DataTypeMigrator} role, which tries to use all available {@link DataReader}s that
  * {@link DataReader#hasData() have data} and {@link DataWriter#storeEntity(Object) write} the retrieved data to the
  * currently enabled {@link DataWriter storage engine}.
+ * <p>
+ * The data is processed in batches: the entities of a batch are read one by one from the old store, and written in
+ * parallel into the new store by a small pool of threads. Once the whole batch is written, the successfully migrated
+ * entities are deleted from the old store at once, and the position reached is saved as a checkpoint in the permanent
+ * directory, so that a migration interrupted by a shutdown or a crash resumes from where it stopped. Since a whole
+ * batch is kept until it is discarded, readers should return light entities, which only load their content and history
+ * when the writer needs them.
+ * </p>
  *
  * @param <T> the type of data managed by this migrator, one of the classes from the data model
  * @version $Id$
@@ -49,6 +80,21 @@
     /** The current default storage engine assumed by XWiki if no specific store is enabled. */
     private static final String DEFAULT_STORE = "hibernate";
 
+    /** How many entities are read before waiting for them to be written; also bounds the entities held in memory. */
+    private static final int BATCH_SIZE = 32;
+
+    /** How many entities are written in parallel. */
+    private static final int WRITER_THREADS = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+    /** How often the migration progress is logged, in milliseconds. */
+    private static final long PROGRESS_INTERVAL = 30000L;
+
+    private static final String CHECKPOINTS_DIRECTORY = "migrations";
+
+    /** Logging helper object. */
+    @Inject
+    private Logger logger;
+
     /** Provides access tot the configuration file where the storage engines are configured. */
     @Inject
     @Named("legacy")
@@ -58,6 +104,20 @@
     @Inject
     private Provider<ComponentManager> cm;
 
+    /** Provides the permanent directory, where the migration checkpoints are stored. */
+    @Inject
+    private Environment environment;
+
+    /** Used for setting up an execution context in the writer threads. */
+    @Inject
+    private ExecutionContextManager contextManager;
+
+    @Inject
+    private Execution execution;
+
+    @Inject
+    private Provider<XWikiContext> xcontextProvider;
+
     @Override
     public boolean migrate()
     {
@@ -78,20 +138,119 @@ public boolean migrate()
             if (reader.getType().equals(writer.getType()) || !reader.hasData()) {
                 continue;
             }
+            // Don't change the order, or the operation will be short-circuited before the call
+            allDataMigrated = migrate(reader, writer) && allDataMigrated;
+        }
+        return allDataMigrated;
+    }
 
-            Iterator<T> data = reader.getData();
+    private boolean migrate(final DataReader<T> reader, final DataWriter<T> writer)
+    {
+        String wiki = this.xcontextProvider.get().getWikiId();
+        File checkpointFile = new File(this.environment.getPermanentDirectory(),
+            CHECKPOINTS_DIRECTORY + '/' + wiki + '/' + reader.getType() + ".checkpoint");
+        String checkpoint = readCheckpoint(checkpointFile);
+        if (checkpoint != null) {
+            this.logger.info("Resuming the migration of [{}] in wiki [{}]", reader.getType(), wiki);
+        } else {
+            this.logger.info("Migrating [{}] into [{}] in wiki [{}]", reader.getType(), writer.getType(), wiki);
+        }
+
+        ExecutorService writers = Executors.newFixedThreadPool(WRITER_THREADS, new WriterThreadFactory(wiki));
+        Progress progress = new Progress();
+        boolean allDataMigrated = true;
+        try {
+            Iterator<T> data = reader.getData(checkpoint);
             while (data.hasNext()) {
-                T item = data.next();
-                if (writer.storeEntity(item)) {
-                    reader.discardEntity(item);
-                } else {
-                    allDataMigrated = false;
+                List<T> batch = new ArrayList<>(BATCH_SIZE);
+                List<Future<Boolean>> results = new ArrayList<>(BATCH_SIZE);
+                String batchCheckpoint = null;
+                for (int i = 0; i < BATCH_SIZE && data.hasNext(); ++i) {
+                    final T item = data.next();
+                    if (item == null) {
+                        // Failed to read, the data stays in the old store
+                        ++progress.failed;
+                        allDataMigrated = false;
+                        continue;
+                    }
+                    batch.add(item);
+                    batchCheckpoint = reader.getCheckpoint(item);
+                    results.add(writers.submit(new Callable<Boolean>()
+                    {
+                        @Override
+                        public Boolean call()
+                        {
+                            return writer.storeEntity(item);
+                        }
+                    }));
+                }
+
+                List<T> stored = new ArrayList<>(batch.size());
+                for (int i = 0; i < batch.size(); ++i) {
+                    if (getResult(results.get(i))) {
+                        stored.add(batch.get(i));
+                    } else {
+                        ++progress.failed;
+                        allDataMigrated = false;
+                    }
+                }
+                if (!stored.isEmpty()) {
+                    if (reader.discardEntities(stored)) {
+                        progress.migrated += stored.size();
+                    } else {
+                        allDataMigrated = false;
+                    }
                 }
+                if (batchCheckpoint != null) {
+                    writeCheckpoint(checkpointFile, batchCheckpoint);
+                }
+                progress.log(reader, false);
             }
+            // A complete pass was done, the next migration must start from the beginning and retry failed entities
+            FileUtils.deleteQuietly(checkpointFile);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            this.logger.warn("Migration of [{}] interrupted, it will be resumed on the next start", reader.getType());
+            allDataMigrated = false;
+        } finally {
+            writers.shutdownNow();
         }
+        progress.log(reader, true);
         return allDataMigrated;
     }
 
+    private boolean getResult(Future<Boolean> result) throws InterruptedException
+    {
+        try {
+            return result.get();
+        } catch (ExecutionException ex) {
+            this.logger.error("Failed to migrate entity: {}", ex.getCause().getMessage(), ex.getCause());
+            return false;
+        }
+    }
+
+    private String readCheckpoint(File checkpointFile)
+    {
+        if (!checkpointFile.isFile()) {
+            return null;
+        }
+        try {
+            return StringUtils.trimToNull(FileUtils.readFileToString(checkpointFile, StandardCharsets.UTF_8));
+        } catch (IOException ex) {
+            this.logger.warn("Failed to read the migration checkpoint [{}]: {}", checkpointFile, ex.getMessage());
+            return null;
+        }
+    }
+
+    private void writeCheckpoint(File checkpointFile, String checkpoint)
+    {
+        try {
+            FileUtils.writeStringToFile(checkpointFile, checkpoint, StandardCharsets.UTF_8);
+        } catch (IOException ex) {
+            this.logger.warn("Failed to save the migration checkpoint [{}]: {}", checkpointFile, ex.getMessage());
+        }
+    }
+
     private DataWriter<T> getCurrentWriter()
     {
         String hint = this.config.getProperty(getStoreConfigurationKey(), DEFAULT_STORE);
@@ -130,4 +289,75 @@ private Type getImplementationType()
      * @return a key valid in {@code xwiki.cfg}, such as {@code xwiki.store.attachment.hint}
      */
     protected abstract String getStoreConfigurationKey();
+
+    /**
+     * Counts the migrated entities and periodically reports the progress.
+     */
+    private final class Progress
+    {
+        private final long start = System.currentTimeMillis();
+
+        private long lastReport = this.start;
+
+        private int migrated;
+
+        private int failed;
+
+        void log(DataReader<T> reader, boolean done)
+        {
+            long now = System.currentTimeMillis();
+            if (!done && now - this.lastReport < PROGRESS_INTERVAL) {
+                return;
+            }
+            this.lastReport = now;
+            long seconds = Math.max(1, (now - this.start) / 1000);
+            AbstractDataTypeMigrator.this.logger.info("{} [{}]: [{}] entities migrated, [{}] failed, in [{}]s ({}/s)",
+                done ? "Finished migrating" : "Migrating", reader.getType(), this.migrated, this.failed, seconds,
+                this.migrated / seconds);
+        }
+    }
+
+    /**
+     * Creates the writer threads, each with its own execution context, targeting the wiki being migrated.
+     */
+    private final class WriterThreadFactory implements ThreadFactory
+    {
+        private final AtomicInteger count = new AtomicInteger();
+
+        private final String wiki;
+
+        WriterThreadFactory(String wiki)
+        {
+            this.wiki = wiki;
+        }
+
+        @Override
+        public Thread newThread(final Runnable task)
+        {
+            Thread thread = new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    ExecutionContext context = new ExecutionContext();
+                    AbstractDataTypeMigrator.this.execution.setContext(context);
+                    try {
+                        AbstractDataTypeMigrator.this.contextManager.initialize(context);
+                        AbstractDataTypeMigrator.this.xcontextProvider.get().setWikiId(WriterThreadFactory.this.wiki);
+                    } catch (ExecutionContextException ex) {
+                        // The writes will fail and the data will stay in the old store
+                        AbstractDataTypeMigrator.this.logger.error("Failed to initialize the migration thread: {}",
+                            ex.getMessage(), ex);
+                    }
+                    try {
+                        task.run();
+                    } finally {
+                        AbstractDataTypeMigrator.this.execution.removeContext();
+                    }
+                }
+            }, "PhenoTips data migration " + this.count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
 }
@@ -28,8 +28,12 @@
 import javax.inject.Named;
 import javax.inject.Singleton;
 
+import org.slf4j.Logger;
+
 /**
- * Automatically performs data migration when PhenoTips starts.
+ * Automatically performs data migration when PhenoTips starts. The migration is done before any request is served,
+ * since the data which isn't migrated yet cannot be accessed through the new storage engine; an interrupted migration
+ * resumes from where it stopped on the next start, and its progress is logged.
  *
  * @version $Id$
  * @since 1.0RC1
@@ -39,6 +43,9 @@
 @Singleton
 public class AutomaticDataMigrationEventListener extends AbstractEventListener
 {
+    @Inject
+    private Logger logger;
+
     @Inject
     private DataMigrationManager migrationManager;
 
@@ -51,6 +58,10 @@ public AutomaticDataMigrationEventListener()
     @Override
     public void onEvent(Event event, Object source, Object data)
     {
-        this.migrationManager.migrate();
+        if (this.migrationManager.migrate()) {
+            this.logger.debug("Data migration completed");
+        } else {
+            this.logger.warn("Not all the data could be migrated, the migration will be retried on the next start");
+        }
     }
 }
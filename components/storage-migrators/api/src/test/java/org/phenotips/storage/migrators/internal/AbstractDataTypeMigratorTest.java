@@ -0,0 +1,261 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.storage.migrators.internal;
+
+import org.phenotips.storage.migrators.DataReader;
+import org.phenotips.storage.migrators.DataWriter;
+import org.phenotips.storage.migrators.Type;
+
+import org.xwiki.component.manager.ComponentManager;
+import org.xwiki.component.util.ReflectionUtils;
+import org.xwiki.configuration.ConfigurationSource;
+import org.xwiki.context.Execution;
+import org.xwiki.context.ExecutionContextManager;
+import org.xwiki.environment.Environment;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+import javax.inject.Provider;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.ArgumentCaptor;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.slf4j.Logger;
+
+import com.xpn.xwiki.XWikiContext;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests for the {@link AbstractDataTypeMigrator} base class.
+ *
+ * @version $Id$
+ */
+public class AbstractDataTypeMigratorTest
+{
+    private static final int COUNT = 40;
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private final AbstractDataTypeMigrator<String> migrator = new StringsMigrator();
+
+    private DataReader<String> reader;
+
+    private DataWriter<String> writer;
+
+    private File checkpointFile;
+
+    @Before
+    @SuppressWarnings("unchecked")
+    public void setUp() throws Exception
+    {
+        this.reader = mock(DataReader.class);
+        when(this.reader.getType()).thenReturn(new Type("strings", "hibernate"));
+        when(this.reader.hasData()).thenReturn(true);
+        when(this.reader.discardEntities(any(Collection.class))).thenReturn(true);
+        when(this.reader.getCheckpoint(anyString())).thenAnswer(new Answer<String>()
+        {
+            @Override
+            public String answer(InvocationOnMock invocation)
+            {
+                // Each entity is its own checkpoint
+                return (String) invocation.getArguments()[0];
+            }
+        });
+        this.writer = mock(DataWriter.class);
+        when(this.writer.getType()).thenReturn(new Type("strings", "file"));
+        when(this.writer.storeEntity(anyString())).thenReturn(true);
+
+        ConfigurationSource config = mock(ConfigurationSource.class);
+        when(config.getProperty("xwiki.store.strings.hint", "hibernate")).thenReturn("file");
+        ComponentManager cm = mock(ComponentManager.class);
+        doReturn(this.writer).when(cm).getInstance(any(java.lang.reflect.Type.class), eq("strings/file"));
+        doReturn(Collections.singletonMap("strings/hibernate", this.reader)).when(cm)
+            .getInstanceMap(any(java.lang.reflect.Type.class));
+        Provider<ComponentManager> cmProvider = mock(Provider.class);
+        when(cmProvider.get()).thenReturn(cm);
+        Environment environment = mock(Environment.class);
+        when(environment.getPermanentDirectory()).thenReturn(this.folder.getRoot());
+        XWikiContext xcontext = mock(XWikiContext.class);
+        when(xcontext.getWikiId()).thenReturn("xwiki");
+        Provider<XWikiContext> xcontextProvider = mock(Provider.class);
+        when(xcontextProvider.get()).thenReturn(xcontext);
+
+        ReflectionUtils.setFieldValue(this.migrator, "logger", mock(Logger.class));
+        ReflectionUtils.setFieldValue(this.migrator, "config", config);
+        ReflectionUtils.setFieldValue(this.migrator, "cm", cmProvider);
+        ReflectionUtils.setFieldValue(this.migrator, "environment", environment);
+        ReflectionUtils.setFieldValue(this.migrator, "contextManager", mock(ExecutionContextManager.class));
+        ReflectionUtils.setFieldValue(this.migrator, "execution", mock(Execution.class));
+        ReflectionUtils.setFieldValue(this.migrator, "xcontextProvider", xcontextProvider);
+
+        this.checkpointFile = new File(this.folder.getRoot(), "migrations/xwiki/strings/hibernate.checkpoint");
+    }
+
+    @Test
+    public void entitiesAreMigratedAndDiscardedInBatches()
+    {
+        when(this.reader.getData(null)).thenReturn(entities(0, COUNT).iterator());
+
+        Assert.assertTrue(this.migrator.migrate());
+
+        List<Collection<String>> discarded = captureDiscarded(2);
+        Assert.assertEquals(entities(0, 32), discarded.get(0));
+        Assert.assertEquals(entities(32, COUNT), discarded.get(1));
+        verify(this.writer, times(COUNT)).storeEntity(anyString());
+        // A complete pass starts again from the beginning next time
+        Assert.assertFalse(this.checkpointFile.exists());
+    }
+
+    @Test
+    public void failedEntitiesAreNotDiscarded()
+    {
+        List<String> data = new ArrayList<>(entities(0, 4));
+        data.add(2, null);
+        when(this.reader.getData(null)).thenReturn(data.iterator());
+        when(this.writer.storeEntity("e1")).thenReturn(false);
+        when(this.writer.storeEntity("e3")).thenThrow(new IllegalStateException("Failed"));
+
+        Assert.assertFalse(this.migrator.migrate());
+
+        Assert.assertEquals(Arrays.asList("e0", "e2"), captureDiscarded(1).get(0));
+        Assert.assertFalse(this.checkpointFile.exists());
+    }
+
+    @Test
+    public void migrationFailsWhenDiscardingFails()
+    {
+        when(this.reader.getData(null)).thenReturn(entities(0, 2).iterator());
+        when(this.reader.discardEntities(any(Collection.class))).thenReturn(false);
+
+        Assert.assertFalse(this.migrator.migrate());
+    }
+
+    @Test
+    public void migrationResumesFromTheSavedCheckpoint() throws Exception
+    {
+        FileUtils.writeStringToFile(this.checkpointFile, "e31\n", StandardCharsets.UTF_8);
+        when(this.reader.getData("e31")).thenReturn(entities(32, COUNT).iterator());
+
+        Assert.assertTrue(this.migrator.migrate());
+
+        verify(this.reader, never()).getData(null);
+        Assert.assertEquals(entities(32, COUNT), captureDiscarded(1).get(0));
+        Assert.assertFalse(this.checkpointFile.exists());
+    }
+
+    @Test
+    public void interruptedMigrationKeepsTheLastCompletedBatchAsCheckpoint() throws Exception
+    {
+        when(this.reader.getData(null)).thenReturn(new Iterator<String>()
+        {
+            private int next;
+
+            @Override
+            public boolean hasNext()
+            {
+                return this.next < COUNT;
+            }
+
+            @Override
+            public String next()
+            {
+                if (this.next == 32) {
+                    // Simulates a shutdown during the second batch
+                    Thread.currentThread().interrupt();
+                }
+                return "e" + this.next++;
+            }
+        });
+
+        boolean result = this.migrator.migrate();
+        Assert.assertTrue(Thread.interrupted());
+
+        Assert.assertFalse(result);
+        Assert.assertEquals(entities(0, 32), captureDiscarded(1).get(0));
+        Assert.assertEquals("e31", FileUtils.readFileToString(this.checkpointFile, StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void readersOfTheCurrentStoreAreSkipped()
+    {
+        when(this.reader.getType()).thenReturn(new Type("strings", "file"));
+
+        Assert.assertTrue(this.migrator.migrate());
+
+        verify(this.reader, never()).getData(anyString());
+    }
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private List<Collection<String>> captureDiscarded(int times)
+    {
+        ArgumentCaptor<Collection> captor = ArgumentCaptor.forClass(Collection.class);
+        verify(this.reader, times(times)).discardEntities(captor.capture());
+        List<Collection<String>> result = new ArrayList<>();
+        for (Collection<String> batch : captor.getAllValues()) {
+            result.add(new ArrayList<>(batch));
+        }
+        return result;
+    }
+
+    private static List<String> entities(int from, int to)
+    {
+        List<String> result = new ArrayList<>();
+        for (int i = from; i < to; ++i) {
+            result.add("e" + i);
+        }
+        return result;
+    }
+
+    private static final class StringsMigrator extends AbstractDataTypeMigrator<String>
+    {
+        @Override
+        public String getDataType()
+        {
+            return "strings";
+        }
+
+        @Override
+        protected String getStoreConfigurationKey()
+        {
+            return "xwiki.store.strings.hint";
+        }
+    }
+}
@@ -25,21 +25,38 @@
 import org.xwiki.model.reference.DocumentReferenceResolver;
 import org.xwiki.model.reference.EntityReference;
 
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
 
 import javax.inject.Inject;
 import javax.inject.Named;
 import javax.inject.Provider;
 import javax.inject.Singleton;
 
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
 import org.hibernate.Session;
+import org.hibernate.jdbc.Work;
 import org.slf4j.Logger;
 
 import com.xpn.xwiki.XWikiContext;
 import com.xpn.xwiki.XWikiException;
 import com.xpn.xwiki.doc.XWikiAttachment;
+import com.xpn.xwiki.doc.XWikiAttachmentArchive;
+import com.xpn.xwiki.doc.XWikiAttachmentContent;
 import com.xpn.xwiki.doc.XWikiDocument;
 import com.xpn.xwiki.store.AttachmentVersioningStore;
 import com.xpn.xwiki.store.XWikiAttachmentStoreInterface;
@@ -48,7 +65,12 @@
 
 /**
  * {@link DataReader} that can read {@link XWikiAttachment attachment} contents and history from a Hibernate-managed
- * database (the default storage engine of XWiki).
+ * database (the default storage engine of XWiki). Neither the content nor the history of the returned attachments is
+ * loaded when the attachments are listed. The history is loaded each time it is requested, and
+ * {@link XWikiAttachmentContent#getContentInputStream()} reads the content from the database when it is copied,
+ * through a forward-only cursor that fetches one row at a time. Drivers which support streaming a single value, such
+ * as HSQLDB, Derby or Oracle, don't hold the content in memory at all; others, such as MySQL and the
+ * PostgreSQL {@code bytea} type, still buffer the content of the one attachment being copied, but never more than that.
  *
  * @version $Id$
  * @since 1.0RC1
@@ -64,6 +86,22 @@ public class HibernateAttachmentsReader implements DataReader<XWikiAttachment>
         "select d.fullName, a.filename from XWikiDocument d, XWikiAttachment a, XWikiAttachmentContent c"
             + " where a.docId = d.id and c.id = a.id";
 
+    /** Retrieves one page of attachments, in a stable order, starting after a given attachment identifier. */
+    private static final String DATA_PAGE_QUERY =
+        "select d.fullName, a.filename, a.id, a.filesize from XWikiDocument d, XWikiAttachment a,"
+            + " XWikiAttachmentContent c where a.docId = d.id and c.id = a.id and a.id > ? order by a.id";
+
+    /** Plain SQL, since HQL can only load the whole content in memory. */
+    private static final String CONTENT_QUERY = "select XWA_CONTENT from xwikiattachment_content where XWA_ID = ?";
+
+    private static final String CONTENT_DELETE_QUERY = "delete from XWikiAttachmentContent c where c.id in (:ids)";
+
+    private static final String ARCHIVE_DELETE_QUERY = "delete from XWikiAttachmentArchive a where a.id in (:ids)";
+
+    private static final String IDS = "ids";
+
+    private static final int PAGE_SIZE = 100;
+
     @Inject
     private Logger logger;
 
@@ -118,28 +156,44 @@ public Iterator<EntityReference> listData()
     @Override
     public Iterator<XWikiAttachment> getData()
     {
-        try {
-            List<Object[]> data = this.docStore.search(DATA_RETRIEVE_QUERY, 0, 0, this.context.get());
-            this.logger.debug("Found [{}] attachments in the database", data.size());
-            return new AttachmentIterator(data);
-        } catch (XWikiException ex) {
-            this.logger.warn("Failed to get the list of database attachments: {}", ex.getMessage());
-            return Collections.emptyIterator();
-        }
+        return getData(null);
+    }
+
+    @Override
+    public Iterator<XWikiAttachment> getData(String checkpoint)
+    {
+        return new AttachmentIterator(NumberUtils.toLong(checkpoint, Long.MIN_VALUE));
+    }
+
+    @Override
+    public String getCheckpoint(XWikiAttachment entity)
+    {
+        return String.valueOf(entity.getId());
     }
 
     @Override
     public boolean discardEntity(XWikiAttachment entity)
+    {
+        return discardEntities(Collections.singletonList(entity));
+    }
+
+    @Override
+    public boolean discardEntities(Collection<XWikiAttachment> entities)
     {
         boolean transaction = false;
         try {
             transaction = ((XWikiHibernateBaseStore) this.store).beginTransaction(this.context.get());
             Session session = ((XWikiHibernateBaseStore) this.store).getSession(this.context.get());
-            session.delete(entity.getAttachment_content());
-            session.delete(entity.getAttachment_archive());
-            this.logger.debug("Deleted attachment [{}] from the database", entity.getReference());
+            // The content isn't a Hibernate managed object, delete by identifier
+            List<Long> ids = new ArrayList<>(entities.size());
+            for (XWikiAttachment entity : entities) {
+                ids.add(entity.getId());
+            }
+            session.createQuery(CONTENT_DELETE_QUERY).setParameterList(IDS, ids).executeUpdate();
+            session.createQuery(ARCHIVE_DELETE_QUERY).setParameterList(IDS, ids).executeUpdate();
+            this.logger.debug("Deleted [{}] attachments from the database", entities.size());
         } catch (XWikiException ex) {
-            this.logger.warn("Failed to cleanup attachment from the database: {}", ex.getMessage());
+            this.logger.warn("Failed to cleanup attachments from the database: {}", ex.getMessage());
             return false;
         } finally {
             if (transaction) {
@@ -199,34 +253,47 @@ public void remove()
         }
     }
 
+    /**
+     * Lazily loads the attachments, one page of identifiers at a time. Since the pages are delimited by the last seen
+     * identifier instead of an offset, deleting already migrated attachments doesn't cause any to be skipped.
+     */
     private class AttachmentIterator implements Iterator<XWikiAttachment>
     {
-        private Iterator<Object[]> data;
+        private Iterator<Object[]> page = Collections.emptyIterator();
+
+        private long lastId;
 
-        AttachmentIterator(List<Object[]> data)
+        private boolean exhausted;
+
+        AttachmentIterator(long lastId)
         {
-            this.data = data.iterator();
+            this.lastId = lastId;
         }
 
         @Override
         public boolean hasNext()
         {
-            return this.data.hasNext();
+            if (!this.page.hasNext() && !this.exhausted) {
+                fetchPage();
+            }
+            return this.page.hasNext();
         }
 
         @Override
         public XWikiAttachment next()
         {
-            Object[] item = this.data.next();
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Object[] item = this.page.next();
             try {
                 XWikiDocument doc =
                     new XWikiDocument(HibernateAttachmentsReader.this.resolver.resolve(String.valueOf(item[0])));
-                XWikiAttachment att = new XWikiAttachment(doc, String.valueOf(item[1]));
-                HibernateAttachmentsReader.this.store.loadAttachmentContent(att,
-                    HibernateAttachmentsReader.this.context.get(), true);
-                HibernateAttachmentsReader.this.archiveStore.loadArchive(att,
-                    HibernateAttachmentsReader.this.context.get(), true);
-                HibernateAttachmentsReader.this.logger.debug("Loaded [{}] from the database", att.getReference());
+                XWikiAttachment att = new LazyAttachment(doc, String.valueOf(item[1]));
+                att.setId(((Number) item[2]).longValue());
+                att.setFilesize(((Number) item[3]).intValue());
+                att.setAttachment_content(new StreamedAttachmentContent(att));
+                HibernateAttachmentsReader.this.logger.debug("Listed [{}] from the database", att.getReference());
                 return att;
             } catch (Exception ex) {
                 HibernateAttachmentsReader.this.logger.error("Failed to read attachment from the database store: {}",
@@ -240,5 +307,182 @@ public void remove()
         {
             throw new UnsupportedOperationException();
         }
+
+        private void fetchPage()
+        {
+            try {
+                List<Object[]> data = HibernateAttachmentsReader.this.docStore.search(DATA_PAGE_QUERY, PAGE_SIZE, 0,
+                    Collections.singletonList(this.lastId), HibernateAttachmentsReader.this.context.get());
+                this.exhausted = data.size() < PAGE_SIZE;
+                if (!data.isEmpty()) {
+                    this.lastId = ((Number) data.get(data.size() - 1)[2]).longValue();
+                }
+                this.page = data.iterator();
+            } catch (XWikiException ex) {
+                HibernateAttachmentsReader.this.logger.warn("Failed to get the list of database attachments: {}",
+                    ex.getMessage());
+                this.exhausted = true;
+            }
+        }
+    }
+
+    /**
+     * Attachment whose history is only loaded from the database when it is requested, and isn't kept afterwards, so
+     * that the attachments waiting to be migrated don't hold their whole history in memory.
+     */
+    private final class LazyAttachment extends XWikiAttachment
+    {
+        LazyAttachment(XWikiDocument doc, String filename)
+        {
+            super(doc, filename);
+        }
+
+        @Override
+        public XWikiAttachmentArchive getAttachment_archive()
+        {
+            try {
+                return HibernateAttachmentsReader.this.archiveStore.loadArchive(this,
+                    HibernateAttachmentsReader.this.context.get(), true);
+            } catch (XWikiException ex) {
+                throw new IllegalStateException("Failed to load the attachment history: " + ex.getMessage(), ex);
+            }
+        }
+
+        @Override
+        public void setAttachment_archive(XWikiAttachmentArchive archive)
+        {
+            // Don't keep the archive, it is loaded again each time it is needed
+        }
+    }
+
+    /**
+     * Attachment content which isn't held in memory, but read from the database each time it is requested. Each
+     * stream uses its own database transaction, which ends when the stream is closed.
+     */
+    private final class StreamedAttachmentContent extends XWikiAttachmentContent
+    {
+        private static final long serialVersionUID = 1L;
+
+        StreamedAttachmentContent(XWikiAttachment attachment)
+        {
+            super(attachment);
+        }
+
+        @Override
+        public InputStream getContentInputStream()
+        {
+            try {
+                return openStream(getAttachment().getId());
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        }
+
+        @Override
+        public byte[] getContent()
+        {
+            try (InputStream in = getContentInputStream()) {
+                return IOUtils.toByteArray(in);
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        }
+
+        @Override
+        public int getSize()
+        {
+            return getAttachment().getFilesize();
+        }
+    }
+
+    private InputStream openStream(long id) throws IOException
+    {
+        final XWikiContext xcontext = this.context.get();
+        final XWikiHibernateBaseStore hibernateStore = (XWikiHibernateBaseStore) this.store;
+        boolean transaction = false;
+        PreparedStatement statement = null;
+        try {
+            transaction = hibernateStore.beginTransaction(xcontext);
+            StatementOpener opener = new StatementOpener();
+            // The connection stays open until the transaction ends, when the stream is closed
+            hibernateStore.getSession(xcontext).doWork(opener);
+            statement = opener.statement;
+            statement.setLong(1, id);
+            final ResultSet result = statement.executeQuery();
+            if (!result.next()) {
+                throw new IOException("Attachment content not found in the database: " + id);
+            }
+            final PreparedStatement openStatement = statement;
+            final boolean openTransaction = transaction;
+            InputStream stream = new FilterInputStream(result.getBinaryStream(1))
+            {
+                private boolean closed;
+
+                @Override
+                public void close() throws IOException
+                {
+                    if (this.closed) {
+                        return;
+                    }
+                    this.closed = true;
+                    try {
+                        super.close();
+                    } finally {
+                        closeQuietly(openStatement);
+                        if (openTransaction) {
+                            hibernateStore.endTransaction(xcontext, false);
+                        }
+                    }
+                }
+            };
+            // Ownership passed to the stream
+            statement = null;
+            transaction = false;
+            return stream;
+        } catch (XWikiException | SQLException | RuntimeException ex) {
+            throw new IOException("Failed to read attachment content from the database: " + ex.getMessage(), ex);
+        } finally {
+            closeQuietly(statement);
+            if (transaction) {
+                hibernateStore.endTransaction(xcontext, false);
+            }
+        }
+    }
+
+    /**
+     * Prepares the content query on the connection of the current session, as a forward-only, read-only statement
+     * fetching one row at a time, which lets the JDBC drivers stream the result instead of buffering it.
+     */
+    private static final class StatementOpener implements Work
+    {
+        private PreparedStatement statement;
+
+        @Override
+        public void execute(Connection connection) throws SQLException
+        {
+            PreparedStatement result = connection.prepareStatement(CONTENT_QUERY, ResultSet.TYPE_FORWARD_ONLY,
+                ResultSet.CONCUR_READ_ONLY);
+            try {
+                // MySQL only streams results when asked for Integer.MIN_VALUE rows at a time
+                String database = connection.getMetaData().getDatabaseProductName();
+                result.setFetchSize(StringUtils.containsIgnoreCase(database, "mysql") ? Integer.MIN_VALUE : 1);
+            } catch (SQLException ex) {
+                result.close();
+                throw ex;
+            }
+            this.statement = result;
+        }
+    }
+
+    private void closeQuietly(PreparedStatement statement)
+    {
+        if (statement != null) {
+            try {
+                // Also closes the result set
+                statement.close();
+            } catch (SQLException ex) {
+                this.logger.debug("Failed to close database statement: {}", ex.getMessage());
+            }
+        }
     }
 }
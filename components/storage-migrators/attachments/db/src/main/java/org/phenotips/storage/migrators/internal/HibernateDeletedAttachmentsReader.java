@@ -25,15 +25,20 @@
 import org.xwiki.model.reference.DocumentReferenceResolver;
 import org.xwiki.model.reference.EntityReference;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Date;
 import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
 
 import javax.inject.Inject;
 import javax.inject.Named;
 import javax.inject.Provider;
 import javax.inject.Singleton;
 
+import org.apache.commons.lang3.math.NumberUtils;
 import org.hibernate.Session;
 import org.slf4j.Logger;
 
@@ -46,7 +51,8 @@
 
 /**
  * {@link DataReader} that can read {@link DeletedAttachment deleted attachments} from a Hibernate-managed database (the
- * default storage engine of XWiki).
+ * default storage engine of XWiki). The serialized attachments, which include their content and history, are only
+ * loaded when they are restored.
  *
  * @version $Id$
  * @since 1.0RC1
@@ -60,6 +66,14 @@ public class HibernateDeletedAttachmentsReader implements DataReader<DeletedAtta
 
     private static final String DATA_RETRIEVE_QUERY = "select a.id from DeletedAttachment a";
 
+    /** Retrieves one page of deleted attachments, without their content, starting after a given identifier. */
+    private static final String DATA_PAGE_QUERY = "select a.id, a.docId, a.docName, a.filename, a.date, a.deleter"
+        + " from DeletedAttachment a where a.id > ? order by a.id";
+
+    private static final String DATA_DELETE_QUERY = "delete from DeletedAttachment a where a.id in (:ids)";
+
+    private static final int PAGE_SIZE = 100;
+
     private static final String DATA_REFERENCE_QUERY = "select a.docName, a.filename from DeletedAttachment a";
 
     @Inject
@@ -112,28 +126,43 @@ public Iterator<EntityReference> listData()
     @Override
     public Iterator<DeletedAttachment> getData()
     {
-        try {
-            List<Long> data = this.docStore.search(DATA_RETRIEVE_QUERY, 0, 0, this.context.get());
-            this.logger.debug("Found [{}] deleted attachments in the database trash", data.size());
-            return new DeletedAttachmentIterator(data);
-        } catch (XWikiException ex) {
-            this.logger.warn("Failed to get the list of database deleted attachments: {}", ex.getMessage());
-            return Collections.emptyIterator();
-        }
+        return getData(null);
+    }
+
+    @Override
+    public Iterator<DeletedAttachment> getData(String checkpoint)
+    {
+        return new DeletedAttachmentIterator(NumberUtils.toLong(checkpoint, Long.MIN_VALUE));
+    }
+
+    @Override
+    public String getCheckpoint(DeletedAttachment entity)
+    {
+        return String.valueOf(entity.getId());
     }
 
     @Override
     public boolean discardEntity(DeletedAttachment entity)
+    {
+        return discardEntities(Collections.singletonList(entity));
+    }
+
+    @Override
+    public boolean discardEntities(Collection<DeletedAttachment> entities)
     {
         boolean transaction = false;
         try {
             transaction = ((XWikiHibernateBaseStore) this.store).beginTransaction(this.context.get());
             Session session = ((XWikiHibernateBaseStore) this.store).getSession(this.context.get());
-            session.delete(entity);
-            this.logger.debug("Deleted deleted attachment [{}@{}#{}] from the database trash",
-                entity.getDocName(), entity.getFilename(), entity.getId());
+            // The returned entities aren't the ones managed by Hibernate, delete by identifier
+            List<Long> ids = new ArrayList<>(entities.size());
+            for (DeletedAttachment entity : entities) {
+                ids.add(entity.getId());
+            }
+            session.createQuery(DATA_DELETE_QUERY).setParameterList("ids", ids).executeUpdate();
+            this.logger.debug("Deleted [{}] deleted attachments from the database trash", entities.size());
         } catch (XWikiException ex) {
-            this.logger.warn("Failed to cleanup attachment from the database trash: {}", ex.getMessage());
+            this.logger.warn("Failed to cleanup attachments from the database trash: {}", ex.getMessage());
             return false;
         } finally {
             if (transaction) {
@@ -194,30 +223,42 @@ public void remove()
         }
     }
 
+    /**
+     * Lazily loads the deleted attachments, one page at a time. Since the pages are delimited by the last seen
+     * identifier instead of an offset, deleting already migrated entries doesn't cause any to be skipped.
+     */
     private class DeletedAttachmentIterator implements Iterator<DeletedAttachment>
     {
-        private Iterator<Long> data;
+        private Iterator<Object[]> page = Collections.emptyIterator();
+
+        private long lastId;
+
+        private boolean exhausted;
 
-        DeletedAttachmentIterator(List<Long> data)
+        DeletedAttachmentIterator(long lastId)
         {
-            this.data = data.iterator();
+            this.lastId = lastId;
         }
 
         @Override
         public boolean hasNext()
         {
-            boolean result = this.data.hasNext();
-            return result;
+            if (!this.page.hasNext() && !this.exhausted) {
+                fetchPage();
+            }
+            return this.page.hasNext();
         }
 
         @Override
         public DeletedAttachment next()
         {
-            Long item = this.data.next();
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Object[] item = this.page.next();
             try {
-                DeletedAttachment result = HibernateDeletedAttachmentsReader.this.store.getDeletedAttachment(
-                    item, HibernateDeletedAttachmentsReader.this.context.get(), true);
-                HibernateDeletedAttachmentsReader.this.logger.debug("Loaded [{}@{}#{}] from the database trash",
+                DeletedAttachment result = new LazyDeletedAttachment(item);
+                HibernateDeletedAttachmentsReader.this.logger.debug("Listed [{}@{}#{}] from the database trash",
                     result.getDocName(), result.getFilename(), result.getId());
                 return result;
             } catch (Exception ex) {
@@ -233,5 +274,57 @@ public void remove()
         {
             throw new UnsupportedOperationException();
         }
+
+        private void fetchPage()
+        {
+            try {
+                XWikiContext xcontext = HibernateDeletedAttachmentsReader.this.context.get();
+                List<Object[]> data = HibernateDeletedAttachmentsReader.this.docStore.search(DATA_PAGE_QUERY,
+                    PAGE_SIZE, 0, Collections.singletonList(this.lastId), xcontext);
+                this.exhausted = data.size() < PAGE_SIZE;
+                if (!data.isEmpty()) {
+                    this.lastId = ((Number) data.get(data.size() - 1)[0]).longValue();
+                }
+                this.page = data.iterator();
+            } catch (XWikiException ex) {
+                HibernateDeletedAttachmentsReader.this.logger.warn(
+                    "Failed to get the list of database deleted attachments: {}", ex.getMessage());
+                this.exhausted = true;
+            }
+        }
+    }
+
+    /**
+     * Deleted attachment whose serialized content and history are only loaded from the database when they are
+     * requested, and aren't kept afterwards, so that the entries waiting to be migrated stay small.
+     */
+    private final class LazyDeletedAttachment extends DeletedAttachment
+    {
+        private static final long serialVersionUID = 1L;
+
+        LazyDeletedAttachment(Object[] row)
+        {
+            setId(((Number) row[0]).longValue());
+            setDocId(((Number) row[1]).longValue());
+            setDocName((String) row[2]);
+            setFilename((String) row[3]);
+            setDate((Date) row[4]);
+            setDeleter((String) row[5]);
+        }
+
+        @Override
+        public String getXml()
+        {
+            try {
+                DeletedAttachment stored = HibernateDeletedAttachmentsReader.this.store.getDeletedAttachment(getId(),
+                    HibernateDeletedAttachmentsReader.this.context.get(), true);
+                if (stored == null) {
+                    throw new IllegalStateException("Deleted attachment not found in the database: " + getId());
+                }
+                return stored.getXml();
+            } catch (XWikiException ex) {
+                throw new IllegalStateException("Failed to load the deleted attachment: " + ex.getMessage(), ex);
+            }
+        }
     }
 }
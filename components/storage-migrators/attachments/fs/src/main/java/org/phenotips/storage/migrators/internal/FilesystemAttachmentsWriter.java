@@ -22,21 +22,38 @@
 
 import org.xwiki.component.annotation.Component;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.locks.Lock;
+
 import javax.inject.Inject;
 import javax.inject.Named;
 import javax.inject.Provider;
 import javax.inject.Singleton;
 
+import org.apache.commons.io.FileUtils;
 import org.slf4j.Logger;
 
 import com.xpn.xwiki.XWikiContext;
 import com.xpn.xwiki.XWikiException;
 import com.xpn.xwiki.doc.XWikiAttachment;
-import com.xpn.xwiki.store.XWikiAttachmentStoreInterface;
+import com.xpn.xwiki.doc.XWikiAttachmentArchive;
+import com.xpn.xwiki.store.AttachmentVersioningStore;
+import com.xpn.xwiki.store.filesystem.FilesystemStoreTools;
 
 /**
  * {@link DataWriter} that can write {@link XWikiAttachment attachments} (content and archive) into the filesystem
- * storage engine.
+ * storage engine. The content is streamed from the source attachment directly into the target file. The archive is
+ * written before the content file, so an attachment whose content file exists has been completely migrated, and an
+ * attachment that failed to migrate is fully written again when retried. An attachment already present in the
+ * filesystem store is kept as it is, since it was written after the switch to the filesystem store.
  *
  * @version $Id$
  * @since 1.0RC1
@@ -48,12 +65,18 @@ public class FilesystemAttachmentsWriter implements DataWriter<XWikiAttachment>
 {
     private static final Type TYPE = new Type("attachments", "file");
 
+    /** How many bytes are transferred at once. */
+    private static final long CHUNK_SIZE = 1 << 20;
+
     @Inject
     private Logger logger;
 
+    @Inject
+    private FilesystemStoreTools fileTools;
+
     @Inject
     @Named("file")
-    private XWikiAttachmentStoreInterface store;
+    private AttachmentVersioningStore archiveStore;
 
     @Inject
     private Provider<XWikiContext> context;
@@ -70,25 +93,58 @@ public boolean storeEntity(XWikiAttachment entity)
         if (entity == null) {
             return true;
         }
-        XWikiAttachment existing =
-            new XWikiAttachment(entity.getDoc(), entity.getFilename());
-        try {
-            this.store.loadAttachmentContent(existing, this.context.get(), false);
-            // If loading succeeded, then the attachment already exists on the filesystem;
-            // keep using the existing attachment version and discard the database one
-            this.logger.debug("Skipped importing already existing attachment [{}]", entity.getReference());
-            return true;
-        } catch (XWikiException e) {
-            // No such attachment on the filesystem, continue storing it
-        }
+        File target = this.fileTools.getAttachmentFileProvider(entity).getAttachmentContentFile();
+        Lock lock = this.fileTools.getLockForFile(target).writeLock();
+        lock.lock();
         try {
-            this.store.saveAttachmentContent(entity, false, this.context.get(), false);
-            // The archive is also automatically stored by the call above, no need to explicitly store the archive
+            if (target.exists()) {
+                // The content file is only written once the archive is saved, so the attachment is already migrated,
+                // or it was written after the filesystem store was enabled; either way, discard the database one
+                this.logger.debug("Skipped importing already existing attachment [{}]", entity.getReference());
+                return true;
+            }
+            // Write the archive first, the existence of the content file marks the attachment as migrated
+            XWikiAttachmentArchive archive = entity.getAttachment_archive();
+            if (archive != null) {
+                this.archiveStore.saveArchive(archive, this.context.get(), false);
+            }
+            copyContent(entity, target);
             this.logger.debug("Imported attachment [{}] into the filesystem store", entity.getReference());
             return true;
-        } catch (XWikiException ex) {
+        } catch (IOException | XWikiException | RuntimeException ex) {
             this.logger.error("Failed to store attachment into the filesystem store: {}", ex.getMessage(), ex);
             return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Copies the attachment content into a temporary file next to the target, then moves it in place, so that an
+     * interrupted copy never leaves a partial file behind.
+     */
+    private void copyContent(XWikiAttachment entity, File target) throws IOException, XWikiException
+    {
+        File parent = target.getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Cannot create directory " + parent.getAbsolutePath());
+        }
+        File partial = File.createTempFile(target.getName(), ".tmp", parent);
+        try {
+            try (InputStream in = entity.getContentInputStream(this.context.get());
+                ReadableByteChannel source = Channels.newChannel(in);
+                FileChannel destination = FileChannel.open(partial.toPath(), StandardOpenOption.WRITE)) {
+                long position = 0;
+                long transferred;
+                while ((transferred = destination.transferFrom(source, position, CHUNK_SIZE)) > 0) {
+                    position += transferred;
+                }
+                destination.force(false);
+            }
+            Files.move(partial.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            FileUtils.deleteQuietly(partial);
         }
     }
 }
@@ -76,7 +76,7 @@ public boolean storeEntity(DeletedAttachment entity)
             this.logger.debug("Imported deleted attachment [{}@{}#{}] into the filesystem trash store",
                 entity.getDocName(), entity.getFilename(), entity.getId());
             return true;
-        } catch (XWikiException ex) {
+        } catch (XWikiException | RuntimeException ex) {
             this.logger.error("Failed to store deleted attachment into the filesystem store: {}", ex.getMessage(), ex);
             return false;
         }
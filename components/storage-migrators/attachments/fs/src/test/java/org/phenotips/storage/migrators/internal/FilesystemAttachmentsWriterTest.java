@@ -0,0 +1,149 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.storage.migrators.internal;
+
+import org.phenotips.storage.migrators.DataWriter;
+
+import org.xwiki.test.mockito.MockitoComponentMockingRule;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.XWikiException;
+import com.xpn.xwiki.doc.XWikiAttachment;
+import com.xpn.xwiki.doc.XWikiAttachmentArchive;
+import com.xpn.xwiki.store.AttachmentVersioningStore;
+import com.xpn.xwiki.store.filesystem.AttachmentFileProvider;
+import com.xpn.xwiki.store.filesystem.FilesystemStoreTools;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests for the {@link FilesystemAttachmentsWriter} component.
+ *
+ * @version $Id$
+ */
+public class FilesystemAttachmentsWriterTest
+{
+    private static final String CONTENT = "attachment content";
+
+    @Rule
+    public final MockitoComponentMockingRule<DataWriter<XWikiAttachment>> mocker =
+        new MockitoComponentMockingRule<DataWriter<XWikiAttachment>>(FilesystemAttachmentsWriter.class);
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private File target;
+
+    private XWikiAttachment attachment;
+
+    private XWikiAttachmentArchive archive;
+
+    private AttachmentVersioningStore archiveStore;
+
+    @Before
+    public void setup() throws Exception
+    {
+        this.target = new File(this.folder.getRoot(), "attachments/image.png/image.png");
+
+        FilesystemStoreTools tools = this.mocker.getInstance(FilesystemStoreTools.class);
+        AttachmentFileProvider provider = mock(AttachmentFileProvider.class);
+        when(provider.getAttachmentContentFile()).thenReturn(this.target);
+        when(tools.getAttachmentFileProvider(any(XWikiAttachment.class))).thenReturn(provider);
+        when(tools.getLockForFile(this.target)).thenReturn(new ReentrantReadWriteLock());
+
+        this.archive = mock(XWikiAttachmentArchive.class);
+        this.attachment = mock(XWikiAttachment.class);
+        when(this.attachment.getAttachment_archive()).thenReturn(this.archive);
+        when(this.attachment.getContentInputStream(any(XWikiContext.class)))
+            .thenReturn(new ByteArrayInputStream(CONTENT.getBytes(StandardCharsets.UTF_8)));
+
+        this.archiveStore = this.mocker.getInstance(AttachmentVersioningStore.class, "file");
+    }
+
+    @Test
+    public void contentAndArchiveAreStored() throws Exception
+    {
+        Assert.assertTrue(this.mocker.getComponentUnderTest().storeEntity(this.attachment));
+        Assert.assertEquals(CONTENT, FileUtils.readFileToString(this.target, StandardCharsets.UTF_8));
+        verify(this.archiveStore).saveArchive(this.archive, null, false);
+        Assert.assertEquals(1, this.target.getParentFile().list().length);
+    }
+
+    @Test
+    public void failingToSaveTheArchiveDoesNotMarkTheAttachmentAsMigrated() throws Exception
+    {
+        doThrow(new XWikiException()).doNothing().when(this.archiveStore)
+            .saveArchive(any(XWikiAttachmentArchive.class), any(XWikiContext.class), anyBoolean());
+
+        DataWriter<XWikiAttachment> writer = this.mocker.getComponentUnderTest();
+        Assert.assertFalse(writer.storeEntity(this.attachment));
+        Assert.assertFalse(this.target.exists());
+
+        // The retry writes both the archive and the content again
+        Assert.assertTrue(writer.storeEntity(this.attachment));
+        verify(this.archiveStore, times(2)).saveArchive(this.archive, null, false);
+        Assert.assertEquals(CONTENT, FileUtils.readFileToString(this.target, StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void failingToReadTheContentLeavesNoPartialFile() throws Exception
+    {
+        when(this.attachment.getContentInputStream(any(XWikiContext.class))).thenThrow(new XWikiException());
+
+        Assert.assertFalse(this.mocker.getComponentUnderTest().storeEntity(this.attachment));
+        Assert.assertFalse(this.target.exists());
+        Assert.assertEquals(0, this.target.getParentFile().list().length);
+    }
+
+    @Test
+    public void existingAttachmentsAreKept() throws Exception
+    {
+        FileUtils.writeStringToFile(this.target, "newer content", StandardCharsets.UTF_8);
+
+        Assert.assertTrue(this.mocker.getComponentUnderTest().storeEntity(this.attachment));
+        Assert.assertEquals("newer content", FileUtils.readFileToString(this.target, StandardCharsets.UTF_8));
+        verify(this.archiveStore, never()).saveArchive(any(XWikiAttachmentArchive.class), any(XWikiContext.class),
+            anyBoolean());
+        verify(this.attachment, never()).getContentInputStream(any(XWikiContext.class));
+    }
+
+    @Test
+    public void nullEntitiesAreIgnored() throws Exception
+    {
+        Assert.assertTrue(this.mocker.getComponentUnderTest().storeEntity(null));
+    }
+}
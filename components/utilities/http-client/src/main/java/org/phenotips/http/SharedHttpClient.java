@@ -0,0 +1,71 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.http;
+
+import org.xwiki.component.annotation.Role;
+import org.xwiki.stability.Unstable;
+
+import java.util.concurrent.CompletableFuture;
+
+import org.apache.http.client.ResponseHandler;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.impl.client.CloseableHttpClient;
+
+/**
+ * Provides the HTTP client used for all outbound requests, backed by a single pool of keep-alive connections with
+ * configurable limits and timeouts. The following {@code xwiki.properties} settings are supported:
+ * <ul>
+ * <li>{@code phenotips.http.maxConnections}: the maximum number of open connections, {@code 200} by default</li>
+ * <li>{@code phenotips.http.maxConnectionsPerRoute}: the maximum number of open connections to the same server,
+ * {@code 20} by default</li>
+ * <li>{@code phenotips.http.connectTimeout}: how long to wait for a connection, either from the pool or newly
+ * established, in milliseconds, {@code 10000} by default</li>
+ * <li>{@code phenotips.http.socketTimeout}: how long to wait for data from the server, in milliseconds, {@code 60000}
+ * by default</li>
+ * <li>{@code phenotips.http.keepAlive}: how long to keep idle connections open, in seconds, if the server doesn't
+ * limit it, {@code 30} by default</li>
+ * <li>{@code phenotips.http.asyncThreads}: how many requests started with {@link #execute} can run at the same time,
+ * {@code 16} by default</li>
+ * </ul>
+ *
+ * @version $Id$
+ * @since 1.4
+ */
+@Unstable
+@Role
+public interface SharedHttpClient
+{
+    /**
+     * Returns the shared client, for performing synchronous requests. The client must not be closed by the caller, and
+     * the responses obtained from it must always be closed, so that connections are returned to the pool.
+     *
+     * @return the shared HTTP client
+     */
+    CloseableHttpClient getClient();
+
+    /**
+     * Performs a request in the background. The response is processed by the handler, after which the connection is
+     * returned to the pool.
+     *
+     * @param request the request to perform
+     * @param handler processes the response, on the thread which performed the request
+     * @param <T> the type of the result
+     * @return the future result of the handler, completed exceptionally if the request or the handler fail
+     */
+    <T> CompletableFuture<T> execute(HttpUriRequest request, ResponseHandler<? extends T> handler);
+}
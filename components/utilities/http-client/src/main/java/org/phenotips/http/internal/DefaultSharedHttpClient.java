@@ -0,0 +1,205 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.http.internal;
+
+import org.phenotips.http.SharedHttpClient;
+
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.phase.Disposable;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
+import org.xwiki.configuration.ConfigurationSource;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.ResponseHandler;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.protocol.HttpContext;
+import org.slf4j.Logger;
+
+/**
+ * Default {@link SharedHttpClient} implementation, using a pooling connection manager. Background requests are
+ * performed by a bounded set of threads using the same client, so they share the same connection pool and limits.
+ *
+ * @version $Id$
+ * @since 1.4
+ */
+@Component
+@Singleton
+public class DefaultSharedHttpClient implements SharedHttpClient, Initializable, Disposable
+{
+    private static final String PREFIX = "phenotips.http.";
+
+    /** Connections idle for more than this many milliseconds are checked before being reused. */
+    private static final int VALIDATE_AFTER_INACTIVITY = 2000;
+
+    @Inject
+    private Logger logger;
+
+    @Inject
+    @Named("xwikiproperties")
+    private ConfigurationSource configuration;
+
+    private PoolingHttpClientConnectionManager connectionManager;
+
+    private CloseableHttpClient client;
+
+    private ExecutorService executor;
+
+    @Override
+    public void initialize() throws InitializationException
+    {
+        this.connectionManager = new PoolingHttpClientConnectionManager(RegistryBuilder
+            .<ConnectionSocketFactory>create()
+            .register("http", PlainConnectionSocketFactory.getSocketFactory())
+            .register("https", SSLConnectionSocketFactory.getSystemSocketFactory())
+            .build());
+        this.connectionManager.setMaxTotal(getSetting("maxConnections", 200));
+        this.connectionManager.setDefaultMaxPerRoute(getSetting("maxConnectionsPerRoute", 20));
+        this.connectionManager.setValidateAfterInactivity(VALIDATE_AFTER_INACTIVITY);
+
+        RequestConfig requestConfig = RequestConfig.custom()
+            .setConnectTimeout(getSetting("connectTimeout", 10000))
+            .setConnectionRequestTimeout(getSetting("connectTimeout", 10000))
+            .setSocketTimeout(getSetting("socketTimeout", 60000))
+            .build();
+        int keepAlive = getSetting("keepAlive", 30);
+
+        this.client = HttpClients.custom()
+            .useSystemProperties()
+            .setConnectionManager(this.connectionManager)
+            .setDefaultRequestConfig(requestConfig)
+            .setKeepAliveStrategy(new CappedKeepAliveStrategy(TimeUnit.SECONDS.toMillis(keepAlive)))
+            .evictExpiredConnections()
+            .evictIdleConnections(keepAlive, TimeUnit.SECONDS)
+            .build();
+
+        int threads = getSetting("asyncThreads", 16);
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(), new RequestThreadFactory());
+        pool.allowCoreThreadTimeOut(true);
+        this.executor = pool;
+    }
+
+    @Override
+    public CloseableHttpClient getClient()
+    {
+        return this.client;
+    }
+
+    @Override
+    public <T> CompletableFuture<T> execute(final HttpUriRequest request, final ResponseHandler<? extends T> handler)
+    {
+        final CompletableFuture<T> result = new CompletableFuture<>();
+        try {
+            this.executor.execute(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    if (result.isCancelled()) {
+                        return;
+                    }
+                    try {
+                        result.complete(DefaultSharedHttpClient.this.client.execute(request, handler));
+                    } catch (IOException | RuntimeException ex) {
+                        result.completeExceptionally(ex);
+                    }
+                }
+            });
+        } catch (RuntimeException ex) {
+            // Rejected, the component is being disposed
+            result.completeExceptionally(ex);
+        }
+        return result;
+    }
+
+    @Override
+    public void dispose()
+    {
+        this.executor.shutdownNow();
+        try {
+            this.client.close();
+        } catch (IOException ex) {
+            this.logger.warn("Failed to close the HTTP client: {}", ex.getMessage());
+        }
+    }
+
+    private int getSetting(String name, int defaultValue)
+    {
+        return this.configuration.getProperty(PREFIX + name, defaultValue);
+    }
+
+    /**
+     * Keeps connections alive for as long as the server allows it, but no longer than the configured limit.
+     */
+    private static final class CappedKeepAliveStrategy implements ConnectionKeepAliveStrategy
+    {
+        private final long max;
+
+        CappedKeepAliveStrategy(long max)
+        {
+            this.max = max;
+        }
+
+        @Override
+        public long getKeepAliveDuration(HttpResponse response, HttpContext context)
+        {
+            long duration = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+            return duration > 0 ? Math.min(duration, this.max) : this.max;
+        }
+    }
+
+    /**
+     * Creates named daemon threads, so that pending requests don't prevent the JVM from stopping.
+     */
+    private static final class RequestThreadFactory implements ThreadFactory
+    {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable task)
+        {
+            Thread thread = new Thread(task, "PhenoTips HTTP request " + this.count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
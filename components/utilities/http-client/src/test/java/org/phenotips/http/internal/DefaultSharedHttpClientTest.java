@@ -0,0 +1,148 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.http.internal;
+
+import org.phenotips.http.SharedHttpClient;
+
+import org.xwiki.configuration.ConfigurationSource;
+import org.xwiki.test.mockito.MockitoComponentMockingRule;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.ResponseHandler;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.util.EntityUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests for the {@link DefaultSharedHttpClient} component.
+ *
+ * @version $Id$
+ */
+public class DefaultSharedHttpClientTest
+{
+    @Rule
+    public final MockitoComponentMockingRule<SharedHttpClient> mocker =
+        new MockitoComponentMockingRule<SharedHttpClient>(DefaultSharedHttpClient.class);
+
+    private static final ResponseHandler<String> TO_STRING = new ResponseHandler<String>()
+    {
+        @Override
+        public String handleResponse(HttpResponse response) throws IOException
+        {
+            return EntityUtils.toString(response.getEntity(), StandardCharsets.UTF_8);
+        }
+    };
+
+    private HttpServer server;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        ConfigurationSource configuration = this.mocker.getInstance(ConfigurationSource.class, "xwikiproperties");
+        when(configuration.getProperty(anyString(), any())).then(new Answer<Object>()
+        {
+            @Override
+            public Object answer(InvocationOnMock invocation)
+            {
+                return invocation.getArguments()[1];
+            }
+        });
+
+        this.server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        this.server.createContext("/", new HttpHandler()
+        {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException
+            {
+                byte[] body = exchange.getRequestURI().getPath().getBytes(StandardCharsets.UTF_8);
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            }
+        });
+        this.server.start();
+    }
+
+    @After
+    public void tearDown()
+    {
+        this.server.stop(0);
+    }
+
+    @Test
+    public void clientIsShared() throws Exception
+    {
+        SharedHttpClient component = this.mocker.getComponentUnderTest();
+        Assert.assertNotNull(component.getClient());
+        Assert.assertSame(component.getClient(), component.getClient());
+    }
+
+    @Test
+    public void synchronousRequestsUseSharedClient() throws Exception
+    {
+        String result = this.mocker.getComponentUnderTest().getClient().execute(new HttpGet(getURL("/sync")),
+            TO_STRING);
+        Assert.assertEquals("/sync", result);
+    }
+
+    @Test
+    public void concurrentRequestsAreHandled() throws Exception
+    {
+        SharedHttpClient component = this.mocker.getComponentUnderTest();
+        CompletableFuture<String> first = component.execute(new HttpGet(getURL("/first")), TO_STRING);
+        CompletableFuture<String> second = component.execute(new HttpGet(getURL("/second")), TO_STRING);
+        Assert.assertEquals("/first", first.get(10, TimeUnit.SECONDS));
+        Assert.assertEquals("/second", second.get(10, TimeUnit.SECONDS));
+    }
+
+    @Test(expected = ExecutionException.class)
+    public void failedRequestCompletesExceptionally() throws Exception
+    {
+        String url = getURL("/");
+        this.server.stop(0);
+        this.mocker.getComponentUnderTest().execute(new HttpGet(url), TO_STRING).get(10, TimeUnit.SECONDS);
+    }
+
+    private String getURL(String path)
+    {
+        return "http://localhost:" + this.server.getAddress().getPort() + path;
+    }
+}
@@ -19,17 +19,21 @@
 
 import org.phenotips.ncbieutils.NCBIEUtilsService;
 
-import java.io.BufferedInputStream;
+import java.io.StringReader;
 import java.io.StringWriter;
-import java.io.UnsupportedEncodingException;
-import java.net.URL;
-import java.net.URLEncoder;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 
 import javax.inject.Inject;
 import javax.xml.parsers.DocumentBuilder;
@@ -42,24 +46,33 @@
 import javax.xml.transform.stream.StreamResult;
 
 import org.apache.commons.lang3.StringUtils;
+import org.apache.http.NameValuePair;
+import org.apache.http.message.BasicNameValuePair;
 import org.slf4j.Logger;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.NamedNodeMap;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
+import org.xml.sax.InputSource;
 
 /**
- * Base implementation for {@link NCBIEUtilsService}.
+ * Base implementation for {@link NCBIEUtilsService}. Requests are performed through the shared
+ * {@link NCBIEUtilsClient}, which caches the responses and respects the NCBI rate limits.
  *
  * @version $Id$
  */
 public abstract class AbstractSpecializedNCBIEUtilsAccessService implements NCBIEUtilsService
 {
+    /** The maximum number of identifiers requested at once when retrieving summaries. */
+    protected static final int SUMMARY_BATCH_SIZE = 200;
+
     @Inject
     private Logger logger;
 
-    protected static final String SERVER_URL = "http://eutils.ncbi.nlm.nih.gov/entrez/eutils/";
+    /** Performs the requests to the eUtils service, caching and throttling them. */
+    @Inject
+    private NCBIEUtilsClient client;
 
     protected static final String TERM_SEARCH_QUERY_SCRIPT = "esearch.fcgi";
 
@@ -75,6 +88,12 @@ public abstract class AbstractSpecializedNCBIEUtilsAccessService implements NCBI
 
     protected static final String DB_PARAM_NAME = "db";
 
+    /**
+     * How many summary batches of the same request can be waiting for their turn at once. Batches wait as long as
+     * needed, so this keeps a long request from filling the rate limiter and making all the other requests fail.
+     */
+    private static final int MAX_PENDING_BATCHES = 3;
+
     protected abstract String getDatabaseName();
 
     @Override
@@ -116,10 +135,9 @@ public String getSuggestionsXML(final String query, final int rows, final int st
     @Override
     public String getName(String id)
     {
-        String url = composeURL(TERM_SUMMARY_QUERY_SCRIPT, TERM_SUMMARY_PARAM_NAME, id);
         String result = id;
         try {
-            Document response = readXML(url);
+            Document response = readXML(TERM_SUMMARY_QUERY_SCRIPT, TERM_SUMMARY_PARAM_NAME, id);
             NodeList nodes = response.getElementsByTagName("DocSum");
             if (nodes.getLength() > 0) {
                 Map<String, String> idToName = this.getNameForId(nodes.item(0));
@@ -141,23 +159,23 @@ public String getName(String id)
     public Map<String, String> getNames(List<String> idList)
     {
         Map<String, String> result = new HashMap<String, String>();
-        String queryList = getSerializedList(idList);
-        String url = composeURL(TERM_SUMMARY_QUERY_SCRIPT, TERM_SUMMARY_PARAM_NAME, queryList);
+        Set<String> requested = new HashSet<String>(idList);
         try {
-            Document response = readXML(url);
-            NodeList nodes = response.getElementsByTagName("DocSum");
-            for (int i = 0; i < nodes.getLength(); ++i) {
-                Map<String, String> idToName = this.getNameForId(nodes.item(i));
-                for (String id : idToName.keySet()) {
-                    if (idList.contains(id)) {
-                        result.put(id, idToName.get(id));
-                    } else {
-                        this.logger.warn("Unrequested " + getDatabaseName() + " id " + id);
+            for (Document response : readSummaries(idList)) {
+                NodeList nodes = response.getElementsByTagName("DocSum");
+                for (int i = 0; i < nodes.getLength(); ++i) {
+                    Map<String, String> idToName = this.getNameForId(nodes.item(i));
+                    for (String id : idToName.keySet()) {
+                        if (requested.contains(id)) {
+                            result.put(id, idToName.get(id));
+                        } else {
+                            this.logger.warn("Unrequested " + getDatabaseName() + " id " + id);
+                        }
                     }
                 }
             }
         } catch (Exception ex) {
-            this.logger.error("Error while trying to retrieve name for " + getDatabaseName() + " ids " + queryList
+            this.logger.error("Error while trying to retrieve name for " + getDatabaseName() + " ids " + idList
                 + " " + ex.getClass().getName() + " " + ex.getMessage(), ex);
         }
         return result;
@@ -170,9 +188,8 @@ public String getCorrectedQuery(String query)
         // response type: XML
         // get corrected query from /eSpellResult/CorrectedQuery (single element)
         // use original query if this element is empty
-        String url = composeURL(SPELL_CHECK_QUERY_SCRIPT, SPELL_CHECK_PARAM_NAME, query);
         try {
-            Document response = readXML(url);
+            Document response = readXML(SPELL_CHECK_QUERY_SCRIPT, SPELL_CHECK_PARAM_NAME, query);
             NodeList nodes = response.getElementsByTagName("CorrectedQuery");
             if (nodes.getLength() > 0) {
                 String result = nodes.item(0).getTextContent();
@@ -192,10 +209,11 @@ public List<String> getMatches(final String query, final int rows, final int sta
         // response example at http://eutils.ncbi.nlm.nih.gov/entrez/eutils/esearch.fcgi?db=omim&term=down
         // response type: XML
         // get corrected query from /eSearchResult/IdList/Id (multiple elements)
-        String url = composeURL(TERM_SEARCH_QUERY_SCRIPT, TERM_SEARCH_PARAM_NAME, query, rows, start);
         List<String> result = new ArrayList<String>();
         try {
-            Document response = readXML(url);
+            Document response = readXML(TERM_SEARCH_QUERY_SCRIPT, TERM_SEARCH_PARAM_NAME, query,
+                new BasicNameValuePair("RetMax", String.valueOf(rows)),
+                new BasicNameValuePair("RetStart", String.valueOf(start)));
             NodeList nodes = response.getElementsByTagName("IdList");
             if (nodes.getLength() > 0) {
                 nodes = nodes.item(0).getChildNodes();
@@ -221,46 +239,14 @@ public List<Map<String, Object>> getSummaries(List<String> idList)
         // http://eutils.ncbi.nlm.nih.gov/entrez/eutils/esummary.fcgi?db=omim&id=190685,605298,604829,602917,601088,602523,602259
         // response type: XML
         // return it
-        String queryList = getSerializedList(idList);
-        String url = composeURL(TERM_SUMMARY_QUERY_SCRIPT, TERM_SUMMARY_PARAM_NAME, queryList);
         try {
-            Document response = readXML(url);
-            NodeList nodes = response.getElementsByTagName("Item");
-            // OMIM titles are all UPPERCASE, try to fix this
-            for (int i = 0; i < nodes.getLength(); ++i) {
-                Node n = nodes.item(i);
-                if (n.getNodeType() == Node.ELEMENT_NODE) {
-                    if (n.getFirstChild() != null) {
-                        n.replaceChild(response.createTextNode(fixCase(n.getTextContent())), n.getFirstChild());
-                    }
-                }
-            }
             List<Map<String, Object>> result = new LinkedList<Map<String, Object>>();
-            nodes = response.getElementsByTagName("DocSum");
-            for (int i = 0; i < nodes.getLength(); ++i) {
-                Element n = (Element) nodes.item(i);
-                Map<String, Object> doc = new HashMap<String, Object>();
-                doc.put("id", n.getElementsByTagName("Id").item(0).getTextContent());
-                NodeList items = n.getElementsByTagName("Item");
-                for (int j = 0; j < items.getLength(); ++j) {
-                    Element item = (Element) items.item(j);
-                    if ("List".equals(item.getAttribute("Type"))) {
-                        NodeList subitems = item.getElementsByTagName("Item");
-                        if (subitems.getLength() > 0) {
-                            List<String> values = new ArrayList<String>(subitems.getLength());
-                            for (int k = 0; k < subitems.getLength(); ++k) {
-                                values.add(subitems.item(k).getTextContent());
-                            }
-                            doc.put(item.getAttribute("Name"), values);
-                        }
-                    } else {
-                        String value = item.getTextContent();
-                        if (StringUtils.isNotEmpty(value)) {
-                            doc.put(item.getAttribute("Name"), value);
-                        }
-                    }
+            for (Document response : readSummaries(idList)) {
+                fixTitles(response);
+                NodeList nodes = response.getElementsByTagName("DocSum");
+                for (int i = 0; i < nodes.getLength(); ++i) {
+                    result.add(getSummary((Element) nodes.item(i)));
                 }
-                result.add(doc);
             }
             return result;
         } catch (Exception ex) {
@@ -276,20 +262,18 @@ protected String getSummariesXML(List<String> idList)
         // http://eutils.ncbi.nlm.nih.gov/entrez/eutils/esummary.fcgi?db=omim&id=190685,605298,604829,602917,601088,602523,602259
         // response type: XML
         // return it
-        String queryList = getSerializedList(idList);
-        String url = composeURL(TERM_SUMMARY_QUERY_SCRIPT, TERM_SUMMARY_PARAM_NAME, queryList);
         try {
-            Document response = readXML(url);
-            NodeList nodes = response.getElementsByTagName("Item");
-            // OMIM titles are all UPPERCASE, try to fix this
-            for (int i = 0; i < nodes.getLength(); ++i) {
-                Node n = nodes.item(i);
-                if (n.getNodeType() == Node.ELEMENT_NODE) {
-                    if (n.getFirstChild() != null) {
-                        n.replaceChild(response.createTextNode(fixCase(n.getTextContent())), n.getFirstChild());
-                    }
+            List<Document> responses = readSummaries(idList);
+            // Merge the results of all the batches into the first response
+            Document response = responses.get(0);
+            Element root = response.getDocumentElement();
+            for (Document batch : responses.subList(1, responses.size())) {
+                NodeList nodes = batch.getDocumentElement().getChildNodes();
+                for (int i = 0; i < nodes.getLength(); ++i) {
+                    root.appendChild(response.importNode(nodes.item(i), true));
                 }
             }
+            fixTitles(response);
             Source source = new DOMSource(response);
             StringWriter stringWriter = new StringWriter();
             Result result = new StreamResult(stringWriter);
@@ -304,6 +288,46 @@ protected String getSummariesXML(List<String> idList)
         return "";
     }
 
+    private Map<String, Object> getSummary(Element n)
+    {
+        Map<String, Object> doc = new HashMap<String, Object>();
+        doc.put("id", n.getElementsByTagName("Id").item(0).getTextContent());
+        NodeList items = n.getElementsByTagName("Item");
+        for (int j = 0; j < items.getLength(); ++j) {
+            Element item = (Element) items.item(j);
+            if ("List".equals(item.getAttribute("Type"))) {
+                NodeList subitems = item.getElementsByTagName("Item");
+                if (subitems.getLength() > 0) {
+                    List<String> values = new ArrayList<String>(subitems.getLength());
+                    for (int k = 0; k < subitems.getLength(); ++k) {
+                        values.add(subitems.item(k).getTextContent());
+                    }
+                    doc.put(item.getAttribute("Name"), values);
+                }
+            } else {
+                String value = item.getTextContent();
+                if (StringUtils.isNotEmpty(value)) {
+                    doc.put(item.getAttribute("Name"), value);
+                }
+            }
+        }
+        return doc;
+    }
+
+    private void fixTitles(Document response)
+    {
+        NodeList nodes = response.getElementsByTagName("Item");
+        // OMIM titles are all UPPERCASE, try to fix this
+        for (int i = 0; i < nodes.getLength(); ++i) {
+            Node n = nodes.item(i);
+            if (n.getNodeType() == Node.ELEMENT_NODE) {
+                if (n.getFirstChild() != null) {
+                    n.replaceChild(response.createTextNode(fixCase(n.getTextContent())), n.getFirstChild());
+                }
+            }
+        }
+    }
+
     private Map<String, String> getNameForId(Node source)
     {
         Map<String, String> result = new HashMap<String, String>();
@@ -333,42 +357,64 @@ private Map<String, String> getNameForId(Node source)
         return result;
     }
 
-    private String composeURL(String scriptName, String paramName, String query)
+    /**
+     * Retrieves the summaries of the requested documents. Long lists are split into batches of at most
+     * {@link #SUMMARY_BATCH_SIZE} identifiers, which are requested in parallel, but with no more than
+     * {@link #MAX_PENDING_BATCHES} of them pending at once. The batches wait for their turn instead of failing when the
+     * rate limit is reached, since all of them are needed.
+     *
+     * @param idList the identifiers of the documents to retrieve
+     * @return the parsed responses, one for each batch, in the order of the identifiers; never empty
+     * @throws Exception if any of the requests fail
+     */
+    private List<Document> readSummaries(List<String> idList) throws Exception
     {
-        try {
-            return SERVER_URL + scriptName + "?" + DB_PARAM_NAME + '=' + getDatabaseName() + "&" + paramName + "="
-                + URLEncoder.encode(query, "UTF-8");
-        } catch (UnsupportedEncodingException ex) {
-            return SERVER_URL + scriptName + "?" + DB_PARAM_NAME + '=' + getDatabaseName() + "&" + paramName + "="
-                + query;
+        if (idList.size() <= SUMMARY_BATCH_SIZE) {
+            return Collections.singletonList(readXML(TERM_SUMMARY_QUERY_SCRIPT, TERM_SUMMARY_PARAM_NAME,
+                getSerializedList(idList)));
+        }
+        List<Document> result = new ArrayList<Document>();
+        Deque<CompletableFuture<String>> pending = new ArrayDeque<CompletableFuture<String>>();
+        for (int i = 0; i < idList.size(); i += SUMMARY_BATCH_SIZE) {
+            if (pending.size() >= MAX_PENDING_BATCHES) {
+                result.add(parseXML(waitFor(pending.removeFirst())));
+            }
+            List<String> batch = idList.subList(i, Math.min(i + SUMMARY_BATCH_SIZE, idList.size()));
+            pending.addLast(this.client.fetchAsync(getDatabaseName(), TERM_SUMMARY_QUERY_SCRIPT,
+                Collections.<NameValuePair>singletonList(
+                    new BasicNameValuePair(TERM_SUMMARY_PARAM_NAME, getSerializedList(batch))), true));
         }
+        while (!pending.isEmpty()) {
+            result.add(parseXML(waitFor(pending.removeFirst())));
+        }
+        return result;
     }
 
-    private String composeURL(String scriptName, String paramName, String query, final int rows, final int start)
+    private static String waitFor(CompletableFuture<String> batch) throws Exception
     {
         try {
-            return SERVER_URL + scriptName + "?" + DB_PARAM_NAME + '=' + getDatabaseName() + "&" + paramName + "="
-                + URLEncoder.encode(query, "UTF-8") + "&RetMax=" + rows + "&RetStart=" + start;
-        } catch (UnsupportedEncodingException ex) {
-            return SERVER_URL + scriptName + "?" + DB_PARAM_NAME + '=' + getDatabaseName() + "&" + paramName + "="
-                + query + "&RetMax=" + rows + "&RetStart=" + start;
+            return batch.get();
+        } catch (ExecutionException ex) {
+            throw ex.getCause() instanceof Exception ? (Exception) ex.getCause() : ex;
         }
     }
 
-    private org.w3c.dom.Document readXML(String url)
+    private Document readXML(String scriptName, String paramName, String query, NameValuePair... extraParameters)
+        throws Exception
     {
-        try {
-            BufferedInputStream in = new BufferedInputStream(new URL(url).openStream());
-            DocumentBuilderFactory dbFactory = DocumentBuilderFactory.newInstance();
-            DocumentBuilder dBuilder = dbFactory.newDocumentBuilder();
-            org.w3c.dom.Document result = dBuilder.parse(in);
-            result.getDocumentElement().normalize();
-            return result;
-        } catch (Exception ex) {
-            this.logger.error("Error while trying to retrieve data from URL " + url + " " + ex.getClass().getName()
-                + " " + ex.getMessage(), ex);
-            return null;
-        }
+        List<NameValuePair> parameters = new ArrayList<NameValuePair>(extraParameters.length + 1);
+        parameters.add(new BasicNameValuePair(paramName, query));
+        parameters.addAll(Arrays.asList(extraParameters));
+        return parseXML(this.client.fetch(getDatabaseName(), scriptName, parameters));
+    }
+
+    private static Document parseXML(String xml) throws Exception
+    {
+        DocumentBuilderFactory dbFactory = DocumentBuilderFactory.newInstance();
+        DocumentBuilder dBuilder = dbFactory.newDocumentBuilder();
+        Document result = dBuilder.parse(new InputSource(new StringReader(xml)));
+        result.getDocumentElement().normalize();
+        return result;
     }
 
     private static String fixCase(String text)
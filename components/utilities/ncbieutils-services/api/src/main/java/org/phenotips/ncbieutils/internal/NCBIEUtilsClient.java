@@ -0,0 +1,343 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.ncbieutils.internal;
+
+import org.phenotips.http.SharedHttpClient;
+
+import org.xwiki.cache.Cache;
+import org.xwiki.cache.CacheException;
+import org.xwiki.cache.CacheManager;
+import org.xwiki.cache.config.CacheConfiguration;
+import org.xwiki.cache.eviction.EntryEvictionConfiguration;
+import org.xwiki.cache.eviction.LRUEvictionConfiguration;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.phase.Disposable;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
+import org.xwiki.configuration.ConfigurationSource;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.NameValuePair;
+import org.apache.http.StatusLine;
+import org.apache.http.client.HttpResponseException;
+import org.apache.http.client.ResponseHandler;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.utils.URIBuilder;
+import org.apache.http.client.utils.URLEncodedUtils;
+import org.apache.http.message.BasicNameValuePair;
+import org.apache.http.util.EntityUtils;
+
+/**
+ * Performs requests to the NCBI Entrez Utilities server, shared by all the
+ * {@link AbstractSpecializedNCBIEUtilsAccessService specialized eUtils services}. Requests go through the
+ * {@link SharedHttpClient shared connection pool}, successful responses are cached for a while, since the same queries
+ * are repeated often, for example while the user is typing in a suggestion field, and the requests actually sent are
+ * throttled, so that the NCBI usage limits are respected. Requests which would have to wait too long for their turn
+ * fail right away instead of piling up, unless they explicitly ask to wait for their turn, as the batches of a long
+ * request do. The following {@code xwiki.properties} settings are supported:
+ * <ul>
+ * <li>{@code phenotips.ncbieutils.apiKey}: the NCBI API key to send with each request, none by default</li>
+ * <li>{@code phenotips.ncbieutils.requestsPerSecond}: how many requests can be sent each second, {@code 3} by default,
+ * or {@code 10} if an API key is configured, as allowed by NCBI</li>
+ * <li>{@code phenotips.ncbieutils.maxWait}: for how long a request can wait for its turn before failing, in
+ * milliseconds, {@code 2000} by default</li>
+ * <li>{@code phenotips.ncbieutils.cacheSize}: how many responses to keep in the cache, {@code 1000} by default</li>
+ * <li>{@code phenotips.ncbieutils.cacheTTL}: for how long to keep responses in the cache, in seconds, {@code 3600} by
+ * default</li>
+ * </ul>
+ *
+ * @version $Id$
+ * @since 1.4
+ */
+@Component(roles = { NCBIEUtilsClient.class })
+@Singleton
+public class NCBIEUtilsClient implements Initializable, Disposable
+{
+    private static final String SERVER_URL = "http://eutils.ncbi.nlm.nih.gov/entrez/eutils/";
+
+    private static final String CONFIGURATION_PREFIX = "phenotips.ncbieutils.";
+
+    private static final String DB_PARAM_NAME = "db";
+
+    private static final String API_KEY_PARAM_NAME = "api_key";
+
+    /** Separates the components of a cache key. */
+    private static final char KEY_SEPARATOR = '|';
+
+    @Inject
+    @Named("xwikiproperties")
+    private ConfigurationSource configuration;
+
+    /** Performs the actual HTTP requests, reusing pooled connections. */
+    @Inject
+    private SharedHttpClient httpClient;
+
+    /** Cache factory needed for creating the response cache. */
+    @Inject
+    private CacheManager cacheFactory;
+
+    /** Recent successful responses, keyed by the database, the script and the query parameters. */
+    private Cache<String> cache;
+
+    /** Throttles the requests sent to the server. */
+    private TokenBucket rateLimiter;
+
+    /** Delays the background requests which exceed the rate limit. */
+    private ScheduledExecutorService scheduler;
+
+    /** For how long a request can wait for its turn, in nanoseconds. */
+    private long maxWait;
+
+    private String apiKey;
+
+    @Override
+    public void initialize() throws InitializationException
+    {
+        this.apiKey = StringUtils.trimToNull(this.configuration.getProperty(CONFIGURATION_PREFIX + "apiKey",
+            String.class));
+        int rate = getIntProperty("requestsPerSecond", this.apiKey == null ? 3 : 10);
+        // Allow short bursts, but no more than a second worth of requests
+        this.rateLimiter = new TokenBucket(Math.max(1, rate), rate);
+        this.maxWait = TimeUnit.MILLISECONDS.toNanos(Math.max(0, getIntProperty("maxWait", 2000)));
+
+        try {
+            EntryEvictionConfiguration config = new LRUEvictionConfiguration(getIntProperty("cacheSize", 1000));
+            config.setTimeToLive(getIntProperty("cacheTTL", 3600));
+            this.cache = this.cacheFactory.createNewLocalCache(new CacheConfiguration(config));
+        } catch (CacheException ex) {
+            throw new InitializationException("Cannot create cache: " + ex.getMessage());
+        }
+
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, new SchedulerThreadFactory());
+        executor.setRemoveOnCancelPolicy(true);
+        this.scheduler = executor;
+    }
+
+    /**
+     * Performs a request on the current thread, or returns the cached response, if available. If too many requests
+     * were sent recently, the current thread waits for the request's turn, or fails if that would take too long.
+     *
+     * @param database the database to query, for example {@code omim}
+     * @param script the eUtils script to call, for example {@code esummary.fcgi}
+     * @param parameters the other query parameters
+     * @return the body of the response
+     * @throws IOException if the request fails, the server doesn't return a successful response, or too many requests
+     *             are already waiting
+     */
+    public String fetch(String database, String script, List<NameValuePair> parameters) throws IOException
+    {
+        String key = getCacheKey(database, script, parameters);
+        String result = this.cache.get(key);
+        if (result == null) {
+            HttpGet request = createRequest(database, script, parameters);
+            try {
+                if (!this.rateLimiter.tryAcquire(this.maxWait)) {
+                    throw getRateLimitException();
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting to send the request " + request.getURI(), ex);
+            }
+            result = this.httpClient.getClient().execute(request, new CachingResponseHandler(key));
+        }
+        return result;
+    }
+
+    /**
+     * Performs a request in the background, or returns the cached response, if available. The request is delayed if
+     * needed, so that the rate limit is respected, without blocking the current thread.
+     *
+     * @param database the database to query, for example {@code omim}
+     * @param script the eUtils script to call, for example {@code esummary.fcgi}
+     * @param parameters the other query parameters
+     * @return the future body of the response, completed exceptionally if the request fails, the server doesn't
+     *         return a successful response, or too many requests are already waiting
+     */
+    public CompletableFuture<String> fetchAsync(String database, String script, List<NameValuePair> parameters)
+    {
+        return fetchAsync(database, script, parameters, false);
+    }
+
+    /**
+     * Performs a request in the background, or returns the cached response, if available. The request is delayed if
+     * needed, so that the rate limit is respected, without blocking the current thread.
+     *
+     * @param database the database to query, for example {@code omim}
+     * @param script the eUtils script to call, for example {@code esummary.fcgi}
+     * @param parameters the other query parameters
+     * @param waitForTurn {@code true} if the request should be delayed for as long as needed, {@code false} if it
+     *            should fail when too many requests are already waiting; callers waiting for their turn must limit how
+     *            many of their requests are pending at once
+     * @return the future body of the response, completed exceptionally if the request fails, the server doesn't
+     *         return a successful response, or, unless {@code waitForTurn} is set, too many requests are already
+     *         waiting
+     */
+    public CompletableFuture<String> fetchAsync(String database, String script, List<NameValuePair> parameters,
+        boolean waitForTurn)
+    {
+        final String key = getCacheKey(database, script, parameters);
+        String cached = this.cache.get(key);
+        if (cached != null) {
+            return CompletableFuture.completedFuture(cached);
+        }
+        final CompletableFuture<String> result = new CompletableFuture<>();
+        final HttpGet request;
+        try {
+            request = createRequest(database, script, parameters);
+        } catch (IOException ex) {
+            result.completeExceptionally(ex);
+            return result;
+        }
+        Runnable send = new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                NCBIEUtilsClient.this.httpClient.execute(request, new CachingResponseHandler(key))
+                    .whenComplete(new BiConsumer<String, Throwable>()
+                    {
+                        @Override
+                        public void accept(String response, Throwable error)
+                        {
+                            if (error != null) {
+                                result.completeExceptionally(error);
+                            } else {
+                                result.complete(response);
+                            }
+                        }
+                    });
+            }
+        };
+        long wait = this.rateLimiter.tryReserve(waitForTurn ? Long.MAX_VALUE : this.maxWait);
+        if (wait < 0) {
+            result.completeExceptionally(getRateLimitException());
+        } else if (wait > 0) {
+            try {
+                this.scheduler.schedule(send, wait, TimeUnit.NANOSECONDS);
+            } catch (RuntimeException ex) {
+                // Rejected, the component is being disposed
+                result.completeExceptionally(ex);
+            }
+        } else {
+            send.run();
+        }
+        return result;
+    }
+
+    @Override
+    public void dispose()
+    {
+        this.scheduler.shutdownNow();
+        this.cache.dispose();
+    }
+
+    private HttpGet createRequest(String database, String script, List<NameValuePair> parameters) throws IOException
+    {
+        try {
+            URIBuilder builder = new URIBuilder(SERVER_URL + script);
+            builder.addParameter(DB_PARAM_NAME, database);
+            builder.addParameters(parameters);
+            if (this.apiKey != null) {
+                builder.addParameter(API_KEY_PARAM_NAME, this.apiKey);
+            }
+            URI uri = builder.build();
+            return new HttpGet(uri);
+        } catch (URISyntaxException ex) {
+            throw new IOException("Invalid eUtils request: " + ex.getMessage(), ex);
+        }
+    }
+
+    private IOException getRateLimitException()
+    {
+        return new IOException("Too many eUtils requests already waiting for their turn, try again later");
+    }
+
+    private String getCacheKey(String database, String script, List<NameValuePair> parameters)
+    {
+        List<NameValuePair> query = new ArrayList<>(parameters);
+        query.add(0, new BasicNameValuePair(DB_PARAM_NAME, database));
+        return new StringBuilder(database).append(KEY_SEPARATOR).append(script).append(KEY_SEPARATOR)
+            .append(URLEncodedUtils.format(query, StandardCharsets.UTF_8)).toString();
+    }
+
+    private int getIntProperty(String name, int defaultValue)
+    {
+        Integer value = this.configuration.getProperty(CONFIGURATION_PREFIX + name, Integer.class);
+        return value != null ? value : defaultValue;
+    }
+
+    /**
+     * Reads the body of successful responses and stores it in the cache; failed responses are not cached.
+     */
+    private final class CachingResponseHandler implements ResponseHandler<String>
+    {
+        private final String key;
+
+        CachingResponseHandler(String key)
+        {
+            this.key = key;
+        }
+
+        @Override
+        public String handleResponse(HttpResponse response) throws IOException
+        {
+            StatusLine status = response.getStatusLine();
+            HttpEntity entity = response.getEntity();
+            if (status.getStatusCode() >= 300 || entity == null) {
+                EntityUtils.consume(entity);
+                throw new HttpResponseException(status.getStatusCode(), status.getReasonPhrase());
+            }
+            String result = EntityUtils.toString(entity, StandardCharsets.UTF_8);
+            NCBIEUtilsClient.this.cache.set(this.key, result);
+            return result;
+        }
+    }
+
+    /**
+     * Creates a named daemon thread, so that delayed requests don't prevent the JVM from stopping.
+     */
+    private static final class SchedulerThreadFactory implements ThreadFactory
+    {
+        @Override
+        public Thread newThread(Runnable task)
+        {
+            Thread thread = new Thread(task, "PhenoTips NCBI eUtils scheduler");
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.ncbieutils.internal;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Simple token bucket, used for limiting the rate of requests sent to a server. Tokens are added at a fixed rate, up to
+ * a maximum number, which allows short bursts of requests after idle periods. Instead of blocking until a token is
+ * available, callers {@link #tryReserve(long) reserve} the next token and get back how long they must wait before using
+ * it, so that the waiting can be done either on the calling thread or by scheduling the request for later. Callers
+ * also set how long they are willing to wait, so that bursts of requests are rejected instead of building an unbounded
+ * backlog of waiting requests.
+ *
+ * @version $Id$
+ * @since 1.4
+ */
+final class TokenBucket
+{
+    /** How many nanoseconds it takes to add one token. */
+    private final long interval;
+
+    /** The maximum number of tokens accumulated while idle. */
+    private final long capacity;
+
+    /** The time source, in nanoseconds. */
+    private final LongSupplier clock;
+
+    /** The moment, as a {@link #clock} value, when the next token becomes available. */
+    private long next;
+
+    /**
+     * Constructor.
+     *
+     * @param permitsPerSecond how many tokens are added each second; must be positive
+     * @param capacity the maximum number of tokens which can be used at once; at least one token is always allowed
+     */
+    TokenBucket(double permitsPerSecond, int capacity)
+    {
+        this(permitsPerSecond, capacity, new LongSupplier()
+        {
+            @Override
+            public long getAsLong()
+            {
+                return System.nanoTime();
+            }
+        });
+    }
+
+    /**
+     * Constructor using a custom time source.
+     *
+     * @param permitsPerSecond how many tokens are added each second; must be positive
+     * @param capacity the maximum number of tokens which can be used at once; at least one token is always allowed
+     * @param clock the time source, in nanoseconds, such as {@link System#nanoTime()}
+     */
+    TokenBucket(double permitsPerSecond, int capacity, LongSupplier clock)
+    {
+        this.interval = (long) (TimeUnit.SECONDS.toNanos(1) / permitsPerSecond);
+        this.capacity = Math.max(1, capacity);
+        this.clock = clock;
+        this.next = clock.getAsLong() - this.capacity * this.interval;
+    }
+
+    /**
+     * Takes one token, which may only become available in the future, unless the caller would have to wait too long.
+     *
+     * @param maxWait the maximum number of nanoseconds the caller is willing to wait
+     * @return how many nanoseconds the caller must wait before using the token, {@code 0} if it can be used right away,
+     *         or a negative value if no token could be reserved within {@code maxWait}, in which case no token is taken
+     */
+    synchronized long tryReserve(long maxWait)
+    {
+        long now = this.clock.getAsLong();
+        // Don't accumulate more than the capacity while idle
+        long oldest = now - (this.capacity - 1) * this.interval;
+        if (this.next < oldest) {
+            this.next = oldest;
+        }
+        long wait = Math.max(0, this.next - now);
+        if (wait > maxWait) {
+            return -1;
+        }
+        this.next += this.interval;
+        return wait;
+    }
+
+    /**
+     * Takes one token, waiting on the current thread until it becomes available, unless it would take too long.
+     *
+     * @param maxWait the maximum number of nanoseconds to wait
+     * @return {@code true} if a token was taken, {@code false} if no token would be available within {@code maxWait}
+     * @throws InterruptedException if the current thread is interrupted while waiting
+     */
+    boolean tryAcquire(long maxWait) throws InterruptedException
+    {
+        long wait = tryReserve(maxWait);
+        if (wait > 0) {
+            TimeUnit.NANOSECONDS.sleep(wait);
+        }
+        return wait >= 0;
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.ncbieutils.internal;
+
+import org.phenotips.ncbieutils.OmimAccessService;
+
+import org.xwiki.script.service.ScriptService;
+import org.xwiki.test.mockito.MockitoComponentMockingRule;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.NameValuePair;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests for the batched summary retrieval in {@link AbstractSpecializedNCBIEUtilsAccessService}.
+ *
+ * @version $Id$
+ */
+public class AbstractSpecializedNCBIEUtilsAccessServiceTest
+{
+    /** More than ten batches, more than the default rate limit allows without waiting. */
+    private static final int IDS = 12 * AbstractSpecializedNCBIEUtilsAccessService.SUMMARY_BATCH_SIZE + 100;
+
+    @Rule
+    public final MockitoComponentMockingRule<ScriptService> mocker =
+        new MockitoComponentMockingRule<ScriptService>(OmimAccessService.class);
+
+    private NCBIEUtilsClient client;
+
+    private final ScheduledExecutorService responder = Executors.newSingleThreadScheduledExecutor();
+
+    private final AtomicInteger pending = new AtomicInteger();
+
+    private final AtomicInteger maxPending = new AtomicInteger();
+
+    private final List<String> ids = new ArrayList<>();
+
+    @Before
+    public void setup() throws Exception
+    {
+        for (int i = 0; i < IDS; ++i) {
+            this.ids.add(String.valueOf(100000 + i));
+        }
+        this.client = this.mocker.getInstance(NCBIEUtilsClient.class);
+        when(this.client.fetchAsync(eq("omim"), eq("esummary.fcgi"), anyListOf(NameValuePair.class), eq(true)))
+            .thenAnswer(new Answer<CompletableFuture<String>>()
+            {
+                @Override
+                public CompletableFuture<String> answer(InvocationOnMock invocation)
+                {
+                    @SuppressWarnings("unchecked")
+                    List<NameValuePair> parameters = (List<NameValuePair>) invocation.getArguments()[2];
+                    return respondLater(parameters.get(0).getValue());
+                }
+            });
+    }
+
+    @After
+    public void tearDown()
+    {
+        this.responder.shutdownNow();
+    }
+
+    @Test
+    public void longListsAreRetrievedInBatchesWaitingForTheirTurn() throws Exception
+    {
+        OmimAccessService service = (OmimAccessService) this.mocker.getComponentUnderTest();
+
+        Map<String, String> names = service.getNames(this.ids);
+
+        Assert.assertEquals(IDS, names.size());
+        Assert.assertEquals("Disorder 100000", names.get("100000"));
+        Assert.assertEquals("Disorder " + (100000 + IDS - 1), names.get(String.valueOf(100000 + IDS - 1)));
+        verify(this.client, times(13)).fetchAsync(eq("omim"), eq("esummary.fcgi"), anyListOf(NameValuePair.class),
+            eq(true));
+        verify(this.client, never()).fetchAsync(anyString(), anyString(), anyListOf(NameValuePair.class));
+    }
+
+    @Test
+    public void summariesOfLongListsKeepTheOrderOfTheIdentifiers() throws Exception
+    {
+        OmimAccessService service = (OmimAccessService) this.mocker.getComponentUnderTest();
+
+        List<Map<String, Object>> summaries = service.getSummaries(this.ids);
+
+        Assert.assertEquals(IDS, summaries.size());
+        for (int i = 0; i < IDS; i += 250) {
+            Assert.assertEquals(this.ids.get(i), summaries.get(i).get("id"));
+        }
+    }
+
+    @Test
+    public void onlyAFewBatchesArePendingAtOnce() throws Exception
+    {
+        ((OmimAccessService) this.mocker.getComponentUnderTest()).getNames(this.ids);
+
+        Assert.assertTrue(this.maxPending.get() > 1);
+        Assert.assertTrue(this.maxPending.get() <= 3);
+    }
+
+    private CompletableFuture<String> respondLater(final String idList)
+    {
+        final CompletableFuture<String> result = new CompletableFuture<>();
+        int now = this.pending.incrementAndGet();
+        if (now > this.maxPending.get()) {
+            this.maxPending.set(now);
+        }
+        this.responder.schedule(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                AbstractSpecializedNCBIEUtilsAccessServiceTest.this.pending.decrementAndGet();
+                result.complete(getSummariesXML(idList));
+            }
+        }, 50, TimeUnit.MILLISECONDS);
+        return result;
+    }
+
+    private static String getSummariesXML(String idList)
+    {
+        StringBuilder xml = new StringBuilder("<eSummaryResult>");
+        for (String id : idList.split(",")) {
+            xml.append("<DocSum><Id>").append(id).append("</Id><Item Name=\"Title\" Type=\"String\">DISORDER ")
+                .append(id).append("</Item></DocSum>");
+        }
+        return xml.append("</eSummaryResult>").toString();
+    }
+}
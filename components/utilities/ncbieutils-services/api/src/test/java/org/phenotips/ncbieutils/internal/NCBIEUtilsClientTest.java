@@ -0,0 +1,266 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.ncbieutils.internal;
+
+import org.phenotips.http.SharedHttpClient;
+
+import org.xwiki.cache.Cache;
+import org.xwiki.cache.CacheManager;
+import org.xwiki.cache.config.CacheConfiguration;
+import org.xwiki.configuration.ConfigurationSource;
+import org.xwiki.test.mockito.MockitoComponentMockingRule;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.NameValuePair;
+import org.apache.http.client.HttpResponseException;
+import org.apache.http.client.ResponseHandler;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.message.BasicNameValuePair;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests for the {@link NCBIEUtilsClient} component.
+ *
+ * @version $Id$
+ */
+public class NCBIEUtilsClientTest
+{
+    private static final String DATABASE = "omim";
+
+    private static final String SCRIPT = "esummary.fcgi";
+
+    private static final String BODY = "<eSummaryResult/>";
+
+    private static final String PREFIX = "phenotips.ncbieutils.";
+
+    @Rule
+    public final MockitoComponentMockingRule<NCBIEUtilsClient> mocker =
+        new MockitoComponentMockingRule<NCBIEUtilsClient>(NCBIEUtilsClient.class);
+
+    private final List<NameValuePair> parameters =
+        Collections.<NameValuePair>singletonList(new BasicNameValuePair("id", "100100"));
+
+    private final CloseableHttpClient client = mock(CloseableHttpClient.class);
+
+    private ConfigurationSource configuration;
+
+    private SharedHttpClient sharedClient;
+
+    private Cache<String> cache;
+
+    private int status = 200;
+
+    @Before
+    @SuppressWarnings("unchecked")
+    public void setup() throws Exception
+    {
+        this.configuration = this.mocker.getInstance(ConfigurationSource.class, "xwikiproperties");
+        this.cache = mock(Cache.class);
+        CacheManager cacheManager = this.mocker.getInstance(CacheManager.class);
+        when(cacheManager.<String>createNewLocalCache(any(CacheConfiguration.class))).thenReturn(this.cache);
+
+        this.sharedClient = this.mocker.getInstance(SharedHttpClient.class);
+        when(this.sharedClient.getClient()).thenReturn(this.client);
+        when(this.client.execute(any(HttpUriRequest.class), any(ResponseHandler.class))).thenAnswer(new Answer<Object>()
+        {
+            @Override
+            public Object answer(InvocationOnMock invocation) throws Throwable
+            {
+                return ((ResponseHandler<?>) invocation.getArguments()[1]).handleResponse(createResponse());
+            }
+        });
+        when(this.sharedClient.execute(any(HttpUriRequest.class), any(ResponseHandler.class)))
+            .thenAnswer(new Answer<Object>()
+            {
+                @Override
+                public Object answer(InvocationOnMock invocation) throws Throwable
+                {
+                    CompletableFuture<Object> result = new CompletableFuture<>();
+                    try {
+                        result.complete(((ResponseHandler<?>) invocation.getArguments()[1])
+                            .handleResponse(createResponse()));
+                    } catch (IOException ex) {
+                        result.completeExceptionally(ex);
+                    }
+                    return result;
+                }
+            });
+    }
+
+    @Test
+    public void fetchSendsTheRequestAndCachesTheResponse() throws Exception
+    {
+        Assert.assertEquals(BODY, this.mocker.getComponentUnderTest().fetch(DATABASE, SCRIPT, this.parameters));
+
+        ArgumentCaptor<HttpUriRequest> request = ArgumentCaptor.forClass(HttpUriRequest.class);
+        verify(this.client).execute(request.capture(), any(ResponseHandler.class));
+        Assert.assertEquals("http://eutils.ncbi.nlm.nih.gov/entrez/eutils/esummary.fcgi?db=omim&id=100100",
+            request.getValue().getURI().toString());
+        verify(this.cache).set("omim|esummary.fcgi|db=omim&id=100100", BODY);
+    }
+
+    @Test
+    public void theApiKeyIsSentWhenConfigured() throws Exception
+    {
+        when(this.configuration.getProperty(PREFIX + "apiKey", String.class)).thenReturn("abc");
+
+        this.mocker.getComponentUnderTest().fetch(DATABASE, SCRIPT, this.parameters);
+
+        ArgumentCaptor<HttpUriRequest> request = ArgumentCaptor.forClass(HttpUriRequest.class);
+        verify(this.client).execute(request.capture(), any(ResponseHandler.class));
+        Assert.assertTrue(request.getValue().getURI().toString().endsWith("&api_key=abc"));
+        // The key isn't part of the cache key
+        verify(this.cache).set("omim|esummary.fcgi|db=omim&id=100100", BODY);
+    }
+
+    @Test
+    public void cachedResponsesAreReturnedWithoutSendingRequests() throws Exception
+    {
+        when(this.cache.get("omim|esummary.fcgi|db=omim&id=100100")).thenReturn("cached");
+
+        Assert.assertEquals("cached", this.mocker.getComponentUnderTest().fetch(DATABASE, SCRIPT, this.parameters));
+        Assert.assertEquals("cached",
+            this.mocker.getComponentUnderTest().fetchAsync(DATABASE, SCRIPT, this.parameters).get());
+
+        verify(this.sharedClient, never()).getClient();
+        verify(this.sharedClient, never()).execute(any(HttpUriRequest.class), any(ResponseHandler.class));
+    }
+
+    @Test
+    public void failedResponsesAreNotCached() throws Exception
+    {
+        this.status = 500;
+        try {
+            this.mocker.getComponentUnderTest().fetch(DATABASE, SCRIPT, this.parameters);
+            Assert.fail("Failed requests should throw an exception");
+        } catch (HttpResponseException ex) {
+            Assert.assertEquals(500, ex.getStatusCode());
+        }
+        try {
+            this.mocker.getComponentUnderTest().fetchAsync(DATABASE, SCRIPT, this.parameters).get();
+            Assert.fail("Failed requests should complete exceptionally");
+        } catch (ExecutionException ex) {
+            Assert.assertTrue(ex.getCause() instanceof HttpResponseException);
+        }
+        verify(this.cache, never()).set(anyString(), anyString());
+    }
+
+    @Test
+    public void requestsFailRightAwayInsteadOfWaitingTooLong() throws Exception
+    {
+        when(this.configuration.getProperty(PREFIX + "requestsPerSecond", Integer.class)).thenReturn(1);
+        when(this.configuration.getProperty(PREFIX + "maxWait", Integer.class)).thenReturn(0);
+        NCBIEUtilsClient eutils = this.mocker.getComponentUnderTest();
+
+        Assert.assertEquals(BODY, eutils.fetch(DATABASE, SCRIPT, this.parameters));
+        long start = System.nanoTime();
+        try {
+            eutils.fetch(DATABASE, SCRIPT, this.parameters);
+            Assert.fail("Requests over the limit should be rejected");
+        } catch (IOException ex) {
+            Assert.assertTrue(ex.getMessage().startsWith("Too many eUtils requests"));
+        }
+        CompletableFuture<String> rejected = eutils.fetchAsync(DATABASE, SCRIPT, this.parameters);
+        Assert.assertTrue(rejected.isCompletedExceptionally());
+        Assert.assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(500));
+
+        verify(this.client, times(1)).execute(any(HttpUriRequest.class), any(ResponseHandler.class));
+        verify(this.sharedClient, never()).execute(any(HttpUriRequest.class), any(ResponseHandler.class));
+    }
+
+    @Test
+    public void backgroundRequestsOverTheLimitAreDelayedWithinTheMaximumWait() throws Exception
+    {
+        when(this.configuration.getProperty(PREFIX + "requestsPerSecond", Integer.class)).thenReturn(10);
+        NCBIEUtilsClient eutils = this.mocker.getComponentUnderTest();
+
+        List<CompletableFuture<String>> results = new ArrayList<>();
+        for (int i = 0; i < 12; ++i) {
+            results.add(eutils.fetchAsync(DATABASE, SCRIPT, this.parameters));
+        }
+        Assert.assertFalse(results.get(11).isDone());
+        for (CompletableFuture<String> result : results) {
+            Assert.assertEquals(BODY, result.get(2, TimeUnit.SECONDS));
+        }
+        verify(this.sharedClient, times(12)).execute(any(HttpUriRequest.class), any(ResponseHandler.class));
+    }
+
+    @Test
+    public void requestsWaitingForTheirTurnAreNeverRejected() throws Exception
+    {
+        when(this.configuration.getProperty(PREFIX + "requestsPerSecond", Integer.class)).thenReturn(10);
+        when(this.configuration.getProperty(PREFIX + "maxWait", Integer.class)).thenReturn(0);
+        NCBIEUtilsClient eutils = this.mocker.getComponentUnderTest();
+
+        List<CompletableFuture<String>> results = new ArrayList<>();
+        for (int i = 0; i < 15; ++i) {
+            results.add(eutils.fetchAsync(DATABASE, SCRIPT, this.parameters, true));
+        }
+        Assert.assertTrue(eutils.fetchAsync(DATABASE, SCRIPT, this.parameters).isCompletedExceptionally());
+        for (CompletableFuture<String> result : results) {
+            Assert.assertEquals(BODY, result.get(3, TimeUnit.SECONDS));
+        }
+        verify(this.sharedClient, times(15)).execute(any(HttpUriRequest.class), any(ResponseHandler.class));
+    }
+
+    @Test
+    public void pendingBackgroundRequestsAreRejectedWhenDisposed() throws Exception
+    {
+        when(this.configuration.getProperty(PREFIX + "requestsPerSecond", Integer.class)).thenReturn(1);
+        NCBIEUtilsClient eutils = this.mocker.getComponentUnderTest();
+        eutils.fetchAsync(DATABASE, SCRIPT, this.parameters);
+        eutils.dispose();
+
+        Assert.assertTrue(eutils.fetchAsync(DATABASE, SCRIPT, this.parameters).isCompletedExceptionally());
+        verify(this.cache).dispose();
+    }
+
+    private HttpResponse createResponse()
+    {
+        HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, this.status, "Status " + this.status);
+        response.setEntity(new StringEntity(BODY, StandardCharsets.UTF_8));
+        return response;
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.ncbieutils.internal;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests for the {@link TokenBucket} rate limiter.
+ *
+ * @version $Id$
+ */
+public class TokenBucketTest
+{
+    private static final long INTERVAL = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private long now = TimeUnit.SECONDS.toNanos(1000);
+
+    @Test
+    public void burstsUpToTheCapacityAreAllowedRightAway()
+    {
+        TokenBucket bucket = createBucket(10, 3);
+
+        Assert.assertEquals(0, bucket.tryReserve(0));
+        Assert.assertEquals(0, bucket.tryReserve(0));
+        Assert.assertEquals(0, bucket.tryReserve(0));
+        Assert.assertTrue(bucket.tryReserve(0) < 0);
+        Assert.assertEquals(INTERVAL, bucket.tryReserve(Long.MAX_VALUE));
+        Assert.assertEquals(2 * INTERVAL, bucket.tryReserve(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void rejectedReservationsDontTakeTokens()
+    {
+        TokenBucket bucket = createBucket(10, 1);
+
+        Assert.assertEquals(0, bucket.tryReserve(0));
+        Assert.assertTrue(bucket.tryReserve(INTERVAL - 1) < 0);
+        Assert.assertTrue(bucket.tryReserve(INTERVAL - 1) < 0);
+        Assert.assertEquals(INTERVAL, bucket.tryReserve(INTERVAL));
+        Assert.assertEquals(2 * INTERVAL, bucket.tryReserve(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void tokensAreAddedAtTheConfiguredRate()
+    {
+        TokenBucket bucket = createBucket(10, 1);
+
+        Assert.assertEquals(0, bucket.tryReserve(0));
+        this.now += INTERVAL / 2;
+        Assert.assertEquals(INTERVAL / 2, bucket.tryReserve(Long.MAX_VALUE));
+        this.now += INTERVAL / 2 + INTERVAL;
+        Assert.assertEquals(0, bucket.tryReserve(0));
+    }
+
+    @Test
+    public void tokensAccumulateOnlyUpToTheCapacityWhileIdle()
+    {
+        TokenBucket bucket = createBucket(10, 2);
+
+        Assert.assertEquals(0, bucket.tryReserve(0));
+        Assert.assertEquals(0, bucket.tryReserve(0));
+        this.now += TimeUnit.SECONDS.toNanos(10);
+        Assert.assertEquals(0, bucket.tryReserve(0));
+        Assert.assertEquals(0, bucket.tryReserve(0));
+        Assert.assertTrue(bucket.tryReserve(0) < 0);
+    }
+
+    @Test
+    public void atLeastOneTokenIsAlwaysAllowed()
+    {
+        TokenBucket bucket = createBucket(10, 0);
+
+        Assert.assertEquals(0, bucket.tryReserve(0));
+        Assert.assertTrue(bucket.tryReserve(0) < 0);
+    }
+
+    @Test
+    public void tryAcquireWaitsOnlyWithinTheLimit() throws InterruptedException
+    {
+        TokenBucket bucket = createBucket(10, 1);
+
+        Assert.assertTrue(bucket.tryAcquire(0));
+        Assert.assertFalse(bucket.tryAcquire(INTERVAL - 1));
+        long start = System.nanoTime();
+        Assert.assertTrue(bucket.tryAcquire(INTERVAL));
+        Assert.assertTrue(System.nanoTime() - start >= INTERVAL);
+    }
+
+    private TokenBucket createBucket(double permitsPerSecond, int capacity)
+    {
+        return new TokenBucket(permitsPerSecond, capacity, new LongSupplier()
+        {
+            @Override
+            public long getAsLong()
+            {
+                return TokenBucketTest.this.now;
+            }
+        });
+    }
+}
@@ -18,6 +18,9 @@
 package org.xwiki.platform.svg.internal;
 
 import org.xwiki.component.annotation.Component;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
+import org.xwiki.configuration.ConfigurationSource;
 import org.xwiki.container.Container;
 import org.xwiki.container.servlet.ServletResponse;
 import org.xwiki.environment.Environment;
@@ -54,11 +57,12 @@
  */
 @Component
 @Singleton
-public class DefaultSVGUtils implements SVGUtils
+public class DefaultSVGUtils implements SVGUtils, Initializable
 {
     private static final String TEMP_DIR_NAME = "svg";
 
-    private static final String RASTER_FILE_EXTENSION = ".png";
+    /** Default limit for the total size of the cached raster images, in megabytes. */
+    private static final long DEFAULT_CACHE_SIZE = 256;
 
     @Inject
     private Logger logger;
@@ -76,12 +80,25 @@ public class DefaultSVGUtils implements SVGUtils
     @Inject
     private Container container;
 
+    @Inject
+    @Named("xwikiproperties")
+    private ConfigurationSource configuration;
+
+    /** Content-addressed storage for the raster images. */
+    private RasterCache cache;
+
+    @Override
+    public void initialize() throws InitializationException
+    {
+        long maxSize = this.configuration.getProperty("phenotips.svg.rasterCacheSize", DEFAULT_CACHE_SIZE);
+        this.cache = new RasterCache(getBaseTempDir(), maxSize * 1024 * 1024);
+    }
+
     @Override
     public File rasterizeToTemporaryFile(String content, int width, int height) throws IOException
     {
-        File out = getTempFile(content.hashCode());
-        rasterizeToFile(content, out, width, height);
-        return out;
+        File out = new File(getBaseTempDir(), this.cache.getFileName(content, width, height));
+        return rasterizeToFile(content, out, width, height);
     }
 
     @Override
@@ -95,7 +112,7 @@ public TemporaryResourceReference rasterizeToTemporaryResource(String content, i
     public TemporaryResourceReference rasterizeToTemporaryResource(String content, int width, int height,
         DocumentReference targetContext) throws IOException
     {
-        File out = getContextTempFile(content.hashCode(), targetContext);
+        File out = new File(getTempDir(targetContext), this.cache.getFileName(content, width, height));
         rasterizeToFile(content, out, width, height);
         return new TemporaryResourceReference(TEMP_DIR_NAME, out.getName(), targetContext);
     }
@@ -115,21 +132,25 @@ public void rasterizeToResponse(String content, int width, int height) throws IO
         os.flush();
     }
 
-    private void rasterizeToFile(String content, File out, int width, int height) throws IOException
+    private File rasterizeToFile(final String content, File out, final int width, final int height)
+        throws IOException
     {
-        if (out.exists()) {
-            this.logger.debug("Reusing existing temporary raster image: {}", out.getAbsolutePath());
-            return;
-        }
-        try (OutputStream fout = new FileOutputStream(out)) {
-            this.logger.debug("Rasterizing to temp file: {}", out.getAbsolutePath());
-            TranscoderInput input = new TranscoderInput(new StringReader(content));
-            TranscoderOutput output = new TranscoderOutput(fout);
-            rasterize(input, output, width, height);
-        }
+        return this.cache.get(out, new RasterCache.Renderer()
+        {
+            @Override
+            public boolean render(File target) throws IOException
+            {
+                try (OutputStream fout = new FileOutputStream(target)) {
+                    DefaultSVGUtils.this.logger.debug("Rasterizing to temp file: {}", target.getAbsolutePath());
+                    TranscoderInput input = new TranscoderInput(new StringReader(content));
+                    TranscoderOutput output = new TranscoderOutput(fout);
+                    return rasterize(input, output, width, height);
+                }
+            }
+        });
     }
 
-    private void rasterize(TranscoderInput input, TranscoderOutput output, int width, int height)
+    private boolean rasterize(TranscoderInput input, TranscoderOutput output, int width, int height)
     {
         PNGTranscoder transcoder = new PNGTranscoder();
 
@@ -146,21 +167,13 @@ private void rasterize(TranscoderInput input, TranscoderOutput output, int width
 
         try {
             transcoder.transcode(input, output);
+            return true;
         } catch (TranscoderException ex) {
             this.logger.warn("Failed to rasterize SVG image: {}", ex.getMessage());
+            return false;
         }
     }
 
-    private File getTempFile(int hashcode)
-    {
-        return new File(getBaseTempDir(), Math.abs(hashcode) + RASTER_FILE_EXTENSION);
-    }
-
-    private File getContextTempFile(int hashcode, DocumentReference targetContext)
-    {
-        return new File(getTempDir(targetContext), Math.abs(hashcode) + RASTER_FILE_EXTENSION);
-    }
-
     private File getTempDir(DocumentReference targetContext)
     {
         File tempDir = getBaseTempDir();
@@ -0,0 +1,236 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.xwiki.platform.svg.internal;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps track of the raster images stored on disk: computes content-addressed file names, evicts the least recently
+ * used images when the total size of the cache exceeds a limit, and makes sure that concurrent requests for the same
+ * image only render it once.
+ *
+ * @version $Id$
+ * @since 1.4
+ */
+class RasterCache
+{
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private static final String RASTER_FILE_EXTENSION = ".png";
+
+    private final Logger logger = LoggerFactory.getLogger(RasterCache.class);
+
+    private final long maxSize;
+
+    /** Known files, in access order, with their size. */
+    private final Map<File, Long> files = new LinkedHashMap<>(16, 0.75f, true);
+
+    private final ConcurrentMap<File, FutureTask<File>> inFlight = new ConcurrentHashMap<>();
+
+    private long totalSize;
+
+    /**
+     * Constructor which indexes the images already present in the storage directory.
+     *
+     * @param directory the base directory where raster images are stored
+     * @param maxSize the maximum total size of the stored images, in bytes
+     */
+    RasterCache(File directory, long maxSize)
+    {
+        this.maxSize = maxSize;
+        if (directory.isDirectory()) {
+            List<File> existing = new ArrayList<>(FileUtils.listFiles(directory, new String[] { "png" }, true));
+            Collections.sort(existing, new Comparator<File>()
+            {
+                @Override
+                public int compare(File a, File b)
+                {
+                    return Long.compare(a.lastModified(), b.lastModified());
+                }
+            });
+            for (File file : existing) {
+                register(file);
+            }
+        }
+    }
+
+    /**
+     * Computes the name of the file holding the raster version of an image, based on a strong hash of its content and
+     * the requested size.
+     *
+     * @param content the SVG image
+     * @param width the requested width
+     * @param height the requested height
+     * @return a file name
+     */
+    String getFileName(String content, int width, int height)
+    {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(content.getBytes(StandardCharsets.UTF_8));
+            byte[] hash = digest.digest();
+            StringBuilder result = new StringBuilder(hash.length * 2 + 16);
+            for (byte b : hash) {
+                result.append(HEX_DIGITS[(b >> 4) & 0xF]).append(HEX_DIGITS[b & 0xF]);
+            }
+            result.append('-').append(Math.max(width, 0)).append('x').append(Math.max(height, 0));
+            return result.append(RASTER_FILE_EXTENSION).toString();
+        } catch (NoSuchAlgorithmException ex) {
+            // SHA-256 is always available
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Returns the requested file, rendering it if it doesn't exist yet. If the same file is already being rendered by
+     * another thread, waits for that rendering to finish instead of starting another one.
+     *
+     * @param out the target file
+     * @param renderer writes the image into the file it receives, returning {@code false} if rendering failed
+     * @return the target file
+     * @throws IOException if rendering fails
+     */
+    File get(final File out, final Renderer renderer) throws IOException
+    {
+        if (out.exists()) {
+            this.logger.debug("Reusing existing temporary raster image: {}", out.getAbsolutePath());
+            touch(out);
+            return out;
+        }
+
+        FutureTask<File> task = new FutureTask<>(new Callable<File>()
+        {
+            @Override
+            public File call() throws IOException
+            {
+                return render(out, renderer);
+            }
+        });
+        FutureTask<File> existing = this.inFlight.putIfAbsent(out, task);
+        if (existing == null) {
+            try {
+                task.run();
+            } finally {
+                this.inFlight.remove(out, task);
+            }
+            existing = task;
+        }
+        try {
+            return existing.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for image rasterization", ex);
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            throw new IOException(ex.getCause());
+        }
+    }
+
+    private File render(File out, Renderer renderer) throws IOException
+    {
+        if (out.exists()) {
+            // rendered by another thread while this one was checking
+            touch(out);
+            return out;
+        }
+        File parent = out.getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Cannot create temporary directory " + parent.getAbsolutePath());
+        }
+        // write into a different file first, so that readers never see a partial image
+        File partial = File.createTempFile(out.getName(), ".tmp", parent);
+        try {
+            if (!renderer.render(partial)) {
+                throw new IOException("Failed to rasterize SVG image");
+            }
+            if (!partial.renameTo(out)) {
+                FileUtils.copyFile(partial, out);
+            }
+        } finally {
+            FileUtils.deleteQuietly(partial);
+        }
+        register(out);
+        return out;
+    }
+
+    private synchronized void touch(File file)
+    {
+        if (this.files.get(file) == null) {
+            register(file);
+        }
+    }
+
+    private synchronized void register(File file)
+    {
+        long size = file.length();
+        Long previous = this.files.put(file, size);
+        this.totalSize += size - (previous == null ? 0 : previous);
+        evict();
+    }
+
+    private void evict()
+    {
+        Iterator<Map.Entry<File, Long>> it = this.files.entrySet().iterator();
+        // always keep the most recently used image, even if it is larger than the limit
+        while (this.totalSize > this.maxSize && this.files.size() > 1 && it.hasNext()) {
+            Map.Entry<File, Long> eldest = it.next();
+            if (this.inFlight.containsKey(eldest.getKey())) {
+                continue;
+            }
+            this.logger.debug("Evicting temporary raster image: {}", eldest.getKey().getAbsolutePath());
+            FileUtils.deleteQuietly(eldest.getKey());
+            this.totalSize -= eldest.getValue();
+            it.remove();
+        }
+    }
+
+    /**
+     * Writes a raster image into a file.
+     */
+    interface Renderer
+    {
+        /**
+         * @param out the file where the image must be written
+         * @return {@code true} if the image was successfully rendered, {@code false} otherwise
+         * @throws IOException if writing to the file fails
+         */
+        boolean render(File out) throws IOException;
+    }
+}
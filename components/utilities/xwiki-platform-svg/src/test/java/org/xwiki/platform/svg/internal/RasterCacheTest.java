@@ -0,0 +1,217 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.xwiki.platform.svg.internal;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests for the {@link RasterCache}.
+ *
+ * @version $Id$
+ */
+public class RasterCacheTest
+{
+    private static final String SVG = "<svg width=\"10\" height=\"10\"></svg>";
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private final AtomicInteger renders = new AtomicInteger();
+
+    @Test
+    public void fileNamesDependOnContentAndSize() throws IOException
+    {
+        RasterCache cache = new RasterCache(this.folder.getRoot(), 1000);
+        String name = cache.getFileName(SVG, 100, 0);
+
+        Assert.assertTrue(name.matches("[0-9a-f]{64}-100x0\\.png"));
+        Assert.assertEquals(name, cache.getFileName(SVG, 100, -5));
+        Assert.assertNotEquals(name, cache.getFileName(SVG, 100, 50));
+        Assert.assertNotEquals(name, cache.getFileName(SVG + " ", 100, 0));
+    }
+
+    @Test
+    public void imagesAreRenderedOnceAndReused() throws IOException
+    {
+        RasterCache cache = new RasterCache(this.folder.getRoot(), 1000);
+        File out = new File(this.folder.getRoot(), "a.png");
+
+        Assert.assertEquals(out, cache.get(out, new ContentRenderer("image")));
+        Assert.assertEquals(out, cache.get(out, new ContentRenderer("other")));
+
+        Assert.assertEquals(1, this.renders.get());
+        Assert.assertEquals("image", FileUtils.readFileToString(out, StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void leastRecentlyUsedImagesAreDeletedWhenTheSizeLimitIsExceeded() throws IOException
+    {
+        RasterCache cache = new RasterCache(this.folder.getRoot(), 25);
+        File first = cache.get(new File(this.folder.getRoot(), "1.png"), new ContentRenderer("1111111111"));
+        File second = cache.get(new File(this.folder.getRoot(), "2.png"), new ContentRenderer("2222222222"));
+        // the first image becomes the most recently used
+        cache.get(first, new ContentRenderer("unused"));
+        File third = cache.get(new File(this.folder.getRoot(), "3.png"), new ContentRenderer("3333333333"));
+
+        Assert.assertTrue(first.exists());
+        Assert.assertFalse(second.exists());
+        Assert.assertTrue(third.exists());
+    }
+
+    @Test
+    public void theMostRecentImageIsKeptEvenIfLargerThanTheLimit() throws IOException
+    {
+        RasterCache cache = new RasterCache(this.folder.getRoot(), 5);
+        File small = cache.get(new File(this.folder.getRoot(), "1.png"), new ContentRenderer("111"));
+        File large = cache.get(new File(this.folder.getRoot(), "2.png"), new ContentRenderer("2222222222"));
+
+        Assert.assertFalse(small.exists());
+        Assert.assertTrue(large.exists());
+    }
+
+    @Test
+    public void existingImagesAreIndexedOldestFirst() throws IOException
+    {
+        File old = this.folder.newFile("old.png");
+        FileUtils.writeStringToFile(old, "1111111111", StandardCharsets.UTF_8);
+        Assert.assertTrue(old.setLastModified(System.currentTimeMillis() - 60000));
+        File recent = this.folder.newFile("recent.png");
+        FileUtils.writeStringToFile(recent, "2222222222", StandardCharsets.UTF_8);
+
+        RasterCache cache = new RasterCache(this.folder.getRoot(), 25);
+        cache.get(new File(this.folder.getRoot(), "new.png"), new ContentRenderer("3333333333"));
+
+        Assert.assertFalse(old.exists());
+        Assert.assertTrue(recent.exists());
+    }
+
+    @Test
+    public void failedRenderingsLeaveNoFiles() throws IOException
+    {
+        RasterCache cache = new RasterCache(this.folder.getRoot(), 1000);
+        File out = new File(this.folder.getRoot(), "sub/failed.png");
+        try {
+            cache.get(out, new RasterCache.Renderer()
+            {
+                @Override
+                public boolean render(File partial) throws IOException
+                {
+                    FileUtils.writeStringToFile(partial, "partial", StandardCharsets.UTF_8);
+                    return false;
+                }
+            });
+            Assert.fail("Failed renderings should throw an exception");
+        } catch (IOException ex) {
+            Assert.assertEquals("Failed to rasterize SVG image", ex.getMessage());
+        }
+
+        Assert.assertFalse(out.exists());
+        Assert.assertEquals(0, out.getParentFile().list().length);
+        // a later request tries again
+        cache.get(out, new ContentRenderer("image"));
+        Assert.assertTrue(out.exists());
+    }
+
+    @Test
+    public void concurrentRequestsForTheSameImageRenderItOnce() throws Exception
+    {
+        final RasterCache cache = new RasterCache(this.folder.getRoot(), 1000);
+        final File out = new File(this.folder.getRoot(), "shared.png");
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final RasterCache.Renderer slowRenderer = new RasterCache.Renderer()
+        {
+            @Override
+            public boolean render(File partial) throws IOException
+            {
+                RasterCacheTest.this.renders.incrementAndGet();
+                started.countDown();
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+                FileUtils.writeStringToFile(partial, "image", StandardCharsets.UTF_8);
+                return true;
+            }
+        };
+
+        ExecutorService threads = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<File>> results = new ArrayList<>();
+            for (int i = 0; i < 4; ++i) {
+                results.add(threads.submit(new Callable<File>()
+                {
+                    @Override
+                    public File call() throws IOException
+                    {
+                        return cache.get(out, slowRenderer);
+                    }
+                }));
+            }
+            Assert.assertTrue(started.await(5, TimeUnit.SECONDS));
+            // give the other requests time to find the rendering in progress
+            Thread.sleep(100);
+            release.countDown();
+            for (Future<File> result : results) {
+                Assert.assertEquals(out, result.get(5, TimeUnit.SECONDS));
+            }
+        } finally {
+            threads.shutdownNow();
+        }
+        Assert.assertEquals(1, this.renders.get());
+    }
+
+    /**
+     * Writes a fixed content, counting the renderings.
+     */
+    private final class ContentRenderer implements RasterCache.Renderer
+    {
+        private final String content;
+
+        ContentRenderer(String content)
+        {
+            this.content = content;
+        }
+
+        @Override
+        public boolean render(File out) throws IOException
+        {
+            RasterCacheTest.this.renders.incrementAndGet();
+            FileUtils.writeStringToFile(out, this.content, StandardCharsets.UTF_8);
+            return true;
+        }
+    }
+}
@@ -21,6 +21,7 @@
 import org.xwiki.stability.Unstable;
 
 import org.apache.solr.core.CoreContainer;
+import org.apache.solr.core.SolrCore;
 
 /**
  * Provides access to the configured Solr instance.
@@ -38,4 +39,15 @@
      * @return a loaded core container instance
      */
     CoreContainer getContainer();
+
+    /**
+     * Gets a Solr core, opening it if it isn't already loaded. Cores are opened on demand, so the first call for a core
+     * may take a while; the time it took is reported in the logs.
+     *
+     * @param name the name of the core
+     * @return the requested core, which must be {@link SolrCore#close() closed} once no longer needed, or {@code null}
+     *         if there's no such core
+     * @since 1.4
+     */
+    SolrCore getCore(String name);
 }
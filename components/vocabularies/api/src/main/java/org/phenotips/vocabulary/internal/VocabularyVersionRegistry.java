@@ -0,0 +1,151 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.vocabulary.internal;
+
+import org.phenotips.vocabulary.Vocabulary;
+
+import org.xwiki.component.annotation.Component;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+import javax.inject.Inject;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * Remembers the version of each vocabulary, since querying it requires a search in the vocabulary index, or even a
+ * request to a remote server. The versions are read from the vocabularies the first time they are needed, and the
+ * version of a vocabulary is read again after it is reindexed, as signaled by {@link VocabularyVersionRegistryUpdater},
+ * or once it is older than {@link #TIME_TO_LIVE}, since remote vocabularies change without being reindexed locally.
+ * Missing versions are not remembered, so a vocabulary which couldn't report its version, for example because its
+ * server was down or its index was still empty, is queried again the next time. Reading the known versions doesn't
+ * require any locking.
+ *
+ * @version $Id$
+ * @since 1.4
+ */
+@Component(roles = VocabularyVersionRegistry.class)
+@Singleton
+public class VocabularyVersionRegistry
+{
+    /** For how long a known version is used before reading it again, in nanoseconds. */
+    private static final long TIME_TO_LIVE = TimeUnit.HOURS.toNanos(1);
+
+    /** Provides all the available vocabularies, indexed by their component hint. */
+    @Inject
+    private Provider<Map<String, Vocabulary>> vocabularies;
+
+    /** The known versions, keyed by the component hint of the vocabulary. */
+    private final ConcurrentMap<String, KnownVersion> versions = new ConcurrentHashMap<>();
+
+    /** Incremented after each reindex, so that versions read before the reindex finished are not kept. */
+    private final AtomicLong generation = new AtomicLong();
+
+    /** The time source, in nanoseconds. */
+    private LongSupplier clock = new LongSupplier()
+    {
+        @Override
+        public long getAsLong()
+        {
+            return System.nanoTime();
+        }
+    };
+
+    /**
+     * Get the version of each vocabulary.
+     *
+     * @return an unmodifiable map with the component hints of vocabularies as keys, and their versions as values;
+     *         vocabularies without a version are not included
+     */
+    public Map<String, String> getVersions()
+    {
+        Map<String, String> result = new HashMap<>();
+        for (Map.Entry<String, Vocabulary> vocabulary : this.vocabularies.get().entrySet()) {
+            KnownVersion known = this.versions.get(vocabulary.getKey());
+            if (known == null || this.clock.getAsLong() - known.readTime > TIME_TO_LIVE) {
+                known = readVersion(vocabulary.getKey(), vocabulary.getValue());
+            }
+            if (known != null) {
+                result.put(vocabulary.getKey(), known.version);
+            }
+        }
+        return Collections.unmodifiableMap(result);
+    }
+
+    /**
+     * Read again the version of a vocabulary, for example after it was reindexed. The version is read the next time it
+     * is needed.
+     *
+     * @param vocabulary the vocabulary whose version may have changed
+     */
+    public synchronized void refresh(Vocabulary vocabulary)
+    {
+        this.generation.incrementAndGet();
+        for (Map.Entry<String, Vocabulary> candidate : this.vocabularies.get().entrySet()) {
+            if (candidate.getValue() == vocabulary) {
+                this.versions.remove(candidate.getKey());
+            }
+        }
+    }
+
+    /**
+     * Reads the version of a vocabulary and remembers it, unless it is missing, or the vocabulary was reindexed while
+     * reading it.
+     *
+     * @return the version read, or {@code null} if the vocabulary doesn't have a version
+     */
+    private KnownVersion readVersion(String name, Vocabulary vocabulary)
+    {
+        long expectedGeneration = this.generation.get();
+        String version = vocabulary.getVersion();
+        if (StringUtils.isBlank(version)) {
+            this.versions.remove(name);
+            return null;
+        }
+        KnownVersion result = new KnownVersion(version, this.clock.getAsLong());
+        synchronized (this) {
+            if (expectedGeneration == this.generation.get()) {
+                this.versions.put(name, result);
+            }
+        }
+        return result;
+    }
+
+    /** A version, along with the moment when it was read. */
+    private static final class KnownVersion
+    {
+        private final String version;
+
+        private final long readTime;
+
+        KnownVersion(String version, long readTime)
+        {
+            this.version = version;
+            this.readTime = readTime;
+        }
+    }
+}
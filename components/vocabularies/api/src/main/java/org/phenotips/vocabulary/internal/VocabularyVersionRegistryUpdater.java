@@ -0,0 +1,76 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.vocabulary.internal;
+
+import org.phenotips.vocabulary.Vocabulary;
+import org.phenotips.vocabulary.VocabularyExtension;
+import org.phenotips.vocabulary.VocabularyInputTerm;
+
+import org.xwiki.component.annotation.Component;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.apache.solr.client.solrj.SolrQuery;
+
+/**
+ * Updates the {@link VocabularyVersionRegistry} after a vocabulary is reindexed. Terms and queries are not altered in
+ * any way.
+ *
+ * @version $Id$
+ * @since 1.4
+ */
+@Component
+@Named("vocabulary-version-registry-updater")
+@Singleton
+public class VocabularyVersionRegistryUpdater implements VocabularyExtension
+{
+    @Inject
+    private VocabularyVersionRegistry registry;
+
+    @Override
+    public boolean isVocabularySupported(Vocabulary vocabulary)
+    {
+        return true;
+    }
+
+    @Override
+    public void indexingStarted(Vocabulary vocabulary)
+    {
+        // Nothing to do
+    }
+
+    @Override
+    public void extendTerm(VocabularyInputTerm term, Vocabulary vocabulary)
+    {
+        // Nothing to do
+    }
+
+    @Override
+    public void indexingEnded(Vocabulary vocabulary)
+    {
+        this.registry.refresh(vocabulary);
+    }
+
+    @Override
+    public void extendQuery(SolrQuery query, Vocabulary vocabulary)
+    {
+        // Nothing to do
+    }
+}
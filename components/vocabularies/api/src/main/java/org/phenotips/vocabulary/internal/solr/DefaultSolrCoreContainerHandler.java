@@ -23,37 +23,113 @@
 import org.xwiki.component.manager.ComponentLifecycleException;
 import org.xwiki.component.phase.Disposable;
 import org.xwiki.component.phase.Initializable;
+import org.xwiki.configuration.ConfigurationSource;
 import org.xwiki.environment.Environment;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
 
+import org.apache.commons.lang3.StringUtils;
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.embedded.EmbeddedSolrServer;
 import org.apache.solr.core.CoreContainer;
+import org.apache.solr.core.CoreDescriptor;
+import org.apache.solr.core.SolrCore;
+import org.apache.solr.search.SolrIndexSearcher;
+import org.apache.solr.util.RefCounted;
+import org.slf4j.Logger;
 
 /**
  * Default implementation of {@link SolrCoreContainerHandler}, looking for the Solr configuration in a subdirectory of
  * the permanent directory called {@code solr}.
+ * <p>
+ * Opening a core is expensive, and most vocabularies are only needed once a user starts working with patient records,
+ * so cores which don't explicitly ask to be {@code loadOnStartup} are only registered when the container is loaded, and
+ * opened the first time they are needed. This is done by adding {@code loadOnStartup=false} to their
+ * {@code core.properties}, after a marker comment, so that the change is undone when the
+ * {@code phenotips.solr.lazyCores} setting is {@code false}. Cores listed in the {@code phenotips.solr.prewarm} setting
+ * (or all of them, if the setting is {@code *}) are opened in the background right after startup, and a warm-up query
+ * is run against each of them. How long each core took to open, along with its size, is logged.
+ * </p>
  *
  * @version $Id$
  * @since 1.2M4 (under a different package since 1.0M13)
  */
 @Component
+@Singleton
 public class DefaultSolrCoreContainerHandler implements SolrCoreContainerHandler, Initializable, Disposable
 {
+    private static final String PREFIX = "phenotips.solr.";
+
+    private static final String CORE_PROPERTIES = "core.properties";
+
+    private static final String ALL_CORES = "*";
+
+    /** Precedes the lines added to {@code core.properties} files, so that they can be removed when no longer wanted. */
+    private static final String LAZY_MARKER = "# Added by PhenoTips, removed when phenotips.solr.lazyCores is false";
+
+    private static final String LAZY_PROPERTY = CoreDescriptor.CORE_LOADONSTARTUP + "=false";
+
+    private static final double MEGABYTE = 1024 * 1024;
+
+    @Inject
+    private Logger logger;
+
     /** Provides access to the configured permanent directory. */
     @Inject
     private Environment environment;
 
+    @Inject
+    @Named("xwikiproperties")
+    private ConfigurationSource configuration;
+
     /** The initialized core container. */
     private CoreContainer cores;
 
+    /** How long it took to open each core, and how big it is, in the order of the core names. */
+    private final Map<String, String> openedCores = new ConcurrentSkipListMap<>();
+
+    /** Opens and warms up the configured cores after startup, {@code null} if no core should be prewarmed. */
+    private ExecutorService prewarmer;
+
     @Override
     public void initialize()
     {
         File solrHome = new File(this.environment.getPermanentDirectory().getAbsolutePath(), "solr");
-        this.cores = new CoreContainer(solrHome.getAbsolutePath());
+        updateLazyLoading(solrHome, this.configuration.getProperty(PREFIX + "lazyCores", true));
+
+        long start = System.nanoTime();
+        this.cores = createContainer(solrHome);
         this.cores.load();
+        Collection<String> loaded = this.cores.getCoreNames();
+        Set<String> lazy = new LinkedHashSet<>(this.cores.getAllCoreNames());
+        lazy.removeAll(loaded);
+        this.logger.info("Loaded the Solr core container in [{}] ms; cores opened at startup: {}, on demand: {}",
+            TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), loaded, lazy);
+
+        prewarm(lazy);
     }
 
     @Override
@@ -62,9 +138,208 @@ public CoreContainer getContainer()
         return this.cores;
     }
 
+    @Override
+    public SolrCore getCore(String name)
+    {
+        boolean loaded = this.cores.isLoaded(name);
+        long start = System.nanoTime();
+        SolrCore core = this.cores.getCore(name);
+        if (core != null && !loaded && !this.openedCores.containsKey(name)) {
+            report(core, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        }
+        return core;
+    }
+
     @Override
     public void dispose() throws ComponentLifecycleException
     {
+        if (this.prewarmer != null) {
+            this.prewarmer.shutdownNow();
+        }
         this.cores.shutdown();
     }
+
+    /**
+     * Creates the core container; the cores are only discovered when the container is {@link CoreContainer#load()
+     * loaded}.
+     *
+     * @param solrHome the Solr home directory
+     * @return a new core container
+     */
+    CoreContainer createContainer(File solrHome)
+    {
+        return new CoreContainer(solrHome.getAbsolutePath());
+    }
+
+    /**
+     * Adds {@code loadOnStartup=false}, preceded by a {@link #LAZY_MARKER marker comment}, to the
+     * {@code core.properties} file of each core that doesn't explicitly say whether it should be opened at startup or
+     * not, or, when lazy loading is disabled, removes the lines previously added. Values set by administrators are
+     * never changed.
+     *
+     * @param solrHome the Solr home directory, holding one subdirectory for each core
+     * @param lazy whether cores should be opened on demand
+     */
+    private void updateLazyLoading(File solrHome, boolean lazy)
+    {
+        File[] coreDirectories = solrHome.listFiles();
+        if (coreDirectories == null) {
+            return;
+        }
+        for (File coreDirectory : coreDirectories) {
+            Path coreProperties = new File(coreDirectory, CORE_PROPERTIES).toPath();
+            if (!Files.isRegularFile(coreProperties)) {
+                continue;
+            }
+            try {
+                List<String> lines = Files.readAllLines(coreProperties, StandardCharsets.ISO_8859_1);
+                int marker = lines.indexOf(LAZY_MARKER);
+                if (lazy && marker < 0 && !isLoadOnStartupSet(lines)) {
+                    lines.add(LAZY_MARKER);
+                    lines.add(LAZY_PROPERTY);
+                } else if (!lazy && marker >= 0) {
+                    lines.remove(marker);
+                    if (marker < lines.size() && LAZY_PROPERTY.equals(lines.get(marker))) {
+                        lines.remove(marker);
+                    }
+                } else {
+                    continue;
+                }
+                Files.write(coreProperties, lines, StandardCharsets.ISO_8859_1);
+            } catch (IOException ex) {
+                this.logger.warn("Failed to update the lazy loading setting of the Solr core [{}]: {}",
+                    coreDirectory.getName(), ex.getMessage());
+            }
+        }
+    }
+
+    private boolean isLoadOnStartupSet(List<String> lines) throws IOException
+    {
+        Properties properties = new Properties();
+        properties.load(new StringReader(StringUtils.join(lines, '\n')));
+        return properties.containsKey(CoreDescriptor.CORE_LOADONSTARTUP);
+    }
+
+    /**
+     * Opens and warms up the cores listed in the {@code phenotips.solr.prewarm} setting, in the background.
+     *
+     * @param lazyCores the cores which aren't opened yet
+     */
+    private void prewarm(Collection<String> lazyCores)
+    {
+        String setting = StringUtils.trim(this.configuration.getProperty(PREFIX + "prewarm", ""));
+        final List<String> targets = new ArrayList<>();
+        if (ALL_CORES.equals(setting)) {
+            targets.addAll(lazyCores);
+        } else {
+            for (String name : StringUtils.split(StringUtils.defaultString(setting), ", ")) {
+                if (lazyCores.contains(name)) {
+                    targets.add(name);
+                }
+            }
+        }
+        if (targets.isEmpty()) {
+            return;
+        }
+
+        final String query = this.configuration.getProperty(PREFIX + "warmupQuery", "*:*");
+        final List<Callable<Void>> tasks = new ArrayList<>(targets.size());
+        for (final String name : targets) {
+            tasks.add(new Callable<Void>()
+            {
+                @Override
+                public Void call()
+                {
+                    warmUp(name, query);
+                    return null;
+                }
+            });
+        }
+
+        int threads = Math.max(1, this.configuration.getProperty(PREFIX + "prewarmThreads", 2));
+        this.prewarmer = Executors.newFixedThreadPool(Math.min(threads, targets.size()), new PrewarmThreadFactory());
+        Thread coordinator = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                long start = System.nanoTime();
+                try {
+                    DefaultSolrCoreContainerHandler.this.prewarmer.invokeAll(tasks);
+                    logReport(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    DefaultSolrCoreContainerHandler.this.prewarmer.shutdown();
+                }
+            }
+        }, "PhenoTips Solr prewarming");
+        coordinator.setDaemon(true);
+        coordinator.setPriority(Thread.MIN_PRIORITY);
+        coordinator.start();
+    }
+
+    private void warmUp(String name, String query)
+    {
+        SolrCore core = getCore(name);
+        if (core == null) {
+            return;
+        }
+        try {
+            // Don't close the server, that would shut down the whole container
+            new EmbeddedSolrServer(this.cores, name).query(new SolrQuery(query).setRows(10));
+        } catch (Exception ex) {
+            this.logger.warn("Failed to warm up the Solr core [{}]: {}", name, ex.getMessage());
+        } finally {
+            core.close();
+        }
+    }
+
+    private void report(SolrCore core, long openTime)
+    {
+        long documents = -1;
+        RefCounted<SolrIndexSearcher> searcher = null;
+        try {
+            searcher = core.getSearcher();
+            documents = searcher.get().numDocs();
+        } catch (Exception ex) {
+            this.logger.debug("Failed to count the documents in the Solr core [{}]: {}", core.getName(),
+                ex.getMessage());
+        } finally {
+            if (searcher != null) {
+                searcher.decref();
+            }
+        }
+        Runtime runtime = Runtime.getRuntime();
+        String description = String.format("opened in %d ms, %d documents, %.1f MB on disk, %.1f MB heap in use"
+            + " afterwards", openTime, documents, core.getIndexSize() / MEGABYTE,
+            (runtime.totalMemory() - runtime.freeMemory()) / MEGABYTE);
+        if (this.openedCores.putIfAbsent(core.getName(), description) == null) {
+            this.logger.info("Solr core [{}] {}", core.getName(), description);
+        }
+    }
+
+    private void logReport(long totalTime)
+    {
+        StringBuilder report = new StringBuilder();
+        for (Map.Entry<String, String> entry : this.openedCores.entrySet()) {
+            report.append(System.lineSeparator()).append("  ").append(entry.getKey()).append(": ")
+                .append(entry.getValue());
+        }
+        this.logger.info("Prewarmed the Solr cores in [{}] ms:{}", totalTime, report);
+    }
+
+    private static final class PrewarmThreadFactory implements ThreadFactory
+    {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable task)
+        {
+            Thread thread = new Thread(task, "PhenoTips Solr prewarming " + this.count.incrementAndGet());
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        }
+    }
 }
@@ -37,9 +37,11 @@
 import java.nio.file.StandardCopyOption;
 import java.util.Arrays;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
 
 import javax.inject.Inject;
 import javax.inject.Singleton;
@@ -47,10 +49,14 @@
 import org.apache.solr.client.solrj.SolrClient;
 import org.apache.solr.client.solrj.embedded.EmbeddedSolrServer;
 import org.apache.solr.core.CoreContainer;
+import org.apache.solr.core.CoreDescriptor;
 import org.apache.solr.core.SolrCore;
+import org.slf4j.Logger;
 
 /**
- * Default implementation for the {@link SolrVocabularyResourceManager} component.
+ * Default implementation for the {@link SolrVocabularyResourceManager} component. The resources of a vocabulary are
+ * set up the first time they are requested, only once even if several requests need them at the same time; the
+ * version of the core is read from its descriptor, so that the core is only opened once it is actually needed.
  *
  * @version $Id$
  * @since 1.2M4 (under different names since 1.0M10)
@@ -64,11 +70,11 @@ public class DefaultSolrVocabularyResourceManager implements SolrVocabularyResou
         "/conf/solrcore.properties", "/conf/protwords.txt", "/conf/stopwords.txt", "/conf/synonyms.txt",
         "/conf/managed-schema.xml", "/core.properties");
 
-    /** @see #getSolrConnection() */
-    private Map<String, SolrClient> cores = new HashMap<>();
+    /** The Solr client and the term cache of each vocabulary, set up when first requested. */
+    private final ConcurrentMap<String, CompletableFuture<VocabularyResources>> resources = new ConcurrentHashMap<>();
 
-    /** @see #getTermCache() */
-    private Map<String, Cache<VocabularyTerm>> caches = new HashMap<>();
+    @Inject
+    private Logger logger;
 
     /** Provides access to the Solr cores. */
     @Inject
@@ -84,17 +90,20 @@ public class DefaultSolrVocabularyResourceManager implements SolrVocabularyResou
     @Inject
     private DistributionManager distribution;
 
-    private void initialize(String vocabularyName) throws InitializationException
+    private VocabularyResources initialize(String vocabularyName) throws InitializationException
     {
         CoreContainer container = this.coreContainer.getContainer();
-        SolrCore solrCore = container.getCore(vocabularyName);
+        // Only look at the descriptor, this doesn't open the core
+        CoreDescriptor descriptor = container.getCoreDescriptor(vocabularyName);
 
         String phenotipsCoreVersion =
-            (solrCore != null) ? solrCore.getCoreDescriptor().getCoreProperty("phenotips.version", "") : "";
+            (descriptor != null) ? descriptor.getCoreProperty("phenotips.version", "") : "";
 
         try {
             String phenotipsVersion = this.distribution.getDistributionExtension().getId().getVersion().toString();
 
+            boolean configurationUpdated = false;
+
             // Check if the core version differs from phenotips version
             if (!phenotipsVersion.equals(phenotipsCoreVersion)) {
 
@@ -110,54 +119,100 @@ private void initialize(String vocabularyName) throws InitializationException
                     }
                     Files.copy(in, dest.toPath().resolve(vocabularyName + file), StandardCopyOption.REPLACE_EXISTING);
                 }
-                if (solrCore != null) {
-                    container.reload(vocabularyName);
-                } else {
+                if (descriptor == null) {
                     // container.create will fail if core.properties is already there, so we temporarily delete it
                     // FIXME We should first read the properties file as a map and pass it to container.create
                     Files.delete(dest.toPath().resolve(vocabularyName + "/core.properties"));
-                    container.create(vocabularyName, Collections.<String, String>emptyMap());
+                    container.create(vocabularyName,
+                        Collections.singletonMap(CoreDescriptor.CORE_LOADONSTARTUP, "false"));
+                } else {
+                    configurationUpdated = true;
+                }
+            }
+
+            // Open the core now, through the handler, so that the time it takes is reported; this waits for the core
+            // to finish opening if it is being opened concurrently, for example by the prewarming threads
+            SolrCore solrCore = this.coreContainer.getCore(vocabularyName);
+            if (solrCore != null) {
+                try {
+                    if (configurationUpdated) {
+                        // The core may have been opened by a prewarming thread while the files were being copied,
+                        // reading the old configuration, so a reload is needed even if we just opened it ourselves
+                        container.reload(vocabularyName);
+                    }
+                } finally {
+                    solrCore.close();
                 }
             }
 
             SolrClient core = new EmbeddedSolrServer(container, vocabularyName);
-            this.cores.put(vocabularyName, core);
             Cache<VocabularyTerm> cache = this.cacheFactory.createNewLocalCache(new CacheConfiguration());
-            this.caches.put(vocabularyName, cache);
+            return new VocabularyResources(core, cache);
         } catch (final CacheException ex) {
             throw new InitializationException("Cannot create cache: " + ex.getMessage(), ex);
         } catch (IOException ex) {
             throw new InitializationException("Invalid Solr resource: " + ex.getMessage(), ex);
-        } finally {
-            if (solrCore != null) {
-                solrCore.close();
-            }
         }
     }
 
     @Override
     public Cache<VocabularyTerm> getTermCache(String vocabularyId)
     {
-        if (!this.caches.containsKey(vocabularyId)) {
-            try {
-                initialize(vocabularyId);
-            } catch (InitializationException ex) {
-                return null;
-            }
-        }
-        return this.caches.get(vocabularyId);
+        VocabularyResources result = getResources(vocabularyId);
+        return result == null ? null : result.cache;
     }
 
     @Override
     public SolrClient getSolrConnection(String vocabularyId)
     {
-        if (!this.cores.containsKey(vocabularyId)) {
-            try {
-                initialize(vocabularyId);
-            } catch (InitializationException ex) {
-                return null;
+        VocabularyResources result = getResources(vocabularyId);
+        return result == null ? null : result.client;
+    }
+
+    private VocabularyResources getResources(String vocabularyId)
+    {
+        CompletableFuture<VocabularyResources> cached = this.resources.get(vocabularyId);
+        if (cached == null) {
+            CompletableFuture<VocabularyResources> loading = new CompletableFuture<>();
+            cached = this.resources.putIfAbsent(vocabularyId, loading);
+            if (cached == null) {
+                VocabularyResources result = null;
+                try {
+                    result = initialize(vocabularyId);
+                } catch (InitializationException ex) {
+                    this.logger.warn("Failed to set up the vocabulary [{}]: {}", vocabularyId, ex.getMessage());
+                } finally {
+                    loading.complete(result);
+                    if (result == null) {
+                        // Don't remember failures, try again next time
+                        this.resources.remove(vocabularyId, loading);
+                    }
+                }
+                return result;
             }
         }
-        return this.cores.get(vocabularyId);
+        try {
+            return cached.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            this.logger.warn("Interrupted while waiting for the vocabulary [{}] to be set up", vocabularyId);
+        } catch (ExecutionException ex) {
+            this.logger.warn("Failed to set up the vocabulary [{}]: {}", vocabularyId, ex.getMessage());
+        }
+        return null;
+    }
+
+    /** The resources needed by a vocabulary. */
+    private static final class VocabularyResources
+    {
+        private final SolrClient client;
+
+        private final Cache<VocabularyTerm> cache;
+
+        VocabularyResources(SolrClient client, Cache<VocabularyTerm> cache)
+        {
+            this.client = client;
+            this.cache = cache;
+        }
     }
 }
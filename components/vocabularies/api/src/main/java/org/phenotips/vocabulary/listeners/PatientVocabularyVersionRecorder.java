@@ -20,7 +20,7 @@
 import org.phenotips.Constants;
 import org.phenotips.data.Patient;
 import org.phenotips.data.events.PatientChangingEvent;
-import org.phenotips.vocabulary.Vocabulary;
+import org.phenotips.vocabulary.internal.VocabularyVersionRegistry;
 
 import org.xwiki.component.annotation.Component;
 import org.xwiki.context.Execution;
@@ -31,15 +31,13 @@
 
 import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
-import java.util.Map.Entry;
 
 import javax.inject.Inject;
 import javax.inject.Named;
 import javax.inject.Singleton;
 
-import org.apache.commons.lang3.StringUtils;
-
 import com.xpn.xwiki.XWikiContext;
 import com.xpn.xwiki.XWikiException;
 import com.xpn.xwiki.doc.XWikiDocument;
@@ -64,9 +62,9 @@ public class PatientVocabularyVersionRecorder extends AbstractEventListener
 
     private static final String VERSION_FIELD = "version";
 
-    /** Access to services that are needed to get the vocabulary version. */
+    /** Provides the version of each vocabulary, without querying the vocabularies on every save. */
     @Inject
-    private Map<String, Vocabulary> ontologies;
+    private VocabularyVersionRegistry versions;
 
     @Inject
     private Execution execution;
@@ -88,28 +86,23 @@ public void onEvent(Event event, Object source, Object data)
             return;
         }
 
-        List<BaseObject> existingVersionObjects = doc.getXObjects(VERSION_RECORDER_REFERENCE);
+        Map<String, BaseObject> existingVersionObjects = new HashMap<>();
+        List<BaseObject> versionObjects = doc.getXObjects(VERSION_RECORDER_REFERENCE);
+        if (versionObjects != null) {
+            for (BaseObject versionObject : versionObjects) {
+                String name = versionObject == null ? null : versionObject.getStringValue(NAME_FIELD);
+                if (name != null && !existingVersionObjects.containsKey(name.toLowerCase(Locale.ROOT))) {
+                    existingVersionObjects.put(name.toLowerCase(Locale.ROOT), versionObject);
+                }
+            }
+        }
         try {
-            for (Map.Entry<String, String> versionType : this.getOntologiesVersions().entrySet()) {
-                boolean skip = false;
-                if (existingVersionObjects != null) {
-                    for (BaseObject existingVersionObject : existingVersionObjects) {
-                        if (existingVersionObject == null) {
-                            continue;
-                        }
-                        String name = existingVersionObject.getStringValue(NAME_FIELD);
-                        if (StringUtils.equalsIgnoreCase(name, versionType.getKey())) {
-                            existingVersionObject.set(VERSION_FIELD, versionType.getValue(), context);
-                            skip = true;
-                            break;
-                        }
-                    }
-                    if (skip) {
-                        continue;
-                    }
+            for (Map.Entry<String, String> versionType : this.versions.getVersions().entrySet()) {
+                BaseObject versionObject = existingVersionObjects.get(versionType.getKey().toLowerCase(Locale.ROOT));
+                if (versionObject == null) {
+                    versionObject = doc.newXObject(VERSION_RECORDER_REFERENCE, context);
+                    versionObject.set(NAME_FIELD, versionType.getKey(), context);
                 }
-                BaseObject versionObject = doc.newXObject(VERSION_RECORDER_REFERENCE, context);
-                versionObject.set(NAME_FIELD, versionType.getKey(), context);
                 versionObject.set(VERSION_FIELD, versionType.getValue(), context);
             }
         } catch (XWikiException ex) {
@@ -124,14 +117,6 @@ public void onEvent(Event event, Object source, Object data)
      */
     public Map<String, String> getOntologiesVersions()
     {
-        Map<String, String> result = new HashMap<>();
-
-        for (Entry<String, Vocabulary> ontology : this.ontologies.entrySet()) {
-            String version = ontology.getValue().getVersion();
-            if (StringUtils.isNotBlank(version)) {
-                result.put(ontology.getKey(), version);
-            }
-        }
-        return result;
+        return new HashMap<>(this.versions.getVersions());
     }
 }
@@ -0,0 +1,146 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.vocabulary.internal;
+
+import org.phenotips.vocabulary.Vocabulary;
+
+import org.xwiki.component.util.DefaultParameterizedType;
+import org.xwiki.component.util.ReflectionUtils;
+import org.xwiki.test.mockito.MockitoComponentMockingRule;
+
+import java.lang.reflect.ParameterizedType;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+import javax.inject.Provider;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests for the {@link VocabularyVersionRegistry} component.
+ *
+ * @version $Id$
+ */
+public class VocabularyVersionRegistryTest
+{
+    @Rule
+    public final MockitoComponentMockingRule<VocabularyVersionRegistry> mocker =
+        new MockitoComponentMockingRule<VocabularyVersionRegistry>(VocabularyVersionRegistry.class);
+
+    private final Vocabulary hpo = mock(Vocabulary.class);
+
+    private final Vocabulary omim = mock(Vocabulary.class);
+
+    private final Vocabulary unversioned = mock(Vocabulary.class);
+
+    @Before
+    public void setup() throws Exception
+    {
+        Map<String, Vocabulary> vocabularies = new HashMap<>();
+        vocabularies.put("hpo", this.hpo);
+        vocabularies.put("omim", this.omim);
+        vocabularies.put("other", this.unversioned);
+        @SuppressWarnings("unchecked")
+        Provider<Map<String, Vocabulary>> provider = mock(Provider.class);
+        when(provider.get()).thenReturn(vocabularies);
+        ParameterizedType mapType = new DefaultParameterizedType(null, Map.class, String.class, Vocabulary.class);
+        this.mocker.registerComponent(new DefaultParameterizedType(null, Provider.class, mapType), provider);
+
+        when(this.hpo.getVersion()).thenReturn("2017-01-01");
+        when(this.omim.getVersion()).thenReturn("2017-02-02");
+    }
+
+    @Test
+    public void versionsAreQueriedOnce() throws Exception
+    {
+        VocabularyVersionRegistry registry = this.mocker.getComponentUnderTest();
+        Map<String, String> expected = new HashMap<>();
+        expected.put("hpo", "2017-01-01");
+        expected.put("omim", "2017-02-02");
+        Assert.assertEquals(expected, registry.getVersions());
+        Assert.assertEquals(expected, registry.getVersions());
+
+        verify(this.hpo, times(1)).getVersion();
+        verify(this.omim, times(1)).getVersion();
+    }
+
+    @Test
+    public void onlyTheReindexedVocabularyIsQueriedAgain() throws Exception
+    {
+        VocabularyVersionRegistry registry = this.mocker.getComponentUnderTest();
+        registry.getVersions();
+        when(this.hpo.getVersion()).thenReturn("2017-03-03");
+
+        registry.refresh(this.hpo);
+
+        Assert.assertEquals("2017-03-03", registry.getVersions().get("hpo"));
+        Assert.assertEquals("2017-02-02", registry.getVersions().get("omim"));
+        verify(this.hpo, times(2)).getVersion();
+        verify(this.omim, times(1)).getVersion();
+    }
+
+    @Test
+    public void missingVersionsAreReadAgain() throws Exception
+    {
+        VocabularyVersionRegistry registry = this.mocker.getComponentUnderTest();
+        when(this.unversioned.getVersion()).thenReturn(null, " ", "1.0");
+
+        Assert.assertFalse(registry.getVersions().containsKey("other"));
+        Assert.assertFalse(registry.getVersions().containsKey("other"));
+        Assert.assertEquals("1.0", registry.getVersions().get("other"));
+        Assert.assertEquals("1.0", registry.getVersions().get("other"));
+
+        verify(this.unversioned, times(3)).getVersion();
+        verify(this.hpo, times(1)).getVersion();
+    }
+
+    @Test
+    public void versionsAreReadAgainWhenExpired() throws Exception
+    {
+        VocabularyVersionRegistry registry = this.mocker.getComponentUnderTest();
+        final AtomicLong now = new AtomicLong();
+        ReflectionUtils.setFieldValue(registry, "clock", new LongSupplier()
+        {
+            @Override
+            public long getAsLong()
+            {
+                return now.get();
+            }
+        });
+        Assert.assertEquals("2017-01-01", registry.getVersions().get("hpo"));
+        when(this.hpo.getVersion()).thenReturn("2017-03-03");
+
+        now.addAndGet(TimeUnit.MINUTES.toNanos(59));
+        Assert.assertEquals("2017-01-01", registry.getVersions().get("hpo"));
+        now.addAndGet(TimeUnit.MINUTES.toNanos(2));
+        Assert.assertEquals("2017-03-03", registry.getVersions().get("hpo"));
+
+        verify(this.hpo, times(2)).getVersion();
+    }
+}
@@ -0,0 +1,253 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.vocabulary.internal.solr;
+
+import org.xwiki.component.util.ReflectionUtils;
+import org.xwiki.configuration.ConfigurationSource;
+import org.xwiki.environment.Environment;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.solr.core.CoreContainer;
+import org.apache.solr.core.SolrCore;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.Matchers;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.slf4j.Logger;
+
+/**
+ * Tests for the {@link DefaultSolrCoreContainerHandler} component.
+ *
+ * @version $Id$
+ */
+public class DefaultSolrCoreContainerHandlerTest
+{
+    private static final String MARKER = "# Added by PhenoTips, removed when phenotips.solr.lazyCores is false";
+
+    private static final String LAZY = "loadOnStartup=false";
+
+    private static final String HPO = "hpo";
+
+    private static final String OMIM = "omim";
+
+    private static final String GO = "go";
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private DefaultSolrCoreContainerHandler handler;
+
+    private CoreContainer container;
+
+    private ConfigurationSource configuration;
+
+    private Logger logger;
+
+    private File hpoProperties;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        this.container = Mockito.mock(CoreContainer.class);
+        this.handler = new DefaultSolrCoreContainerHandler()
+        {
+            @Override
+            CoreContainer createContainer(File solrHome)
+            {
+                return DefaultSolrCoreContainerHandlerTest.this.container;
+            }
+        };
+
+        this.logger = Mockito.mock(Logger.class);
+        Environment environment = Mockito.mock(Environment.class);
+        Mockito.when(environment.getPermanentDirectory()).thenReturn(this.folder.getRoot());
+        this.configuration = Mockito.mock(ConfigurationSource.class);
+        Mockito.when(this.configuration.getProperty(Matchers.anyString(), (Object) Matchers.any()))
+            .thenAnswer(new Answer<Object>()
+            {
+                @Override
+                public Object answer(InvocationOnMock invocation)
+                {
+                    // Use the default value for all the settings that aren't explicitly set by a test
+                    return invocation.getArguments()[1];
+                }
+            });
+        ReflectionUtils.setFieldValue(this.handler, "logger", this.logger);
+        ReflectionUtils.setFieldValue(this.handler, "environment", environment);
+        ReflectionUtils.setFieldValue(this.handler, "configuration", this.configuration);
+
+        this.hpoProperties = new File(this.folder.newFolder("solr", HPO), "core.properties");
+        Mockito.when(this.container.getAllCoreNames()).thenReturn(Arrays.asList(HPO, OMIM, GO));
+        Mockito.when(this.container.getCoreNames()).thenReturn(Arrays.asList(GO));
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        this.handler.dispose();
+    }
+
+    @Test
+    public void coresAreMarkedAsLazyOnlyOnce() throws IOException
+    {
+        write("name=hpo");
+
+        this.handler.initialize();
+        Assert.assertEquals(Arrays.asList("name=hpo", MARKER, LAZY), read());
+
+        this.handler.initialize();
+        Assert.assertEquals(Arrays.asList("name=hpo", MARKER, LAZY), read());
+    }
+
+    @Test
+    public void explicitLoadOnStartupSettingIsKept() throws IOException
+    {
+        write("name=hpo", "loadOnStartup = true");
+
+        this.handler.initialize();
+
+        Assert.assertEquals(Arrays.asList("name=hpo", "loadOnStartup = true"), read());
+    }
+
+    @Test
+    public void markerIsRemovedWhenLazyLoadingIsDisabled() throws IOException
+    {
+        write("name=hpo", MARKER, LAZY, "dataDir=data");
+        Mockito.when(this.configuration.getProperty("phenotips.solr.lazyCores", true)).thenReturn(false);
+
+        this.handler.initialize();
+
+        Assert.assertEquals(Arrays.asList("name=hpo", "dataDir=data"), read());
+    }
+
+    @Test
+    public void nothingIsAddedWhenLazyLoadingIsDisabled() throws IOException
+    {
+        write("name=hpo");
+        Mockito.when(this.configuration.getProperty("phenotips.solr.lazyCores", true)).thenReturn(false);
+
+        this.handler.initialize();
+
+        Assert.assertEquals(Arrays.asList("name=hpo"), read());
+    }
+
+    @Test
+    public void getCoreReportsOnlyTheFirstOpening()
+    {
+        this.handler.initialize();
+        SolrCore core = mockCore(HPO);
+
+        // Two concurrent requests may both see the core as not loaded yet
+        Assert.assertSame(core, this.handler.getCore(HPO));
+        Assert.assertSame(core, this.handler.getCore(HPO));
+
+        Mockito.verify(this.logger).info(Matchers.eq("Solr core [{}] {}"), Matchers.eq(HPO), Matchers.anyObject());
+    }
+
+    @Test
+    public void getCoreDoesntReportCoresAlreadyOpen()
+    {
+        this.handler.initialize();
+        mockCore(GO);
+        Mockito.when(this.container.isLoaded(GO)).thenReturn(true);
+
+        this.handler.getCore(GO);
+
+        Mockito.verify(this.logger, Mockito.never()).info(Matchers.eq("Solr core [{}] {}"), Matchers.anyObject(),
+            Matchers.anyObject());
+    }
+
+    @Test
+    public void getCoreReturnsNullForUnknownCores()
+    {
+        this.handler.initialize();
+
+        Assert.assertNull(this.handler.getCore("unknown"));
+    }
+
+    @Test
+    public void noCoreIsPrewarmedByDefault()
+    {
+        this.handler.initialize();
+
+        Mockito.verify(this.container, Mockito.never()).getCore(Matchers.anyString());
+    }
+
+    @Test
+    public void prewarmOpensOnlyTheListedLazyCores()
+    {
+        mockCore(HPO);
+        mockCore(OMIM);
+        Mockito.when(this.configuration.getProperty("phenotips.solr.prewarm", "")).thenReturn("hpo, go, unknown");
+
+        this.handler.initialize();
+
+        Mockito.verify(this.container, Mockito.timeout(5000).atLeastOnce()).getCore(HPO);
+        Mockito.verify(this.logger, Mockito.timeout(5000)).info(Matchers.eq("Prewarmed the Solr cores in [{}] ms:{}"),
+            Matchers.anyObject(), Matchers.anyObject());
+        Mockito.verify(this.container, Mockito.never()).getCore(OMIM);
+        Mockito.verify(this.container, Mockito.never()).getCore(GO);
+        Mockito.verify(this.container, Mockito.never()).getCore("unknown");
+    }
+
+    @Test
+    public void prewarmOpensAllLazyCoresWhenRequested()
+    {
+        mockCore(HPO);
+        mockCore(OMIM);
+        Mockito.when(this.configuration.getProperty("phenotips.solr.prewarm", "")).thenReturn("*");
+
+        this.handler.initialize();
+
+        Mockito.verify(this.logger, Mockito.timeout(5000)).info(Matchers.eq("Prewarmed the Solr cores in [{}] ms:{}"),
+            Matchers.anyObject(), Matchers.anyObject());
+        Mockito.verify(this.container, Mockito.atLeastOnce()).getCore(HPO);
+        Mockito.verify(this.container, Mockito.atLeastOnce()).getCore(OMIM);
+        Mockito.verify(this.container, Mockito.never()).getCore(GO);
+    }
+
+    private SolrCore mockCore(String name)
+    {
+        SolrCore core = Mockito.mock(SolrCore.class);
+        Mockito.when(core.getName()).thenReturn(name);
+        Mockito.when(this.container.getCore(name)).thenReturn(core);
+        return core;
+    }
+
+    private void write(String... lines) throws IOException
+    {
+        Files.write(this.hpoProperties.toPath(), Arrays.asList(lines), StandardCharsets.ISO_8859_1);
+    }
+
+    private List<String> read() throws IOException
+    {
+        return Files.readAllLines(this.hpoProperties.toPath(), StandardCharsets.ISO_8859_1);
+    }
+}
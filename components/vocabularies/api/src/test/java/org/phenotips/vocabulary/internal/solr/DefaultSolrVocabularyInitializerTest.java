@@ -17,11 +17,42 @@
  */
 package org.phenotips.vocabulary.internal.solr;
 
+import org.phenotips.vocabulary.SolrCoreContainerHandler;
 import org.phenotips.vocabulary.SolrVocabularyResourceManager;
+import org.phenotips.vocabulary.VocabularyTerm;
 
+import org.xwiki.cache.Cache;
+import org.xwiki.cache.CacheException;
+import org.xwiki.cache.CacheManager;
+import org.xwiki.cache.config.CacheConfiguration;
+import org.xwiki.environment.Environment;
+import org.xwiki.extension.CoreExtension;
+import org.xwiki.extension.ExtensionId;
+import org.xwiki.extension.distribution.internal.DistributionManager;
 import org.xwiki.test.mockito.MockitoComponentMockingRule;
 
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.solr.client.solrj.SolrClient;
+import org.apache.solr.core.CoreContainer;
+import org.apache.solr.core.CoreDescriptor;
+import org.apache.solr.core.SolrCore;
+import org.junit.Assert;
+import org.junit.Before;
 import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.Matchers;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 
 /**
  * Test for the implementation of DefaultSolrVocabularyResourceManager. It is the class that creates a connection to the
@@ -29,7 +60,138 @@
  */
 public class DefaultSolrVocabularyInitializerTest
 {
+    private static final String HPO = "hpo";
+
+    private static final String VERSION = "1.4";
+
     @Rule
     public final MockitoComponentMockingRule<SolrVocabularyResourceManager> mocker =
         new MockitoComponentMockingRule<SolrVocabularyResourceManager>(DefaultSolrVocabularyResourceManager.class);
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Mock
+    private CoreContainer container;
+
+    @Mock
+    private CoreDescriptor descriptor;
+
+    @Mock
+    private SolrCore core;
+
+    @Mock
+    private Cache<VocabularyTerm> cache;
+
+    private SolrCoreContainerHandler handler;
+
+    private CacheManager cacheManager;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        MockitoAnnotations.initMocks(this);
+
+        this.handler = this.mocker.getInstance(SolrCoreContainerHandler.class);
+        Mockito.when(this.handler.getContainer()).thenReturn(this.container);
+        Mockito.when(this.handler.getCore(HPO)).thenReturn(this.core);
+        Mockito.when(this.container.getCoreDescriptor(HPO)).thenReturn(this.descriptor);
+        Mockito.when(this.descriptor.getCoreProperty("phenotips.version", "")).thenReturn(VERSION);
+
+        CoreExtension distribution = Mockito.mock(CoreExtension.class);
+        Mockito.when(distribution.getId()).thenReturn(new ExtensionId("org.phenotips:phenotips-war", VERSION));
+        Mockito.when(this.mocker.<DistributionManager>getInstance(DistributionManager.class)
+            .getDistributionExtension()).thenReturn(distribution);
+        Mockito.when(this.mocker.<Environment>getInstance(Environment.class).getPermanentDirectory())
+            .thenReturn(this.folder.getRoot());
+
+        this.cacheManager = this.mocker.getInstance(CacheManager.class);
+        Mockito.when(this.cacheManager.<VocabularyTerm>createNewLocalCache(Matchers.any(CacheConfiguration.class)))
+            .thenReturn(this.cache);
+    }
+
+    @Test
+    public void resourcesAreSetUpOnlyOnce() throws Exception
+    {
+        SolrVocabularyResourceManager manager = this.mocker.getComponentUnderTest();
+
+        SolrClient client = manager.getSolrConnection(HPO);
+        Assert.assertNotNull(client);
+        Assert.assertSame(client, manager.getSolrConnection(HPO));
+        Assert.assertSame(this.cache, manager.getTermCache(HPO));
+
+        Mockito.verify(this.handler).getCore(HPO);
+        Mockito.verify(this.core).close();
+        Mockito.verify(this.cacheManager).createNewLocalCache(Matchers.any(CacheConfiguration.class));
+        Mockito.verify(this.container, Mockito.never()).reload(HPO);
+    }
+
+    @Test
+    public void concurrentFirstRequestsShareTheSameSetup() throws Exception
+    {
+        final CountDownLatch opening = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        Mockito.when(this.handler.getCore(HPO)).thenAnswer(new Answer<SolrCore>()
+        {
+            @Override
+            public SolrCore answer(InvocationOnMock invocation) throws InterruptedException
+            {
+                opening.countDown();
+                release.await(5, TimeUnit.SECONDS);
+                return DefaultSolrVocabularyInitializerTest.this.core;
+            }
+        });
+        final SolrVocabularyResourceManager manager = this.mocker.getComponentUnderTest();
+        Callable<SolrClient> request = new Callable<SolrClient>()
+        {
+            @Override
+            public SolrClient call()
+            {
+                return manager.getSolrConnection(HPO);
+            }
+        };
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<SolrClient> first = executor.submit(request);
+            Assert.assertTrue(opening.await(5, TimeUnit.SECONDS));
+            Future<SolrClient> second = executor.submit(request);
+            // Give the second request the time to start waiting for the first one
+            Thread.sleep(100);
+            release.countDown();
+
+            Assert.assertNotNull(first.get(5, TimeUnit.SECONDS));
+            Assert.assertSame(first.get(), second.get(5, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdownNow();
+        }
+        Mockito.verify(this.handler).getCore(HPO);
+        Mockito.verify(this.cacheManager).createNewLocalCache(Matchers.any(CacheConfiguration.class));
+    }
+
+    @Test
+    public void failuresAreNotRemembered() throws Exception
+    {
+        Mockito.when(this.cacheManager.<VocabularyTerm>createNewLocalCache(Matchers.any(CacheConfiguration.class)))
+            .thenThrow(new CacheException("Failed")).thenReturn(this.cache);
+        SolrVocabularyResourceManager manager = this.mocker.getComponentUnderTest();
+
+        Assert.assertNull(manager.getTermCache(HPO));
+        Assert.assertSame(this.cache, manager.getTermCache(HPO));
+
+        Mockito.verify(this.cacheManager, Mockito.times(2)).createNewLocalCache(Matchers.any(CacheConfiguration.class));
+    }
+
+    @Test
+    public void coreIsReloadedAfterItsConfigurationIsUpdated() throws Exception
+    {
+        Mockito.when(this.descriptor.getCoreProperty("phenotips.version", "")).thenReturn("1.3");
+
+        Assert.assertNotNull(this.mocker.getComponentUnderTest().getSolrConnection(HPO));
+
+        // Even if the core was not open before, it may have been opened by a prewarming thread during the update
+        Mockito.verify(this.handler).getCore(HPO);
+        Mockito.verify(this.container).reload(HPO);
+        Mockito.verify(this.core).close();
+    }
 }
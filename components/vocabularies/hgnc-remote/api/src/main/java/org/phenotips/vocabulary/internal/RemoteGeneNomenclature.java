@@ -17,6 +17,7 @@
  */
 package org.phenotips.vocabulary.internal;
 
+import org.phenotips.http.SharedHttpClient;
 import org.phenotips.vocabulary.Vocabulary;
 import org.phenotips.vocabulary.VocabularyTerm;
 
@@ -38,11 +39,18 @@
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.function.BiConsumer;
 
 import javax.inject.Inject;
 import javax.inject.Named;
@@ -52,11 +60,12 @@
 import org.apache.commons.lang3.StringUtils;
 import org.apache.http.Consts;
 import org.apache.http.HttpHeaders;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.ResponseHandler;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.entity.ContentType;
 import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClients;
 import org.apache.solr.client.solrj.util.ClientUtils;
 import org.apache.solr.common.params.CommonParams;
 import org.json.JSONArray;
@@ -66,6 +75,23 @@
 
 /**
  * Provides access to the HUGO Gene Nomenclature Committee's GeneNames nomenclature. The prefix is {@code HGNC}.
+ * <p>
+ * Fetched terms are cached, and so are the symbols that don't exist, but for a shorter time, since the nomenclature
+ * may gain new symbols. Concurrent requests for the same symbol share one request to the remote service, and the
+ * number of requests performed in parallel when {@link #getTerms(Collection) fetching many terms} is bounded. The
+ * following {@code xwiki.properties} settings are supported:
+ * </p>
+ * <ul>
+ * <li>{@code phenotips.ontologies.hgnc.serviceURL}: the base URL of the remote service,
+ * {@code http://rest.genenames.org/} by default</li>
+ * <li>{@code phenotips.ontologies.hgnc.cacheSize}: how many terms to keep in the cache, {@code 10000} by default</li>
+ * <li>{@code phenotips.ontologies.hgnc.missingTermsTTL}: for how long to remember that a symbol doesn't exist, in
+ * seconds, {@code 3600} by default</li>
+ * <li>{@code phenotips.ontologies.hgnc.maxParallelRequests}: how many requests can be sent at the same time to the
+ * remote service when fetching many terms, {@code 8} by default</li>
+ * <li>{@code phenotips.ontologies.hgnc.warmup}: whether to fetch all the genes referenced by existing patients when
+ * the application starts, {@code false} by default</li>
+ * </ul>
  *
  * @version $Id$
  * @since 1.0RC1
@@ -93,6 +119,13 @@ public class RemoteGeneNomenclature implements Vocabulary, Initializable
 
     private static final Map<String, String> QUERY_OPERATORS = new HashMap<>();
 
+    private static final String FETCH_FAILED = "Failed to fetch gene definition: {}";
+
+    private static final String CONFIGURATION_PREFIX = "phenotips.ontologies.hgnc.";
+
+    /** For how long are existing terms cached, in seconds. */
+    private static final int TERMS_TTL = 24 * 60 * 60;
+
     @Inject
     @Named("xwikiproperties")
     private ConfigurationSource configuration;
@@ -105,8 +138,11 @@ public class RemoteGeneNomenclature implements Vocabulary, Initializable
 
     private String fetchServiceURL;
 
+    @Inject
+    private SharedHttpClient httpClient;
+
     /** Performs HTTP requests to the remote REST service. */
-    private final CloseableHttpClient client = HttpClients.createSystem();
+    private CloseableHttpClient client;
 
     @Inject
     private Logger logger;
@@ -117,9 +153,21 @@ public class RemoteGeneNomenclature implements Vocabulary, Initializable
      */
     private Cache<VocabularyTerm> cache;
 
+    /**
+     * Cache for the recently requested symbols which don't exist in the nomenclature, kept for a shorter time than the
+     * existing terms, since new symbols may be added to the nomenclature.
+     */
+    private Cache<VocabularyTerm> missingTermsCache;
+
     /** Cache for vocabulary metadata. */
     private Cache<JSONObject> infoCache;
 
+    /** The requests currently being performed, so that concurrent requests for the same term can share them. */
+    private final ConcurrentMap<String, CompletableFuture<VocabularyTerm>> pendingRequests = new ConcurrentHashMap<>();
+
+    /** Limits how many requests are sent in parallel by {@link #getTerms(Collection)}. */
+    private Semaphore parallelRequests;
+
     /** Cache factory needed for creating the term cache. */
     @Inject
     private CacheManager cacheFactory;
@@ -127,13 +175,20 @@ public class RemoteGeneNomenclature implements Vocabulary, Initializable
     @Override
     public void initialize() throws InitializationException
     {
+        this.client = this.httpClient.getClient();
         try {
             this.baseServiceURL =
                 this.configuration.getProperty("phenotips.ontologies.hgnc.serviceURL", "http://rest.genenames.org/");
             this.searchServiceURL = this.baseServiceURL + "search/";
             this.infoServiceURL = this.baseServiceURL + "info";
             this.fetchServiceURL = this.baseServiceURL + "fetch/";
-            this.cache = this.cacheFactory.createNewLocalCache(new CacheConfiguration());
+            int cacheSize = getIntProperty("cacheSize", 10000);
+            EntryEvictionConfiguration termsConfig = new LRUEvictionConfiguration(cacheSize);
+            termsConfig.setTimeToLive(TERMS_TTL);
+            this.cache = this.cacheFactory.createNewLocalCache(new CacheConfiguration(termsConfig));
+            EntryEvictionConfiguration missingTermsConfig = new LRUEvictionConfiguration(cacheSize);
+            missingTermsConfig.setTimeToLive(getIntProperty("missingTermsTTL", 3600));
+            this.missingTermsCache = this.cacheFactory.createNewLocalCache(new CacheConfiguration(missingTermsConfig));
             EntryEvictionConfiguration infoConfig = new LRUEvictionConfiguration(1);
             infoConfig.setTimeToLive(300);
             this.infoCache = this.cacheFactory.createNewLocalCache(new CacheConfiguration(infoConfig));
@@ -143,34 +198,29 @@ public void initialize() throws InitializationException
         QUERY_OPERATORS.put("OR", "");
         QUERY_OPERATORS.put(DEFAULT_OPERATOR, DEFAULT_OPERATOR + ' ');
         QUERY_OPERATORS.put("NOT", "-");
+        this.parallelRequests = new Semaphore(Math.max(1, getIntProperty("maxParallelRequests", 8)));
     }
 
     @Override
     public VocabularyTerm getTerm(String id)
     {
-        VocabularyTerm result = this.cache.get(id);
-        String safeID;
+        VocabularyTerm result = getCachedTerm(id);
         if (result == null) {
-            try {
-                safeID = URLEncoder.encode(id, Consts.UTF_8.name());
-            } catch (UnsupportedEncodingException e) {
-                safeID = id.replaceAll("\\s", "");
-                this.logger.warn("Could not find the encoding: {}", Consts.UTF_8.name());
-            }
-            HttpGet method = new HttpGet(this.fetchServiceURL + "symbol/" + safeID);
-            method.setHeader(HttpHeaders.ACCEPT, ContentType.APPLICATION_JSON.getMimeType());
-            try (CloseableHttpResponse httpResponse = this.client.execute(method)) {
-                String response = IOUtils.toString(httpResponse.getEntity().getContent(), Consts.UTF_8);
-                JSONObject responseJSON = new JSONObject(response);
-                JSONArray docs = responseJSON.getJSONObject(RESPONSE_KEY).getJSONArray(DATA_KEY);
-                if (docs.length() == 1) {
-                    result = new JSONOntologyTerm(docs.getJSONObject(0), this);
-                    this.cache.set(id, result);
-                } else {
-                    this.cache.set(id, EMPTY_MARKER);
+            CompletableFuture<VocabularyTerm> request = new CompletableFuture<>();
+            CompletableFuture<VocabularyTerm> pending = this.pendingRequests.putIfAbsent(id, request);
+            if (pending != null) {
+                // Another thread is already fetching this term, wait for its result
+                result = waitFor(id, pending);
+            } else {
+                // Perform the request on the current thread
+                try (CloseableHttpResponse httpResponse = this.client.execute(getFetchRequest(id))) {
+                    result = new FetchResponseHandler(id).handleResponse(httpResponse);
+                } catch (IOException | JSONException ex) {
+                    this.logger.warn(FETCH_FAILED, ex.getMessage());
+                } finally {
+                    this.pendingRequests.remove(id, request);
+                    request.complete(result);
                 }
-            } catch (IOException | JSONException ex) {
-                this.logger.warn("Failed to fetch gene definition: {}", ex.getMessage());
             }
         }
         return (result == EMPTY_MARKER) ? null : result;
@@ -179,12 +229,23 @@ public VocabularyTerm getTerm(String id)
     @Override
     public Set<VocabularyTerm> getTerms(Collection<String> ids)
     {
-        // FIXME Reimplement with a bunch of async connections fired in parallel
-        Set<VocabularyTerm> result = new LinkedHashSet<>();
+        // Fire the requests for all the terms not already cached in parallel, then collect the results in order
+        Map<String, CompletableFuture<VocabularyTerm>> terms = new LinkedHashMap<>();
         for (String id : ids) {
-            VocabularyTerm term = getTerm(id);
-            if (term != null) {
-                result.add(term);
+            if (terms.containsKey(id)) {
+                continue;
+            }
+            VocabularyTerm term = getCachedTerm(id);
+            terms.put(id, term != null ? CompletableFuture.completedFuture(term) : fetchInBackground(id));
+        }
+        Set<VocabularyTerm> result = new LinkedHashSet<>();
+        for (Map.Entry<String, CompletableFuture<VocabularyTerm>> term : terms.entrySet()) {
+            VocabularyTerm value = waitFor(term.getKey(), term.getValue());
+            if (value != null && value != EMPTY_MARKER) {
+                result.add(value);
+            }
+            if (Thread.currentThread().isInterrupted()) {
+                break;
             }
         }
         return result;
@@ -342,6 +403,7 @@ public int reindex(String ontologyUrl)
     {
         // Remote vocabulary, we cannot reindex, but we can clear the local cache
         this.cache.removeAll();
+        this.missingTermsCache.removeAll();
         return 0;
     }
 
@@ -377,6 +439,107 @@ private JSONObject getInfo()
         return null;
     }
 
+    /**
+     * Looks for a term in the caches.
+     *
+     * @param id the symbol to look for
+     * @return the cached term, {@link #EMPTY_MARKER} if the symbol is known not to exist, or {@code null} if the symbol
+     *         isn't cached
+     */
+    private VocabularyTerm getCachedTerm(String id)
+    {
+        VocabularyTerm result = this.cache.get(id);
+        if (result == null) {
+            result = this.missingTermsCache.get(id);
+        }
+        return result;
+    }
+
+    /**
+     * Starts fetching a term in the background, unless another request for the same term is already in progress. If
+     * too many requests are in progress, waits until one of them finishes.
+     *
+     * @param id the symbol to fetch
+     * @return the future result of the request, completed with {@code null} if the request fails
+     */
+    private CompletableFuture<VocabularyTerm> fetchInBackground(final String id)
+    {
+        final CompletableFuture<VocabularyTerm> request = new CompletableFuture<>();
+        CompletableFuture<VocabularyTerm> pending = this.pendingRequests.putIfAbsent(id, request);
+        if (pending != null) {
+            return pending;
+        }
+        try {
+            this.parallelRequests.acquire();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            this.pendingRequests.remove(id, request);
+            request.complete(null);
+            return request;
+        }
+        try {
+            this.httpClient.<VocabularyTerm>execute(getFetchRequest(id), new FetchResponseHandler(id))
+                .whenComplete(new BiConsumer<VocabularyTerm, Throwable>()
+                {
+                    @Override
+                    public void accept(VocabularyTerm result, Throwable error)
+                    {
+                        RemoteGeneNomenclature.this.parallelRequests.release();
+                        RemoteGeneNomenclature.this.pendingRequests.remove(id, request);
+                        if (error != null) {
+                            RemoteGeneNomenclature.this.logger.warn(FETCH_FAILED, error.getMessage());
+                        }
+                        request.complete(result);
+                    }
+                });
+        } catch (RuntimeException ex) {
+            this.parallelRequests.release();
+            this.pendingRequests.remove(id, request);
+            this.logger.warn(FETCH_FAILED, ex.getMessage());
+            request.complete(null);
+        }
+        return request;
+    }
+
+    /**
+     * Waits for a request performed by another thread.
+     *
+     * @param id the symbol being fetched
+     * @param request the pending request
+     * @return the fetched term, {@link #EMPTY_MARKER} if the term doesn't exist, or {@code null} if the request failed
+     */
+    private VocabularyTerm waitFor(String id, CompletableFuture<VocabularyTerm> request)
+    {
+        try {
+            return request.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException ex) {
+            this.logger.warn("Failed to fetch gene definition [{}]: {}", id, ex.getCause().getMessage());
+        }
+        return null;
+    }
+
+    private int getIntProperty(String name, int defaultValue)
+    {
+        Integer value = this.configuration.getProperty(CONFIGURATION_PREFIX + name, Integer.class);
+        return value == null ? defaultValue : value;
+    }
+
+    private HttpGet getFetchRequest(String id)
+    {
+        String safeID;
+        try {
+            safeID = URLEncoder.encode(id, Consts.UTF_8.name());
+        } catch (UnsupportedEncodingException e) {
+            safeID = id.replaceAll("\\s", "");
+            this.logger.warn("Could not find the encoding: {}", Consts.UTF_8.name());
+        }
+        HttpGet method = new HttpGet(this.fetchServiceURL + "symbol/" + safeID);
+        method.setHeader(HttpHeaders.ACCEPT, ContentType.APPLICATION_JSON.getMimeType());
+        return method;
+    }
+
     /**
      * Generate a Lucene query from a map of parameters, to be used in the "q" parameter for Solr.
      *
@@ -553,4 +716,32 @@ public Collection<?> getTranslatedValues(String name)
             return Collections.singleton(result);
         }
     }
+
+    /**
+     * Parses the response to a term fetch request, and caches the result.
+     */
+    private final class FetchResponseHandler implements ResponseHandler<VocabularyTerm>
+    {
+        private final String id;
+
+        FetchResponseHandler(String id)
+        {
+            this.id = id;
+        }
+
+        @Override
+        public VocabularyTerm handleResponse(HttpResponse httpResponse) throws IOException
+        {
+            String response = IOUtils.toString(httpResponse.getEntity().getContent(), Consts.UTF_8);
+            JSONObject responseJSON = new JSONObject(response);
+            JSONArray docs = responseJSON.getJSONObject(RESPONSE_KEY).getJSONArray(DATA_KEY);
+            if (docs.length() == 1) {
+                VocabularyTerm result = new JSONOntologyTerm(docs.getJSONObject(0), RemoteGeneNomenclature.this);
+                RemoteGeneNomenclature.this.cache.set(this.id, result);
+                return result;
+            }
+            RemoteGeneNomenclature.this.missingTermsCache.set(this.id, EMPTY_MARKER);
+            return EMPTY_MARKER;
+        }
+    }
 }
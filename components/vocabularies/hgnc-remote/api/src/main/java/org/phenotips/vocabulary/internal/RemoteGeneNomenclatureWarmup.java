@@ -0,0 +1,140 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.vocabulary.internal;
+
+import org.phenotips.vocabulary.Vocabulary;
+
+import org.xwiki.bridge.event.ApplicationReadyEvent;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.configuration.ConfigurationSource;
+import org.xwiki.context.Execution;
+import org.xwiki.context.ExecutionContext;
+import org.xwiki.context.ExecutionContextException;
+import org.xwiki.context.ExecutionContextManager;
+import org.xwiki.observation.AbstractEventListener;
+import org.xwiki.observation.event.Event;
+import org.xwiki.query.Query;
+import org.xwiki.query.QueryException;
+import org.xwiki.query.QueryManager;
+
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+
+/**
+ * Preloads into the {@link RemoteGeneNomenclature} cache the genes referenced by existing patients, so that displaying
+ * patients doesn't have to wait for the remote service. Enabled by setting {@code phenotips.ontologies.hgnc.warmup}
+ * to {@code true} in {@code xwiki.properties}. The genes are fetched in a background thread, after the application
+ * starts.
+ *
+ * @version $Id$
+ * @since 1.4
+ */
+@Component
+@Named("hgnc-remote-warmup")
+@Singleton
+public class RemoteGeneNomenclatureWarmup extends AbstractEventListener
+{
+    @Inject
+    private Logger logger;
+
+    @Inject
+    @Named("xwikiproperties")
+    private ConfigurationSource configuration;
+
+    @Inject
+    @Named("hgnc")
+    private Provider<Vocabulary> vocabulary;
+
+    @Inject
+    private QueryManager queryManager;
+
+    /** Used for setting up an execution context in the background thread. */
+    @Inject
+    private ExecutionContextManager contextManager;
+
+    @Inject
+    private Execution execution;
+
+    /** Default constructor, sets up the listener name and the list of events to subscribe to. */
+    public RemoteGeneNomenclatureWarmup()
+    {
+        super("hgnc-remote-warmup", new ApplicationReadyEvent());
+    }
+
+    @Override
+    public void onEvent(Event event, Object source, Object data)
+    {
+        if (!this.configuration.getProperty("phenotips.ontologies.hgnc.warmup", false)) {
+            return;
+        }
+        Thread warmup = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                warmUp();
+            }
+        }, "HGNC cache warmup");
+        warmup.setDaemon(true);
+        warmup.setPriority(Thread.MIN_PRIORITY);
+        warmup.start();
+    }
+
+    /**
+     * Fetches all the genes referenced by existing patients. Only the remote vocabulary benefits from this, the local
+     * vocabulary, if installed instead, is skipped.
+     */
+    void warmUp()
+    {
+        ExecutionContext context = new ExecutionContext();
+        this.execution.setContext(context);
+        try {
+            this.contextManager.initialize(context);
+            Vocabulary genes = this.vocabulary.get();
+            if (!(genes instanceof RemoteGeneNomenclature)) {
+                return;
+            }
+            Query query = this.queryManager.createQuery(
+                "select distinct gene.gene from Document doc, doc.object(PhenoTips.GeneClass) as gene", Query.XWQL);
+            List<Object> results = query.execute();
+            Set<String> symbols = new LinkedHashSet<>();
+            for (Object result : results) {
+                if (result instanceof String && StringUtils.isNotBlank((String) result)) {
+                    symbols.add((String) result);
+                }
+            }
+            long start = System.currentTimeMillis();
+            int found = genes.getTerms(symbols).size();
+            this.logger.info("Preloaded [{}] of the [{}] genes referenced by patients in [{}] ms", found,
+                symbols.size(), System.currentTimeMillis() - start);
+        } catch (ExecutionContextException | QueryException ex) {
+            this.logger.warn("Failed to preload the genes referenced by patients: {}", ex.getMessage());
+        } finally {
+            this.execution.removeContext();
+        }
+    }
+}
@@ -0,0 +1,273 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.vocabulary.internal;
+
+import org.phenotips.http.SharedHttpClient;
+import org.phenotips.vocabulary.Vocabulary;
+import org.phenotips.vocabulary.VocabularyTerm;
+
+import org.xwiki.cache.Cache;
+import org.xwiki.cache.CacheManager;
+import org.xwiki.cache.config.CacheConfiguration;
+import org.xwiki.cache.eviction.EntryEvictionConfiguration;
+import org.xwiki.configuration.ConfigurationSource;
+import org.xwiki.test.mockito.MockitoComponentMockingRule;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.client.ResponseHandler;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Matchers;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests for the concurrent fetching of terms by the {@link RemoteGeneNomenclature} component, against a local stub of
+ * the remote service.
+ *
+ * @version $Id$
+ */
+public class RemoteGeneNomenclatureConcurrencyTest
+{
+    @Rule
+    public MockitoComponentMockingRule<Vocabulary> mocker =
+        new MockitoComponentMockingRule<Vocabulary>(RemoteGeneNomenclature.class);
+
+    private HttpServer server;
+
+    /** How many requests were received for each symbol. */
+    private final Map<String, AtomicInteger> requests = new ConcurrentHashMap<>();
+
+    private final AtomicInteger activeRequests = new AtomicInteger();
+
+    private final AtomicInteger maxActiveRequests = new AtomicInteger();
+
+    private final Map<String, VocabularyTerm> termsCache = new ConcurrentHashMap<>();
+
+    private final Map<String, VocabularyTerm> missingTermsCache = new ConcurrentHashMap<>();
+
+    private CloseableHttpClient client;
+
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        this.server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        this.server.setExecutor(Executors.newCachedThreadPool());
+        this.server.createContext("/fetch/symbol/", new HttpHandler()
+        {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException
+            {
+                handleFetch(exchange);
+            }
+        });
+        this.server.start();
+
+        ConfigurationSource configuration = this.mocker.getInstance(ConfigurationSource.class, "xwikiproperties");
+        when(configuration.getProperty("phenotips.ontologies.hgnc.serviceURL", "http://rest.genenames.org/"))
+            .thenReturn("http://localhost:" + this.server.getAddress().getPort() + "/");
+        when(configuration.getProperty("phenotips.ontologies.hgnc.maxParallelRequests", Integer.class))
+            .thenReturn(2);
+        when(configuration.getProperty("phenotips.ontologies.hgnc.missingTermsTTL", Integer.class)).thenReturn(60);
+
+        CacheManager cacheManager = this.mocker.getInstance(CacheManager.class);
+        when(cacheManager.<VocabularyTerm>createNewLocalCache(any(CacheConfiguration.class))).thenReturn(
+            mockCache(this.termsCache), mockCache(this.missingTermsCache), mock(Cache.class));
+
+        this.client = HttpClients.createDefault();
+        this.executor = Executors.newFixedThreadPool(8);
+        SharedHttpClient sharedClient = this.mocker.getInstance(SharedHttpClient.class);
+        when(sharedClient.getClient()).thenReturn(this.client);
+        when(sharedClient.execute(any(HttpUriRequest.class), Matchers.<ResponseHandler<?>>any())).then(
+            new Answer<CompletableFuture<Object>>()
+            {
+                @Override
+                public CompletableFuture<Object> answer(InvocationOnMock invocation)
+                {
+                    final HttpUriRequest request = (HttpUriRequest) invocation.getArguments()[0];
+                    final ResponseHandler<?> handler = (ResponseHandler<?>) invocation.getArguments()[1];
+                    final CompletableFuture<Object> result = new CompletableFuture<>();
+                    RemoteGeneNomenclatureConcurrencyTest.this.executor.submit(new Runnable()
+                    {
+                        @Override
+                        public void run()
+                        {
+                            try {
+                                result.complete(RemoteGeneNomenclatureConcurrencyTest.this.client.execute(request,
+                                    handler));
+                            } catch (IOException ex) {
+                                result.completeExceptionally(ex);
+                            }
+                        }
+                    });
+                    return result;
+                }
+            });
+    }
+
+    @After
+    public void tearDown() throws IOException
+    {
+        this.server.stop(0);
+        this.executor.shutdownNow();
+        this.client.close();
+    }
+
+    @Test
+    public void concurrentRequestsForTheSameTermAreCoalesced() throws Exception
+    {
+        final Vocabulary vocabulary = this.mocker.getComponentUnderTest();
+        List<Callable<VocabularyTerm>> tasks = new ArrayList<>();
+        for (int i = 0; i < 6; ++i) {
+            tasks.add(new Callable<VocabularyTerm>()
+            {
+                @Override
+                public VocabularyTerm call()
+                {
+                    return vocabulary.getTerm("BRCA1");
+                }
+            });
+        }
+        ExecutorService callers = Executors.newFixedThreadPool(tasks.size());
+        try {
+            for (Future<VocabularyTerm> result : callers.invokeAll(tasks)) {
+                Assert.assertEquals("BRCA1", result.get().getId());
+            }
+        } finally {
+            callers.shutdownNow();
+        }
+        Assert.assertEquals(1, this.requests.get("BRCA1").get());
+    }
+
+    @Test
+    public void getTermsLimitsParallelRequests() throws Exception
+    {
+        Set<VocabularyTerm> result = this.mocker.getComponentUnderTest().getTerms(
+            Arrays.asList("GENE1", "GENE2", "NOGENE", "GENE3", "GENE4", "GENE2", "GENE5", "GENE6"));
+        Assert.assertEquals(6, result.size());
+        Assert.assertEquals("GENE1", result.iterator().next().getId());
+        Assert.assertTrue(this.maxActiveRequests.get() <= 2);
+        Assert.assertEquals(1, this.requests.get("GENE2").get());
+        Assert.assertTrue(this.termsCache.containsKey("GENE6"));
+    }
+
+    @Test
+    public void missingTermsAreCachedSeparately() throws Exception
+    {
+        Vocabulary vocabulary = this.mocker.getComponentUnderTest();
+        Assert.assertNull(vocabulary.getTerm("NOGENE"));
+        Assert.assertNull(vocabulary.getTerm("NOGENE"));
+        Assert.assertTrue(vocabulary.getTerms(Arrays.asList("NOGENE")).isEmpty());
+        Assert.assertEquals(1, this.requests.get("NOGENE").get());
+        Assert.assertTrue(this.missingTermsCache.containsKey("NOGENE"));
+        Assert.assertFalse(this.termsCache.containsKey("NOGENE"));
+
+        ArgumentCaptor<CacheConfiguration> configurations = ArgumentCaptor.forClass(CacheConfiguration.class);
+        verify(this.mocker.<CacheManager>getInstance(CacheManager.class), times(3))
+            .createNewLocalCache(configurations.capture());
+        EntryEvictionConfiguration missingTermsConfiguration = (EntryEvictionConfiguration) configurations
+            .getAllValues().get(1).get(EntryEvictionConfiguration.CONFIGURATIONID);
+        Assert.assertEquals(60, missingTermsConfiguration.getTimeToLive());
+    }
+
+    private void handleFetch(HttpExchange exchange) throws IOException
+    {
+        String symbol = exchange.getRequestURI().getPath().substring("/fetch/symbol/".length());
+        this.requests.putIfAbsent(symbol, new AtomicInteger());
+        this.requests.get(symbol).incrementAndGet();
+        int active = this.activeRequests.incrementAndGet();
+        int max = this.maxActiveRequests.get();
+        while (active > max && !this.maxActiveRequests.compareAndSet(max, active)) {
+            max = this.maxActiveRequests.get();
+        }
+        try {
+            // Slow enough for concurrent requests to overlap
+            Thread.sleep(200);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        this.activeRequests.decrementAndGet();
+        String docs = symbol.startsWith("NO") ? "" : "{\"symbol\":\"" + symbol + "\",\"name\":\"" + symbol + "\"}";
+        byte[] body = ("{\"response\":{\"docs\":[" + docs + "]}}").getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private Cache<VocabularyTerm> mockCache(final Map<String, VocabularyTerm> storage)
+    {
+        Cache<VocabularyTerm> cache = mock(Cache.class);
+        when(cache.get(anyString())).then(new Answer<VocabularyTerm>()
+        {
+            @Override
+            public VocabularyTerm answer(InvocationOnMock invocation)
+            {
+                return storage.get(invocation.getArguments()[0]);
+            }
+        });
+        doAnswer(new Answer<Void>()
+        {
+            @Override
+            public Void answer(InvocationOnMock invocation)
+            {
+                storage.put((String) invocation.getArguments()[0], (VocabularyTerm) invocation.getArguments()[1]);
+                return null;
+            }
+        }).when(cache).set(anyString(), any(VocabularyTerm.class));
+        return cache;
+    }
+}
@@ -17,6 +17,7 @@
  */
 package org.phenotips.vocabulary.internal;
 
+import org.phenotips.http.SharedHttpClient;
 import org.phenotips.vocabulary.Vocabulary;
 import org.phenotips.vocabulary.VocabularyTerm;
 
@@ -43,9 +44,11 @@
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 
 import org.apache.http.HttpEntity;
 import org.apache.http.client.ClientProtocolException;
+import org.apache.http.client.ResponseHandler;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpUriRequest;
 import org.apache.http.impl.client.CloseableHttpClient;
@@ -59,6 +62,8 @@
 import org.mockito.Mockito;
 import org.mockito.MockitoAnnotations;
 import org.mockito.internal.matchers.CapturingMatcher;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 
 import static org.mockito.Matchers.any;
 import static org.mockito.Mockito.mock;
@@ -106,6 +111,7 @@ public void setUp() throws ComponentLookupException, CacheException, NoSuchField
         this.configuration = this.mocker.getInstance(ConfigurationSource.class, "xwikiproperties");
         when(this.configuration.getProperty("phenotips.ontologies.hgnc.serviceURL", "http://rest.genenames.org/"))
             .thenReturn("http://rest.genenames.org/");
+        when(this.mocker.<SharedHttpClient>getInstance(SharedHttpClient.class).getClient()).thenReturn(this.client);
         ReflectionUtils.setFieldValue(this.mocker.getComponentUnderTest(), "client", this.client);
         Field em = ReflectionUtils.getField(RemoteGeneNomenclature.class, "EMPTY_MARKER");
         em.setAccessible(true);
@@ -221,6 +227,19 @@ public void getTermsFetchesFromRemoteServer() throws ComponentLookupException, U
         when(this.response.getEntity()).thenReturn(this.responseEntity);
         when(this.responseEntity.getContent()).thenReturn(ClassLoader.getSystemResourceAsStream("BRCA1.json"),
             ClassLoader.getSystemResourceAsStream("NOTHING.json"));
+        SharedHttpClient sharedClient = this.mocker.getInstance(SharedHttpClient.class);
+        when(sharedClient.execute(any(HttpUriRequest.class), Matchers.<ResponseHandler<?>>any())).then(
+            new Answer<CompletableFuture<Object>>()
+            {
+                @Override
+                public CompletableFuture<Object> answer(InvocationOnMock invocation) throws IOException
+                {
+                    HttpUriRequest request = (HttpUriRequest) invocation.getArguments()[0];
+                    ResponseHandler<?> handler = (ResponseHandler<?>) invocation.getArguments()[1];
+                    return CompletableFuture.<Object>completedFuture(
+                        handler.handleResponse(RemoteGeneNomenclatureTest.this.client.execute(request)));
+                }
+            });
         Set<VocabularyTerm> result = this.mocker.getComponentUnderTest().getTerms(Arrays.asList("BRCA1", "NOTHING"));
         List<HttpUriRequest> calledURIs = reqCapture.getAllValues();
         Assert.assertEquals(expectedURI1, calledURIs.get(0).getURI());
@@ -0,0 +1,102 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.vocabulary.internal;
+
+import org.phenotips.vocabulary.Vocabulary;
+
+import org.xwiki.component.util.DefaultParameterizedType;
+import org.xwiki.configuration.ConfigurationSource;
+import org.xwiki.observation.EventListener;
+import org.xwiki.query.Query;
+import org.xwiki.query.QueryManager;
+import org.xwiki.test.mockito.MockitoComponentMockingRule;
+
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+
+import javax.inject.Provider;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import static org.mockito.Matchers.anyCollectionOf;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests for the {@link RemoteGeneNomenclatureWarmup} component.
+ *
+ * @version $Id$
+ */
+public class RemoteGeneNomenclatureWarmupTest
+{
+    @Rule
+    public final MockitoComponentMockingRule<EventListener> mocker =
+        new MockitoComponentMockingRule<EventListener>(RemoteGeneNomenclatureWarmup.class);
+
+    @Mock
+    private Provider<Vocabulary> vocabularyProvider;
+
+    @Mock
+    private Query query;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        MockitoAnnotations.initMocks(this);
+        this.mocker.registerComponent(new DefaultParameterizedType(null, Provider.class, Vocabulary.class), "hgnc",
+            this.vocabularyProvider);
+        when(this.mocker.<QueryManager>getInstance(QueryManager.class).createQuery(anyString(), anyString()))
+            .thenReturn(this.query);
+        when(this.query.execute()).thenReturn(Arrays.<Object>asList("BRCA1", "", null, "ENSG00000139618"));
+    }
+
+    @Test
+    public void genesReferencedByPatientsArePreloaded() throws Exception
+    {
+        RemoteGeneNomenclature vocabulary = mock(RemoteGeneNomenclature.class);
+        when(this.vocabularyProvider.get()).thenReturn(vocabulary);
+        ((RemoteGeneNomenclatureWarmup) this.mocker.getComponentUnderTest()).warmUp();
+        verify(vocabulary).getTerms(new LinkedHashSet<>(Arrays.asList("BRCA1", "ENSG00000139618")));
+    }
+
+    @Test
+    public void localVocabularyIsNotPreloaded() throws Exception
+    {
+        Vocabulary vocabulary = mock(Vocabulary.class);
+        when(this.vocabularyProvider.get()).thenReturn(vocabulary);
+        ((RemoteGeneNomenclatureWarmup) this.mocker.getComponentUnderTest()).warmUp();
+        verify(vocabulary, never()).getTerms(anyCollectionOf(String.class));
+        verify(this.query, never()).execute();
+    }
+
+    @Test
+    public void warmupIsDisabledByDefault() throws Exception
+    {
+        when(this.mocker.<ConfigurationSource>getInstance(ConfigurationSource.class, "xwikiproperties")
+            .getProperty("phenotips.ontologies.hgnc.warmup", false)).thenReturn(false);
+        this.mocker.getComponentUnderTest().onEvent(null, null, null);
+        verify(this.vocabularyProvider, never()).get();
+    }
+}
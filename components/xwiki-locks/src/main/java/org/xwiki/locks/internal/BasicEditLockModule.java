@@ -79,8 +79,11 @@ public DocumentLock getLock(DocumentReference doc)
                 return null;
             }
             XWikiLock xlock = xdoc.getLock(context);
+            if (xlock == null) {
+                return null;
+            }
             User user = this.userManager.getUser(xlock.getUserName());
-            if (xlock != null && !user.getId().equals(this.userManager.getCurrentUser().getId())) {
+            if (!user.getId().equals(this.userManager.getCurrentUser().getId())) {
                 Set<String> actions = Collections.singleton("edit");
                 return new DocumentLock(user, xlock.getDate(),
                     this.tm.translate("locks.documentInUse", user.getName()), actions, true);
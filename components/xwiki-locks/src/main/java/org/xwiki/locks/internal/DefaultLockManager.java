@@ -17,13 +17,30 @@
  */
 package org.xwiki.locks.internal;
 
+import org.xwiki.bridge.event.AbstractDocumentEvent;
+import org.xwiki.bridge.event.DocumentDeletedEvent;
+import org.xwiki.bridge.event.DocumentUpdatedEvent;
 import org.xwiki.component.annotation.Component;
+import org.xwiki.component.event.ComponentDescriptorAddedEvent;
+import org.xwiki.component.event.ComponentDescriptorRemovedEvent;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
 import org.xwiki.locks.DocumentLock;
 import org.xwiki.locks.LockManager;
 import org.xwiki.locks.LockModule;
 import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.observation.EventListener;
+import org.xwiki.observation.ObservationManager;
+import org.xwiki.observation.event.Event;
+import org.xwiki.users.User;
+import org.xwiki.users.UserManager;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import javax.inject.Inject;
 import javax.inject.Provider;
@@ -31,14 +48,28 @@
 
 import org.slf4j.Logger;
 
+import com.xpn.xwiki.doc.XWikiDocument;
+
 /**
+ * Asks each {@link LockModule}, in descending order of their priority, if a document is locked. Since locks are checked
+ * during every authorization check, both the ordered list of modules and the lock state of each document are cached:
+ * the list of modules until a lock module is registered or unregistered, and the lock state of a document, for the
+ * current user, for a few seconds, or until the document is saved or deleted. The expiration takes care of changes not
+ * signaled by document events, such as a user starting or stopping to edit a document.
+ *
  * @version $Id$
  * @since 1.3M1
  */
 @Component
 @Singleton
-public class DefaultLockManager implements LockManager
+public class DefaultLockManager implements LockManager, EventListener, Initializable
 {
+    /** How long the lock state of a document is remembered, in milliseconds. */
+    private static final long LOCK_STATE_LIFESPAN = 5000L;
+
+    /** The maximum number of documents whose lock state is remembered. */
+    private static final int MAX_CACHED_DOCUMENTS = 10000;
+
     @Inject
     private Logger logger;
 
@@ -46,10 +77,91 @@ public class DefaultLockManager implements LockManager
     @Inject
     private Provider<List<LockModule>> managers;
 
+    @Inject
+    private UserManager userManager;
+
+    /** Allows registering this object as an event listener. */
+    @Inject
+    private ObservationManager observationManager;
+
+    /** The ordered list of lock modules, {@code null} until first needed or after the list of modules changes. */
+    private volatile List<LockModule> modules;
+
+    /** The cached lock states, for each document and for each user that asked about that document. */
+    private final ConcurrentMap<DocumentReference, ConcurrentMap<String, CachedLock>> lockStates =
+        new ConcurrentHashMap<>();
+
+    @Override
+    public void initialize() throws InitializationException
+    {
+        this.observationManager.addListener(this);
+    }
+
     @Override
     public DocumentLock getLock(DocumentReference document)
     {
-        for (LockModule service : this.managers.get()) {
+        if (document == null) {
+            return computeLock(document);
+        }
+        String user = getCurrentUserId();
+        ConcurrentMap<String, CachedLock> documentStates = this.lockStates.get(document);
+        if (documentStates != null) {
+            CachedLock cached = documentStates.get(user);
+            if (cached != null && cached.expires > System.currentTimeMillis()) {
+                return cached.lock;
+            }
+        }
+
+        DocumentLock lock = computeLock(document);
+        if (documentStates == null) {
+            if (this.lockStates.size() >= MAX_CACHED_DOCUMENTS) {
+                this.lockStates.clear();
+            }
+            ConcurrentMap<String, CachedLock> newStates = new ConcurrentHashMap<>();
+            documentStates = this.lockStates.putIfAbsent(document, newStates);
+            if (documentStates == null) {
+                documentStates = newStates;
+            }
+        }
+        documentStates.put(user, new CachedLock(lock, System.currentTimeMillis() + LOCK_STATE_LIFESPAN));
+        return lock;
+    }
+
+    @Override
+    public String getName()
+    {
+        return "document-lock-cache";
+    }
+
+    @Override
+    public List<Event> getEvents()
+    {
+        return Arrays.<Event>asList(new ComponentDescriptorAddedEvent(LockModule.class),
+            new ComponentDescriptorRemovedEvent(LockModule.class), new DocumentUpdatedEvent(),
+            new DocumentDeletedEvent());
+    }
+
+    @Override
+    public void onEvent(Event event, Object source, Object data)
+    {
+        if (event instanceof AbstractDocumentEvent) {
+            DocumentReference document =
+                source instanceof XWikiDocument ? ((XWikiDocument) source).getDocumentReference() : null;
+            if (document != null) {
+                this.lockStates.remove(document);
+            } else {
+                this.lockStates.clear();
+            }
+        } else {
+            // a lock module was added or removed
+            this.modules = null;
+            this.lockStates.clear();
+        }
+    }
+
+    private DocumentLock computeLock(DocumentReference document)
+    {
+        for (LockModule service : getModules()) {
             try {
                 DocumentLock lock = service.getLock(document);
                 if (lock != null) {
@@ -63,4 +175,34 @@ public DocumentLock getLock(DocumentReference document)
         }
         return null;
     }
+
+    private List<LockModule> getModules()
+    {
+        List<LockModule> result = this.modules;
+        if (result == null) {
+            result = Collections.unmodifiableList(new ArrayList<>(this.managers.get()));
+            this.modules = result;
+        }
+        return result;
+    }
+
+    private String getCurrentUserId()
+    {
+        User user = this.userManager.getCurrentUser();
+        return user == null || user.getId() == null ? "" : user.getId();
+    }
+
+    /** The lock state of a document, as seen by a user, along with the moment it must be checked again. */
+    private static final class CachedLock
+    {
+        private final DocumentLock lock;
+
+        private final long expires;
+
+        CachedLock(DocumentLock lock, long expires)
+        {
+            this.lock = lock;
+            this.expires = expires;
+        }
+    }
 }
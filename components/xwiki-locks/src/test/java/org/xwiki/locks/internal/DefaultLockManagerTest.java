@@ -0,0 +1,163 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.xwiki.locks.internal;
+
+import org.xwiki.bridge.event.DocumentUpdatedEvent;
+import org.xwiki.component.event.ComponentDescriptorAddedEvent;
+import org.xwiki.component.util.DefaultParameterizedType;
+import org.xwiki.locks.DocumentLock;
+import org.xwiki.locks.LockManager;
+import org.xwiki.locks.LockModule;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.observation.EventListener;
+import org.xwiki.test.mockito.MockitoComponentMockingRule;
+import org.xwiki.users.User;
+import org.xwiki.users.UserManager;
+
+import java.lang.reflect.ParameterizedType;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.inject.Provider;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import com.xpn.xwiki.doc.XWikiDocument;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests for the default {@link LockManager} implementation, {@link DefaultLockManager}.
+ *
+ * @version $Id$
+ */
+public class DefaultLockManagerTest
+{
+    @Rule
+    public final MockitoComponentMockingRule<LockManager> mocker =
+        new MockitoComponentMockingRule<LockManager>(DefaultLockManager.class);
+
+    private final DocumentReference doc = new DocumentReference("xwiki", "data", "P0000001");
+
+    @Mock
+    private Provider<List<LockModule>> modulesProvider;
+
+    @Mock
+    private LockModule module1;
+
+    @Mock
+    private LockModule module2;
+
+    @Mock
+    private DocumentLock lock;
+
+    @Mock
+    private User user;
+
+    @Before
+    public void setup() throws Exception
+    {
+        MockitoAnnotations.initMocks(this);
+
+        ParameterizedType listType = new DefaultParameterizedType(null, List.class, LockModule.class);
+        ParameterizedType providerType = new DefaultParameterizedType(null, Provider.class, listType);
+        this.mocker.registerComponent(providerType, this.modulesProvider);
+        when(this.modulesProvider.get()).thenReturn(Arrays.asList(this.module1, this.module2));
+
+        when(this.user.getId()).thenReturn("xwiki:XWiki.Alice");
+        when(this.mocker.<UserManager>getInstance(UserManager.class).getCurrentUser()).thenReturn(this.user);
+    }
+
+    @Test
+    public void firstLockFoundIsReturned() throws Exception
+    {
+        when(this.module2.getLock(this.doc)).thenReturn(this.lock);
+        Assert.assertSame(this.lock, this.mocker.getComponentUnderTest().getLock(this.doc));
+    }
+
+    @Test
+    public void failingModulesAreSkipped() throws Exception
+    {
+        when(this.module1.getLock(this.doc)).thenThrow(new NullPointerException());
+        when(this.module2.getLock(this.doc)).thenReturn(this.lock);
+        Assert.assertSame(this.lock, this.mocker.getComponentUnderTest().getLock(this.doc));
+    }
+
+    @Test
+    public void lockStateAndModulesAreCached() throws Exception
+    {
+        LockManager manager = this.mocker.getComponentUnderTest();
+        Assert.assertNull(manager.getLock(this.doc));
+        Assert.assertNull(manager.getLock(this.doc));
+
+        verify(this.modulesProvider, times(1)).get();
+        verify(this.module1, times(1)).getLock(this.doc);
+        verify(this.module2, times(1)).getLock(this.doc);
+    }
+
+    @Test
+    public void lockStateIsCachedForEachUser() throws Exception
+    {
+        LockManager manager = this.mocker.getComponentUnderTest();
+        manager.getLock(this.doc);
+
+        User other = mock(User.class);
+        when(other.getId()).thenReturn("xwiki:XWiki.Bob");
+        when(this.mocker.<UserManager>getInstance(UserManager.class).getCurrentUser()).thenReturn(other);
+        when(this.module1.getLock(this.doc)).thenReturn(this.lock);
+        Assert.assertSame(this.lock, manager.getLock(this.doc));
+    }
+
+    @Test
+    public void savingTheDocumentInvalidatesTheLockState() throws Exception
+    {
+        LockManager manager = this.mocker.getComponentUnderTest();
+        Assert.assertNull(manager.getLock(this.doc));
+
+        XWikiDocument xdoc = mock(XWikiDocument.class);
+        when(xdoc.getDocumentReference()).thenReturn(this.doc);
+        when(this.module1.getLock(this.doc)).thenReturn(this.lock);
+        ((EventListener) manager).onEvent(new DocumentUpdatedEvent(), xdoc, null);
+
+        Assert.assertSame(this.lock, manager.getLock(this.doc));
+        verify(this.modulesProvider, times(1)).get();
+    }
+
+    @Test
+    public void changingTheModulesReloadsTheChain() throws Exception
+    {
+        LockManager manager = this.mocker.getComponentUnderTest();
+        Assert.assertNull(manager.getLock(this.doc));
+
+        LockModule module3 = mock(LockModule.class);
+        when(module3.getLock(this.doc)).thenReturn(this.lock);
+        when(this.modulesProvider.get()).thenReturn(Arrays.asList(module3, this.module1, this.module2));
+        ((EventListener) manager).onEvent(new ComponentDescriptorAddedEvent(LockModule.class), null, null);
+
+        Assert.assertSame(this.lock, manager.getLock(this.doc));
+        verify(this.modulesProvider, times(2)).get();
+    }
+}